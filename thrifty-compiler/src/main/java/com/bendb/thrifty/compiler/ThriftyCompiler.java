@@ -36,6 +36,9 @@ import java.util.List;
  *         [--list-type=java.util.ArrayList]
  *         [--set-type=java.util.HashSet]
  *         [--map-type=java.util.HashMap]
+ *         [--use-primitive-collections]
+ *         [--use-primitive-fields]
+ *         [--emit-sync-clients]
  *         file1.thrift
  *         file2.thrift
  *         ...
@@ -58,6 +61,22 @@ import java.util.List;
  * class name when instantiating map-typed values.  Defaults to {@link java.util.HashMap}.
  * Android users will likely wish to substitute {@code android.support.v4.util.ArrayMap}.
  *
+ * <p>{@code --use-primitive-collections} is optional.  When provided, fields of type
+ * {@code list<i32>}, {@code list<i64>}, {@code list<double>}, {@code set<i32>} and
+ * {@code set<i64>} are generated as unboxed collections such as
+ * {@link com.bendb.thrifty.util.IntList}.  Individual fields may opt in or out
+ * regardless of this flag with the {@code (primitive)} and
+ * {@code (primitive = "false")} annotations.
+ *
+ * <p>{@code --use-primitive-fields} is optional.  When provided, scalar fields are
+ * generated as unboxed primitives, and optional scalars report their presence via
+ * generated {@code isSetFoo()} accessors rather than by being {@code null}.
+ *
+ * <p>{@code --emit-sync-clients} is optional.  When provided, a synchronous
+ * {@code FooSyncClient} is generated alongside each asynchronous {@code FooClient},
+ * making calls on the calling thread over connections from a
+ * {@link com.bendb.thrifty.service.ProtocolPool}.
+ *
  * <p>If no .thrift files are given, then all .thrift files located on the search path
  * will be implicitly included; otherwise only the given files (and those included by them)
  * will be compiled.
@@ -70,6 +89,9 @@ public class ThriftyCompiler {
     private static final String MAP_TYPE_PREFIX = "--map-type=";
     private static final String NULLABILITY_ARG = "--use-android-annotations";
     private static final String JAVA_NAMES_ARG = "--use-java-style-names";
+    private static final String PRIMITIVE_COLLECTIONS_ARG = "--use-primitive-collections";
+    private static final String PRIMITIVE_FIELDS_ARG = "--use-primitive-fields";
+    private static final String SYNC_CLIENTS_ARG = "--emit-sync-clients";
 
     private File outputDirectory;
     private List<String> thriftFiles = new ArrayList<>();
@@ -78,6 +100,9 @@ public class ThriftyCompiler {
     private String setTypeName;
     private String mapTypeName;
     private boolean emitNullabilityAnnotations = false;
+    private boolean usePrimitiveCollections = false;
+    private boolean usePrimitiveFields = false;
+    private boolean emitSyncClients = false;
     private FieldNamingPolicy fieldNamingPolicy = FieldNamingPolicy.DEFAULT;
 
     public static void main(String[] args) {
@@ -116,6 +141,12 @@ public class ThriftyCompiler {
                 compiler.emitNullabilityAnnotations = true;
             } else if (arg.trim().equals(JAVA_NAMES_ARG)) {
                 compiler.fieldNamingPolicy = FieldNamingPolicy.JAVA;
+            } else if (arg.trim().equals(PRIMITIVE_COLLECTIONS_ARG)) {
+                compiler.usePrimitiveCollections = true;
+            } else if (arg.trim().equals(PRIMITIVE_FIELDS_ARG)) {
+                compiler.usePrimitiveFields = true;
+            } else if (arg.trim().equals(SYNC_CLIENTS_ARG)) {
+                compiler.emitSyncClients = true;
             } else if (arg.startsWith("-")) {
                 throw new IllegalArgumentException("Unrecognized argument: " + arg);
             } else {
@@ -192,6 +223,9 @@ public class ThriftyCompiler {
         }
 
         gen.emitAndroidAnnotations(emitNullabilityAnnotations);
+        gen.usePrimitiveCollections(usePrimitiveCollections);
+        gen.usePrimitiveFields(usePrimitiveFields);
+        gen.emitSyncClients(emitSyncClients);
 
         gen.generate(outputDirectory);
     }
@@ -0,0 +1,12 @@
+/*
+ * Compiled without --use-primitive-collections, so that only annotated
+ * fields use primitive collections.
+ */
+
+namespace java com.bendb.thrifty.integration.annotated
+
+struct AnnotatedNumbers {
+  1: list<i32> ints (primitive),
+  2: set<i64>  long_set (primitive = "true"),
+  3: list<i32> boxed_ints
+}
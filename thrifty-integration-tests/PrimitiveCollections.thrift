@@ -0,0 +1,16 @@
+/*
+ * Compiled with --use-primitive-collections; see build.gradle.
+ */
+
+namespace java com.bendb.thrifty.integration.collections
+
+struct Numbers {
+  1: list<i32>    ints,
+  2: list<i64>    longs,
+  3: list<double> doubles,
+  4: set<i32>     int_set,
+  5: set<i64>     long_set,
+  6: list<i32>    boxed_ints (primitive = "false"),
+  7: list<i32>    default_ints = [1, 2, 3],
+  8: list<string> names
+}
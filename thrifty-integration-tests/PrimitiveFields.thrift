@@ -0,0 +1,29 @@
+/*
+ * Compiled with --use-primitive-fields; see build.gradle.
+ */
+
+namespace java com.bendb.thrifty.integration.fields
+
+enum Color {
+  RED = 1,
+  GREEN = 2
+}
+
+struct Scalars {
+  1:  bool              bool_field,
+  2:  byte              byte_field,
+  3:  i16               i16_field,
+  4:  i32               i32_field,
+  5:  i64               i64_field,
+  6:  double            double_field,
+  7:  required i32      required_i32,
+  8:  optional i64      defaulted_i64 = 42,
+  9:  string            name,
+  10: Color             color,
+  11: optional bool     flag
+}
+
+union Either {
+  1: i32    number,
+  2: string text
+}
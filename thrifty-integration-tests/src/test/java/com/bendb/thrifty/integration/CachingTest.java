@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.integration;
+
+import com.bendb.thrifty.integration.gen.ThriftTestClient;
+import com.bendb.thrifty.protocol.BinaryProtocol;
+import com.bendb.thrifty.service.CallHandle;
+import com.bendb.thrifty.service.ClientBase;
+import com.bendb.thrifty.testing.ServerProtocol;
+import com.bendb.thrifty.testing.ServerTransport;
+import com.bendb.thrifty.testing.TestServer;
+import com.bendb.thrifty.transport.SocketTransport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that results of methods annotated with a {@code cache.ttl} are
+ * served from the client's cache.  Calls reach the server through a proxy,
+ * which counts the bytes sent, so that calls answered by the cache are seen
+ * never to leave the client.
+ *
+ * <p>{@code testDouble} is cached for one second, with room for two
+ * results.
+ */
+public class CachingTest {
+    @Rule public TestServer testServer = new TestServer(ServerProtocol.BINARY, ServerTransport.BLOCKING);
+
+    private DelayingProxy proxy;
+    private ThriftTestClient client;
+
+    @Before
+    public void setup() throws Exception {
+        proxy = new DelayingProxy(testServer.port());
+
+        SocketTransport transport = new SocketTransport.Builder("localhost", proxy.port())
+                .readTimeout(5000)
+                .build();
+        transport.connect();
+
+        client = new ThriftTestClient(new BinaryProtocol(transport), new ClientBase.Listener() {
+            @Override
+            public void onTransportClosed() {
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                throw new AssertionError(error);
+            }
+        });
+    }
+
+    @After
+    public void teardown() throws Exception {
+        client.close();
+        proxy.close();
+    }
+
+    @Test
+    public void repeatedCallsAreAnsweredFromCache() throws Throwable {
+        assertThat(call(1.5), is(1.5));
+        long sent = proxy.bytesForwarded();
+        assertTrue(sent > 0);
+
+        for (int i = 0; i < 10; ++i) {
+            assertThat(call(1.5), is(1.5));
+        }
+
+        assertThat(proxy.bytesForwarded(), is(sent));
+        assertThat(client.testDoubleCache().hitCount(), is(10L));
+        assertThat(client.testDoubleCache().missCount(), is(1L));
+    }
+
+    @Test
+    public void callsWithOtherArgumentsAreSent() throws Throwable {
+        assertThat(call(1.5), is(1.5));
+        long sent = proxy.bytesForwarded();
+
+        assertThat(call(2.5), is(2.5));
+        assertTrue(proxy.bytesForwarded() > sent);
+        assertThat(client.testDoubleCache().missCount(), is(2L));
+    }
+
+    @Test
+    public void expiredResultsAreFetchedAgain() throws Throwable {
+        assertThat(call(1.5), is(1.5));
+        long sent = proxy.bytesForwarded();
+
+        Thread.sleep(1100);
+
+        assertThat(call(1.5), is(1.5));
+        assertTrue(proxy.bytesForwarded() > sent);
+        assertThat(client.testDoubleCache().hitCount(), is(0L));
+    }
+
+    @Test
+    public void leastRecentlyUsedResultIsEvicted() throws Throwable {
+        call(1.0);
+        call(2.0);
+        call(1.0);
+        call(3.0);
+
+        long sent = proxy.bytesForwarded();
+        call(1.0);
+        call(3.0);
+        assertThat(proxy.bytesForwarded(), is(sent));
+
+        call(2.0);
+        assertTrue(proxy.bytesForwarded() > sent);
+    }
+
+    @Test
+    public void callsWithHandlesBypassCache() throws Throwable {
+        assertThat(call(1.5), is(1.5));
+        long sent = proxy.bytesForwarded();
+
+        AssertingCallback<Double> callback = new AssertingCallback<>();
+        client.testDouble(1.5, CallHandle.of(callback));
+        assertThat(callback.getResult(), is(1.5));
+
+        assertTrue(proxy.bytesForwarded() > sent);
+        assertThat(client.testDoubleCache().hitCount(), is(0L));
+    }
+
+    private double call(double value) throws Throwable {
+        AssertingCallback<Double> callback = new AssertingCallback<>();
+        client.testDouble(value, callback);
+        return callback.getResult();
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.integration;
+
+import com.bendb.thrifty.integration.gen.ThriftTestClient;
+import com.bendb.thrifty.protocol.BinaryProtocol;
+import com.bendb.thrifty.protocol.MessageDecoder;
+import com.bendb.thrifty.service.CallHandle;
+import com.bendb.thrifty.service.ClientBase;
+import com.bendb.thrifty.service.ClientConfig;
+import com.bendb.thrifty.service.EventLoopGroup;
+import com.bendb.thrifty.service.EventLoopTransport;
+import com.bendb.thrifty.testing.ServerProtocol;
+import com.bendb.thrifty.testing.ServerTransport;
+import com.bendb.thrifty.testing.TestServer;
+import com.bendb.thrifty.transport.SocketTransport;
+import com.bendb.thrifty.transport.Transport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks that calls time out, and may be cancelled, without harm to the
+ * connection they were made on.  Calls reach the server through a proxy that
+ * delays them.
+ */
+public class CallTimeoutTest {
+    /**
+     * How long the proxy holds calls back; far longer than the timeouts
+     * under test, so that a stalled timer cannot let a reply win.
+     */
+    private static final long DELAY_MILLIS = 1000;
+
+    @Rule public TestServer testServer = new TestServer(ServerProtocol.BINARY, ServerTransport.BLOCKING);
+
+    private DelayingProxy proxy;
+    private ThriftTestClient client;
+    private EventLoopGroup group;
+
+    @Before
+    public void setup() throws Exception {
+        proxy = new DelayingProxy(testServer.port());
+    }
+
+    @After
+    public void teardown() throws Exception {
+        if (client != null) {
+            client.close();
+        }
+
+        if (group != null) {
+            group.close();
+        }
+
+        proxy.close();
+    }
+
+    @Test
+    public void threadedClientTimesOutCalls() throws Throwable {
+        connectThreaded(new ClientConfig.Builder()
+                .maxInFlight(4)
+                .callTimeout(50, TimeUnit.MILLISECONDS)
+                .build());
+
+        checkTimeouts();
+    }
+
+    @Test
+    public void eventLoopClientTimesOutCalls() throws Throwable {
+        connectEventLoop(new ClientConfig.Builder()
+                .maxInFlight(4)
+                .callTimeout(50, TimeUnit.MILLISECONDS)
+                .build());
+
+        checkTimeouts();
+    }
+
+    @Test
+    public void callHandleOverridesClientTimeout() throws Throwable {
+        connectThreaded(new ClientConfig.Builder()
+                .callTimeout(50, TimeUnit.MILLISECONDS)
+                .build());
+        proxy.delayMillis = DELAY_MILLIS;
+
+        AssertingCallback<Integer> patient = new AssertingCallback<>();
+        client.testI32(1, CallHandle.withTimeout(patient, 0, TimeUnit.MILLISECONDS));
+
+        AssertingCallback<Integer> impatient = new AssertingCallback<>();
+        client.testI32(2, impatient);
+
+        assertThat(impatient.getError(), instanceOf(TimeoutException.class));
+        assertThat(patient.getResult(), is(1));
+    }
+
+    @Test
+    public void cancelledCallsFailAndFreeTheirSlots() throws Throwable {
+        connectThreaded(new ClientConfig.Builder()
+                .maxInFlight(1)
+                .build());
+        proxy.delayMillis = DELAY_MILLIS;
+
+        AssertingCallback<Integer> callback = new AssertingCallback<>();
+        CallHandle<Integer> handle = CallHandle.of(callback);
+        client.testI32(1, handle);
+
+        AssertingCallback<Integer> next = new AssertingCallback<>();
+        client.testI32(2, next);
+
+        assertThat(handle.cancel(), is(true));
+        assertThat(handle.cancel(), is(false));
+        assertThat(callback.getError(), instanceOf(CancellationException.class));
+
+        // The second call is sent in the first's place; the first's reply,
+        // when it comes, is discarded.
+        assertThat(next.getResult(), is(2));
+        assertThat(client.outstandingCalls(), is(0));
+    }
+
+    @Test
+    public void pendingCallsFailWhenTheConnectionDrops() throws Throwable {
+        connectThreaded(new ClientConfig.Builder()
+                .maxInFlight(1)
+                .callTimeout(30, TimeUnit.SECONDS)
+                .build());
+        proxy.delayMillis = DELAY_MILLIS;
+
+        // One call sent, and one queued behind it
+        AssertingCallback<Integer> sent = new AssertingCallback<>();
+        client.testI32(1, sent);
+        AssertingCallback<Integer> queued = new AssertingCallback<>();
+        client.testI32(2, queued);
+
+        proxy.close();
+
+        assertThat(sent.getError(), instanceOf(IOException.class));
+        assertThat(queued.getError(), instanceOf(IOException.class));
+        assertThat(client.outstandingCalls(), is(0));
+        assertThat(client.isRunning(), is(false));
+    }
+
+    @Test
+    public void pendingCallsFailWhenTheClientCloses() throws Throwable {
+        connectEventLoop(new ClientConfig.Builder()
+                .maxInFlight(1)
+                .build());
+        proxy.delayMillis = DELAY_MILLIS;
+
+        AssertingCallback<Integer> sent = new AssertingCallback<>();
+        client.testI32(1, sent);
+        AssertingCallback<Integer> queued = new AssertingCallback<>();
+        client.testI32(2, queued);
+
+        client.close();
+
+        assertThat(sent.getError(), instanceOf(IOException.class));
+        assertThat(queued.getError(), instanceOf(IOException.class));
+        assertThat(client.outstandingCalls(), is(0));
+    }
+
+    @Test
+    public void handlesCancelledBeforeUseFailAtOnce() throws Throwable {
+        connectThreaded(ClientConfig.DEFAULT);
+
+        AssertingCallback<Integer> callback = new AssertingCallback<>();
+        CallHandle<Integer> handle = CallHandle.of(callback);
+        assertThat(handle.cancel(), is(true));
+
+        client.testI32(1, handle);
+        assertThat(callback.getError(), instanceOf(CancellationException.class));
+        assertThat(client.outstandingCalls(), is(0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void handlesCannotBeReused() throws Throwable {
+        connectThreaded(ClientConfig.DEFAULT);
+
+        CallHandle<Integer> handle = CallHandle.of(new AssertingCallback<Integer>());
+        client.testI32(1, handle);
+        client.testI32(2, handle);
+    }
+
+    @Test
+    public void manyLateRepliesAreDiscarded() throws Throwable {
+        connectThreaded(new ClientConfig.Builder()
+                .callTimeout(50, TimeUnit.MILLISECONDS)
+                .build());
+
+        // More calls than the client remembers abandoning.
+        checkTimeouts(1500);
+    }
+
+    private void checkTimeouts() throws Throwable {
+        checkTimeouts(20);
+    }
+
+    private void checkTimeouts(int count) throws Throwable {
+        proxy.delayMillis = DELAY_MILLIS;
+
+        List<AssertingCallback<Integer>> callbacks = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            AssertingCallback<Integer> callback = new AssertingCallback<>();
+            client.testI32(i, callback);
+            callbacks.add(callback);
+        }
+
+        for (AssertingCallback<Integer> callback : callbacks) {
+            assertThat(callback.getError(), instanceOf(TimeoutException.class));
+        }
+        assertThat(client.outstandingCalls(), is(0));
+
+        // Late replies to the calls that were sent must not disturb later
+        // calls, which are given all the time they need.  The proxy keeps
+        // order, so the late replies all come first.
+        proxy.delayMillis = 0;
+
+        for (int i = 0; i < 20; ++i) {
+            AssertingCallback<Integer> callback = new AssertingCallback<>();
+            client.testI32(i, CallHandle.withTimeout(callback, 0, TimeUnit.MILLISECONDS));
+            assertThat(callback.getResult(), is(i));
+        }
+        assertThat(client.isRunning(), is(true));
+    }
+
+    private void connectThreaded(ClientConfig config) throws Exception {
+        SocketTransport transport = new SocketTransport.Builder("localhost", proxy.port())
+                .readTimeout(5000)
+                .build();
+        transport.connect();
+
+        connect(transport, config);
+    }
+
+    private void connectEventLoop(ClientConfig config) throws Exception {
+        group = new EventLoopGroup(1);
+        EventLoopTransport transport = new EventLoopTransport.Builder(group, "localhost", proxy.port())
+                .unframed(MessageDecoder.binary())
+                .build();
+        transport.connect();
+
+        connect(transport, config);
+    }
+
+    private void connect(Transport transport, ClientConfig config) {
+        client = new ThriftTestClient(new BinaryProtocol(transport), new ClientBase.Listener() {
+            @Override
+            public void onTransportClosed() {
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                throw new AssertionError(error);
+            }
+        }, config);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.integration;
+
+import com.bendb.thrifty.integration.gen.ThriftTestClient;
+import com.bendb.thrifty.protocol.BinaryProtocol;
+import com.bendb.thrifty.service.ClientBase;
+import com.bendb.thrifty.service.ClientPool;
+import com.bendb.thrifty.testing.ServerProtocol;
+import com.bendb.thrifty.testing.ServerTransport;
+import com.bendb.thrifty.testing.TestServer;
+import com.bendb.thrifty.transport.SocketTransport;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ClientPoolTest {
+    @Rule public TestServer testServer = new TestServer(ServerProtocol.BINARY, ServerTransport.BLOCKING);
+
+    private ClientPool<ThriftTestClient> pool;
+
+    @After
+    public void teardown() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    private ClientPool.Builder<ThriftTestClient> builder() {
+        return builder(testServer.port());
+    }
+
+    private ClientPool.Builder<ThriftTestClient> builder(final int port) {
+        return new ClientPool.Builder<>(new ClientPool.Factory<ThriftTestClient>() {
+            @Override
+            public ThriftTestClient create(ClientBase.Listener listener) throws IOException {
+                SocketTransport transport = new SocketTransport.Builder("localhost", port)
+                        .readTimeout(2000)
+                        .build();
+                transport.connect();
+                return new ThriftTestClient(new BinaryProtocol(transport), listener);
+            }
+        });
+    }
+
+    @Test
+    public void growsUnderLoad() throws Throwable {
+        pool = builder()
+                .maxConnections(4)
+                .growThreshold(2)
+                .build();
+
+        List<AssertingCallback<Integer>> callbacks = new ArrayList<>();
+        for (int i = 0; i < 200; ++i) {
+            AssertingCallback<Integer> callback = new AssertingCallback<>();
+            pool.client().testI32(i, callback);
+            callbacks.add(callback);
+        }
+
+        for (int i = 0; i < 200; ++i) {
+            assertThat(callbacks.get(i).getResult(), is(i));
+        }
+
+        assertTrue("Expected the pool to grow, but it has " + pool.size(), pool.size() > 1);
+        assertTrue("Expected at most 4 connections, but there are " + pool.size(), pool.size() <= 4);
+    }
+
+    @Test
+    public void replacesFailedClients() throws Throwable {
+        pool = builder().build();
+
+        ThriftTestClient first = pool.client();
+        first.close();
+        assertThat(pool.size(), is(0));
+
+        ThriftTestClient second = pool.client();
+        assertThat(second, not(sameInstance(first)));
+        assertThat(pool.size(), is(1));
+
+        AssertingCallback<Integer> callback = new AssertingCallback<>();
+        second.testI32(7, callback);
+        assertThat(callback.getResult(), is(7));
+    }
+
+    @Test
+    public void shrinksWhenIdle() throws Throwable {
+        pool = builder()
+                .minConnections(1)
+                .maxConnections(3)
+                .growThreshold(1)
+                .idleTimeout(50, TimeUnit.MILLISECONDS)
+                .build();
+
+        List<AssertingCallback<Integer>> callbacks = new ArrayList<>();
+        for (int i = 0; i < 50; ++i) {
+            AssertingCallback<Integer> callback = new AssertingCallback<>();
+            pool.client().testI32(i, callback);
+            callbacks.add(callback);
+        }
+        for (AssertingCallback<Integer> callback : callbacks) {
+            callback.getResult();
+        }
+        assertTrue(pool.size() > 1);
+
+        // Idle connections are swept as the pool is used.
+        for (int i = 0; i < 20 && pool.size() > 1; ++i) {
+            Thread.sleep(50);
+            pool.client();
+        }
+        assertThat(pool.size(), is(1));
+    }
+
+    @Test
+    public void closingFailsOutstandingCalls() throws Throwable {
+        DelayingProxy proxy = new DelayingProxy(testServer.port());
+        try {
+            pool = builder(proxy.port()).maxConnections(1).build();
+
+            // Held back by the proxy until long after the pool is closed
+            proxy.delayMillis = 30000;
+            AssertingCallback<Integer> callback = new AssertingCallback<>();
+            ThriftTestClient client = pool.client();
+            client.testI32(1, callback);
+
+            pool.close();
+
+            assertThat(callback.getError(), instanceOf(IOException.class));
+            assertThat(client.outstandingCalls(), is(0));
+            assertThat(pool.size(), is(0));
+        } finally {
+            proxy.close();
+        }
+    }
+}
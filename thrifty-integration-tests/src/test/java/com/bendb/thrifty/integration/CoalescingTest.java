@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.integration;
+
+import com.bendb.thrifty.integration.gen.ThriftTestClient;
+import com.bendb.thrifty.protocol.BinaryProtocol;
+import com.bendb.thrifty.service.CallCoalescer;
+import com.bendb.thrifty.service.CallHandle;
+import com.bendb.thrifty.service.ClientBase;
+import com.bendb.thrifty.service.ClientConfig;
+import com.bendb.thrifty.testing.ServerProtocol;
+import com.bendb.thrifty.testing.ServerTransport;
+import com.bendb.thrifty.testing.TestServer;
+import com.bendb.thrifty.transport.SocketTransport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks that identical idempotent calls made together are sent once.  Calls
+ * reach the server through a proxy that delays them, so that they overlap.
+ */
+public class CoalescingTest {
+    private static final int CALLERS = 50;
+
+    @Rule public TestServer testServer = new TestServer(ServerProtocol.BINARY, ServerTransport.BLOCKING);
+
+    private final CallCoalescer coalescer = new CallCoalescer();
+
+    private DelayingProxy proxy;
+    private ThriftTestClient client;
+
+    @Before
+    public void setup() throws Exception {
+        proxy = new DelayingProxy(testServer.port());
+        proxy.delayMillis = 100;
+    }
+
+    @After
+    public void teardown() throws Exception {
+        if (client != null) {
+            client.close();
+        }
+        proxy.close();
+    }
+
+    @Test
+    public void identicalCallsShareOneReply() throws Throwable {
+        connect(new ClientConfig.Builder()
+                .callCoalescer(coalescer)
+                .build());
+
+        List<AssertingCallback<String>> callbacks = new ArrayList<>();
+        for (int i = 0; i < CALLERS; ++i) {
+            AssertingCallback<String> callback = new AssertingCallback<>();
+            client.testString("hot", callback);
+            callbacks.add(callback);
+        }
+
+        for (AssertingCallback<String> callback : callbacks) {
+            assertThat(callback.getResult(), is("hot"));
+        }
+
+        assertThat(coalescer.coalescedCalls(), is((long) CALLERS - 1));
+        assertThat(coalescer.inFlightCalls(), is(0));
+        assertThat(client.outstandingCalls(), is(0));
+
+        // Now that the reply is in, the next call is sent afresh.
+        AssertingCallback<String> later = new AssertingCallback<>();
+        client.testString("hot", later);
+        assertThat(later.getResult(), is("hot"));
+        assertThat(coalescer.coalescedCalls(), is((long) CALLERS - 1));
+    }
+
+    @Test
+    public void differentCallsAreNotMerged() throws Throwable {
+        connect(new ClientConfig.Builder()
+                .callCoalescer(coalescer)
+                .build());
+
+        List<AssertingCallback<Integer>> callbacks = new ArrayList<>();
+        for (int i = 0; i < CALLERS; ++i) {
+            AssertingCallback<Integer> callback = new AssertingCallback<>();
+            client.testI32(i % 5, callback);
+            callbacks.add(callback);
+        }
+
+        // Not idempotent, so never merged.
+        AssertingCallback<Long> first = new AssertingCallback<>();
+        AssertingCallback<Long> second = new AssertingCallback<>();
+        client.testI64(7L, first);
+        client.testI64(7L, second);
+
+        // Made with a handle, so sent on its own.
+        AssertingCallback<Integer> handled = new AssertingCallback<>();
+        client.testI32(0, CallHandle.of(handled));
+
+        for (int i = 0; i < CALLERS; ++i) {
+            assertThat(callbacks.get(i).getResult(), is(i % 5));
+        }
+        assertThat(first.getResult(), is(7L));
+        assertThat(second.getResult(), is(7L));
+        assertThat(handled.getResult(), is(0));
+
+        assertThat(coalescer.coalescedCalls(), is((long) CALLERS - 5));
+    }
+
+    @Test
+    public void mergedCallsShareErrors() throws Throwable {
+        connect(new ClientConfig.Builder()
+                .callCoalescer(coalescer)
+                .callTimeout(20, TimeUnit.MILLISECONDS)
+                .build());
+
+        List<AssertingCallback<String>> callbacks = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            AssertingCallback<String> callback = new AssertingCallback<>();
+            client.testString("slow", callback);
+            callbacks.add(callback);
+        }
+
+        for (AssertingCallback<String> callback : callbacks) {
+            assertThat(callback.getError(), instanceOf(TimeoutException.class));
+        }
+        assertThat(coalescer.inFlightCalls(), is(0));
+    }
+
+    @Test
+    public void mergedCallsFailWhenTheConnectionDrops() throws Throwable {
+        connect(new ClientConfig.Builder()
+                .callCoalescer(coalescer)
+                .maxInFlight(1)
+                .build());
+
+        // One call in flight ahead of the merged ones, which stay queued
+        AssertingCallback<Long> ahead = new AssertingCallback<>();
+        client.testI64(1L, ahead);
+
+        List<AssertingCallback<String>> callbacks = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            AssertingCallback<String> callback = new AssertingCallback<>();
+            client.testString("doomed", callback);
+            callbacks.add(callback);
+        }
+        assertThat(coalescer.inFlightCalls(), is(1));
+
+        proxy.close();
+
+        assertThat(ahead.getError(), instanceOf(IOException.class));
+        for (AssertingCallback<String> callback : callbacks) {
+            assertThat(callback.getError(), instanceOf(IOException.class));
+        }
+        assertThat(coalescer.inFlightCalls(), is(0));
+
+        // Another client sharing the coalescer is not stuck behind the
+        // failed call.
+        ThriftTestClient other = createClient(testServer.port(), new ClientConfig.Builder()
+                .callCoalescer(coalescer)
+                .build());
+        try {
+            AssertingCallback<String> later = new AssertingCallback<>();
+            other.testString("doomed", later);
+            assertThat(later.getResult(), is("doomed"));
+        } finally {
+            other.close();
+        }
+    }
+
+    private void connect(ClientConfig config) throws Exception {
+        client = createClient(proxy.port(), config);
+    }
+
+    private ThriftTestClient createClient(int port, ClientConfig config) throws Exception {
+        SocketTransport transport = new SocketTransport.Builder("localhost", port)
+                .readTimeout(5000)
+                .build();
+        transport.connect();
+
+        return new ThriftTestClient(new BinaryProtocol(transport), new ClientBase.Listener() {
+            @Override
+            public void onTransportClosed() {
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                throw new AssertionError(error);
+            }
+        }, config);
+    }
+}
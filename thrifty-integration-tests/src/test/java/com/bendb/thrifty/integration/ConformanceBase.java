@@ -81,12 +81,7 @@ public abstract class ConformanceBase {
 
     @Before
     public void setup() throws Exception {
-        int port = testServer.port();
-        SocketTransport transport = new SocketTransport.Builder("localhost", port)
-                .readTimeout(2000)
-                .build();
-
-        transport.connect();
+        Transport transport = createTransport(testServer.port());
 
         this.transport = decorateTransport(transport);
         this.protocol = createProtocol(this.transport);
@@ -114,6 +109,19 @@ public abstract class ConformanceBase {
      */
     protected abstract ServerProtocol getServerProtocol();
 
+    /**
+     * Creates and connects the client's transport to the test server.  By
+     * default, a {@link SocketTransport} is used.
+     */
+    protected Transport createTransport(int port) throws Exception {
+        SocketTransport transport = new SocketTransport.Builder("localhost", port)
+                .readTimeout(2000)
+                .build();
+
+        transport.connect();
+        return transport;
+    }
+
     /**
      * When overridden in a derived class, wraps the given transport
      * in a decorator, e.g. a framed transport.
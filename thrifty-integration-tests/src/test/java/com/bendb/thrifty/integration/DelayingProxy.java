@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.integration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A proxy that forwards one connection to a server, holding back everything
+ * sent to the server for {@link #delayMillis}.
+ */
+class DelayingProxy {
+    volatile long delayMillis;
+
+    private final ServerSocket serverSocket;
+    private final List<Socket> sockets = new ArrayList<>();
+    private final AtomicLong bytesForwarded = new AtomicLong(0);
+
+    DelayingProxy(final int serverPort) throws IOException {
+        serverSocket = new ServerSocket(0);
+
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket client = serverSocket.accept();
+                    Socket server = new Socket("localhost", serverPort);
+                    client.setTcpNoDelay(true);
+                    server.setTcpNoDelay(true);
+                    synchronized (sockets) {
+                        sockets.add(client);
+                        sockets.add(server);
+                    }
+
+                    final BlockingQueue<Object[]> delayed = new LinkedBlockingQueue<>();
+                    pump(client.getInputStream(), null, delayed);
+                    pump(null, server.getOutputStream(), delayed);
+                    pump(server.getInputStream(), client.getOutputStream(), null);
+                } catch (IOException ignored) {
+                    // closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Gets the number of bytes sent towards the server so far.
+     */
+    long bytesForwarded() {
+        return bytesForwarded.get();
+    }
+
+    /**
+     * Copies from {@code in} to {@code out}, through {@code delayed}
+     * if given.
+     */
+    private void pump(final InputStream in, final OutputStream out, final BlockingQueue<Object[]> delayed) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    if (in == null) {
+                        while (true) {
+                            Object[] chunk = delayed.take();
+                            long wait = (Long) chunk[0] - System.nanoTime();
+                            if (wait > 0) {
+                                TimeUnit.NANOSECONDS.sleep(wait);
+                            }
+                            out.write((byte[]) chunk[1]);
+                            out.flush();
+                        }
+                    }
+
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        if (delayed != null) {
+                            bytesForwarded.addAndGet(read);
+                            long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+                            delayed.put(new Object[] { due, Arrays.copyOf(buffer, read) });
+                        } else {
+                            out.write(buffer, 0, read);
+                            out.flush();
+                        }
+                    }
+                } catch (IOException | InterruptedException ignored) {
+                    // closed
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void close() throws IOException {
+        serverSocket.close();
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.integration;
+
+import com.bendb.thrifty.integration.gen.ThriftTestClient;
+import com.bendb.thrifty.protocol.BinaryProtocol;
+import com.bendb.thrifty.service.ClientBase;
+import com.bendb.thrifty.service.ClientConfig;
+import com.bendb.thrifty.service.EventLoopGroup;
+import com.bendb.thrifty.service.EventLoopTransport;
+import com.bendb.thrifty.service.FlushPolicy;
+import com.bendb.thrifty.testing.ServerProtocol;
+import com.bendb.thrifty.testing.ServerTransport;
+import com.bendb.thrifty.testing.TestServer;
+import com.bendb.thrifty.transport.FramedTransport;
+import com.bendb.thrifty.transport.SocketTransport;
+import com.bendb.thrifty.transport.Transport;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks that calls pipelined to a non-blocking server each reach it in a
+ * frame of their own; such a server reads only one message from each frame,
+ * and drops the rest.
+ */
+public class FramedPipeliningTest {
+    private static final int CALL_COUNT = 200;
+    private static final int THREAD_COUNT = 50;
+
+    @Rule public TestServer testServer = new TestServer(ServerProtocol.BINARY, ServerTransport.NON_BLOCKING);
+
+    private ClientConfig config = new ClientConfig.Builder()
+            .maxInFlight(8)
+            .build();
+
+    private ThriftTestClient client;
+    private EventLoopGroup group;
+
+    @After
+    public void teardown() throws Exception {
+        if (client != null) {
+            client.close();
+        }
+
+        if (group != null) {
+            group.close();
+        }
+    }
+
+    @Test
+    public void threadedClient() throws Throwable {
+        check(framedSocket());
+    }
+
+    @Test
+    public void threadedClientWithConcurrentCallers() throws Throwable {
+        checkConcurrently(framedSocket());
+    }
+
+    @Test
+    public void eventLoopClient() throws Throwable {
+        check(eventLoopTransport());
+    }
+
+    @Test
+    public void eventLoopClientWithConcurrentCallers() throws Throwable {
+        checkConcurrently(eventLoopTransport());
+    }
+
+    @Test
+    public void threadedClientFlushingByCalls() throws Throwable {
+        config = new ClientConfig.Builder(config)
+                .flushPolicy(FlushPolicy.calls(4, 2, TimeUnit.MILLISECONDS))
+                .build();
+
+        threadedClient();
+    }
+
+    @Test
+    public void threadedClientFlushingByBytes() throws Throwable {
+        config = new ClientConfig.Builder(config)
+                .flushPolicy(FlushPolicy.bytes(256, 2, TimeUnit.MILLISECONDS))
+                .build();
+
+        threadedClientWithConcurrentCallers();
+    }
+
+    @Test
+    public void eventLoopClientFlushingByWindow() throws Throwable {
+        config = new ClientConfig.Builder(config)
+                .flushPolicy(FlushPolicy.window(1, TimeUnit.MILLISECONDS))
+                .build();
+
+        eventLoopClientWithConcurrentCallers();
+    }
+
+    @Test
+    public void eventLoopClientFlushingAdaptively() throws Throwable {
+        config = new ClientConfig.Builder(config)
+                .flushPolicy(FlushPolicy.adaptive(1, TimeUnit.MILLISECONDS))
+                .build();
+
+        eventLoopClient();
+    }
+
+    private Transport eventLoopTransport() throws Exception {
+        group = new EventLoopGroup(1);
+        EventLoopTransport transport = new EventLoopTransport.Builder(group, "localhost", testServer.port())
+                .build();
+        transport.connect();
+
+        return transport;
+    }
+
+    private Transport framedSocket() throws Exception {
+        SocketTransport transport = new SocketTransport.Builder("localhost", testServer.port())
+                .readTimeout(2000)
+                .build();
+        transport.connect();
+
+        return new FramedTransport(transport);
+    }
+
+    private void check(Transport transport) throws Throwable {
+        createClient(transport);
+
+        List<AssertingCallback<Integer>> callbacks = new ArrayList<>();
+        for (int i = 0; i < CALL_COUNT; ++i) {
+            AssertingCallback<Integer> callback = new AssertingCallback<>();
+            client.testI32(i, callback);
+            callbacks.add(callback);
+        }
+
+        for (int i = 0; i < CALL_COUNT; ++i) {
+            assertThat(callbacks.get(i).getResult(), is(i));
+        }
+    }
+
+    /**
+     * Makes one call from each of many threads at once.
+     */
+    private void checkConcurrently(Transport transport) throws Throwable {
+        createClient(transport);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<AssertingCallback<Integer>> callbacks = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREAD_COUNT; ++i) {
+            final int arg = i;
+            final AssertingCallback<Integer> callback = new AssertingCallback<>();
+            callbacks.add(callback);
+
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    client.testI32(arg, callback);
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int i = 0; i < THREAD_COUNT; ++i) {
+            assertThat(callbacks.get(i).getResult(), is(i));
+        }
+    }
+
+    private void createClient(Transport transport) {
+        client = new ThriftTestClient(new BinaryProtocol(transport), new ClientBase.Listener() {
+            @Override
+            public void onTransportClosed() {
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                throw new AssertionError(error);
+            }
+        }, config);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.integration;
+
+import com.bendb.thrifty.integration.gen.ThriftTestClient;
+import com.bendb.thrifty.protocol.BinaryProtocol;
+import com.bendb.thrifty.service.ClientBase;
+import com.bendb.thrifty.service.ClientConfig;
+import com.bendb.thrifty.service.ClientPool;
+import com.bendb.thrifty.service.HedgePolicy;
+import com.bendb.thrifty.testing.ServerProtocol;
+import com.bendb.thrifty.testing.ServerTransport;
+import com.bendb.thrifty.testing.TestServer;
+import com.bendb.thrifty.transport.SocketTransport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that slow calls to idempotent methods are answered by backup
+ * attempts on another connection.  Of the pool's two connections, the first
+ * goes through a proxy that delays calls.
+ */
+public class HedgingTest {
+    private static final long SLOW_MILLIS = 500;
+
+    @Rule public TestServer testServer = new TestServer(ServerProtocol.BINARY, ServerTransport.BLOCKING);
+
+    private final ClientConfig config = new ClientConfig.Builder()
+            .hedgePolicy(new HedgePolicy.Builder()
+                    .maxDelay(100, TimeUnit.MILLISECONDS)
+                    .build())
+            .build();
+
+    private DelayingProxy proxy;
+    private ClientPool<ThriftTestClient> pool;
+    private final List<ThriftTestClient> clients = new ArrayList<>();
+
+    @Before
+    public void setup() throws Exception {
+        proxy = new DelayingProxy(testServer.port());
+        proxy.delayMillis = SLOW_MILLIS;
+
+        pool = new ClientPool.Builder<>(new ClientPool.Factory<ThriftTestClient>() {
+            @Override
+            public ThriftTestClient create(ClientBase.Listener listener) throws IOException {
+                int port = clients.isEmpty() ? proxy.port() : testServer.port();
+                SocketTransport transport = new SocketTransport.Builder("localhost", port)
+                        .readTimeout(5000)
+                        .build();
+                transport.connect();
+
+                ThriftTestClient client = new ThriftTestClient(new BinaryProtocol(transport), listener, config);
+                clients.add(client);
+                return client;
+            }
+        }).minConnections(2).maxConnections(2).build();
+
+        pool.client();
+        pool.client();
+        assertThat(clients.size(), is(2));
+    }
+
+    @After
+    public void teardown() throws Exception {
+        pool.close();
+        proxy.close();
+    }
+
+    @Test
+    public void slowIdempotentCallsAreHedged() throws Throwable {
+        ThriftTestClient slow = clients.get(0);
+
+        for (int i = 0; i < 10; ++i) {
+            long start = System.nanoTime();
+
+            AssertingCallback<Integer> callback = new AssertingCallback<>();
+            slow.testI32(i, callback);
+            assertThat(callback.getResult(), is(i));
+
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("Took " + elapsedMillis + " ms", elapsedMillis < SLOW_MILLIS);
+
+            // The slow attempt was cancelled once the backup was answered.
+            assertThat(slow.outstandingCalls(), is(0));
+        }
+    }
+
+    @Test
+    public void otherCallsAreNotHedged() throws Throwable {
+        ThriftTestClient slow = clients.get(0);
+        long start = System.nanoTime();
+
+        AssertingCallback<Long> callback = new AssertingCallback<>();
+        slow.testI64(42L, callback);
+        assertThat(callback.getResult(), is(42L));
+
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Took " + elapsedMillis + " ms", elapsedMillis >= SLOW_MILLIS);
+    }
+
+    @Test
+    public void fastCallsAreNotHedged() throws Throwable {
+        ThriftTestClient fast = clients.get(1);
+
+        for (int i = 0; i < 10; ++i) {
+            AssertingCallback<String> callback = new AssertingCallback<>();
+            fast.testString("hello " + i, callback);
+            assertThat(callback.getResult(), is("hello " + i));
+        }
+
+        // Nothing was sent through the slow client.
+        assertThat(proxy.bytesForwarded(), is(0L));
+    }
+}
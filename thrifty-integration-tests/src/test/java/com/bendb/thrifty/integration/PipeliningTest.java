@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.integration;
+
+import com.bendb.thrifty.integration.gen.ThriftTestClient;
+import com.bendb.thrifty.protocol.BinaryProtocol;
+import com.bendb.thrifty.protocol.MessageDecoder;
+import com.bendb.thrifty.service.CallbackDispatch;
+import com.bendb.thrifty.service.ClientBase;
+import com.bendb.thrifty.service.ClientConfig;
+import com.bendb.thrifty.service.EventLoopGroup;
+import com.bendb.thrifty.service.EventLoopTransport;
+import com.bendb.thrifty.service.FlushPolicy;
+import com.bendb.thrifty.testing.ServerProtocol;
+import com.bendb.thrifty.testing.ServerTransport;
+import com.bendb.thrifty.testing.TestServer;
+import com.bendb.thrifty.transport.SocketTransport;
+import com.bendb.thrifty.transport.Transport;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks that many calls may be outstanding on one connection at once, and
+ * that replies are matched to their calls whatever order they arrive in.
+ */
+public class PipeliningTest {
+    private static final int CALL_COUNT = 200;
+
+    @Rule public TestServer testServer = new TestServer(ServerProtocol.BINARY, ServerTransport.BLOCKING);
+
+    private ClientConfig config = new ClientConfig.Builder()
+            .maxInFlight(8)
+            .build();
+
+    private ThriftTestClient client;
+    private EventLoopGroup group;
+    private ExecutorService executor;
+    private ReorderingProxy proxy;
+
+    @After
+    public void teardown() throws Exception {
+        if (client != null) {
+            client.close();
+        }
+
+        if (group != null) {
+            group.close();
+        }
+
+        if (executor != null) {
+            executor.shutdown();
+        }
+
+        if (proxy != null) {
+            proxy.close();
+        }
+    }
+
+    @Test
+    public void threadedClient() throws Throwable {
+        SocketTransport transport = new SocketTransport.Builder("localhost", testServer.port())
+                .readTimeout(2000)
+                .build();
+        transport.connect();
+
+        check(transport);
+    }
+
+    @Test
+    public void threadedClientWithInlineCallbacks() throws Throwable {
+        config = new ClientConfig.Builder(config)
+                .callbackDispatch(CallbackDispatch.inline())
+                .build();
+
+        threadedClient();
+    }
+
+    @Test
+    public void threadedClientWithSharedExecutor() throws Throwable {
+        executor = Executors.newFixedThreadPool(4);
+        config = new ClientConfig.Builder(config)
+                .callbackDispatch(CallbackDispatch.executor(executor))
+                .build();
+
+        threadedClient();
+    }
+
+    @Test
+    public void threadedClientFlushingImmediately() throws Throwable {
+        config = new ClientConfig.Builder(config)
+                .flushPolicy(FlushPolicy.immediate())
+                .build();
+
+        threadedClient();
+    }
+
+    @Test
+    public void threadedClientFlushingByBytes() throws Throwable {
+        config = new ClientConfig.Builder(config)
+                .flushPolicy(FlushPolicy.bytes(256, 2, TimeUnit.MILLISECONDS))
+                .build();
+
+        threadedClient();
+    }
+
+    @Test
+    public void threadedClientFlushingAdaptively() throws Throwable {
+        config = new ClientConfig.Builder(config)
+                .flushPolicy(FlushPolicy.adaptive(1, TimeUnit.MILLISECONDS))
+                .build();
+
+        threadedClient();
+    }
+
+    @Test
+    public void eventLoopClient() throws Throwable {
+        group = new EventLoopGroup(1);
+        EventLoopTransport transport = new EventLoopTransport.Builder(group, "localhost", testServer.port())
+                .unframed(MessageDecoder.binary())
+                .build();
+        transport.connect();
+
+        check(transport);
+    }
+
+    @Test
+    public void eventLoopClientFlushingByWindow() throws Throwable {
+        config = new ClientConfig.Builder(config)
+                .flushPolicy(FlushPolicy.window(1, TimeUnit.MILLISECONDS))
+                .build();
+
+        eventLoopClient();
+    }
+
+    @Test
+    public void eventLoopClientFlushingByCalls() throws Throwable {
+        config = new ClientConfig.Builder(config)
+                .flushPolicy(FlushPolicy.calls(4, 2, TimeUnit.MILLISECONDS))
+                .build();
+
+        eventLoopClient();
+    }
+
+    @Test
+    public void threadedClientWithRepliesOutOfOrder() throws Throwable {
+        proxy = new ReorderingProxy(testServer.port());
+        SocketTransport transport = new SocketTransport.Builder("localhost", proxy.port())
+                .readTimeout(2000)
+                .build();
+        transport.connect();
+
+        checkStrings(transport);
+        assertThat(proxy.repliesReordered() > 0, is(true));
+    }
+
+    @Test
+    public void eventLoopClientWithRepliesOutOfOrder() throws Throwable {
+        proxy = new ReorderingProxy(testServer.port());
+        group = new EventLoopGroup(1);
+        EventLoopTransport transport = new EventLoopTransport.Builder(group, "localhost", proxy.port())
+                .unframed(MessageDecoder.binary())
+                .build();
+        transport.connect();
+
+        checkStrings(transport);
+        assertThat(proxy.repliesReordered() > 0, is(true));
+    }
+
+    private void check(Transport transport) throws Throwable {
+        createClient(transport);
+
+        List<AssertingCallback<Integer>> callbacks = new ArrayList<>();
+        for (int i = 0; i < CALL_COUNT; ++i) {
+            AssertingCallback<Integer> callback = new AssertingCallback<>();
+            client.testI32(i, callback);
+            callbacks.add(callback);
+        }
+
+        for (int i = 0; i < CALL_COUNT; ++i) {
+            assertThat(callbacks.get(i).getResult(), is(i));
+        }
+    }
+
+    /**
+     * Makes string calls of varying lengths, each of which must be answered
+     * with its own argument.
+     */
+    private void checkStrings(Transport transport) throws Throwable {
+        createClient(transport);
+
+        List<String> strings = new ArrayList<>();
+        List<AssertingCallback<String>> callbacks = new ArrayList<>();
+        for (int i = 0; i < CALL_COUNT; ++i) {
+            StringBuilder sb = new StringBuilder("call ").append(i);
+            for (int j = 0; j < i % 50; ++j) {
+                sb.append(" and ").append(j);
+            }
+
+            String s = sb.toString();
+            AssertingCallback<String> callback = new AssertingCallback<>();
+            client.testString(s, callback);
+            strings.add(s);
+            callbacks.add(callback);
+        }
+
+        for (int i = 0; i < CALL_COUNT; ++i) {
+            assertThat(callbacks.get(i).getResult(), is(strings.get(i)));
+        }
+    }
+
+    private void createClient(Transport transport) {
+        client = new ThriftTestClient(new BinaryProtocol(transport), new ClientBase.Listener() {
+            @Override
+            public void onTransportClosed() {
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                throw new AssertionError(error);
+            }
+        }, config);
+    }
+}
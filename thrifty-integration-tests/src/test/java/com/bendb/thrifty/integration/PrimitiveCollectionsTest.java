@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.integration;
+
+import com.bendb.thrifty.Adapter;
+import com.bendb.thrifty.StructBuilder;
+import com.bendb.thrifty.integration.annotated.AnnotatedNumbers;
+import com.bendb.thrifty.integration.collections.Numbers;
+import com.bendb.thrifty.protocol.BinaryProtocol;
+import com.bendb.thrifty.protocol.CompactProtocol;
+import com.bendb.thrifty.protocol.Protocol;
+import com.bendb.thrifty.transport.BufferTransport;
+import com.bendb.thrifty.util.DoubleList;
+import com.bendb.thrifty.util.IntList;
+import com.bendb.thrifty.util.IntSet;
+import com.bendb.thrifty.util.LongList;
+import com.bendb.thrifty.util.LongSet;
+import com.google.common.collect.ImmutableList;
+import okio.Buffer;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Round-trips structs generated with primitive collections, both by the
+ * {@code --use-primitive-collections} flag ({@code PrimitiveCollections.thrift})
+ * and by the {@code (primitive)} annotation ({@code PrimitiveAnnotations.thrift}).
+ */
+public class PrimitiveCollectionsTest {
+    @Test
+    public void flaggedStructRoundTrips() throws Exception {
+        Numbers numbers = new Numbers.Builder()
+                .ints(IntList.of(1, -2, Integer.MAX_VALUE))
+                .longs(LongList.of(Long.MIN_VALUE, 0L))
+                .doubles(DoubleList.of(Math.PI, -0.5))
+                .int_set(IntSet.of(3, 5, 7))
+                .long_set(LongSet.of(1L << 40))
+                .boxed_ints(ImmutableList.of(4, 5))
+                .names(ImmutableList.of("a", "b"))
+                .build();
+
+        Numbers binary = roundTrip(Numbers.ADAPTER, new Numbers.Builder(), numbers, false);
+        Numbers compact = roundTrip(Numbers.ADAPTER, new Numbers.Builder(), numbers, true);
+
+        assertThat(binary, equalTo(numbers));
+        assertThat(compact, equalTo(numbers));
+        assertThat(compact.hashCode(), is(numbers.hashCode()));
+
+        IntList ints = compact.ints;
+        assertThat(ints.toArray(), equalTo(new int[] { 1, -2, Integer.MAX_VALUE }));
+        assertThat(compact.int_set.contains(5), is(true));
+        assertThat(compact.long_set.contains(1L << 40), is(true));
+
+        // Opted out, and defaulted, fields stay boxed.
+        List<Integer> boxed = compact.boxed_ints;
+        assertThat(boxed, equalTo((List<Integer>) ImmutableList.of(4, 5)));
+        assertThat(compact.default_ints, equalTo((List<Integer>) ImmutableList.of(1, 2, 3)));
+    }
+
+    @Test
+    public void emptyAndMissingCollectionsRoundTrip() throws Exception {
+        Numbers numbers = new Numbers.Builder()
+                .ints(IntList.of())
+                .build();
+
+        Numbers read = roundTrip(Numbers.ADAPTER, new Numbers.Builder(), numbers, true);
+
+        assertThat(read, equalTo(numbers));
+        assertThat(read.ints.isEmpty(), is(true));
+        assertThat(read.longs, is(nullValue()));
+    }
+
+    @Test
+    public void annotatedStructRoundTrips() throws Exception {
+        AnnotatedNumbers numbers = new AnnotatedNumbers.Builder()
+                .ints(IntList.of(9, 8, 7))
+                .long_set(LongSet.of(-1L, 1L))
+                .boxed_ints(ImmutableList.of(6))
+                .build();
+
+        AnnotatedNumbers binary = roundTrip(AnnotatedNumbers.ADAPTER, new AnnotatedNumbers.Builder(), numbers, false);
+        AnnotatedNumbers compact = roundTrip(AnnotatedNumbers.ADAPTER, new AnnotatedNumbers.Builder(), numbers, true);
+
+        assertThat(binary, equalTo(numbers));
+        assertThat(compact, equalTo(numbers));
+
+        IntList ints = compact.ints;
+        LongSet longSet = compact.long_set;
+        List<Integer> boxed = compact.boxed_ints;
+        assertThat(ints.get(0), is(9));
+        assertThat(longSet.size(), is(2));
+        assertThat(boxed.get(0), is(6));
+    }
+
+    private static <T, B extends StructBuilder<T>> T roundTrip(
+            Adapter<T, B> adapter,
+            B builder,
+            T struct,
+            boolean compact) throws Exception {
+        Buffer buffer = new Buffer();
+        BufferTransport transport = new BufferTransport(buffer);
+        Protocol protocol = compact ? new CompactProtocol(transport) : new BinaryProtocol(transport);
+
+        adapter.write(protocol, struct);
+        return adapter.read(protocol, builder);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.integration;
+
+import com.bendb.thrifty.Adapter;
+import com.bendb.thrifty.StructBuilder;
+import com.bendb.thrifty.integration.fields.Color;
+import com.bendb.thrifty.integration.fields.Either;
+import com.bendb.thrifty.integration.fields.Scalars;
+import com.bendb.thrifty.protocol.BinaryProtocol;
+import com.bendb.thrifty.protocol.CompactProtocol;
+import com.bendb.thrifty.protocol.Protocol;
+import com.bendb.thrifty.transport.BufferTransport;
+import okio.Buffer;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Round-trips structs generated with {@code --use-primitive-fields}
+ * ({@code PrimitiveFields.thrift}), whose scalar fields are unboxed and
+ * tracked by presence bits.
+ */
+public class PrimitiveFieldsTest {
+    @Test
+    public void setFieldsRoundTrip() throws Exception {
+        Scalars scalars = new Scalars.Builder()
+                .bool_field(true)
+                .byte_field((byte) -1)
+                .i16_field(Short.MIN_VALUE)
+                .i32_field(Integer.MAX_VALUE)
+                .i64_field(1L << 50)
+                .double_field(Math.PI)
+                .required_i32(7)
+                .name("scalars")
+                .color(Color.GREEN)
+                .flag(false)
+                .build();
+
+        for (boolean compact : new boolean[] { false, true }) {
+            Scalars read = roundTrip(Scalars.ADAPTER, new Scalars.Builder(), scalars, compact);
+
+            assertThat(read, equalTo(scalars));
+            assertThat(read.hashCode(), is(scalars.hashCode()));
+            assertThat(read.toString(), is(scalars.toString()));
+            assertThat(read.i64_field, is(1L << 50));
+            assertThat(read.isSetFlag(), is(true));
+            assertThat(read.flag, is(false));
+        }
+    }
+
+    @Test
+    public void unsetFieldsAreNotWritten() throws Exception {
+        Scalars scalars = new Scalars.Builder()
+                .required_i32(1)
+                .build();
+
+        assertThat(scalars.isSetI32_field(), is(false));
+        assertThat(scalars.isSetRequired_i32(), is(true));
+
+        Scalars read = roundTrip(Scalars.ADAPTER, new Scalars.Builder(), scalars, true);
+        assertThat(read, equalTo(scalars));
+        assertThat(read.isSetBool_field(), is(false));
+        assertThat(read.isSetDouble_field(), is(false));
+        assertThat(read.toString().contains("i32_field=null"), is(true));
+    }
+
+    @Test
+    public void zeroIsDistinctFromUnset() throws Exception {
+        Scalars unset = new Scalars.Builder().required_i32(1).build();
+        Scalars zero = new Scalars.Builder().required_i32(1).i32_field(0).build();
+
+        assertThat(zero.isSetI32_field(), is(true));
+        assertThat(zero, not(equalTo(unset)));
+
+        Scalars read = roundTrip(Scalars.ADAPTER, new Scalars.Builder(), zero, false);
+        assertThat(read.isSetI32_field(), is(true));
+        assertThat(read, equalTo(zero));
+    }
+
+    @Test
+    public void defaultsAreSet() throws Exception {
+        Scalars scalars = new Scalars.Builder().required_i32(1).build();
+        assertThat(scalars.isSetDefaulted_i64(), is(true));
+        assertThat(scalars.defaulted_i64, is(42L));
+
+        Scalars.Builder builder = new Scalars.Builder(scalars).defaulted_i64(7).i32_field(3);
+        builder.reset();
+        Scalars reset = builder.required_i32(1).build();
+        assertThat(reset, equalTo(scalars));
+    }
+
+    @Test
+    public void nanEqualsItself() throws Exception {
+        Scalars nan = new Scalars.Builder().required_i32(1).double_field(Double.NaN).build();
+        Scalars read = roundTrip(Scalars.ADAPTER, new Scalars.Builder(), nan, true);
+        assertThat(read, equalTo(nan));
+    }
+
+    @Test
+    public void missingRequiredFieldIsRejected() {
+        try {
+            new Scalars.Builder().i32_field(1).build();
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void unionsRoundTrip() throws Exception {
+        Either number = new Either.Builder().number(0).build();
+        Either read = roundTrip(Either.ADAPTER, new Either.Builder(), number, true);
+
+        assertThat(read.isSetNumber(), is(true));
+        assertThat(read.number, is(0));
+        assertThat(read, equalTo(number));
+    }
+
+    private static <T, B extends StructBuilder<T>> T roundTrip(
+            Adapter<T, B> adapter,
+            B builder,
+            T struct,
+            boolean compact) throws Exception {
+        Buffer buffer = new Buffer();
+        BufferTransport transport = new BufferTransport(buffer);
+        Protocol protocol = compact ? new CompactProtocol(transport) : new BinaryProtocol(transport);
+
+        adapter.write(protocol, struct);
+        return adapter.read(protocol, builder);
+    }
+}
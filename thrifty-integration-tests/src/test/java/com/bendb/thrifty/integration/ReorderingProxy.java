@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.integration;
+
+import com.bendb.thrifty.protocol.MessageDecoder;
+import com.bendb.thrifty.transport.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A proxy that forwards one connection to an unframed binary-protocol
+ * server, passing the server's replies back in a different order from that
+ * in which they were sent: each group of {@link #GROUP_SIZE} replies is
+ * reversed.  A partial group is reversed and sent once no further reply has
+ * arrived for {@link #QUIET_MILLIS}.
+ */
+class ReorderingProxy {
+    static final int GROUP_SIZE = 4;
+    static final int QUIET_MILLIS = 20;
+
+    private final ServerSocket serverSocket;
+    private final List<Socket> sockets = new ArrayList<>();
+    private final AtomicInteger repliesReordered = new AtomicInteger(0);
+
+    ReorderingProxy(final int serverPort) throws IOException {
+        serverSocket = new ServerSocket(0);
+
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Socket client = serverSocket.accept();
+                    Socket server = new Socket("localhost", serverPort);
+                    client.setTcpNoDelay(true);
+                    server.setTcpNoDelay(true);
+                    server.setSoTimeout(QUIET_MILLIS);
+                    synchronized (sockets) {
+                        sockets.add(client);
+                        sockets.add(server);
+                    }
+
+                    forwardCalls(client.getInputStream(), server.getOutputStream());
+                    reorderReplies(server.getInputStream(), client.getOutputStream());
+                } catch (IOException ignored) {
+                    // closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Gets the number of replies sent back out of order so far.
+     */
+    int repliesReordered() {
+        return repliesReordered.get();
+    }
+
+    private static void forwardCalls(final InputStream in, final OutputStream out) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                        out.flush();
+                    }
+                } catch (IOException ignored) {
+                    // closed
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void reorderReplies(final InputStream in, final OutputStream out) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                MessageDecoder decoder = MessageDecoder.binary();
+                List<byte[]> group = new ArrayList<>(GROUP_SIZE);
+                byte[] buffer = new byte[8192];
+                try {
+                    while (true) {
+                        int read;
+                        try {
+                            read = in.read(buffer);
+                        } catch (SocketTimeoutException e) {
+                            send(group, out);
+                            continue;
+                        }
+
+                        if (read == -1) {
+                            break;
+                        }
+
+                        decoder.feed(buffer, 0, read);
+                        while (decoder.advance()) {
+                            Transport message = decoder.transport();
+                            int start = message.readBufferPosition();
+                            group.add(Arrays.copyOfRange(
+                                    message.readBuffer(), start, start + message.readBufferRemaining()));
+
+                            if (group.size() == GROUP_SIZE) {
+                                send(group, out);
+                            }
+                        }
+                    }
+                } catch (IOException ignored) {
+                    // closed
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void send(List<byte[]> group, OutputStream out) throws IOException {
+        if (group.size() > 1) {
+            repliesReordered.addAndGet(group.size());
+        }
+
+        for (int i = group.size() - 1; i >= 0; --i) {
+            out.write(group.get(i));
+        }
+        out.flush();
+        group.clear();
+    }
+
+    void close() throws IOException {
+        serverSocket.close();
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.integration;
+
+import com.bendb.thrifty.SizedAdapter;
+import com.bendb.thrifty.StructBuilder;
+import com.bendb.thrifty.integration.gen.Bools;
+import com.bendb.thrifty.integration.gen.CrazyNesting;
+import com.bendb.thrifty.integration.gen.Insanity;
+import com.bendb.thrifty.integration.gen.Numberz;
+import com.bendb.thrifty.integration.gen.Xtruct;
+import com.bendb.thrifty.protocol.BinaryProtocol;
+import com.bendb.thrifty.protocol.CompactProtocol;
+import com.bendb.thrifty.protocol.Protocol;
+import com.bendb.thrifty.transport.BufferTransport;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks that generated {@code sizeOf} implementations agree exactly with
+ * the bytes written by the corresponding {@code write} implementations.
+ */
+public class SizeOfTest {
+    private final Insanity insanity = new Insanity.Builder()
+            .userMap(ImmutableMap.of(Numberz.ONE, 10L, Numberz.EIGHT, 1L << 40))
+            .xtructs(ImmutableList.of(
+                    new Xtruct.Builder()
+                            .byte_thing((byte) 18)
+                            .i32_thing(-37)
+                            .i64_thing(101L)
+                            .string_thing("what")
+                            .build(),
+                    new Xtruct.Builder().build()))
+            .build();
+
+    @Test
+    public void bools() throws Exception {
+        check(Bools.ADAPTER, new Bools.Builder().im_true(true).im_false(false).build());
+    }
+
+    @Test
+    public void insanity() throws Exception {
+        check(Insanity.ADAPTER, insanity);
+        check(Insanity.ADAPTER, new Insanity.Builder().build());
+    }
+
+    @Test
+    public void crazyNesting() throws Exception {
+        Map<Insanity, String> innermost = ImmutableMap.of(insanity, "insane");
+        Set<List<Map<Insanity, String>>> lists = ImmutableSet.<List<Map<Insanity, String>>>of(
+                ImmutableList.of(innermost, innermost));
+        Map<Integer, Set<List<Map<Insanity, String>>>> inner = ImmutableMap.of(1, lists, 1000, lists);
+
+        CrazyNesting nesting = new CrazyNesting.Builder()
+                .string_field("crazy")
+                .set_field(ImmutableSet.of(insanity))
+                .list_field(ImmutableList.<Map<Set<Integer>, Map<Integer, Set<List<Map<Insanity, String>>>>>>of(
+                        ImmutableMap.<Set<Integer>, Map<Integer, Set<List<Map<Insanity, String>>>>>of(
+                                ImmutableSet.of(1, 2, 3), inner)))
+                .binary_field(ByteString.encodeUtf8("binary"))
+                .build();
+
+        check(CrazyNesting.ADAPTER, nesting);
+    }
+
+    private static <T, B extends StructBuilder<T>> void check(SizedAdapter<T, B> adapter, T struct) throws Exception {
+        Buffer buffer = new Buffer();
+        Protocol binary = new BinaryProtocol(new BufferTransport(buffer));
+        adapter.write(binary, struct);
+        assertThat((long) adapter.sizeOf(binary, struct), is(buffer.size()));
+
+        buffer.clear();
+        Protocol compact = new CompactProtocol(new BufferTransport(buffer));
+        adapter.write(compact, struct);
+        assertThat((long) adapter.sizeOf(compact, struct), is(buffer.size()));
+    }
+}
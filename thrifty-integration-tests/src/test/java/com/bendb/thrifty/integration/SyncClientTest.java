@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.integration;
+
+import com.bendb.thrifty.ThriftException;
+import com.bendb.thrifty.integration.gen.ThriftTestSyncClient;
+import com.bendb.thrifty.integration.gen.Xception;
+import com.bendb.thrifty.integration.gen.Xception2;
+import com.bendb.thrifty.integration.gen.Xtruct;
+import com.bendb.thrifty.protocol.BinaryProtocol;
+import com.bendb.thrifty.protocol.Protocol;
+import com.bendb.thrifty.service.ProtocolPool;
+import com.bendb.thrifty.testing.ServerProtocol;
+import com.bendb.thrifty.testing.ServerTransport;
+import com.bendb.thrifty.testing.TestServer;
+import com.bendb.thrifty.transport.SocketTransport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks generated synchronous clients, which call on the caller's thread.
+ */
+public class SyncClientTest {
+    @Rule public TestServer testServer = new TestServer(ServerProtocol.BINARY, ServerTransport.BLOCKING);
+
+    private ProtocolPool pool;
+    private ThriftTestSyncClient client;
+
+    @Before
+    public void setup() {
+        pool = new ProtocolPool(new ProtocolPool.Factory() {
+            @Override
+            public Protocol create() throws IOException {
+                SocketTransport transport = new SocketTransport.Builder("localhost", testServer.port())
+                        .readTimeout(2000)
+                        .build();
+                transport.connect();
+                return new BinaryProtocol(transport);
+            }
+        }, 4);
+
+        client = new ThriftTestSyncClient(pool);
+    }
+
+    @After
+    public void teardown() {
+        pool.close();
+    }
+
+    @Test
+    public void returnsResults() throws Exception {
+        client.testVoid();
+        assertThat(client.testI32(42), is(42));
+        assertThat(client.testString("foo"), is("foo"));
+
+        Xtruct xtruct = new Xtruct.Builder()
+                .string_thing("bar")
+                .byte_thing((byte) 1)
+                .i32_thing(7)
+                .i64_thing(8L)
+                .build();
+        assertThat(client.testStruct(xtruct), equalTo(xtruct));
+
+        // Every call reused the one connection.
+        assertThat(pool.idleCount(), is(1));
+    }
+
+    @Test
+    public void throwsDeclaredExceptions() throws Exception {
+        try {
+            client.testMultiException("Xception2", "nope");
+            fail("Expected an Xception2");
+        } catch (Xception2 e) {
+            assertThat(e.errorCode, is(2002));
+        }
+
+        try {
+            client.testException("Xception");
+            fail("Expected an Xception");
+        } catch (Xception e) {
+            assertThat(e.errorCode, is(1001));
+        }
+
+        // The connection survives declared exceptions.
+        assertThat(pool.idleCount(), is(1));
+        assertThat(client.testMultiException("Normal", "Hi there").string_thing, is("Hi there"));
+    }
+
+    @Test
+    public void throwsApplicationExceptions() throws Exception {
+        try {
+            client.testException("TException");
+            fail("Expected a ThriftException");
+        } catch (ThriftException e) {
+            assertThat(e.kind, is(ThriftException.Kind.INTERNAL_ERROR));
+        }
+
+        assertThat(client.testI32(1), is(1));
+    }
+
+    @Test
+    public void cachesAnnotatedResults() throws Exception {
+        assertThat(client.testDouble(4.5), is(4.5));
+        assertThat(client.testDouble(4.5), is(4.5));
+        assertThat(client.testDouble(5.5), is(5.5));
+
+        assertThat(client.testDoubleCache().hitCount(), is(1L));
+        assertThat(client.testDoubleCache().missCount(), is(2L));
+    }
+
+    @Test
+    public void concurrentCallsUseSeparateConnections() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 100; ++i) {
+                final int value = i;
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return client.testI32(value);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < 100; ++i) {
+                assertThat(results.get(i).get(), is(i));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.integration;
+
+import com.bendb.thrifty.protocol.BinaryProtocol;
+import com.bendb.thrifty.protocol.MessageDecoder;
+import com.bendb.thrifty.protocol.Protocol;
+import com.bendb.thrifty.service.EventLoopGroup;
+import com.bendb.thrifty.service.EventLoopTransport;
+import com.bendb.thrifty.testing.ServerProtocol;
+import com.bendb.thrifty.testing.ServerTransport;
+import com.bendb.thrifty.transport.Transport;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+/**
+ * Runs the conformance suite against a blocking server, with clients sharing
+ * a single event-loop thread and finding message boundaries by scanning.
+ */
+public class UnframedEventLoopBinaryProtocolConformance extends ConformanceBase {
+    private static EventLoopGroup group;
+
+    @BeforeClass
+    public static void startGroup() throws Exception {
+        group = new EventLoopGroup(1);
+    }
+
+    @AfterClass
+    public static void stopGroup() {
+        group.close();
+    }
+
+    @Override
+    protected ServerTransport getServerTransport() {
+        return ServerTransport.BLOCKING;
+    }
+
+    @Override
+    protected ServerProtocol getServerProtocol() {
+        return ServerProtocol.BINARY;
+    }
+
+    @Override
+    protected Transport createTransport(int port) throws Exception {
+        EventLoopTransport transport = new EventLoopTransport.Builder(group, "localhost", port)
+                .unframed(MessageDecoder.binary())
+                .build();
+        transport.connect();
+        return transport;
+    }
+
+    @Override
+    protected Protocol createProtocol(Transport transport) {
+        return new BinaryProtocol(transport);
+    }
+}
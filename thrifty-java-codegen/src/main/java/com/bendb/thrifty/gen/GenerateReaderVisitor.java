@@ -21,13 +21,16 @@ import com.bendb.thrifty.protocol.Protocol;
 import com.bendb.thrifty.schema.Field;
 import com.bendb.thrifty.schema.NamespaceScope;
 import com.bendb.thrifty.schema.ThriftType;
+import com.squareup.javapoet.ClassName;
 import com.squareup.javapoet.MethodSpec;
 import com.squareup.javapoet.NameAllocator;
 import com.squareup.javapoet.ParameterizedTypeName;
 import com.squareup.javapoet.TypeName;
 
+import javax.annotation.Nullable;
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.Locale;
 
 /**
  * Generates Java code to read a field's value from an open Protocol object.
@@ -36,7 +39,8 @@ import java.util.Deque;
  * We are inside of {@link Adapter#read(Protocol)}.  Further, we are
  * inside of a single case block for a single field.  There are variables
  * in scope named "protocol" and "builder", representing the connection and
- * the struct builder.
+ * the struct builder, and a byte named "fieldType" holding the type ID of the
+ * field being read.
  */
 class GenerateReaderVisitor implements ThriftType.Visitor<Void> {
     private Deque<String> nameStack = new ArrayDeque<>();
@@ -45,6 +49,7 @@ class GenerateReaderVisitor implements ThriftType.Visitor<Void> {
     private MethodSpec.Builder read;
     private String fieldName;
     private ThriftType fieldType;
+    private ClassName primitiveCollectionType;
     private int scope;
 
     GenerateReaderVisitor(TypeResolver resolver, MethodSpec.Builder read, Field field) {
@@ -58,6 +63,16 @@ class GenerateReaderVisitor implements ThriftType.Visitor<Void> {
         this.fieldType = fieldType;
     }
 
+    /**
+     * Reads the field as the given primitive collection type, e.g.
+     * {@link com.bendb.thrifty.util.IntList}, instead of as a boxed
+     * collection.  A {@code null} type leaves the default behavior in place.
+     */
+    GenerateReaderVisitor usePrimitiveCollection(@Nullable ClassName primitiveCollectionType) {
+        this.primitiveCollectionType = primitiveCollectionType;
+        return this;
+    }
+
     public void generate() {
         byte fieldTypeCode = resolver.getTypeCode(fieldType);
         if (fieldTypeCode == TType.ENUM) {
@@ -65,20 +80,33 @@ class GenerateReaderVisitor implements ThriftType.Visitor<Void> {
             fieldTypeCode = TType.I32;
         }
         String codeName = TypeNames.getTypeCodeName(fieldTypeCode);
-        read.beginControlFlow("if (field.typeId == $T.$L)", TypeNames.TTYPE, codeName);
+        read.beginControlFlow("if (fieldType == $T.$L)", TypeNames.TTYPE, codeName);
 
         nameStack.push("value");
-        fieldType.accept(this);
+        if (primitiveCollectionType != null) {
+            readPrimitiveCollection();
+        } else {
+            fieldType.accept(this);
+        }
         nameStack.pop();
 
         useReadValue("value");
 
         read.nextControlFlow("else");
-        read.addStatement("$T.skip(protocol, field.typeId)", TypeNames.PROTO_UTIL);
+        read.addStatement("$T.skip(protocol, fieldType)", TypeNames.PROTO_UTIL);
         read.endControlFlow();
 
     }
 
+    private void readPrimitiveCollection() {
+        String kind = fieldType.isList() ? "List" : "Set";
+        String size = kind.toLowerCase(Locale.US) + "Size" + scope;
+
+        read.addStatement("int $N = $T.size(protocol.read$LHeader())", size, TypeNames.HEADERS, kind);
+        read.addStatement("$1T $2N = $1T.read(protocol, $3N)", primitiveCollectionType, nameStack.peek(), size);
+        read.addStatement("protocol.read$LEnd()", kind);
+    }
+
     protected void useReadValue(String localName) {
         read.addStatement("builder.$N($N)", fieldName, localName);
     }
@@ -152,13 +180,13 @@ class GenerateReaderVisitor implements ThriftType.Visitor<Void> {
         TypeName genericListType = ParameterizedTypeName.get(TypeNames.LIST, elementType);
         TypeName listImplType = resolver.listOf(elementType);
 
-        String listInfo = "listMetadata" + scope;
+        String listSize = "listSize" + scope;
         String idx = "i" + scope;
         String item = "item" + scope;
 
-        read.addStatement("$T $N = protocol.readListBegin()", TypeNames.LIST_META, listInfo);
-        read.addStatement("$T $N = new $T($N.size)", genericListType, nameStack.peek(), listImplType, listInfo);
-        read.beginControlFlow("for (int $1N = 0; $1N < $2N.size; ++$1N)", idx, listInfo);
+        read.addStatement("int $N = $T.size(protocol.readListHeader())", listSize, TypeNames.HEADERS);
+        read.addStatement("$T $N = new $T($N)", genericListType, nameStack.peek(), listImplType, listSize);
+        read.beginControlFlow("for (int $1N = 0; $1N < $2N; ++$1N)", idx, listSize);
 
         ++scope;
         nameStack.push(item);
@@ -183,13 +211,13 @@ class GenerateReaderVisitor implements ThriftType.Visitor<Void> {
         TypeName genericSetType = ParameterizedTypeName.get(TypeNames.SET, elementType);
         TypeName setImplType = resolver.setOf(elementType);
 
-        String setInfo = "setMetadata" + scope;
+        String setSize = "setSize" + scope;
         String idx = "i" + scope;
         String item = "item" + scope;
 
-        read.addStatement("$T $N = protocol.readSetBegin()", TypeNames.SET_META, setInfo);
-        read.addStatement("$T $N = new $T($N.size)", genericSetType, nameStack.peek(), setImplType, setInfo);
-        read.beginControlFlow("for (int $1N = 0; $1N < $2N.size; ++$1N)", idx, setInfo);
+        read.addStatement("int $N = $T.size(protocol.readSetHeader())", setSize, TypeNames.HEADERS);
+        read.addStatement("$T $N = new $T($N)", genericSetType, nameStack.peek(), setImplType, setSize);
+        read.beginControlFlow("for (int $1N = 0; $1N < $2N; ++$1N)", idx, setSize);
 
         ++scope;
         nameStack.push(item);
@@ -215,15 +243,15 @@ class GenerateReaderVisitor implements ThriftType.Visitor<Void> {
         TypeName genericMapType = ParameterizedTypeName.get(TypeNames.MAP, keyType, valueType);
         TypeName mapImplType = resolver.mapOf(keyType, valueType);
 
-        String mapInfo = "mapMetadata" + scope;
+        String mapSize = "mapSize" + scope;
         String idx = "i" + scope;
         String key = "key" + scope;
         String value = "value" + scope;
         ++scope;
 
-        read.addStatement("$T $N = protocol.readMapBegin()", TypeNames.MAP_META, mapInfo);
-        read.addStatement("$T $N = new $T($N.size)", genericMapType, nameStack.peek(), mapImplType, mapInfo);
-        read.beginControlFlow("for (int $1N = 0; $1N < $2N.size; ++$1N)", idx, mapInfo);
+        read.addStatement("int $N = $T.size(protocol.readMapHeader())", mapSize, TypeNames.HEADERS);
+        read.addStatement("$T $N = new $T($N)", genericMapType, nameStack.peek(), mapImplType, mapSize);
+        read.beginControlFlow("for (int $1N = 0; $1N < $2N; ++$1N)", idx, mapSize);
 
         nameStack.push(key);
         mapType.keyType().accept(this);
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.gen;
+
+import com.bendb.thrifty.SizedAdapter;
+import com.bendb.thrifty.schema.Field;
+import com.bendb.thrifty.schema.NamespaceScope;
+import com.bendb.thrifty.schema.ThriftType;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.NameAllocator;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Generates Java code to compute the encoded size of a field's value in an
+ * {@link SizedAdapter#sizeOf} implementation.
+ *
+ * The generated code mirrors that of {@link GenerateWriterVisitor} call for
+ * call, adding the result of each {@code sizeOf} call to a local int named
+ * "size".
+ */
+class GenerateSizeVisitor implements ThriftType.Visitor<Void> {
+    private final TypeResolver resolver;
+    private final MethodSpec.Builder sizeOf;
+    private final String proto;
+    private final Deque<String> nameStack = new ArrayDeque<>();
+    private int scopeLevel;
+    private NameAllocator nameAllocator;
+
+    /**
+     * Creates a new GenerateSizeVisitor.
+     *
+     * @param sizeOf the {@link SizedAdapter#sizeOf} method under construction
+     * @param proto the name of the protocol parameter to the sizeOf method
+     * @param subject the name of the struct parameter to the sizeOf method
+     * @param field the field being measured
+     */
+    GenerateSizeVisitor(
+            TypeResolver resolver,
+            MethodSpec.Builder sizeOf,
+            String proto,
+            String subject,
+            Field field) {
+        this.resolver = resolver;
+        this.sizeOf = sizeOf;
+        this.proto = proto;
+        nameStack.push(subject + "." + field.name());
+    }
+
+    @Override
+    public Void visitBool() {
+        return addSizeOf("sizeOfBool");
+    }
+
+    @Override
+    public Void visitByte() {
+        return addSizeOf("sizeOfByte");
+    }
+
+    @Override
+    public Void visitI16() {
+        return addSizeOf("sizeOfI16");
+    }
+
+    @Override
+    public Void visitI32() {
+        return addSizeOf("sizeOfI32");
+    }
+
+    @Override
+    public Void visitI64() {
+        return addSizeOf("sizeOfI64");
+    }
+
+    @Override
+    public Void visitDouble() {
+        return addSizeOf("sizeOfDouble");
+    }
+
+    @Override
+    public Void visitString() {
+        return addSizeOf("sizeOfString");
+    }
+
+    @Override
+    public Void visitBinary() {
+        return addSizeOf("sizeOfBinary");
+    }
+
+    private Void addSizeOf(String method) {
+        sizeOf.addStatement("size += $N.$L($L)", proto, method, nameStack.peek());
+        return null;
+    }
+
+    @Override
+    public Void visitVoid() {
+        throw new AssertionError("Fields cannot be void");
+    }
+
+    @Override
+    public Void visitEnum(ThriftType userType) {
+        sizeOf.addStatement("size += $N.sizeOfI32($L.value)", proto, nameStack.peek());
+        return null;
+    }
+
+    @Override
+    public Void visitList(ThriftType.ListType listType) {
+        visitSingleElementCollection(listType.elementType().getTrueType(), "sizeOfListBegin");
+        return null;
+    }
+
+    @Override
+    public Void visitSet(ThriftType.SetType setType) {
+        visitSingleElementCollection(setType.elementType().getTrueType(), "sizeOfSetBegin");
+        return null;
+    }
+
+    private void visitSingleElementCollection(ThriftType elementType, String beginMethod) {
+        initCollectionHelpers();
+        String tag = "item" + scopeLevel;
+        String item = nameAllocator.newName(tag, tag);
+
+        TypeName javaClass = resolver.getJavaClass(elementType);
+        String typeCodeName = TypeNames.getTypeCodeName(resolver.getTypeCode(elementType));
+
+        sizeOf.addStatement(
+                "size += $N.$L($T.$L, $L.size())",
+                proto,
+                beginMethod,
+                TypeNames.TTYPE,
+                typeCodeName,
+                nameStack.peek());
+
+        sizeOf.beginControlFlow("for ($T $N : $L)", javaClass, item, nameStack.peek());
+
+        scopeLevel++;
+        nameStack.push(item);
+        elementType.accept(this);
+        nameStack.pop();
+        scopeLevel--;
+
+        sizeOf.endControlFlow();
+    }
+
+    @Override
+    public Void visitMap(ThriftType.MapType mapType) {
+        initCollectionHelpers();
+        String entryTag = "entry" + scopeLevel;
+        String keyTag = "key" + scopeLevel;
+        String valueTag = "value" + scopeLevel;
+
+        String entryName = nameAllocator.newName(entryTag, entryTag);
+        String keyName = nameAllocator.newName(keyTag, keyTag);
+        String valueName = nameAllocator.newName(valueTag, valueTag);
+
+        ThriftType kt = mapType.keyType().getTrueType();
+        ThriftType vt = mapType.valueType().getTrueType();
+
+        sizeOf.addStatement(
+                "size += $1N.sizeOfMapBegin($2T.$3L, $2T.$4L, $5L.size())",
+                proto,
+                TypeNames.TTYPE,
+                TypeNames.getTypeCodeName(resolver.getTypeCode(kt)),
+                TypeNames.getTypeCodeName(resolver.getTypeCode(vt)),
+                nameStack.peek());
+
+        TypeName keyTypeName = resolver.getJavaClass(kt);
+        TypeName valueTypeName = resolver.getJavaClass(vt);
+        TypeName entry = ParameterizedTypeName.get(TypeNames.MAP_ENTRY, keyTypeName, valueTypeName);
+        sizeOf.beginControlFlow("for ($T $N : $L.entrySet())", entry, entryName, nameStack.peek());
+        sizeOf.addStatement("$T $N = $N.getKey()", keyTypeName, keyName, entryName);
+        sizeOf.addStatement("$T $N = $N.getValue()", valueTypeName, valueName, entryName);
+
+        scopeLevel++;
+        nameStack.push(keyName);
+        kt.accept(this);
+        nameStack.pop();
+
+        nameStack.push(valueName);
+        vt.accept(this);
+        nameStack.pop();
+        scopeLevel--;
+
+        sizeOf.endControlFlow();
+
+        return null;
+    }
+
+    @Override
+    public Void visitUserType(ThriftType userType) {
+        String javaName = userType.getNamespace(NamespaceScope.JAVA) + "." + userType.name();
+        sizeOf.addStatement("size += $L.ADAPTER.sizeOf($N, $L)", javaName, proto, nameStack.peek());
+        return null;
+    }
+
+    @Override
+    public Void visitTypedef(ThriftType.TypedefType typedefType) {
+        typedefType.getTrueType().accept(this);
+        return null;
+    }
+
+    private void initCollectionHelpers() {
+        if (nameAllocator == null) {
+            nameAllocator = new NameAllocator();
+            nameAllocator.newName(proto, proto);
+            nameAllocator.newName("size", "size");
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.gen;
+
+import com.bendb.thrifty.schema.Field;
+import com.bendb.thrifty.schema.StructType;
+import com.bendb.thrifty.schema.ThriftType;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.TypeName;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tracks which fields of a struct are stored as unboxed primitives, and
+ * assigns each of them a bit in a series of {@code int} presence words.
+ *
+ * <p>Generated structs and builders hold one presence word per 32 primitive
+ * fields, named {@code __isset0}, {@code __isset1}, and so on.  A field's bit
+ * is set when a value is assigned to it; an unset field always holds its
+ * type's zero value.
+ */
+final class PresenceBits {
+    private static final String WORD_PREFIX = "__isset";
+
+    private final Map<String, Integer> bits = new HashMap<>();
+
+    PresenceBits(StructType struct, boolean enabled) {
+        if (!enabled) {
+            return;
+        }
+
+        for (Field field : struct.fields()) {
+            if (isPrimitiveType(field.type().getTrueType())) {
+                bits.put(field.name(), bits.size());
+            }
+        }
+    }
+
+    private static boolean isPrimitiveType(ThriftType type) {
+        return type.equals(ThriftType.BOOL)
+                || type.equals(ThriftType.BYTE)
+                || type.equals(ThriftType.I8)
+                || type.equals(ThriftType.I16)
+                || type.equals(ThriftType.I32)
+                || type.equals(ThriftType.I64)
+                || type.equals(ThriftType.DOUBLE);
+    }
+
+    boolean isPrimitive(Field field) {
+        return bits.containsKey(field.name());
+    }
+
+    /**
+     * Gets the Java type of the given field - unboxed if the field is
+     * tracked here, otherwise {@code boxedType} unchanged.
+     */
+    TypeName typeOf(Field field, TypeName boxedType) {
+        return isPrimitive(field) ? boxedType.unbox() : boxedType;
+    }
+
+    int wordCount() {
+        return (bits.size() + 31) / 32;
+    }
+
+    String word(int index) {
+        return WORD_PREFIX + index;
+    }
+
+    /**
+     * Gets the name of the generated presence accessor for the given field,
+     * e.g. {@code isSetFoo} for a field named {@code foo}.
+     */
+    String accessorName(Field field) {
+        String name = field.name();
+        return "isSet" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    /**
+     * The zero value of the given field's type, as held when it is unset.
+     */
+    String zeroValue(Field field) {
+        return field.type().getTrueType().equals(ThriftType.BOOL) ? "false" : "0";
+    }
+
+    /**
+     * Renders a boolean expression testing whether the given field is set on
+     * {@code target}.
+     */
+    CodeBlock isSet(String target, Field field) {
+        int bit = bits.get(field.name());
+        return CodeBlock.builder()
+                .add("($L.$N & $L) != 0", target, word(bit / 32), mask(bit))
+                .build();
+    }
+
+    /**
+     * Renders a boolean expression testing whether the given field is unset
+     * on {@code target}.
+     */
+    CodeBlock isUnset(String target, Field field) {
+        int bit = bits.get(field.name());
+        return CodeBlock.builder()
+                .add("($L.$N & $L) == 0", target, word(bit / 32), mask(bit))
+                .build();
+    }
+
+    /**
+     * Renders a statement (without the trailing semicolon) marking the given
+     * field as set on {@code target}.
+     */
+    CodeBlock set(String target, Field field) {
+        int bit = bits.get(field.name());
+        return CodeBlock.builder()
+                .add("$L.$N |= $L", target, word(bit / 32), mask(bit))
+                .build();
+    }
+
+    private static String mask(int bit) {
+        return "0x" + Integer.toHexString(1 << (bit % 32));
+    }
+}
@@ -34,10 +34,18 @@ import com.squareup.javapoet.TypeName;
 import com.squareup.javapoet.TypeSpec;
 
 import javax.lang.model.element.Modifier;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 final class ServiceBuilder {
+    private static final int DEFAULT_CACHE_MAX_ENTRIES = 1000;
+    private static final Pattern CACHE_TTL = Pattern.compile("(\\d+)\\s*(ms|s|m|h)?");
+
     private final TypeResolver typeResolver;
     private final ConstantBuilder constantBuilder;
 
@@ -101,7 +109,13 @@ final class ServiceBuilder {
         return serviceSpec.build();
     }
 
-    TypeSpec buildService(Service service, TypeSpec serviceInterface) {
+    /**
+     * Builds the asynchronous client of the given service.
+     *
+     * @param shareCalls whether the client's method call classes are to be
+     *                   visible to a synchronous client in the same package.
+     */
+    TypeSpec buildService(Service service, TypeSpec serviceInterface, boolean shareCalls) {
         String packageName = service.getNamespaceFor(NamespaceScope.JAVA);
         TypeName interfaceTypeName = ClassName.get(packageName, serviceInterface.name);
         TypeSpec.Builder builder = TypeSpec.classBuilder(service.name() + "Client")
@@ -116,10 +130,18 @@ final class ServiceBuilder {
                 .addStatement("super(protocol, listener)")
                 .build());
 
+        builder.addMethod(MethodSpec.constructorBuilder()
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(TypeNames.PROTOCOL, "protocol")
+                .addParameter(TypeNames.SERVICE_CLIENT_LISTENER, "listener")
+                .addParameter(TypeNames.SERVICE_CLIENT_CONFIG, "config")
+                .addStatement("super(protocol, listener, config)")
+                .build());
+
         int i = 0;
         for (MethodSpec methodSpec : serviceInterface.methodSpecs) {
             ServiceMethod serviceMethod = service.methods().get(i++);
-            TypeSpec call = buildCallSpec(serviceMethod);
+            TypeSpec call = buildCallSpec(serviceMethod, shareCalls);
             builder.addType(call);
 
             MethodSpec.Builder meth = MethodSpec.methodBuilder(methodSpec.name)
@@ -128,6 +150,14 @@ final class ServiceBuilder {
                     .addParameters(methodSpec.parameters)
                     .addExceptions(methodSpec.exceptions);
 
+            CacheSettings cache = cacheSettings(serviceMethod);
+            String cacheName = null;
+            if (cache != null) {
+                ParameterSpec callback = methodSpec.parameters.get(methodSpec.parameters.size() - 1);
+                TypeName resultType = ((ParameterizedTypeName) callback.type).typeArguments.get(0);
+                cacheName = addCache(builder, methodSpec.name, resultType, cache);
+            }
+
             CodeBlock.Builder body = CodeBlock.builder()
                     .add("$[this.enqueue(new $N(", call);
 
@@ -141,7 +171,11 @@ final class ServiceBuilder {
                 }
             }
 
-            body.add("));\n$]");
+            if (cacheName != null) {
+                body.add("), this.$N);\n$]", cacheName);
+            } else {
+                body.add("));\n$]");
+            }
 
             meth.addCode(body.build());
 
@@ -151,7 +185,103 @@ final class ServiceBuilder {
         return builder.build();
     }
 
-    private TypeSpec buildCallSpec(ServiceMethod method) {
+    /**
+     * Builds a synchronous client of the given service, reusing the method
+     * call classes of its asynchronous client.
+     */
+    TypeSpec buildSyncService(Service service, TypeSpec serviceInterface) {
+        String packageName = service.getNamespaceFor(NamespaceScope.JAVA);
+        ClassName asyncClientName = ClassName.get(packageName, service.name() + "Client");
+        TypeSpec.Builder builder = TypeSpec.classBuilder(service.name() + "SyncClient")
+                .addModifiers(Modifier.PUBLIC)
+                .superclass(TypeNames.SERVICE_SYNC_CLIENT_BASE);
+
+        builder.addMethod(MethodSpec.constructorBuilder()
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(TypeNames.SERVICE_PROTOCOL_POOL, "pool")
+                .addStatement("super(pool)")
+                .build());
+
+        int i = 0;
+        for (MethodSpec methodSpec : serviceInterface.methodSpecs) {
+            ServiceMethod serviceMethod = service.methods().get(i++);
+            ClassName callName = asyncClientName.nestedClass(callClassName(serviceMethod));
+
+            // The async signature, less its trailing callback
+            List<ParameterSpec> parameters = methodSpec.parameters.subList(0, methodSpec.parameters.size() - 1);
+
+            MethodSpec.Builder meth = MethodSpec.methodBuilder(methodSpec.name)
+                    .addModifiers(Modifier.PUBLIC)
+                    .addParameters(parameters)
+                    .addException(TypeNames.IO_EXCEPTION);
+
+            if (serviceMethod.hasJavadoc()) {
+                meth.addJavadoc(serviceMethod.documentation());
+            }
+
+            List<TypeName> exceptionTypeNames = new ArrayList<>();
+            for (Field field : serviceMethod.exceptionTypes()) {
+                TypeName exceptionTypeName = typeResolver.getJavaClass(field.type().getTrueType());
+                exceptionTypeNames.add(exceptionTypeName);
+                meth.addException(exceptionTypeName);
+            }
+
+            ThriftType returnType = serviceMethod.returnType().or(ThriftType.VOID);
+            boolean hasReturnType = !returnType.equals(ThriftType.VOID);
+            if (hasReturnType) {
+                TypeName returnTypeName = typeResolver.getJavaClass(returnType.getTrueType());
+                if (isBoxedPrimitive(returnTypeName)) {
+                    // A result is never null; a missing one is an error.
+                    returnTypeName = returnTypeName.unbox();
+                }
+                meth.returns(returnTypeName);
+            }
+
+            CodeBlock.Builder args = CodeBlock.builder();
+            for (ParameterSpec parameter : parameters) {
+                args.add("$N, ", parameter.name);
+            }
+            args.add("null");
+
+            CacheSettings cache = cacheSettings(serviceMethod);
+
+            meth.beginControlFlow("try");
+            if (cache != null) {
+                TypeName resultType = typeResolver.getJavaClass(returnType.getTrueType());
+                String cacheName = addCache(builder, methodSpec.name, resultType, cache);
+                meth.addStatement("return execute(new $T($L), this.$N)", callName, args.build(), cacheName);
+            } else {
+                meth.addStatement(hasReturnType ? "return execute(new $T($L))" : "execute(new $T($L))",
+                        callName, args.build());
+            }
+            meth.nextControlFlow("catch ($T e)", TypeNames.IO_EXCEPTION);
+            meth.addStatement("throw e");
+            meth.nextControlFlow("catch ($T e)", TypeNames.RUNTIME_EXCEPTION);
+            meth.addStatement("throw e");
+            for (TypeName exceptionTypeName : exceptionTypeNames) {
+                meth.nextControlFlow("catch ($T e)", exceptionTypeName);
+                meth.addStatement("throw e");
+            }
+            meth.nextControlFlow("catch ($T e)", TypeNames.EXCEPTION);
+            meth.addStatement("throw new $T(e)", TypeNames.UNDECLARED_THROWABLE_EXCEPTION);
+            meth.endControlFlow();
+
+            builder.addMethod(meth.build());
+        }
+
+        return builder.build();
+    }
+
+    private static boolean isBoxedPrimitive(TypeName typeName) {
+        return typeName.equals(TypeNames.BOOLEAN)
+                || typeName.equals(TypeNames.BYTE)
+                || typeName.equals(TypeNames.SHORT)
+                || typeName.equals(TypeNames.INTEGER)
+                || typeName.equals(TypeNames.LONG)
+                || typeName.equals(TypeNames.DOUBLE);
+    }
+
+    private static String callClassName(ServiceMethod method) {
         String name = method.name();
         if (Character.isLowerCase(name.charAt(0))) {
             if (name.length() > 1) {
@@ -162,6 +292,11 @@ final class ServiceBuilder {
 
             name += "Call";
         }
+        return name;
+    }
+
+    private TypeSpec buildCallSpec(ServiceMethod method, boolean shared) {
+        String name = callClassName(method);
 
         ThriftType returnType = method.returnType().or(ThriftType.VOID);
         TypeName returnTypeName = returnType.equals(ThriftType.VOID)
@@ -173,9 +308,14 @@ final class ServiceBuilder {
         boolean hasReturnType = !returnTypeName.equals(TypeName.VOID.box());
 
         TypeSpec.Builder callBuilder = TypeSpec.classBuilder(name)
-                .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
                 .superclass(superclass);
 
+        if (shared) {
+            callBuilder.addModifiers(Modifier.STATIC, Modifier.FINAL);
+        } else {
+            callBuilder.addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL);
+        }
+
         // Set up fields
         for (Field field : method.paramTypes()) {
             TypeName javaType = typeResolver.getJavaClass(field.type().getTrueType());
@@ -191,12 +331,172 @@ final class ServiceBuilder {
         // Send
         callBuilder.addMethod(buildSendMethod(method));
 
+        // Size
+        callBuilder.addMethod(buildSizeOfMethod(method));
+
         // Receive
         callBuilder.addMethod(buildReceiveMethod(method, hasReturnType));
 
+        // Hedging
+        if (isIdempotent(method)) {
+            callBuilder.addMethod(MethodSpec.methodBuilder("isIdempotent")
+                    .addAnnotation(Override.class)
+                    .addModifiers(Modifier.PROTECTED)
+                    .returns(boolean.class)
+                    .addStatement("return true")
+                    .build());
+
+            callBuilder.addMethod(buildDuplicateMethod(method, name, superclass));
+        }
+
         return callBuilder.build();
     }
 
+    /**
+     * Gets whether calls to the given method may safely be sent more than
+     * once, as indicated by an {@code (idempotent)} annotation.
+     */
+    private static boolean isIdempotent(ServiceMethod method) {
+        if (method.oneWay() || !method.annotations().containsKey("idempotent")) {
+            return false;
+        }
+        return !"false".equalsIgnoreCase(method.annotations().get("idempotent"));
+    }
+
+    /**
+     * Gets how results of the given method are to be cached, as given by its
+     * {@code cache.ttl} and {@code cache.max_entries} annotations, or
+     * {@code null} if they are not cached.
+     *
+     * <p>A time to live is a whole number of milliseconds, seconds, minutes,
+     * or hours, suffixed {@code ms}, {@code s}, {@code m}, or {@code h}; a
+     * bare number is in seconds.
+     */
+    private static CacheSettings cacheSettings(ServiceMethod method) {
+        String ttl = method.annotations().get("cache.ttl");
+        String maxEntries = method.annotations().get("cache.max_entries");
+        if (ttl == null) {
+            if (maxEntries != null) {
+                throw new IllegalStateException(
+                        "Method " + method.name() + " has cache.max_entries but no cache.ttl");
+            }
+            return null;
+        }
+
+        if (method.oneWay() || method.returnType().or(ThriftType.VOID).equals(ThriftType.VOID)) {
+            throw new IllegalStateException(
+                    "Method " + method.name() + " returns nothing, and so cannot be cached");
+        }
+
+        Matcher matcher = CACHE_TTL.matcher(ttl.trim().toLowerCase(Locale.US));
+        long ttlMillis;
+        try {
+            if (!matcher.matches()) {
+                throw new NumberFormatException();
+            }
+
+            long amount = Long.parseLong(matcher.group(1));
+            String unit = Strings.nullToEmpty(matcher.group(2));
+            switch (unit) {
+                case "ms":
+                    ttlMillis = amount;
+                    break;
+                case "m":
+                    ttlMillis = TimeUnit.MINUTES.toMillis(amount);
+                    break;
+                case "h":
+                    ttlMillis = TimeUnit.HOURS.toMillis(amount);
+                    break;
+                default:
+                    ttlMillis = TimeUnit.SECONDS.toMillis(amount);
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException(
+                    "Invalid cache.ttl of method " + method.name() + ": '" + ttl + "'");
+        }
+
+        if (ttlMillis <= 0) {
+            throw new IllegalStateException("cache.ttl of method " + method.name() + " must be positive");
+        }
+
+        int entries = DEFAULT_CACHE_MAX_ENTRIES;
+        if (maxEntries != null) {
+            try {
+                entries = Integer.parseInt(maxEntries.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalStateException(
+                        "Invalid cache.max_entries of method " + method.name() + ": '" + maxEntries + "'");
+            }
+            if (entries <= 0) {
+                throw new IllegalStateException(
+                        "cache.max_entries of method " + method.name() + " must be positive");
+            }
+        }
+
+        return new CacheSettings(ttlMillis, entries);
+    }
+
+    /**
+     * Adds to the given client a cache of the results of the given method,
+     * and an accessor by which its hits and misses may be counted.
+     *
+     * @return the name of the cache's field.
+     */
+    private static String addCache(
+            TypeSpec.Builder client,
+            String methodName,
+            TypeName resultType,
+            CacheSettings settings) {
+        String name = methodName + "Cache";
+        TypeName cacheType = ParameterizedTypeName.get(TypeNames.SERVICE_RESPONSE_CACHE, resultType);
+
+        client.addField(FieldSpec.builder(cacheType, name, Modifier.PRIVATE, Modifier.FINAL)
+                .initializer("new $T<>($L, $LL, $T.MILLISECONDS)",
+                        TypeNames.SERVICE_RESPONSE_CACHE,
+                        settings.maxEntries,
+                        settings.ttlMillis,
+                        TypeNames.TIME_UNIT)
+                .build());
+
+        client.addMethod(MethodSpec.methodBuilder(name)
+                .addJavadoc("Gets the cache of results of {@link #$L}.\n", methodName)
+                .addModifiers(Modifier.PUBLIC)
+                .returns(cacheType)
+                .addStatement("return $N", name)
+                .build());
+
+        return name;
+    }
+
+    private static final class CacheSettings {
+        final long ttlMillis;
+        final int maxEntries;
+
+        CacheSettings(long ttlMillis, int maxEntries) {
+            this.ttlMillis = ttlMillis;
+            this.maxEntries = maxEntries;
+        }
+    }
+
+    private MethodSpec buildDuplicateMethod(ServiceMethod method, String callClassName, TypeName returnType) {
+        CodeBlock.Builder body = CodeBlock.builder()
+                .add("$[return new $L(", callClassName);
+
+        for (Field field : method.paramTypes()) {
+            body.add("this.$N, ", field.name());
+        }
+
+        body.add("this.callback);\n$]");
+
+        return MethodSpec.methodBuilder("duplicate")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PROTECTED)
+                .returns(returnType)
+                .addCode(body.build())
+                .build();
+    }
+
     private MethodSpec buildCallCtor(ServiceMethod method, TypeName callbackTypeName) {
         NameAllocator allocator = new NameAllocator();
         AtomicInteger scope = new AtomicInteger(0);
@@ -286,6 +586,55 @@ final class ServiceBuilder {
         return send.build();
     }
 
+    private MethodSpec buildSizeOfMethod(ServiceMethod method) {
+        MethodSpec.Builder sizeOf = MethodSpec.methodBuilder("sizeOf")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PROTECTED)
+                .returns(int.class)
+                .addParameter(TypeNames.PROTOCOL, "protocol");
+
+        // Mirrors the send method, call for call.
+        sizeOf.addStatement("int size = protocol.sizeOfStructBegin($S)", "args");
+
+        // As with structs, end the args struct even if sizing a field fails.
+        sizeOf.beginControlFlow("try");
+
+        for (Field field : method.paramTypes()) {
+            boolean optional = !field.required();
+            final ThriftType tt = field.type().getTrueType();
+            byte typeCode = typeResolver.getTypeCode(tt);
+
+            // Enums are written/read as i32
+            if (typeCode == TType.ENUM) {
+                typeCode = TType.I32;
+            }
+
+            if (optional) {
+                sizeOf.beginControlFlow("if (this.$L != null)", field.name());
+            }
+
+            sizeOf.addStatement("size += protocol.sizeOfFieldBegin($S, $L, $T.$L)",
+                    field.thriftName(),
+                    field.id(),
+                    TypeNames.TTYPE,
+                    TypeNames.getTypeCodeName(typeCode));
+
+            tt.accept(new GenerateSizeVisitor(typeResolver, sizeOf, "protocol", "this", field));
+
+            if (optional) {
+                sizeOf.endControlFlow();
+            }
+        }
+
+        sizeOf.addStatement("size += protocol.sizeOfFieldStop()");
+        sizeOf.nextControlFlow("finally");
+        sizeOf.addStatement("size += protocol.sizeOfStructEnd()");
+        sizeOf.endControlFlow();
+        sizeOf.addStatement("return size");
+
+        return sizeOf.build();
+    }
+
     private MethodSpec buildReceiveMethod(ServiceMethod method, boolean hasReturnType) {
         final MethodSpec.Builder recv = MethodSpec.methodBuilder("receive")
                 .addAnnotation(Override.class)
@@ -309,11 +658,12 @@ final class ServiceBuilder {
 
         recv.addStatement("protocol.readStructBegin()")
                 .beginControlFlow("while (true)")
-                .addStatement("$T field = protocol.readFieldBegin()", TypeNames.FIELD_METADATA)
-                .beginControlFlow("if (field.typeId == $T.STOP)", TypeNames.TTYPE)
+                .addStatement("int field = protocol.readFieldHeader()")
+                .addStatement("byte fieldType = $T.fieldType(field)", TypeNames.HEADERS)
+                .beginControlFlow("if (fieldType == $T.STOP)", TypeNames.TTYPE)
                 .addStatement("break")
                 .endControlFlow()
-                .beginControlFlow("switch (field.fieldId)");
+                .beginControlFlow("switch ($T.fieldId(field))", TypeNames.HEADERS);
 
         if (hasReturnType) {
             ThriftType type = method.returnType().get().getTrueType();
@@ -344,7 +694,7 @@ final class ServiceBuilder {
             recv.addStatement("break");
         }
 
-        recv.addStatement("default: $T.skip(protocol, field.typeId); break", TypeNames.PROTO_UTIL);
+        recv.addStatement("default: $T.skip(protocol, fieldType); break", TypeNames.PROTO_UTIL);
         recv.endControlFlow(); // end switch
         recv.addStatement("protocol.readFieldEnd()");
         recv.endControlFlow(); // end while
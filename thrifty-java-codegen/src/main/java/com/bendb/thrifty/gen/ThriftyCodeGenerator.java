@@ -74,6 +74,9 @@ public final class ThriftyCodeGenerator {
     private final ServiceBuilder serviceBuilder;
     private TypeProcessor typeProcessor;
     private boolean emitAndroidAnnotations;
+    private boolean usePrimitiveCollections;
+    private boolean usePrimitiveFields;
+    private boolean emitSyncClients;
 
     public ThriftyCodeGenerator(Schema schema) {
         this(
@@ -123,6 +126,39 @@ public final class ThriftyCodeGenerator {
         return this;
     }
 
+    /**
+     * When enabled, fields of type {@code list<i32>}, {@code list<i64>},
+     * {@code list<double>}, {@code set<i32>} and {@code set<i64>} are
+     * generated as {@link com.bendb.thrifty.util.IntList} and friends instead
+     * of boxed collections.  Individual fields can opt in or out with the
+     * {@code (primitive)} and {@code (primitive = "false")} annotations.
+     */
+    public ThriftyCodeGenerator usePrimitiveCollections(boolean usePrimitiveCollections) {
+        this.usePrimitiveCollections = usePrimitiveCollections;
+        return this;
+    }
+
+    /**
+     * When enabled, scalar fields (bool, byte, i16, i32, i64 and double) are
+     * generated as unboxed primitives.  Whether each such field is set is
+     * tracked in a packed bitset, and exposed via {@code isSetFoo()}
+     * accessors.
+     */
+    public ThriftyCodeGenerator usePrimitiveFields(boolean usePrimitiveFields) {
+        this.usePrimitiveFields = usePrimitiveFields;
+        return this;
+    }
+
+    /**
+     * When enabled, a synchronous client is generated alongside each
+     * asynchronous client, executing calls on the calling thread over
+     * connections from a {@link com.bendb.thrifty.service.ProtocolPool}.
+     */
+    public ThriftyCodeGenerator emitSyncClients(boolean emitSyncClients) {
+        this.emitSyncClients = emitSyncClients;
+        return this;
+    }
+
     public ThriftyCodeGenerator usingTypeProcessor(TypeProcessor typeProcessor) {
         this.typeProcessor = typeProcessor;
         return this;
@@ -197,9 +233,16 @@ public final class ThriftyCodeGenerator {
             JavaFile file = assembleJavaFile(service, spec);
             writer.write(file);
 
-            spec = serviceBuilder.buildService(service, spec);
+            TypeSpec serviceInterface = spec;
+            spec = serviceBuilder.buildService(service, serviceInterface, emitSyncClients);
             file = assembleJavaFile(service, spec);
             writer.write(file);
+
+            if (emitSyncClients) {
+                spec = serviceBuilder.buildSyncService(service, serviceInterface);
+                file = assembleJavaFile(service, spec);
+                writer.write(file);
+            }
         }
     }
 
@@ -254,8 +297,10 @@ public final class ThriftyCodeGenerator {
             structBuilder.superclass(Exception.class);
         }
 
-        TypeSpec builderSpec = builderFor(type, structTypeName, builderTypeName);
-        TypeSpec adapterSpec = adapterFor(type, structTypeName, builderTypeName);
+        PresenceBits presence = new PresenceBits(type, usePrimitiveFields);
+
+        TypeSpec builderSpec = builderFor(type, structTypeName, builderTypeName, presence);
+        TypeSpec adapterSpec = adapterFor(type, structTypeName, builderTypeName, presence);
 
         structBuilder.addType(builderSpec);
         structBuilder.addType(adapterSpec);
@@ -272,14 +317,17 @@ public final class ThriftyCodeGenerator {
             String name = field.name();
             ThriftType fieldType = field.type();
             ThriftType trueType = fieldType.getTrueType();
-            TypeName fieldTypeName = typeResolver.getJavaClass(trueType);
+            ClassName primitiveType = primitiveCollectionType(field);
+            TypeName fieldTypeName = primitiveType != null
+                    ? primitiveType
+                    : presence.typeOf(field, typeResolver.getJavaClass(trueType));
 
             // Define field
             FieldSpec.Builder fieldBuilder = FieldSpec.builder(fieldTypeName, name)
                     .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
                     .addAnnotation(fieldAnnotation(field));
 
-            if (emitAndroidAnnotations) {
+            if (emitAndroidAnnotations && !presence.isPrimitive(field)) {
                 ClassName anno = field.required() ? TypeNames.NOT_NULL : TypeNames.NULLABLE;
                 fieldBuilder.addAnnotation(anno);
             }
@@ -290,11 +338,22 @@ public final class ThriftyCodeGenerator {
 
             structBuilder.addField(fieldBuilder.build());
 
+            if (presence.isPrimitive(field)) {
+                structBuilder.addMethod(MethodSpec.methodBuilder(presence.accessorName(field))
+                        .addModifiers(Modifier.PUBLIC)
+                        .returns(boolean.class)
+                        .addStatement("return $L", presence.isSet("this", field))
+                        .build());
+            }
+
             // Update the struct ctor
 
             CodeBlock.Builder assignment = CodeBlock.builder().add("$[this.$N = ", name);
 
-            if (trueType.isList()) {
+            if (primitiveType != null) {
+                // Primitive collections are already immutable
+                assignment.add("builder.$N", name);
+            } else if (trueType.isList()) {
                 if (!field.required()) {
                     assignment.add("builder.$N == null ? null : ", name);
                 }
@@ -319,10 +378,15 @@ public final class ThriftyCodeGenerator {
             ctor.addCode(assignment.add(";\n$]").build());
         }
 
+        for (int i = 0; i < presence.wordCount(); ++i) {
+            structBuilder.addField(int.class, presence.word(i), Modifier.PRIVATE, Modifier.FINAL);
+            ctor.addStatement("this.$1N = builder.$1N", presence.word(i));
+        }
+
         structBuilder.addMethod(ctor.build());
-        structBuilder.addMethod(buildEqualsFor(type));
-        structBuilder.addMethod(buildHashCodeFor(type));
-        structBuilder.addMethod(buildToStringFor(type));
+        structBuilder.addMethod(buildEqualsFor(type, presence));
+        structBuilder.addMethod(buildHashCodeFor(type, presence));
+        structBuilder.addMethod(buildToStringFor(type, presence));
 
         return structBuilder.build();
     }
@@ -330,7 +394,8 @@ public final class ThriftyCodeGenerator {
     private TypeSpec builderFor(
             StructType structType,
             ClassName structClassName,
-            ClassName builderClassName) {
+            ClassName builderClassName,
+            PresenceBits presence) {
         TypeName builderSuperclassName = ParameterizedTypeName.get(TypeNames.BUILDER, structClassName);
         TypeSpec.Builder builder = TypeSpec.classBuilder("Builder")
                 .addSuperinterface(builderSuperclassName)
@@ -356,6 +421,10 @@ public final class ThriftyCodeGenerator {
             buildMethodBuilder.addStatement("int setFields = 0");
         }
 
+        for (int i = 0; i < presence.wordCount(); ++i) {
+            resetBuilder.addStatement("this.$N = 0", presence.word(i));
+        }
+
         // Add fields to the struct and set them in the ctor
         NameAllocator allocator = new NameAllocator();
         for (Field field : structType.fields()) {
@@ -365,7 +434,11 @@ public final class ThriftyCodeGenerator {
         AtomicInteger tempNameId = new AtomicInteger(0); // used for generating unique names of temporary values
         for (Field field : structType.fields()) {
             ThriftType fieldType = field.type().getTrueType();
-            TypeName javaTypeName = typeResolver.getJavaClass(fieldType);
+            ClassName primitiveType = primitiveCollectionType(field);
+            TypeName javaTypeName = primitiveType != null
+                    ? primitiveType
+                    : presence.typeOf(field, typeResolver.getJavaClass(fieldType));
+            boolean isPrimitive = presence.isPrimitive(field);
             String fieldName = field.name();
             FieldSpec.Builder f = FieldSpec.builder(javaTypeName, fieldName, Modifier.PRIVATE);
 
@@ -383,9 +456,14 @@ public final class ThriftyCodeGenerator {
                         fieldType.getTrueType(),
                         field.defaultValue(),
                         false);
+                if (isPrimitive) {
+                    initializer.addStatement("$L", presence.set("this", field));
+                }
                 defaultCtor.addCode(initializer.build());
 
                 resetBuilder.addCode(initializer.build());
+            } else if (isPrimitive) {
+                resetBuilder.addStatement("this.$N = $L", fieldName, presence.zeroValue(field));
             } else {
                 resetBuilder.addStatement("this.$N = null", fieldName);
             }
@@ -397,7 +475,7 @@ public final class ThriftyCodeGenerator {
                     .returns(builderClassName)
                     .addParameter(javaTypeName, fieldName);
 
-            if (field.required()) {
+            if (field.required() && !isPrimitive) {
                 setterBuilder.beginControlFlow("if ($N == null)", fieldName);
                 setterBuilder.addStatement(
                         "throw new $T(\"Required field '$L' cannot be null\")",
@@ -406,18 +484,27 @@ public final class ThriftyCodeGenerator {
                 setterBuilder.endControlFlow();
             }
 
-            setterBuilder
-                    .addStatement("this.$N = $N", fieldName, fieldName)
-                    .addStatement("return this");
+            setterBuilder.addStatement("this.$N = $N", fieldName, fieldName);
+            if (isPrimitive) {
+                setterBuilder.addStatement("$L", presence.set("this", field));
+            }
+            setterBuilder.addStatement("return this");
 
             builder.addMethod(setterBuilder.build());
 
             if (structType.isUnion()) {
-                buildMethodBuilder
-                        .addStatement("if (this.$N != null) ++setFields", fieldName);
+                if (isPrimitive) {
+                    buildMethodBuilder.addStatement("if ($L) ++setFields", presence.isSet("this", field));
+                } else {
+                    buildMethodBuilder.addStatement("if (this.$N != null) ++setFields", fieldName);
+                }
             } else {
                 if (field.required()) {
-                    buildMethodBuilder.beginControlFlow("if (this.$N == null)", fieldName);
+                    if (isPrimitive) {
+                        buildMethodBuilder.beginControlFlow("if ($L)", presence.isUnset("this", field));
+                    } else {
+                        buildMethodBuilder.beginControlFlow("if (this.$N == null)", fieldName);
+                    }
                     buildMethodBuilder.addStatement(
                             "throw new $T($S)",
                             ClassName.get(IllegalStateException.class),
@@ -429,6 +516,11 @@ public final class ThriftyCodeGenerator {
             copyCtor.addStatement("this.$N = $N.$N", fieldName, "struct", fieldName);
         }
 
+        for (int i = 0; i < presence.wordCount(); ++i) {
+            builder.addField(int.class, presence.word(i), Modifier.PRIVATE);
+            copyCtor.addStatement("this.$1N = struct.$1N", presence.word(i));
+        }
+
         if (structType.isUnion()) {
             buildMethodBuilder
                     .beginControlFlow("if (setFields != 1)")
@@ -449,9 +541,13 @@ public final class ThriftyCodeGenerator {
         return builder.build();
     }
 
-    private TypeSpec adapterFor(StructType structType, ClassName structClassName, ClassName builderClassName) {
+    private TypeSpec adapterFor(
+            StructType structType,
+            ClassName structClassName,
+            ClassName builderClassName,
+            PresenceBits presence) {
         TypeName adapterSuperclass = ParameterizedTypeName.get(
-                TypeNames.ADAPTER,
+                TypeNames.SIZED_ADAPTER,
                 structClassName,
                 builderClassName);
 
@@ -479,19 +575,34 @@ public final class ThriftyCodeGenerator {
                 .addStatement("return read(protocol, new $T())", builderClassName)
                 .build();
 
+        final MethodSpec.Builder sizeOf = MethodSpec.methodBuilder("sizeOf")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .returns(int.class)
+                .addParameter(TypeNames.PROTOCOL, "protocol")
+                .addParameter(structClassName, "struct");
+
         // First, the writer
         write.addStatement("protocol.writeStructBegin($S)", structType.name());
 
+        // The size computation mirrors the writer, call for call.
+        sizeOf.addStatement("int size = protocol.sizeOfStructBegin($S)", structType.name());
+
+        // Protocols track nested structs while sizing, so the struct must be
+        // ended even if measuring one of its fields fails.
+        sizeOf.beginControlFlow("try");
+
         // Then, the reader - set up the field-reading loop.
         read.addStatement("protocol.readStructBegin()");
         read.beginControlFlow("while (true)");
-        read.addStatement("$T field = protocol.readFieldBegin()", TypeNames.FIELD_METADATA);
-        read.beginControlFlow("if (field.typeId == $T.STOP)", TypeNames.TTYPE);
+        read.addStatement("int field = protocol.readFieldHeader()");
+        read.addStatement("byte fieldType = $T.fieldType(field)", TypeNames.HEADERS);
+        read.beginControlFlow("if (fieldType == $T.STOP)", TypeNames.TTYPE);
         read.addStatement("break");
         read.endControlFlow();
 
         if (structType.fields().size() > 0) {
-            read.beginControlFlow("switch (field.fieldId)");
+            read.beginControlFlow("switch ($T.fieldId(field))", TypeNames.HEADERS);
         }
 
         for (Field field : structType.fields()) {
@@ -508,7 +619,11 @@ public final class ThriftyCodeGenerator {
 
             // Write
             if (optional) {
-                write.beginControlFlow("if (struct.$N != null)", field.name());
+                CodeBlock isPresent = presence.isPrimitive(field)
+                        ? CodeBlock.builder().add("struct.$N()", presence.accessorName(field)).build()
+                        : CodeBlock.builder().add("struct.$N != null", field.name()).build();
+                write.beginControlFlow("if ($L)", isPresent);
+                sizeOf.beginControlFlow("if ($L)", isPresent);
             }
 
             write.addStatement(
@@ -517,18 +632,46 @@ public final class ThriftyCodeGenerator {
                     field.id(),
                     TypeNames.TTYPE,
                     typeCodeName);
+            sizeOf.addStatement(
+                    "size += protocol.sizeOfFieldBegin($S, $L, $T.$L)",
+                    field.thriftName(),
+                    field.id(),
+                    TypeNames.TTYPE,
+                    typeCodeName);
 
-            tt.accept(new GenerateWriterVisitor(typeResolver, write, "protocol", "struct", field));
+            ClassName primitiveType = primitiveCollectionType(field);
+            if (primitiveType != null) {
+                ThriftType elementType = tt.isList()
+                        ? ((ThriftType.ListType) tt).elementType().getTrueType()
+                        : ((ThriftType.SetType) tt).elementType().getTrueType();
+                String elementTypeName = TypeNames.getTypeCodeName(typeResolver.getTypeCode(elementType));
+                String kind = tt.isList() ? "List" : "Set";
+
+                write.addStatement("protocol.write$LBegin($T.$L, struct.$N.size())",
+                        kind, TypeNames.TTYPE, elementTypeName, field.name());
+                write.addStatement("struct.$N.write(protocol)", field.name());
+                write.addStatement("protocol.write$LEnd()", kind);
+
+                sizeOf.addStatement("size += protocol.sizeOf$LBegin($T.$L, struct.$N.size())",
+                        kind, TypeNames.TTYPE, elementTypeName, field.name());
+                sizeOf.addStatement("size += struct.$N.sizeOf(protocol)", field.name());
+            } else {
+                tt.accept(new GenerateWriterVisitor(typeResolver, write, "protocol", "struct", field));
+                tt.accept(new GenerateSizeVisitor(typeResolver, sizeOf, "protocol", "struct", field));
+            }
 
             write.addStatement("protocol.writeFieldEnd()");
 
             if (optional) {
                 write.endControlFlow();
+                sizeOf.endControlFlow();
             }
 
             // Read
             read.beginControlFlow("case $L:", field.id());
-            new GenerateReaderVisitor(typeResolver, read, field).generate();
+            new GenerateReaderVisitor(typeResolver, read, field)
+                    .usePrimitiveCollection(primitiveType)
+                    .generate();
             read.endControlFlow(); // end case block
             read.addStatement("break");
         }
@@ -536,9 +679,15 @@ public final class ThriftyCodeGenerator {
         write.addStatement("protocol.writeFieldStop()");
         write.addStatement("protocol.writeStructEnd()");
 
+        sizeOf.addStatement("size += protocol.sizeOfFieldStop()");
+        sizeOf.nextControlFlow("finally");
+        sizeOf.addStatement("size += protocol.sizeOfStructEnd()");
+        sizeOf.endControlFlow();
+        sizeOf.addStatement("return size");
+
         if (structType.fields().size() > 0) {
             read.beginControlFlow("default:");
-            read.addStatement("$T.skip(protocol, field.typeId)", TypeNames.PROTO_UTIL);
+            read.addStatement("$T.skip(protocol, fieldType)", TypeNames.PROTO_UTIL);
             read.endControlFlow(); // end default
             read.addStatement("break");
             read.endControlFlow(); // end switch
@@ -555,10 +704,51 @@ public final class ThriftyCodeGenerator {
                 .addMethod(write.build())
                 .addMethod(read.build())
                 .addMethod(readHelper)
+                .addMethod(sizeOf.build())
                 .build();
     }
 
-    private MethodSpec buildEqualsFor(StructType struct) {
+    /**
+     * Gets the primitive collection type to use for the given field, or
+     * {@code null} if the field should use an ordinary boxed collection.
+     *
+     * <p>Only lists of i32, i64 and double and sets of i32 and i64 have
+     * primitive representations.  Fields with default values keep their
+     * boxed types, as constant initializers are generated for those.
+     */
+    @Nullable
+    private ClassName primitiveCollectionType(Field field) {
+        boolean enabled = usePrimitiveCollections;
+        if (field.annotations().containsKey("primitive")) {
+            enabled = !"false".equalsIgnoreCase(field.annotations().get("primitive"));
+        }
+
+        if (!enabled || field.defaultValue() != null) {
+            return null;
+        }
+
+        ThriftType type = field.type().getTrueType();
+        if (type.isList()) {
+            ThriftType elementType = ((ThriftType.ListType) type).elementType().getTrueType();
+            if (elementType.equals(ThriftType.I32)) {
+                return TypeNames.INT_LIST;
+            } else if (elementType.equals(ThriftType.I64)) {
+                return TypeNames.LONG_LIST;
+            } else if (elementType.equals(ThriftType.DOUBLE)) {
+                return TypeNames.DOUBLE_LIST;
+            }
+        } else if (type.isSet()) {
+            ThriftType elementType = ((ThriftType.SetType) type).elementType().getTrueType();
+            if (elementType.equals(ThriftType.I32)) {
+                return TypeNames.INT_SET;
+            } else if (elementType.equals(ThriftType.I64)) {
+                return TypeNames.LONG_SET;
+            }
+        }
+        return null;
+    }
+
+    private MethodSpec buildEqualsFor(StructType struct, PresenceBits presence) {
         MethodSpec.Builder equals = MethodSpec.methodBuilder("equals")
                 .addAnnotation(Override.class)
                 .addModifiers(Modifier.PUBLIC)
@@ -574,6 +764,14 @@ public final class ThriftyCodeGenerator {
         }
 
         boolean isFirst = true;
+        for (int i = 0; i < presence.wordCount(); ++i) {
+            // Unset primitive fields are always zero, so comparing presence
+            // words up front lets the values be compared directly below.
+            equals.addCode(isFirst ? "$[return " : "\n&& ");
+            equals.addCode("this.$1N == that.$1N", presence.word(i));
+            isFirst = false;
+        }
+
         for (Field field : struct.fields()) {
             if (isFirst) {
                 equals.addCode("$[return ");
@@ -582,7 +780,14 @@ public final class ThriftyCodeGenerator {
                 equals.addCode("\n&& ");
             }
 
-            if (field.required()) {
+            if (presence.isPrimitive(field)) {
+                if (field.type().getTrueType().equals(ThriftType.DOUBLE)) {
+                    equals.addCode("$1T.doubleToLongBits(this.$2N) == $1T.doubleToLongBits(that.$2N)",
+                            TypeNames.DOUBLE, field.name());
+                } else {
+                    equals.addCode("this.$1N == that.$1N", field.name());
+                }
+            } else if (field.required()) {
                 equals.addCode("(this.$1N == that.$1N || this.$1N.equals(that.$1N))", field.name());
             } else {
                 equals.addCode("(this.$1N == that.$1N || (this.$1N != null && this.$1N.equals(that.$1N)))",
@@ -599,7 +804,7 @@ public final class ThriftyCodeGenerator {
         return equals.build();
     }
 
-    private MethodSpec buildHashCodeFor(StructType struct) {
+    private MethodSpec buildHashCodeFor(StructType struct, PresenceBits presence) {
         MethodSpec.Builder hashCode = MethodSpec.methodBuilder("hashCode")
                 .addAnnotation(Override.class)
                 .addModifiers(Modifier.PUBLIC)
@@ -607,7 +812,14 @@ public final class ThriftyCodeGenerator {
                 .addStatement("int code = 16777619");
 
         for (Field field : struct.fields()) {
-            if (field.required()) {
+            if (presence.isPrimitive(field)) {
+                CodeBlock hash = primitiveHashCode(field);
+                if (field.required()) {
+                    hashCode.addStatement("code ^= $L", hash);
+                } else {
+                    hashCode.addStatement("code ^= ($L) ? $L : 0", presence.isSet("this", field), hash);
+                }
+            } else if (field.required()) {
                 hashCode.addStatement("code ^= this.$N.hashCode()", field.name());
             } else {
                 hashCode.addStatement("code ^= (this.$1N == null) ? 0 : this.$1N.hashCode()", field.name());
@@ -619,10 +831,32 @@ public final class ThriftyCodeGenerator {
         return hashCode.build();
     }
 
+    /**
+     * Renders the hash code of an unboxed field, matching that of the
+     * corresponding boxed value without relying on the static
+     * {@code hashCode} methods added in Java 8.
+     */
+    private static CodeBlock primitiveHashCode(Field field) {
+        ThriftType type = field.type().getTrueType();
+        String name = field.name();
+        if (type.equals(ThriftType.BOOL)) {
+            return CodeBlock.builder().add("(this.$N ? 1231 : 1237)", name).build();
+        } else if (type.equals(ThriftType.I64)) {
+            return CodeBlock.builder().add("(int) (this.$1N ^ (this.$1N >>> 32))", name).build();
+        } else if (type.equals(ThriftType.DOUBLE)) {
+            return CodeBlock.builder()
+                    .add("(int) ($1T.doubleToLongBits(this.$2N) ^ ($1T.doubleToLongBits(this.$2N) >>> 32))",
+                            TypeNames.DOUBLE, name)
+                    .build();
+        } else {
+            return CodeBlock.builder().add("this.$N", name).build();
+        }
+    }
+
     private static final Pattern REDACTED_PATTERN = Pattern.compile(
             "\\W@redacted\\W", Pattern.CASE_INSENSITIVE);
 
-    private MethodSpec buildToStringFor(StructType struct) {
+    private MethodSpec buildToStringFor(StructType struct, PresenceBits presence) {
         MethodSpec.Builder toString = MethodSpec.methodBuilder("toString")
                 .addAnnotation(Override.class)
                 .addModifiers(Modifier.PUBLIC)
@@ -644,6 +878,9 @@ public final class ThriftyCodeGenerator {
                     toString.addStatement("sb.append(\"<REDACTED>\")");
                 } else if (field.required()) {
                     toString.addStatement("sb.append(this.$N)", field.name());
+                } else if (presence.isPrimitive(field)) {
+                    toString.addStatement("sb.append($L ? $T.valueOf(this.$N) : \"null\")",
+                            presence.isSet("this", field), TypeNames.STRING, field.name());
                 } else {
                     toString.addStatement("sb.append(this.$1N == null ? \"null\" : this.$1N)", field.name());
                 }
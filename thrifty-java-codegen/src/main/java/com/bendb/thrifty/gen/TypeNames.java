@@ -15,20 +15,26 @@
  */
 package com.bendb.thrifty.gen;
 
-import com.bendb.thrifty.Adapter;
+import com.bendb.thrifty.SizedAdapter;
 import com.bendb.thrifty.StructBuilder;
 import com.bendb.thrifty.TType;
 import com.bendb.thrifty.ThriftException;
-import com.bendb.thrifty.protocol.FieldMetadata;
-import com.bendb.thrifty.protocol.ListMetadata;
-import com.bendb.thrifty.protocol.MapMetadata;
+import com.bendb.thrifty.protocol.Headers;
 import com.bendb.thrifty.protocol.MessageMetadata;
 import com.bendb.thrifty.protocol.Protocol;
-import com.bendb.thrifty.protocol.SetMetadata;
 import com.bendb.thrifty.service.ClientBase;
+import com.bendb.thrifty.service.ClientConfig;
 import com.bendb.thrifty.service.MethodCall;
+import com.bendb.thrifty.service.ProtocolPool;
+import com.bendb.thrifty.service.ResponseCache;
 import com.bendb.thrifty.service.ServiceMethodCallback;
+import com.bendb.thrifty.service.SyncClientBase;
 import com.bendb.thrifty.service.TMessageType;
+import com.bendb.thrifty.util.DoubleList;
+import com.bendb.thrifty.util.IntList;
+import com.bendb.thrifty.util.IntSet;
+import com.bendb.thrifty.util.LongList;
+import com.bendb.thrifty.util.LongSet;
 import com.bendb.thrifty.util.ProtocolUtil;
 import com.google.common.collect.ImmutableMap;
 import com.squareup.javapoet.ClassName;
@@ -36,12 +42,14 @@ import com.squareup.javapoet.TypeName;
 import okio.ByteString;
 
 import java.io.IOException;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.net.ProtocolException;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * JavaPoet type names used for code generation.
@@ -63,16 +71,23 @@ final class TypeNames {
     static final ClassName SET = ClassName.get(Set.class);
     static final ClassName BYTE_STRING = ClassName.get(ByteString.class);
     static final ClassName STRING_BUILDER = ClassName.get(StringBuilder.class);
+    static final ClassName TIME_UNIT = ClassName.get(TimeUnit.class);
 
-    static final ClassName LIST_META = ClassName.get(ListMetadata.class);
-    static final ClassName SET_META = ClassName.get(SetMetadata.class);
-    static final ClassName MAP_META = ClassName.get(MapMetadata.class);
+    static final ClassName HEADERS = ClassName.get(Headers.class);
+
+    static final ClassName INT_LIST = ClassName.get(IntList.class);
+    static final ClassName LONG_LIST = ClassName.get(LongList.class);
+    static final ClassName DOUBLE_LIST = ClassName.get(DoubleList.class);
+    static final ClassName INT_SET = ClassName.get(IntSet.class);
+    static final ClassName LONG_SET = ClassName.get(LongSet.class);
 
     static final ClassName PROTOCOL = ClassName.get(Protocol.class);
     static final ClassName PROTO_UTIL = ClassName.get(ProtocolUtil.class);
     static final ClassName PROTOCOL_EXCEPTION = ClassName.get(ProtocolException.class);
     static final ClassName IO_EXCEPTION = ClassName.get(IOException.class);
     static final ClassName EXCEPTION = ClassName.get(Exception.class);
+    static final ClassName RUNTIME_EXCEPTION = ClassName.get(RuntimeException.class);
+    static final ClassName UNDECLARED_THROWABLE_EXCEPTION = ClassName.get(UndeclaredThrowableException.class);
     static final ClassName TTYPE = ClassName.get(TType.class);
     static final ClassName TMESSAGE_TYPE = ClassName.get(TMessageType.class);
 
@@ -80,9 +95,8 @@ final class TypeNames {
     static final ClassName THRIFT_EXCEPTION_KIND = ClassName.get(ThriftException.Kind.class);
 
     static final ClassName BUILDER = ClassName.get(StructBuilder.class);
-    static final ClassName ADAPTER = ClassName.get(Adapter.class);
+    static final ClassName SIZED_ADAPTER = ClassName.get(SizedAdapter.class);
 
-    static final ClassName FIELD_METADATA = ClassName.get(FieldMetadata.class);
     static final ClassName MESSAGE_METADATA = ClassName.get(MessageMetadata.class);
 
     static final ClassName NOT_NULL = ClassName.get("android.support.annotation", "NonNull");
@@ -90,8 +104,12 @@ final class TypeNames {
 
     static final ClassName SERVICE_CALLBACK = ClassName.get(ServiceMethodCallback.class);
     static final ClassName SERVICE_CLIENT_BASE = ClassName.get(ClientBase.class);
+    static final ClassName SERVICE_CLIENT_CONFIG = ClassName.get(ClientConfig.class);
     static final ClassName SERVICE_CLIENT_LISTENER = ClassName.get(ClientBase.Listener.class);
     static final ClassName SERVICE_METHOD_CALL = ClassName.get(MethodCall.class);
+    static final ClassName SERVICE_PROTOCOL_POOL = ClassName.get(ProtocolPool.class);
+    static final ClassName SERVICE_RESPONSE_CACHE = ClassName.get(ResponseCache.class);
+    static final ClassName SERVICE_SYNC_CLIENT_BASE = ClassName.get(SyncClientBase.class);
 
     /**
      * A mapping of {@link TType} constant values to their Java names.
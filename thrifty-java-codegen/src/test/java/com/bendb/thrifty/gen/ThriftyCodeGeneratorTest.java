@@ -42,15 +42,17 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Collections;
 
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.mock;
 
-@Ignore("Used to manually inspect code generation")
 public class ThriftyCodeGeneratorTest {
     @Rule public TemporaryFolder tmp = new TemporaryFolder();
 
     @Test
+    @Ignore("Used to manually inspect code generation")
     public void enumGeneration() {
         Location location = Location.get("", "");
         EnumElement ee = EnumElement.builder(location)
@@ -82,6 +84,7 @@ public class ThriftyCodeGeneratorTest {
     }
 
     @Test
+    @Ignore("Used to manually inspect code generation")
     public void structGeneration() throws Exception {
         String thrift = "" +
                 "namespace java com.test.struct\n" +
@@ -112,6 +115,7 @@ public class ThriftyCodeGeneratorTest {
     }
 
     @Test
+    @Ignore("Used to manually inspect code generation")
     public void fieldInitializers() throws Exception {
         String thrift = "namespace java com.bendb.thrifty\n" +
                 "\n" +
@@ -143,6 +147,325 @@ public class ThriftyCodeGeneratorTest {
         assertThat(code, is("foo"));
     }
 
+    @Test
+    public void primitiveCollectionsFlag() throws Exception {
+        String code = generate(new ThriftyCodeGenerator(load("" +
+                "namespace java com.test.primitive\n" +
+                "\n" +
+                "struct Numbers {\n" +
+                "  1: list<i32> ints,\n" +
+                "  2: list<i64> longs,\n" +
+                "  3: list<double> doubles,\n" +
+                "  4: set<i32> int_set,\n" +
+                "  5: set<i64> long_set,\n" +
+                "  6: list<i32> boxed (primitive = \"false\"),\n" +
+                "  7: list<i32> defaulted = [1, 2],\n" +
+                "  8: set<double> doubles_set,\n" +
+                "  9: list<string> names\n" +
+                "}"))
+                .usePrimitiveCollections(true));
+
+        assertThat(code, containsString("public final IntList ints;"));
+        assertThat(code, containsString("public final LongList longs;"));
+        assertThat(code, containsString("public final DoubleList doubles;"));
+        assertThat(code, containsString("public final IntSet int_set;"));
+        assertThat(code, containsString("public final LongSet long_set;"));
+
+        // Opted out, defaulted, and unsupported element types stay boxed
+        assertThat(code, containsString("public final List<Integer> boxed;"));
+        assertThat(code, containsString("public final List<Integer> defaulted;"));
+        assertThat(code, containsString("public final Set<Double> doubles_set;"));
+        assertThat(code, containsString("public final List<String> names;"));
+
+        // Elements are read and written in bulk, not one boxed item at a time
+        assertThat(code, containsString("IntList value = IntList.read(protocol, listSize0);"));
+        assertThat(code, containsString("LongSet value = LongSet.read(protocol, setSize0);"));
+        assertThat(code, containsString("struct.ints.write(protocol);"));
+        assertThat(code, not(containsString("for (Integer item0 : struct.ints)")));
+    }
+
+    @Test
+    public void primitiveAnnotationWithoutFlag() throws Exception {
+        String code = generate(new ThriftyCodeGenerator(load("" +
+                "namespace java com.test.primitive\n" +
+                "\n" +
+                "struct Annotated {\n" +
+                "  1: list<i32> ints (primitive),\n" +
+                "  2: set<i64> longs (primitive = \"true\"),\n" +
+                "  3: list<i32> boxed\n" +
+                "}")));
+
+        assertThat(code, containsString("public final IntList ints;"));
+        assertThat(code, containsString("public final LongSet longs;"));
+        assertThat(code, containsString("public final List<Integer> boxed;"));
+    }
+
+    @Test
+    public void primitiveFieldsTrackPresenceInBits() throws Exception {
+        String code = generate(new ThriftyCodeGenerator(load("" +
+                "namespace java com.test.primitive\n" +
+                "\n" +
+                "struct Scalars {\n" +
+                "  1: bool flag,\n" +
+                "  2: i32 count,\n" +
+                "  3: required i64 id,\n" +
+                "  4: double ratio = 0.5,\n" +
+                "  5: string name\n" +
+                "}"))
+                .usePrimitiveFields(true));
+
+        assertThat(code, containsString("public final boolean flag;"));
+        assertThat(code, containsString("public final int count;"));
+        assertThat(code, containsString("public final long id;"));
+        assertThat(code, containsString("public final double ratio;"));
+        assertThat(code, containsString("public final String name;"));
+        assertThat(code, containsString("private final int __isset0;"));
+
+        // One bit per scalar field, in field order
+        assertThat(code, containsString("public boolean isSetFlag() {\n    return (this.__isset0 & 0x1) != 0;"));
+        assertThat(code, containsString("public boolean isSetCount() {\n    return (this.__isset0 & 0x2) != 0;"));
+        assertThat(code, containsString("public boolean isSetRatio() {\n    return (this.__isset0 & 0x8) != 0;"));
+        assertThat(code, not(containsString("isSetName")));
+
+        // Setters and defaults set bits; required fields are checked by them
+        assertThat(code, containsString("this.count = count;\n      this.__isset0 |= 0x2;"));
+        assertThat(code, containsString("this.ratio = (double) 0.5;\n      this.__isset0 |= 0x8;"));
+        assertThat(code, containsString("if ((this.__isset0 & 0x4) == 0) {\n"
+                + "        throw new IllegalStateException(\"Required field 'id' is missing\");"));
+
+        // Only set fields are written
+        assertThat(code, containsString("if (struct.isSetCount()) {"));
+
+        // Equality covers presence, and unset fields do not affect hashes
+        assertThat(code, containsString("return this.__isset0 == that.__isset0\n"));
+        assertThat(code, containsString("&& Double.doubleToLongBits(this.ratio) == Double.doubleToLongBits(that.ratio)"));
+        assertThat(code, containsString("code ^= ((this.__isset0 & 0x2) != 0) ? this.count : 0;"));
+    }
+
+    @Test
+    public void primitiveFieldsSpillIntoFurtherWords() throws Exception {
+        StringBuilder thrift = new StringBuilder("namespace java com.test.primitive\n\nstruct Wide {\n");
+        for (int i = 1; i <= 33; ++i) {
+            thrift.append("  ").append(i).append(": i32 f").append(i).append(",\n");
+        }
+        thrift.append("}");
+
+        String code = generate(new ThriftyCodeGenerator(load(thrift.toString())).usePrimitiveFields(true));
+
+        assertThat(code, containsString("private final int __isset0;"));
+        assertThat(code, containsString("private final int __isset1;"));
+        assertThat(code, containsString("return (this.__isset0 & 0x80000000) != 0;"));
+        assertThat(code, containsString("public boolean isSetF33() {\n    return (this.__isset1 & 0x1) != 0;"));
+        assertThat(code, containsString("return this.__isset0 == that.__isset0\n        && this.__isset1 == that.__isset1"));
+    }
+
+    @Test
+    public void scalarFieldsStayBoxedWithoutFlag() throws Exception {
+        String code = generate(new ThriftyCodeGenerator(load("" +
+                "namespace java com.test.primitive\n" +
+                "\n" +
+                "struct Scalars {\n" +
+                "  1: i32 count\n" +
+                "}")));
+
+        assertThat(code, containsString("public final Integer count;"));
+        assertThat(code, not(containsString("__isset")));
+    }
+
+    @Test
+    public void adaptersComputeSizesWithBalancedStructs() throws Exception {
+        String code = generate(new ThriftyCodeGenerator(load("" +
+                "namespace java com.test.sized\n" +
+                "\n" +
+                "struct Inner {\n" +
+                "  1: string name\n" +
+                "}\n" +
+                "\n" +
+                "struct Outer {\n" +
+                "  1: Inner inner\n" +
+                "}")));
+
+        assertThat(code, containsString("public static final SizedAdapter<Outer, Builder> ADAPTER"));
+        assertThat(code, containsString("implements SizedAdapter<Outer, Builder>"));
+        assertThat(code, containsString("size += com.test.sized.Inner.ADAPTER.sizeOf(protocol, struct.inner);"));
+
+        // The struct is ended even if sizing one of its fields throws
+        assertThat(code, containsString("        size += protocol.sizeOfFieldStop();\n"
+                + "      } finally {\n"
+                + "        size += protocol.sizeOfStructEnd();\n"
+                + "      }\n"
+                + "      return size;"));
+    }
+
+    @Test
+    public void idempotentCallsCanBeDuplicated() throws Exception {
+        String code = generate(new ThriftyCodeGenerator(load(CATALOG)));
+
+        assertThat(code, containsString("private static final class GetCall extends MethodCall<String>"));
+        assertThat(code, containsString("protected MethodCall<String> duplicate() {\n"
+                + "      return new GetCall(this.id, this.callback);"));
+        assertThat(code, containsString("protected MethodCall<Integer> duplicate() {\n"
+                + "      return new CountCall(this.name, this.callback);"));
+
+        // Only get and count; touch is not annotated, and ping is oneway
+        assertThat(occurrences(code, "protected boolean isIdempotent() {\n      return true;"), is(2));
+        assertThat(occurrences(code, "duplicate()"), is(2));
+    }
+
+    @Test
+    public void cachedMethodsHaveCaches() throws Exception {
+        String code = generate(new ThriftyCodeGenerator(load(CATALOG)));
+
+        assertThat(code, containsString("private final ResponseCache<String> getCache = "
+                + "new ResponseCache<>(50, 30000L, TimeUnit.MILLISECONDS);"));
+        assertThat(code, containsString("public ResponseCache<String> getCache() {\n    return getCache;"));
+        assertThat(code, containsString("this.enqueue(new GetCall(id, callback), this.getCache);"));
+        assertThat(code, containsString("this.enqueue(new CountCall(name, callback));"));
+        assertThat(occurrences(code, "new ResponseCache<>("), is(1));
+    }
+
+    @Test
+    public void cacheTtlUnits() throws Exception {
+        assertThat(cacheOf("cache.ttl = \"250ms\""), containsString("new ResponseCache<>(1000, 250L,"));
+        assertThat(cacheOf("cache.ttl = \"15\""), containsString("new ResponseCache<>(1000, 15000L,"));
+        assertThat(cacheOf("cache.ttl = \"2m\""), containsString("new ResponseCache<>(1000, 120000L,"));
+        assertThat(cacheOf("cache.ttl = \"1h\""), containsString("new ResponseCache<>(1000, 3600000L,"));
+    }
+
+    @Test
+    public void invalidCacheTtl() throws Exception {
+        assertCacheRejected("cache.ttl = \"soon\"", "Invalid cache.ttl of method get: 'soon'");
+        assertCacheRejected("cache.ttl = \"10d\"", "Invalid cache.ttl of method get: '10d'");
+        assertCacheRejected("cache.ttl = \"0s\"", "cache.ttl of method get must be positive");
+    }
+
+    @Test
+    public void invalidCacheMaxEntries() throws Exception {
+        assertCacheRejected("cache.ttl = \"1s\", cache.max_entries = \"lots\"",
+                "Invalid cache.max_entries of method get: 'lots'");
+        assertCacheRejected("cache.ttl = \"1s\", cache.max_entries = \"0\"",
+                "cache.max_entries of method get must be positive");
+    }
+
+    @Test
+    public void cacheMaxEntriesWithoutTtl() throws Exception {
+        assertCacheRejected("cache.max_entries = \"10\"", "Method get has cache.max_entries but no cache.ttl");
+    }
+
+    @Test
+    public void voidAndOnewayMethodsCannotBeCached() throws Exception {
+        try {
+            generate(new ThriftyCodeGenerator(load("" +
+                    "namespace java com.test.service\n" +
+                    "\n" +
+                    "service Cached {\n" +
+                    "  void touch(1: i32 id) (cache.ttl = \"1s\")\n" +
+                    "}")));
+            fail("Void methods should not be cached");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is("Method touch returns nothing, and so cannot be cached"));
+        }
+
+        try {
+            generate(new ThriftyCodeGenerator(load("" +
+                    "namespace java com.test.service\n" +
+                    "\n" +
+                    "service Cached {\n" +
+                    "  oneway void ping() (cache.ttl = \"1s\")\n" +
+                    "}")));
+            fail("Oneway methods should not be cached");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is("Method ping returns nothing, and so cannot be cached"));
+        }
+    }
+
+    @Test
+    public void syncClientsShareCallClasses() throws Exception {
+        String code = generate(new ThriftyCodeGenerator(load(CATALOG)).emitSyncClients(true));
+
+        assertThat(code, containsString("public class CatalogSyncClient extends SyncClientBase {"));
+        assertThat(code, containsString("public CatalogSyncClient(ProtocolPool pool) {\n    super(pool);"));
+
+        // Call classes are visible to the sync client, which passes no callback
+        assertThat(code, containsString("  static final class GetCall extends MethodCall<String>"));
+        assertThat(code, not(containsString("private static final class GetCall")));
+        assertThat(code, containsString("public String get(Integer id) throws IOException {\n"
+                + "    try {\n"
+                + "      return execute(new CatalogClient.GetCall(id, null), this.getCache);"));
+
+        // Primitive results are unboxed, and void methods return nothing
+        assertThat(code, containsString("public int count(String name) throws IOException {"));
+        assertThat(code, containsString("return execute(new CatalogClient.CountCall(name, null));"));
+        assertThat(code, containsString("public void touch(Integer id) throws IOException {\n"
+                + "    try {\n"
+                + "      execute(new CatalogClient.TouchCall(id, null));"));
+
+        // Checked exceptions the method does not declare are wrapped
+        assertThat(code, containsString("} catch (Exception e) {\n"
+                + "      throw new UndeclaredThrowableException(e);"));
+
+        // Each client keeps its own cache
+        assertThat(occurrences(code, "public ResponseCache<String> getCache() {"), is(2));
+    }
+
+    @Test
+    public void syncClientsAreOptional() throws Exception {
+        String code = generate(new ThriftyCodeGenerator(load(CATALOG)));
+
+        assertThat(code, not(containsString("SyncClient")));
+    }
+
+    private static final String CATALOG = "" +
+            "namespace java com.test.service\n" +
+            "\n" +
+            "service Catalog {\n" +
+            "  string get(1: i32 id) (idempotent, cache.ttl = \"30s\", cache.max_entries = \"50\"),\n" +
+            "  i32 count(1: string name) (idempotent),\n" +
+            "  void touch(1: i32 id),\n" +
+            "  oneway void ping() (idempotent)\n" +
+            "}";
+
+    private String cacheOf(String annotations) throws Exception {
+        return generate(new ThriftyCodeGenerator(load("" +
+                "namespace java com.test.service\n" +
+                "\n" +
+                "service Cached {\n" +
+                "  string get(1: i32 id) (" + annotations + ")\n" +
+                "}")));
+    }
+
+    private void assertCacheRejected(String annotations, String message) throws Exception {
+        try {
+            cacheOf(annotations);
+            fail("Should reject (" + annotations + ")");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is(message));
+        }
+    }
+
+    private static int occurrences(String code, String text) {
+        int count = 0;
+        for (int i = code.indexOf(text); i != -1; i = code.indexOf(text, i + text.length())) {
+            count++;
+        }
+        return count;
+    }
+
+    private Schema load(String thrift) throws Exception {
+        File f = tmp.newFile();
+        write(f, thrift);
+
+        Loader loader = new Loader();
+        loader.addThriftFile(f.getAbsolutePath());
+        return loader.load();
+    }
+
+    private static String generate(ThriftyCodeGenerator gen) throws IOException {
+        StringBuilder code = new StringBuilder();
+        gen.generate(code);
+        return code.toString();
+    }
+
     private void write(File file, String text) throws IOException {
         PrintWriter writer = new PrintWriter(file, "UTF-8");
         BufferedWriter buf = new BufferedWriter(writer);
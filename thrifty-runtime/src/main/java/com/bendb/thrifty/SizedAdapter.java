@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty;
+
+import com.bendb.thrifty.protocol.Protocol;
+
+/**
+ * An {@link Adapter} that can also compute the encoded size of a struct
+ * without writing it.  Adapters generated by thrifty implement this;
+ * hand-written adapters need not.
+ *
+ * @param <T> the type of struct that can be written and read
+ * @param <B> a {@link StructBuilder} for {@link T}.
+ */
+public interface SizedAdapter<T, B extends StructBuilder<T>> extends Adapter<T, B> {
+    /**
+     * Computes the number of bytes that writing the given {@code struct} to
+     * the given {@code protocol} would produce, without writing anything.
+     *
+     * <p>This allows callers to size buffers or write length prefixes ahead
+     * of the struct itself.
+     *
+     * @param protocol the protocol whose encoding should be measured
+     * @param struct the struct to be measured
+     * @return the encoded size of {@code struct}, in bytes
+     * @throws UnsupportedOperationException if the protocol cannot compute sizes
+     */
+    int sizeOf(Protocol protocol, T struct);
+}
@@ -15,7 +15,7 @@
  */
 package com.bendb.thrifty;
 
-import com.bendb.thrifty.protocol.FieldMetadata;
+import com.bendb.thrifty.protocol.Headers;
 import com.bendb.thrifty.protocol.Protocol;
 import com.bendb.thrifty.util.ProtocolUtil;
 
@@ -102,28 +102,29 @@ public class ThriftException extends RuntimeException {
 
         protocol.readStructBegin();
         while (true) {
-            FieldMetadata field = protocol.readFieldBegin();
-            if (field.typeId == TType.STOP) {
+            int field = protocol.readFieldHeader();
+            byte fieldType = Headers.fieldType(field);
+            if (fieldType == TType.STOP) {
                 break;
             }
 
-            switch (field.fieldId) {
+            switch (Headers.fieldId(field)) {
                 case 1:
-                    if (field.typeId == TType.STRING) {
+                    if (fieldType == TType.STRING) {
                         message = protocol.readString();
                     } else {
-                        ProtocolUtil.skip(protocol, field.typeId);
+                        ProtocolUtil.skip(protocol, fieldType);
                     }
                     break;
                 case 2:
-                    if (field.typeId == TType.I32) {
+                    if (fieldType == TType.I32) {
                         kind = Kind.findByValue(protocol.readI32());
                     } else {
-                        ProtocolUtil.skip(protocol, field.typeId);
+                        ProtocolUtil.skip(protocol, fieldType);
                     }
                     break;
                 default:
-                    ProtocolUtil.skip(protocol, field.typeId);
+                    ProtocolUtil.skip(protocol, fieldType);
                     break;
             }
             protocol.readFieldEnd();
@@ -23,11 +23,11 @@ package com.bendb.thrifty.protocol;
 
 import com.bendb.thrifty.TType;
 import com.bendb.thrifty.transport.Transport;
+import com.bendb.thrifty.util.Utf8;
 import okio.ByteString;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.ProtocolException;
 
 /**
@@ -41,6 +41,14 @@ public class BinaryProtocol extends Protocol {
 
     private static final StructMetadata NO_STRUCT = new StructMetadata("");
 
+    private static final int MAX_RETAINED_SCRATCH = 8192;
+
+    /**
+     * The number of bytes of array data to encode or decode at a time, when
+     * using bulk operations.
+     */
+    private static final int BULK_CHUNK_BYTES = 1024;
+
     /**
      * The maximum number of bytes to read from the transport for variable-length
      * fields (strings or binary), or -1 for unlimited.
@@ -54,9 +62,20 @@ public class BinaryProtocol extends Protocol {
     private final long containerLengthLimit;
 
     /**
-     * A shared buffer for writing.
+     * Buffers for reading, and for writing to transports that do not support
+     * direct writes.  Reads and writes have their own, so that one thread may
+     * read while another writes.
+     */
+    private final byte[] readBuffer = new byte[8];
+    private final byte[] writeBuffer = new byte[8];
+
+    /**
+     * Scratch space for decoding and encoding strings and arrays when the
+     * transport does not expose its buffers; grown as needed, up to
+     * {@link #MAX_RETAINED_SCRATCH} bytes.
      */
-    private final byte[] buffer = new byte[8];
+    private byte[] readScratch = new byte[64];
+    private byte[] writeScratch = new byte[64];
 
     private boolean strictRead;
     private boolean strictWrite;
@@ -91,6 +110,7 @@ public class BinaryProtocol extends Protocol {
 
     @Override
     public void writeMessageEnd() throws IOException {
+        transport.endMessage();
     }
 
     @Override
@@ -103,8 +123,16 @@ public class BinaryProtocol extends Protocol {
 
     @Override
     public void writeFieldBegin(String fieldName, int fieldId, byte typeId) throws IOException {
-        writeByte(typeId);
-        writeI16((short) fieldId);
+        int pos = transport.reserveWrite(3);
+        if (pos >= 0) {
+            byte[] out = transport.writeBuffer();
+            out[pos] = typeId;
+            encodeI16((short) fieldId, out, pos + 1);
+            transport.commitWrite(3);
+        } else {
+            writeByte(typeId);
+            writeI16((short) fieldId);
+        }
     }
 
     @Override
@@ -154,41 +182,50 @@ public class BinaryProtocol extends Protocol {
 
     @Override
     public void writeByte(byte b) throws IOException {
-        buffer[0] = b;
-
-        transport.write(buffer, 0, 1);
+        int pos = transport.reserveWrite(1);
+        if (pos >= 0) {
+            transport.writeBuffer()[pos] = b;
+            transport.commitWrite(1);
+        } else {
+            writeBuffer[0] = b;
+            transport.write(writeBuffer, 0, 1);
+        }
     }
 
     @Override
     public void writeI16(short i16) throws IOException {
-        buffer[0] = (byte) ((i16 >> 8) & 0xFF);
-        buffer[1] = (byte) (i16 & 0xFF);
-
-        transport.write(buffer, 0, 2);
+        int pos = transport.reserveWrite(2);
+        if (pos >= 0) {
+            encodeI16(i16, transport.writeBuffer(), pos);
+            transport.commitWrite(2);
+        } else {
+            encodeI16(i16, writeBuffer, 0);
+            transport.write(writeBuffer, 0, 2);
+        }
     }
 
     @Override
     public void writeI32(int i32) throws IOException {
-        buffer[0] = (byte) ((i32 >> 24) & 0xFF);
-        buffer[1] = (byte) ((i32 >> 16) & 0xFF);
-        buffer[2] = (byte) ((i32 >>  8) & 0xFF);
-        buffer[3] = (byte)  (i32        & 0xFF);
-
-        transport.write(buffer, 0, 4);
+        int pos = transport.reserveWrite(4);
+        if (pos >= 0) {
+            encodeI32(i32, transport.writeBuffer(), pos);
+            transport.commitWrite(4);
+        } else {
+            encodeI32(i32, writeBuffer, 0);
+            transport.write(writeBuffer, 0, 4);
+        }
     }
 
     @Override
     public void writeI64(long i64) throws IOException {
-        buffer[0] = (byte) ((i64 >> 56) & 0xFF);
-        buffer[1] = (byte) ((i64 >> 48) & 0xFF);
-        buffer[2] = (byte) ((i64 >> 40) & 0xFF);
-        buffer[3] = (byte) ((i64 >> 32) & 0xFF);
-        buffer[4] = (byte) ((i64 >> 24) & 0xFF);
-        buffer[5] = (byte) ((i64 >> 16) & 0xFF);
-        buffer[6] = (byte) ((i64 >>  8) & 0xFF);
-        buffer[7] = (byte)  (i64        & 0xFF);
-
-        transport.write(buffer, 0, 8);
+        int pos = transport.reserveWrite(8);
+        if (pos >= 0) {
+            encodeI64(i64, transport.writeBuffer(), pos);
+            transport.commitWrite(8);
+        } else {
+            encodeI64(i64, writeBuffer, 0);
+            transport.write(writeBuffer, 0, 8);
+        }
     }
 
     @Override
@@ -198,13 +235,9 @@ public class BinaryProtocol extends Protocol {
 
     @Override
     public void writeString(String str) throws IOException {
-        try {
-            byte[] bs = str.getBytes("UTF-8");
-            writeI32(bs.length);
-            transport.write(bs);
-        } catch (UnsupportedEncodingException e) {
-            throw new AssertionError(e);
-        }
+        int size = Utf8.size(str);
+        writeI32(size);
+        writeUtf8(str, size);
     }
 
     @Override
@@ -213,6 +246,99 @@ public class BinaryProtocol extends Protocol {
         transport.write(buf.toByteArray());
     }
 
+    @Override
+    public void writeI32Array(int[] src, int offset, int count) throws IOException {
+        checkBounds(src.length, offset, count);
+        while (count > 0) {
+            int n = Math.min(count, BULK_CHUNK_BYTES / 4);
+            int size = n * 4;
+            int pos = transport.reserveWrite(size);
+            boolean direct = pos >= 0;
+            byte[] out;
+            if (direct) {
+                out = transport.writeBuffer();
+            } else {
+                out = writeScratch(size);
+                pos = 0;
+            }
+
+            for (int i = 0; i < n; ++i) {
+                encodeI32(src[offset + i], out, pos + i * 4);
+            }
+
+            if (direct) {
+                transport.commitWrite(size);
+            } else {
+                transport.write(out, 0, size);
+            }
+
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    public void writeI64Array(long[] src, int offset, int count) throws IOException {
+        checkBounds(src.length, offset, count);
+        while (count > 0) {
+            int n = Math.min(count, BULK_CHUNK_BYTES / 8);
+            int size = n * 8;
+            int pos = transport.reserveWrite(size);
+            boolean direct = pos >= 0;
+            byte[] out;
+            if (direct) {
+                out = transport.writeBuffer();
+            } else {
+                out = writeScratch(size);
+                pos = 0;
+            }
+
+            for (int i = 0; i < n; ++i) {
+                encodeI64(src[offset + i], out, pos + i * 8);
+            }
+
+            if (direct) {
+                transport.commitWrite(size);
+            } else {
+                transport.write(out, 0, size);
+            }
+
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    public void writeDoubleArray(double[] src, int offset, int count) throws IOException {
+        checkBounds(src.length, offset, count);
+        while (count > 0) {
+            int n = Math.min(count, BULK_CHUNK_BYTES / 8);
+            int size = n * 8;
+            int pos = transport.reserveWrite(size);
+            boolean direct = pos >= 0;
+            byte[] out;
+            if (direct) {
+                out = transport.writeBuffer();
+            } else {
+                out = writeScratch(size);
+                pos = 0;
+            }
+
+            for (int i = 0; i < n; ++i) {
+                encodeI64(Double.doubleToLongBits(src[offset + i]), out, pos + i * 8);
+            }
+
+            if (direct) {
+                transport.commitWrite(size);
+            } else {
+                transport.write(out, 0, size);
+            }
+
+            offset += n;
+            count -= n;
+        }
+    }
+
     //////////////////////
 
     @Override
@@ -248,9 +374,30 @@ public class BinaryProtocol extends Protocol {
 
     @Override
     public FieldMetadata readFieldBegin() throws IOException {
+        int header = readFieldHeader();
+        return new FieldMetadata("", Headers.fieldType(header), Headers.fieldId(header));
+    }
+
+    @Override
+    public int readFieldHeader() throws IOException {
+        if (transport.readBufferRemaining() >= 3) {
+            byte[] in = transport.readBuffer();
+            int pos = transport.readBufferPosition();
+            byte typeId = in[pos];
+            if (typeId == TType.STOP) {
+                transport.consumeReadBuffer(1);
+                return Headers.FIELD_STOP;
+            }
+            short fieldId = decodeI16(in, pos + 1);
+            transport.consumeReadBuffer(3);
+            return Headers.field(typeId, fieldId);
+        }
+
         byte typeId = readByte();
-        short fieldId = typeId == TType.STOP ? 0 : readI16();
-        return new FieldMetadata("", typeId, fieldId);
+        if (typeId == TType.STOP) {
+            return Headers.FIELD_STOP;
+        }
+        return Headers.field(typeId, readI16());
     }
 
     @Override
@@ -259,13 +406,17 @@ public class BinaryProtocol extends Protocol {
 
     @Override
     public MapMetadata readMapBegin() throws IOException {
+        long header = readMapHeader();
+        return new MapMetadata(Headers.keyType(header), Headers.valueType(header), Headers.size(header));
+    }
+
+    @Override
+    public long readMapHeader() throws IOException {
         byte keyTypeId = readByte();
         byte valueTypeId = readByte();
         int size = readI32();
-        if (containerLengthLimit != -1 && size > containerLengthLimit) {
-            throw new ProtocolException("Container size limit exceeded");
-        }
-        return new MapMetadata(keyTypeId, valueTypeId, size);
+        checkContainerSize(size);
+        return Headers.map(keyTypeId, valueTypeId, size);
     }
 
     @Override
@@ -274,12 +425,16 @@ public class BinaryProtocol extends Protocol {
 
     @Override
     public ListMetadata readListBegin() throws IOException {
+        long header = readListHeader();
+        return new ListMetadata(Headers.elementType(header), Headers.size(header));
+    }
+
+    @Override
+    public long readListHeader() throws IOException {
         byte elementTypeId = readByte();
         int size = readI32();
-        if (containerLengthLimit != -1 && size > containerLengthLimit) {
-            throw new ProtocolException("Container size limit exceeded");
-        }
-        return new ListMetadata(elementTypeId, size);
+        checkContainerSize(size);
+        return Headers.list(elementTypeId, size);
     }
 
     @Override
@@ -288,12 +443,22 @@ public class BinaryProtocol extends Protocol {
 
     @Override
     public SetMetadata readSetBegin() throws IOException {
+        long header = readSetHeader();
+        return new SetMetadata(Headers.elementType(header), Headers.size(header));
+    }
+
+    @Override
+    public long readSetHeader() throws IOException {
         byte elementTypeId = readByte();
         int size = readI32();
+        checkContainerSize(size);
+        return Headers.set(elementTypeId, size);
+    }
+
+    private void checkContainerSize(int size) throws ProtocolException {
         if (containerLengthLimit != -1 && size > containerLengthLimit) {
             throw new ProtocolException("Container size limit exceeded");
         }
-        return new SetMetadata(elementTypeId, size);
     }
 
     @Override
@@ -307,39 +472,50 @@ public class BinaryProtocol extends Protocol {
 
     @Override
     public byte readByte() throws IOException {
-        readFully(buffer, 1);
-        return buffer[0];
+        if (transport.readBufferRemaining() >= 1) {
+            byte b = transport.readBuffer()[transport.readBufferPosition()];
+            transport.consumeReadBuffer(1);
+            return b;
+        }
+
+        readFully(readBuffer, 1);
+        return readBuffer[0];
     }
 
     @Override
     public short readI16() throws IOException {
-        readFully(buffer, 2);
-        return (short) (((buffer[0] & 0xFF) << 8)
-                       | (buffer[1] & 0xFF));
+        if (transport.readBufferRemaining() >= 2) {
+            short i16 = decodeI16(transport.readBuffer(), transport.readBufferPosition());
+            transport.consumeReadBuffer(2);
+            return i16;
+        }
+
+        readFully(readBuffer, 2);
+        return decodeI16(readBuffer, 0);
     }
 
     @Override
     public int readI32() throws IOException {
-        readFully(buffer, 4);
+        if (transport.readBufferRemaining() >= 4) {
+            int i32 = decodeI32(transport.readBuffer(), transport.readBufferPosition());
+            transport.consumeReadBuffer(4);
+            return i32;
+        }
 
-        return ((buffer[0] & 0xFF) << 24)
-             | ((buffer[1] & 0xFF) << 16)
-             | ((buffer[2] & 0xFF) <<  8)
-             |  (buffer[3] & 0xFF);
+        readFully(readBuffer, 4);
+        return decodeI32(readBuffer, 0);
     }
 
     @Override
     public long readI64() throws IOException {
-        readFully(buffer, 8);
+        if (transport.readBufferRemaining() >= 8) {
+            long i64 = decodeI64(transport.readBuffer(), transport.readBufferPosition());
+            transport.consumeReadBuffer(8);
+            return i64;
+        }
 
-        return ((buffer[0] & 0xFFL) << 56)
-             | ((buffer[1] & 0xFFL) << 48)
-             | ((buffer[2] & 0xFFL) << 40)
-             | ((buffer[3] & 0xFFL) << 32)
-             | ((buffer[4] & 0xFFL) << 24)
-             | ((buffer[5] & 0xFFL) << 16)
-             | ((buffer[6] & 0xFFL) <<  8)
-             |  (buffer[7] & 0xFFL);
+        readFully(readBuffer, 8);
+        return decodeI64(readBuffer, 0);
     }
 
     @Override
@@ -363,15 +539,301 @@ public class BinaryProtocol extends Protocol {
         if (stringLengthLimit != -1 && sizeInBytes > stringLengthLimit) {
             throw new ProtocolException("Binary size limit exceeded");
         }
+        if (transport.readBufferRemaining() >= sizeInBytes) {
+            ByteString bytes = ByteString.of(transport.readBuffer(), transport.readBufferPosition(), sizeInBytes);
+            transport.consumeReadBuffer(sizeInBytes);
+            return bytes;
+        }
+
         byte[] data = new byte[sizeInBytes];
         readFully(data, data.length);
         return ByteString.of(data);
     }
 
+    @Override
+    public void readI32Array(int[] dst, int offset, int count) throws IOException {
+        checkBounds(dst.length, offset, count);
+        while (count > 0) {
+            int remaining = transport.readBufferRemaining();
+            int n;
+            if (remaining >= 4) {
+                // Decode as many values as are wholly buffered
+                n = Math.min(count, remaining / 4);
+                byte[] in = transport.readBuffer();
+                int pos = transport.readBufferPosition();
+                for (int i = 0; i < n; ++i) {
+                    dst[offset + i] = decodeI32(in, pos + i * 4);
+                }
+                transport.consumeReadBuffer(n * 4);
+            } else if (remaining > 0) {
+                // A value straddles the end of the buffer
+                n = 1;
+                dst[offset] = readI32();
+            } else {
+                n = Math.min(count, BULK_CHUNK_BYTES / 4);
+                byte[] in = readScratch(n * 4);
+                int pos = 0;
+                readFully(in, n * 4);
+                for (int i = 0; i < n; ++i) {
+                    dst[offset + i] = decodeI32(in, pos + i * 4);
+                }
+            }
+
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    public void readI64Array(long[] dst, int offset, int count) throws IOException {
+        checkBounds(dst.length, offset, count);
+        while (count > 0) {
+            int remaining = transport.readBufferRemaining();
+            int n;
+            if (remaining >= 8) {
+                // Decode as many values as are wholly buffered
+                n = Math.min(count, remaining / 8);
+                byte[] in = transport.readBuffer();
+                int pos = transport.readBufferPosition();
+                for (int i = 0; i < n; ++i) {
+                    dst[offset + i] = decodeI64(in, pos + i * 8);
+                }
+                transport.consumeReadBuffer(n * 8);
+            } else if (remaining > 0) {
+                // A value straddles the end of the buffer
+                n = 1;
+                dst[offset] = readI64();
+            } else {
+                n = Math.min(count, BULK_CHUNK_BYTES / 8);
+                byte[] in = readScratch(n * 8);
+                int pos = 0;
+                readFully(in, n * 8);
+                for (int i = 0; i < n; ++i) {
+                    dst[offset + i] = decodeI64(in, pos + i * 8);
+                }
+            }
+
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    public void readDoubleArray(double[] dst, int offset, int count) throws IOException {
+        checkBounds(dst.length, offset, count);
+        while (count > 0) {
+            int remaining = transport.readBufferRemaining();
+            int n;
+            if (remaining >= 8) {
+                // Decode as many values as are wholly buffered
+                n = Math.min(count, remaining / 8);
+                byte[] in = transport.readBuffer();
+                int pos = transport.readBufferPosition();
+                for (int i = 0; i < n; ++i) {
+                    dst[offset + i] = Double.longBitsToDouble(decodeI64(in, pos + i * 8));
+                }
+                transport.consumeReadBuffer(n * 8);
+            } else if (remaining > 0) {
+                // A value straddles the end of the buffer
+                n = 1;
+                dst[offset] = readDouble();
+            } else {
+                n = Math.min(count, BULK_CHUNK_BYTES / 8);
+                byte[] in = readScratch(n * 8);
+                int pos = 0;
+                readFully(in, n * 8);
+                for (int i = 0; i < n; ++i) {
+                    dst[offset + i] = Double.longBitsToDouble(decodeI64(in, pos + i * 8));
+                }
+            }
+
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    protected void skipScalar(byte typeId) throws IOException {
+        int width = fixedWidth(typeId);
+        if (width > 0) {
+            transport.skip(width);
+        } else if (typeId == TType.STRING) {
+            int size = readI32();
+            if (size < 0) {
+                throw new ProtocolException("Negative string length: " + size);
+            }
+            transport.skip(size);
+        } else {
+            super.skipScalar(typeId);
+        }
+    }
+
+    @Override
+    protected int fixedWidth(byte typeId) {
+        switch (typeId) {
+            case TType.BOOL:   return 1;
+            case TType.BYTE:   return 1;
+            case TType.I16:    return 2;
+            case TType.I32:    return 4;
+            case TType.ENUM:   return 4;
+            case TType.I64:    return 8;
+            case TType.DOUBLE: return 8;
+            default:           return -1;
+        }
+    }
+
+    @Override
+    public int sizeOfMessageBegin(String name, byte typeId, int seqId) {
+        if (strictWrite) {
+            return 4 + sizeOfString(name) + 4;
+        } else {
+            return sizeOfString(name) + 1 + 4;
+        }
+    }
+
+    @Override
+    public int sizeOfStructBegin(String structName) {
+        return 0;
+    }
+
+    @Override
+    public int sizeOfStructEnd() {
+        return 0;
+    }
+
+    @Override
+    public int sizeOfFieldBegin(String fieldName, int fieldId, byte typeId) {
+        return 3;
+    }
+
+    @Override
+    public int sizeOfFieldStop() {
+        return 1;
+    }
+
+    @Override
+    public int sizeOfMapBegin(byte keyTypeId, byte valueTypeId, int mapSize) {
+        return 6;
+    }
+
+    @Override
+    public int sizeOfListBegin(byte elementTypeId, int listSize) {
+        return 5;
+    }
+
+    @Override
+    public int sizeOfSetBegin(byte elementTypeId, int setSize) {
+        return 5;
+    }
+
+    @Override
+    public int sizeOfBool(boolean b) {
+        return 1;
+    }
+
+    @Override
+    public int sizeOfByte(byte b) {
+        return 1;
+    }
+
+    @Override
+    public int sizeOfI16(short i16) {
+        return 2;
+    }
+
+    @Override
+    public int sizeOfI32(int i32) {
+        return 4;
+    }
+
+    @Override
+    public int sizeOfI64(long i64) {
+        return 8;
+    }
+
+    @Override
+    public int sizeOfDouble(double dub) {
+        return 8;
+    }
+
+    @Override
+    public int sizeOfString(String str) {
+        return 4 + Utf8.size(str);
+    }
+
+    @Override
+    public int sizeOfBinary(ByteString buf) {
+        return 4 + buf.size();
+    }
+
+    @Override
+    public int sizeOfI32Array(int[] src, int offset, int count) {
+        checkBounds(src.length, offset, count);
+        return count * 4;
+    }
+
+    @Override
+    public int sizeOfI64Array(long[] src, int offset, int count) {
+        checkBounds(src.length, offset, count);
+        return count * 8;
+    }
+
+    @Override
+    public int sizeOfDoubleArray(double[] src, int offset, int count) {
+        checkBounds(src.length, offset, count);
+        return count * 8;
+    }
+
     private String readStringWithSize(int size) throws IOException {
-        byte[] encoded = new byte[size];
-        readFully(encoded, size);
-        return new String(encoded, "UTF-8");
+        return readUtf8(size);
+    }
+
+    private void writeUtf8(String str, int size) throws IOException {
+        int pos = transport.reserveWrite(size);
+        if (pos >= 0) {
+            Utf8.encode(str, transport.writeBuffer(), pos);
+            transport.commitWrite(size);
+        } else {
+            byte[] bytes = writeScratch(size);
+            Utf8.encode(str, bytes, 0);
+            transport.write(bytes, 0, size);
+        }
+    }
+
+    private String readUtf8(int size) throws IOException {
+        if (transport.readBufferRemaining() >= size) {
+            String str = Utf8.decode(transport.readBuffer(), transport.readBufferPosition(), size);
+            transport.consumeReadBuffer(size);
+            return str;
+        }
+
+        byte[] bytes = readScratch(size);
+        readFully(bytes, size);
+        return Utf8.decode(bytes, 0, size);
+    }
+
+    private byte[] readScratch(int size) {
+        if (size <= readScratch.length) {
+            return readScratch;
+        }
+
+        byte[] bytes = new byte[size];
+        if (size <= MAX_RETAINED_SCRATCH) {
+            readScratch = bytes;
+        }
+        return bytes;
+    }
+
+    private byte[] writeScratch(int size) {
+        if (size <= writeScratch.length) {
+            return writeScratch;
+        }
+
+        byte[] bytes = new byte[size];
+        if (size <= MAX_RETAINED_SCRATCH) {
+            writeScratch = bytes;
+        }
+        return bytes;
     }
 
     private void readFully(byte[] buffer, int count) throws IOException {
@@ -386,4 +848,50 @@ public class BinaryProtocol extends Protocol {
             offset += read;
         }
     }
+
+    private static void encodeI16(short i16, byte[] out, int pos) {
+        out[pos]     = (byte) ((i16 >> 8) & 0xFF);
+        out[pos + 1] = (byte)  (i16       & 0xFF);
+    }
+
+    private static void encodeI32(int i32, byte[] out, int pos) {
+        out[pos]     = (byte) ((i32 >> 24) & 0xFF);
+        out[pos + 1] = (byte) ((i32 >> 16) & 0xFF);
+        out[pos + 2] = (byte) ((i32 >>  8) & 0xFF);
+        out[pos + 3] = (byte)  (i32        & 0xFF);
+    }
+
+    private static void encodeI64(long i64, byte[] out, int pos) {
+        out[pos]     = (byte) ((i64 >> 56) & 0xFF);
+        out[pos + 1] = (byte) ((i64 >> 48) & 0xFF);
+        out[pos + 2] = (byte) ((i64 >> 40) & 0xFF);
+        out[pos + 3] = (byte) ((i64 >> 32) & 0xFF);
+        out[pos + 4] = (byte) ((i64 >> 24) & 0xFF);
+        out[pos + 5] = (byte) ((i64 >> 16) & 0xFF);
+        out[pos + 6] = (byte) ((i64 >>  8) & 0xFF);
+        out[pos + 7] = (byte)  (i64        & 0xFF);
+    }
+
+    private static short decodeI16(byte[] in, int pos) {
+        return (short) (((in[pos] & 0xFF) << 8)
+                       | (in[pos + 1] & 0xFF));
+    }
+
+    private static int decodeI32(byte[] in, int pos) {
+        return ((in[pos]     & 0xFF) << 24)
+             | ((in[pos + 1] & 0xFF) << 16)
+             | ((in[pos + 2] & 0xFF) <<  8)
+             |  (in[pos + 3] & 0xFF);
+    }
+
+    private static long decodeI64(byte[] in, int pos) {
+        return ((in[pos]     & 0xFFL) << 56)
+             | ((in[pos + 1] & 0xFFL) << 48)
+             | ((in[pos + 2] & 0xFFL) << 40)
+             | ((in[pos + 3] & 0xFFL) << 32)
+             | ((in[pos + 4] & 0xFFL) << 24)
+             | ((in[pos + 5] & 0xFFL) << 16)
+             | ((in[pos + 6] & 0xFFL) <<  8)
+             |  (in[pos + 7] & 0xFFL);
+    }
 }
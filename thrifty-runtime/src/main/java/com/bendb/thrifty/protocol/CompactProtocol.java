@@ -40,11 +40,11 @@ package com.bendb.thrifty.protocol;
 
 import com.bendb.thrifty.TType;
 import com.bendb.thrifty.transport.Transport;
+import com.bendb.thrifty.util.Utf8;
 import okio.ByteString;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.ProtocolException;
 
 /**
@@ -66,6 +66,14 @@ public class CompactProtocol extends Protocol {
     private static final StructMetadata NO_STRUCT = new StructMetadata("");
     private static final FieldMetadata END_FIELDS = new FieldMetadata("", TType.STOP, (short) 0);
 
+    private static final int MAX_RETAINED_SCRATCH = 8192;
+
+    /**
+     * The maximum number of bytes of array data to encode at a time, when
+     * using bulk operations.
+     */
+    private static final int BULK_CHUNK_BYTES = 1024;
+
     // Boolean fields get special treatment - their value is encoded
     // directly in the field header.  As such, when a boolean field
     // header is written, we cache it here until we get the value from
@@ -76,7 +84,18 @@ public class CompactProtocol extends Protocol {
     // the `readBool` call.
     private byte booleanFieldType = -1;
 
-    private final byte[] buffer = new byte[16];
+    // Reads and writes have their own buffers, so that one thread may read
+    // while another writes.
+    private final byte[] readBuffer = new byte[16];
+    private final byte[] writeBuffer = new byte[16];
+
+    /**
+     * Scratch space for decoding and encoding strings and arrays when the
+     * transport does not expose its buffers; grown as needed, up to
+     * {@link #MAX_RETAINED_SCRATCH} bytes.
+     */
+    private byte[] readScratch = new byte[64];
+    private byte[] writeScratch = new byte[64];
 
     // Keep track of the most-recently-written fields,
     // used for delta-encoding.
@@ -86,6 +105,12 @@ public class CompactProtocol extends Protocol {
     private ShortStack readingFields = new ShortStack();
     private short lastReadingField;
 
+    // Size computation mirrors the field-tracking state used for writing,
+    // so that it can be done independently of (and even during) a write.
+    private ShortStack sizingFields = new ShortStack();
+    private short lastSizingField;
+    private boolean sizingBooleanField;
+
     public CompactProtocol(Transport transport) {
         super(transport);
     }
@@ -100,7 +125,7 @@ public class CompactProtocol extends Protocol {
 
     @Override
     public void writeMessageEnd() throws IOException {
-        // no wire representation
+        transport.endMessage();
     }
 
     @Override
@@ -203,8 +228,14 @@ public class CompactProtocol extends Protocol {
 
     @Override
     public void writeByte(byte b) throws IOException {
-        buffer[0] = b;
-        transport.write(buffer, 0, 1);
+        int pos = transport.reserveWrite(1);
+        if (pos >= 0) {
+            transport.writeBuffer()[pos] = b;
+            transport.commitWrite(1);
+        } else {
+            writeBuffer[0] = b;
+            transport.write(writeBuffer, 0, 1);
+        }
     }
 
     @Override
@@ -226,29 +257,33 @@ public class CompactProtocol extends Protocol {
     public void writeDouble(double dub) throws IOException {
         long bits = Double.doubleToLongBits(dub);
 
-        // Doubles get written out in little-endian order
-        buffer[0] = (byte)  (bits         & 0xFFL);
-        buffer[1] = (byte) ((bits >>>  8) & 0xFFL);
-        buffer[2] = (byte) ((bits >>> 16) & 0xFFL);
-        buffer[3] = (byte) ((bits >>> 24) & 0xFFL);
-        buffer[4] = (byte) ((bits >>> 32) & 0xFFL);
-        buffer[5] = (byte) ((bits >>> 40) & 0xFFL);
-        buffer[6] = (byte) ((bits >>> 48) & 0xFFL);
-        buffer[7] = (byte) ((bits >>> 56) & 0xFFL);
+        int pos = transport.reserveWrite(8);
+        if (pos >= 0) {
+            encodeDouble(bits, transport.writeBuffer(), pos);
+            transport.commitWrite(8);
+        } else {
+            encodeDouble(bits, writeBuffer, 0);
+            transport.write(writeBuffer, 0, 8);
+        }
+    }
 
-        transport.write(buffer, 0, 8);
+    private static void encodeDouble(long bits, byte[] out, int pos) {
+        // Doubles get written out in little-endian order
+        out[pos]     = (byte)  (bits         & 0xFFL);
+        out[pos + 1] = (byte) ((bits >>>  8) & 0xFFL);
+        out[pos + 2] = (byte) ((bits >>> 16) & 0xFFL);
+        out[pos + 3] = (byte) ((bits >>> 24) & 0xFFL);
+        out[pos + 4] = (byte) ((bits >>> 32) & 0xFFL);
+        out[pos + 5] = (byte) ((bits >>> 40) & 0xFFL);
+        out[pos + 6] = (byte) ((bits >>> 48) & 0xFFL);
+        out[pos + 7] = (byte) ((bits >>> 56) & 0xFFL);
     }
 
     @Override
     public void writeString(String str) throws IOException {
-        try {
-            byte[] bytes = str.getBytes("UTF-8");
-
-            writeVarint32(bytes.length);
-            transport.write(bytes);
-        } catch (UnsupportedEncodingException e) {
-            throw new AssertionError(e);
-        }
+        int size = Utf8.size(str);
+        writeVarint32(size);
+        writeUtf8(str, size);
     }
 
     @Override
@@ -257,6 +292,99 @@ public class CompactProtocol extends Protocol {
         transport.write(buf.toByteArray());
     }
 
+    @Override
+    public void writeI32Array(int[] src, int offset, int count) throws IOException {
+        checkBounds(src.length, offset, count);
+        while (count > 0) {
+            int n = Math.min(count, BULK_CHUNK_BYTES / 5);
+            int pos = transport.reserveWrite(n * 5);
+            boolean direct = pos >= 0;
+            byte[] out;
+            if (direct) {
+                out = transport.writeBuffer();
+            } else {
+                out = writeScratch(n * 5);
+                pos = 0;
+            }
+
+            int end = pos;
+            for (int i = 0; i < n; ++i) {
+                end = encodeVarint32(intToZigZag(src[offset + i]), out, end);
+            }
+
+            if (direct) {
+                transport.commitWrite(end - pos);
+            } else {
+                transport.write(out, 0, end);
+            }
+
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    public void writeI64Array(long[] src, int offset, int count) throws IOException {
+        checkBounds(src.length, offset, count);
+        while (count > 0) {
+            int n = Math.min(count, BULK_CHUNK_BYTES / 10);
+            int pos = transport.reserveWrite(n * 10);
+            boolean direct = pos >= 0;
+            byte[] out;
+            if (direct) {
+                out = transport.writeBuffer();
+            } else {
+                out = writeScratch(n * 10);
+                pos = 0;
+            }
+
+            int end = pos;
+            for (int i = 0; i < n; ++i) {
+                end = encodeVarint64(longToZigZag(src[offset + i]), out, end);
+            }
+
+            if (direct) {
+                transport.commitWrite(end - pos);
+            } else {
+                transport.write(out, 0, end);
+            }
+
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    public void writeDoubleArray(double[] src, int offset, int count) throws IOException {
+        checkBounds(src.length, offset, count);
+        while (count > 0) {
+            int n = Math.min(count, BULK_CHUNK_BYTES / 8);
+            int size = n * 8;
+            int pos = transport.reserveWrite(size);
+            boolean direct = pos >= 0;
+            byte[] out;
+            if (direct) {
+                out = transport.writeBuffer();
+            } else {
+                out = writeScratch(size);
+                pos = 0;
+            }
+
+            for (int i = 0; i < n; ++i) {
+                encodeDouble(Double.doubleToLongBits(src[offset + i]), out, pos + i * 8);
+            }
+
+            if (direct) {
+                transport.commitWrite(size);
+            } else {
+                transport.write(out, 0, size);
+            }
+
+            offset += n;
+            count -= n;
+        }
+    }
+
     private void writeVectorBegin(byte typeId, int size) throws IOException {
         byte compactId = CompactTypes.ttypeToCompact(typeId);
         if (size <= 14) {
@@ -267,36 +395,56 @@ public class CompactProtocol extends Protocol {
         }
     }
 
-    private void writeVarint32(int n) throws IOException {
-        for (int i = 0; i < buffer.length; ++i) {
-            if ((n & ~0x7F) == 0x00) {
-                buffer[i] = (byte) n;
-                transport.write(buffer, 0, i + 1);
-                return;
-            } else {
-                buffer[i] = (byte) ((n & 0x7F) | 0x80);
-                n >>>= 7;
-            }
+    void writeVarint32(int n) throws IOException {
+        int pos = transport.reserveWrite(5);
+        if (pos >= 0) {
+            int end = encodeVarint32(n, transport.writeBuffer(), pos);
+            transport.commitWrite(end - pos);
+        } else {
+            int end = encodeVarint32(n, writeBuffer, 0);
+            transport.write(writeBuffer, 0, end);
         }
-
-        // Unpossible
-        throw new IllegalArgumentException("Cannot represent " + n + " as a varint in 16 bytes or less");
     }
 
     private void writeVarint64(long n) throws IOException {
-        for (int i = 0; i < buffer.length; ++i) {
-            if ((n & ~0x7FL) == 0x00L) {
-                buffer[i] = (byte) n;
-                transport.write(buffer, 0, i + 1);
-                return;
-            } else {
-                buffer[i] = (byte) ((n & 0x7F) | 0x80);
-                n >>>= 7;
-            }
+        int pos = transport.reserveWrite(10);
+        if (pos >= 0) {
+            int end = encodeVarint64(n, transport.writeBuffer(), pos);
+            transport.commitWrite(end - pos);
+        } else {
+            int end = encodeVarint64(n, writeBuffer, 0);
+            transport.write(writeBuffer, 0, end);
         }
+    }
 
-        // Unpossible
-        throw new IllegalArgumentException("Cannot represent " + n + " as a varint in 16 bytes or less");
+    /**
+     * Encodes {@code n} as a varint into {@code out}, starting at {@code pos}.
+     * There must be at least five bytes available.
+     *
+     * @return the offset just past the last byte written.
+     */
+    private static int encodeVarint32(int n, byte[] out, int pos) {
+        while ((n & ~0x7F) != 0x00) {
+            out[pos++] = (byte) ((n & 0x7F) | 0x80);
+            n >>>= 7;
+        }
+        out[pos++] = (byte) n;
+        return pos;
+    }
+
+    /**
+     * Encodes {@code n} as a varint into {@code out}, starting at {@code pos}.
+     * There must be at least ten bytes available.
+     *
+     * @return the offset just past the last byte written.
+     */
+    private static int encodeVarint64(long n, byte[] out, int pos) {
+        while ((n & ~0x7FL) != 0x00L) {
+            out[pos++] = (byte) ((n & 0x7F) | 0x80);
+            n >>>= 7;
+        }
+        out[pos++] = (byte) n;
+        return pos;
     }
 
     /**
@@ -358,12 +506,22 @@ public class CompactProtocol extends Protocol {
 
     @Override
     public FieldMetadata readFieldBegin() throws IOException {
+        int header = readFieldHeader();
+        if (header == Headers.FIELD_STOP) {
+            return END_FIELDS;
+        }
+        return new FieldMetadata("", Headers.fieldType(header), Headers.fieldId(header));
+    }
+
+    @Override
+    public int readFieldHeader() throws IOException {
         byte compactId = readByte();
-        byte typeId = CompactTypes.compactToTtype((byte) (compactId & 0x0F));
         if (compactId == TType.STOP) {
-            return END_FIELDS;
+            return Headers.FIELD_STOP;
         }
 
+        byte typeId = CompactTypes.compactToTtype((byte) (compactId & 0x0F));
+
         short fieldId;
         short modifier = (short) ((compactId & 0xF0) >> 4);
         if (modifier == 0) {
@@ -374,12 +532,12 @@ public class CompactProtocol extends Protocol {
         }
 
         if (typeId == TType.BOOL) {
-            booleanFieldType = compactId;
+            booleanFieldType = (byte) (compactId & 0x0F);
         }
 
         lastReadingField = fieldId;
 
-        return new FieldMetadata("", typeId, fieldId);
+        return Headers.field(typeId, fieldId);
     }
 
     @Override
@@ -389,13 +547,19 @@ public class CompactProtocol extends Protocol {
 
     @Override
     public MapMetadata readMapBegin() throws IOException {
+        long header = readMapHeader();
+        return new MapMetadata(Headers.keyType(header), Headers.valueType(header), Headers.size(header));
+    }
+
+    @Override
+    public long readMapHeader() throws IOException {
         int size = readVarint32();
         byte keyAndValueTypes = size == 0 ? 0 : readByte();
 
         byte keyType = CompactTypes.compactToTtype((byte) ((keyAndValueTypes >> 4) & 0x0F));
         byte valueType = CompactTypes.compactToTtype((byte) (keyAndValueTypes & 0x0F));
 
-        return new MapMetadata(keyType, valueType, size);
+        return Headers.map(keyType, valueType, size);
     }
 
     @Override
@@ -405,14 +569,13 @@ public class CompactProtocol extends Protocol {
 
     @Override
     public ListMetadata readListBegin() throws IOException {
-        byte sizeAndType = readByte();
-        int size = (sizeAndType >> 4) & 0x0F;
-        if (size == 0x0F) {
-            size = readVarint32();
-        }
-        byte compactType = (byte) (sizeAndType & 0x0F);
-        byte ttype = CompactTypes.compactToTtype(compactType);
-        return new ListMetadata(ttype, size);
+        long header = readListHeader();
+        return new ListMetadata(Headers.elementType(header), Headers.size(header));
+    }
+
+    @Override
+    public long readListHeader() throws IOException {
+        return readVectorHeader();
     }
 
     @Override
@@ -422,6 +585,16 @@ public class CompactProtocol extends Protocol {
 
     @Override
     public SetMetadata readSetBegin() throws IOException {
+        long header = readSetHeader();
+        return new SetMetadata(Headers.elementType(header), Headers.size(header));
+    }
+
+    @Override
+    public long readSetHeader() throws IOException {
+        return readVectorHeader();
+    }
+
+    private long readVectorHeader() throws IOException {
         byte sizeAndType = readByte();
         int size = (sizeAndType >> 4) & 0x0F;
         if (size == 0x0F) {
@@ -429,7 +602,7 @@ public class CompactProtocol extends Protocol {
         }
         byte compactType = (byte) (sizeAndType & 0x0F);
         byte ttype = CompactTypes.compactToTtype(compactType);
-        return new SetMetadata(ttype, size);
+        return Headers.list(ttype, size);
     }
 
     @Override
@@ -452,8 +625,14 @@ public class CompactProtocol extends Protocol {
 
     @Override
     public byte readByte() throws IOException {
-        readFully(buffer, 1);
-        return buffer[0];
+        if (transport.readBufferRemaining() >= 1) {
+            byte b = transport.readBuffer()[transport.readBufferPosition()];
+            transport.consumeReadBuffer(1);
+            return b;
+        }
+
+        readFully(readBuffer, 1);
+        return readBuffer[0];
     }
 
     @Override
@@ -473,20 +652,29 @@ public class CompactProtocol extends Protocol {
 
     @Override
     public double readDouble() throws IOException {
-        readFully(buffer, 8);
-
-        long bits =  (buffer[0] & 0xFFL)
-                  | ((buffer[1] & 0xFFL) <<  8)
-                  | ((buffer[2] & 0xFFL) << 16)
-                  | ((buffer[3] & 0xFFL) << 24)
-                  | ((buffer[4] & 0xFFL) << 32)
-                  | ((buffer[5] & 0xFFL) << 40)
-                  | ((buffer[6] & 0xFFL) << 48)
-                  | ((buffer[7] & 0xFFL) << 56);
+        long bits;
+        if (transport.readBufferRemaining() >= 8) {
+            bits = decodeDouble(transport.readBuffer(), transport.readBufferPosition());
+            transport.consumeReadBuffer(8);
+        } else {
+            readFully(readBuffer, 8);
+            bits = decodeDouble(readBuffer, 0);
+        }
 
         return Double.longBitsToDouble(bits);
     }
 
+    private static long decodeDouble(byte[] in, int pos) {
+        return   (in[pos]     & 0xFFL)
+              | ((in[pos + 1] & 0xFFL) <<  8)
+              | ((in[pos + 2] & 0xFFL) << 16)
+              | ((in[pos + 3] & 0xFFL) << 24)
+              | ((in[pos + 4] & 0xFFL) << 32)
+              | ((in[pos + 5] & 0xFFL) << 40)
+              | ((in[pos + 6] & 0xFFL) << 48)
+              | ((in[pos + 7] & 0xFFL) << 56);
+    }
+
     @Override
     public String readString() throws IOException {
         int length = readVarint32();
@@ -494,14 +682,55 @@ public class CompactProtocol extends Protocol {
             return "";
         }
 
-        byte[] bytes = new byte[length];
-        readFully(bytes, length);
+        return readUtf8(length);
+    }
+
+    private void writeUtf8(String str, int size) throws IOException {
+        int pos = transport.reserveWrite(size);
+        if (pos >= 0) {
+            Utf8.encode(str, transport.writeBuffer(), pos);
+            transport.commitWrite(size);
+        } else {
+            byte[] bytes = writeScratch(size);
+            Utf8.encode(str, bytes, 0);
+            transport.write(bytes, 0, size);
+        }
+    }
+
+    private String readUtf8(int size) throws IOException {
+        if (transport.readBufferRemaining() >= size) {
+            String str = Utf8.decode(transport.readBuffer(), transport.readBufferPosition(), size);
+            transport.consumeReadBuffer(size);
+            return str;
+        }
+
+        byte[] bytes = readScratch(size);
+        readFully(bytes, size);
+        return Utf8.decode(bytes, 0, size);
+    }
+
+    private byte[] readScratch(int size) {
+        if (size <= readScratch.length) {
+            return readScratch;
+        }
 
-        try {
-            return new String(bytes, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new AssertionError(e);
+        byte[] bytes = new byte[size];
+        if (size <= MAX_RETAINED_SCRATCH) {
+            readScratch = bytes;
         }
+        return bytes;
+    }
+
+    private byte[] writeScratch(int size) {
+        if (size <= writeScratch.length) {
+            return writeScratch;
+        }
+
+        byte[] bytes = new byte[size];
+        if (size <= MAX_RETAINED_SCRATCH) {
+            writeScratch = bytes;
+        }
+        return bytes;
     }
 
     @Override
@@ -511,12 +740,306 @@ public class CompactProtocol extends Protocol {
             return ByteString.EMPTY;
         }
 
+        if (transport.readBufferRemaining() >= length) {
+            ByteString bytes = ByteString.of(transport.readBuffer(), transport.readBufferPosition(), length);
+            transport.consumeReadBuffer(length);
+            return bytes;
+        }
+
         byte[] bytes = new byte[length];
         readFully(bytes, length);
         return ByteString.of(bytes);
     }
 
-    private int readVarint32() throws IOException {
+    @Override
+    public void readI32Array(int[] dst, int offset, int count) throws IOException {
+        checkBounds(dst.length, offset, count);
+        while (count > 0) {
+            int remaining = transport.readBufferRemaining();
+            if (remaining < 5) {
+                // The next value may not be wholly buffered
+                dst[offset++] = readI32();
+                --count;
+                continue;
+            }
+
+            byte[] in = transport.readBuffer();
+            int start = transport.readBufferPosition();
+            int pos = start;
+            int limit = start + remaining - 5;
+            while (count > 0 && pos <= limit) {
+                int result = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = in[pos++];
+                    result |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0 && shift < 35);
+
+                dst[offset++] = zigZagToInt(result);
+                --count;
+            }
+            transport.consumeReadBuffer(pos - start);
+        }
+    }
+
+    @Override
+    public void readI64Array(long[] dst, int offset, int count) throws IOException {
+        checkBounds(dst.length, offset, count);
+        while (count > 0) {
+            int remaining = transport.readBufferRemaining();
+            if (remaining < 10) {
+                // The next value may not be wholly buffered
+                dst[offset++] = readI64();
+                --count;
+                continue;
+            }
+
+            byte[] in = transport.readBuffer();
+            int start = transport.readBufferPosition();
+            int pos = start;
+            int limit = start + remaining - 10;
+            while (count > 0 && pos <= limit) {
+                long result = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = in[pos++];
+                    result |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0 && shift < 70);
+
+                dst[offset++] = zigZagToLong(result);
+                --count;
+            }
+            transport.consumeReadBuffer(pos - start);
+        }
+    }
+
+    @Override
+    public void readDoubleArray(double[] dst, int offset, int count) throws IOException {
+        checkBounds(dst.length, offset, count);
+        while (count > 0) {
+            int remaining = transport.readBufferRemaining();
+            int n;
+            if (remaining >= 8) {
+                // Decode as many values as are wholly buffered
+                n = Math.min(count, remaining / 8);
+                byte[] in = transport.readBuffer();
+                int pos = transport.readBufferPosition();
+                for (int i = 0; i < n; ++i) {
+                    dst[offset + i] = Double.longBitsToDouble(decodeDouble(in, pos + i * 8));
+                }
+                transport.consumeReadBuffer(n * 8);
+            } else if (remaining > 0) {
+                // A value straddles the end of the buffer
+                n = 1;
+                dst[offset] = readDouble();
+            } else {
+                n = Math.min(count, BULK_CHUNK_BYTES / 8);
+                byte[] in = readScratch(n * 8);
+                readFully(in, n * 8);
+                for (int i = 0; i < n; ++i) {
+                    dst[offset + i] = Double.longBitsToDouble(decodeDouble(in, i * 8));
+                }
+            }
+
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    protected void skipScalar(byte typeId) throws IOException {
+        switch (typeId) {
+            case TType.BYTE:
+                transport.skip(1);
+                break;
+
+            case TType.I16:
+            case TType.I32:
+            case TType.ENUM:
+                readVarint32();
+                break;
+
+            case TType.I64:
+                readVarint64();
+                break;
+
+            case TType.DOUBLE:
+                transport.skip(8);
+                break;
+
+            case TType.STRING:
+                int length = readVarint32();
+                if (length < 0) {
+                    throw new ProtocolException("Negative string length: " + length);
+                }
+                transport.skip(length);
+                break;
+
+            default:
+                // Booleans may have been encoded in their field header,
+                // so they must go through readBool().
+                super.skipScalar(typeId);
+                break;
+        }
+    }
+
+    @Override
+    protected int fixedWidth(byte typeId) {
+        switch (typeId) {
+            // Booleans in containers are one byte each - only
+            // boolean fields are packed into their header.
+            case TType.BOOL:   return 1;
+            case TType.BYTE:   return 1;
+            case TType.DOUBLE: return 8;
+            default:           return -1;
+        }
+    }
+
+    @Override
+    public int sizeOfMessageBegin(String name, byte typeId, int seqId) {
+        return 2 + varint32Size(seqId) + sizeOfString(name);
+    }
+
+    @Override
+    public int sizeOfStructBegin(String structName) {
+        sizingFields.push(lastSizingField);
+        lastSizingField = 0;
+        return 0;
+    }
+
+    @Override
+    public int sizeOfStructEnd() {
+        lastSizingField = sizingFields.pop();
+        return 0;
+    }
+
+    @Override
+    public int sizeOfFieldBegin(String fieldName, int fieldId, byte typeId) {
+        // A boolean field's value is part of its header, and so the
+        // subsequent sizeOfBool call must not count it again.
+        sizingBooleanField = typeId == TType.BOOL;
+
+        int size;
+        if (fieldId > lastSizingField && fieldId - lastSizingField <= 15) {
+            size = 1;
+        } else {
+            size = 1 + sizeOfI16((short) fieldId);
+        }
+
+        lastSizingField = (short) fieldId;
+        return size;
+    }
+
+    @Override
+    public int sizeOfFieldStop() {
+        return 1;
+    }
+
+    @Override
+    public int sizeOfMapBegin(byte keyTypeId, byte valueTypeId, int mapSize) {
+        return mapSize == 0 ? 1 : varint32Size(mapSize) + 1;
+    }
+
+    @Override
+    public int sizeOfListBegin(byte elementTypeId, int listSize) {
+        return listSize <= 14 ? 1 : 1 + varint32Size(listSize);
+    }
+
+    @Override
+    public int sizeOfSetBegin(byte elementTypeId, int setSize) {
+        return sizeOfListBegin(elementTypeId, setSize);
+    }
+
+    @Override
+    public int sizeOfBool(boolean b) {
+        if (sizingBooleanField) {
+            sizingBooleanField = false;
+            return 0;
+        }
+        return 1;
+    }
+
+    @Override
+    public int sizeOfByte(byte b) {
+        return 1;
+    }
+
+    @Override
+    public int sizeOfI16(short i16) {
+        return varint32Size(intToZigZag(i16));
+    }
+
+    @Override
+    public int sizeOfI32(int i32) {
+        return varint32Size(intToZigZag(i32));
+    }
+
+    @Override
+    public int sizeOfI64(long i64) {
+        return varint64Size(longToZigZag(i64));
+    }
+
+    @Override
+    public int sizeOfDouble(double dub) {
+        return 8;
+    }
+
+    @Override
+    public int sizeOfString(String str) {
+        int size = Utf8.size(str);
+        return varint32Size(size) + size;
+    }
+
+    @Override
+    public int sizeOfBinary(ByteString buf) {
+        return varint32Size(buf.size()) + buf.size();
+    }
+
+    @Override
+    public int sizeOfDoubleArray(double[] src, int offset, int count) {
+        checkBounds(src.length, offset, count);
+        return count * 8;
+    }
+
+    private static int varint32Size(int n) {
+        if ((n & (~0 << 7)) == 0) return 1;
+        if ((n & (~0 << 14)) == 0) return 2;
+        if ((n & (~0 << 21)) == 0) return 3;
+        if ((n & (~0 << 28)) == 0) return 4;
+        return 5;
+    }
+
+    private static int varint64Size(long n) {
+        // Each byte holds seven bits; zero still takes one byte.
+        int bits = 64 - Long.numberOfLeadingZeros(n | 1);
+        return (bits + 6) / 7;
+    }
+
+    int readVarint32() throws IOException {
+        int available = transport.readBufferRemaining();
+        if (available > 0) {
+            // Decode straight out of the transport's buffer, if the whole
+            // varint is there; otherwise fall through to the slow path.
+            byte[] in = transport.readBuffer();
+            int pos = transport.readBufferPosition();
+            int limit = pos + Math.min(available, 5);
+            int result = 0;
+            int shift = 0;
+            for (int i = pos; i < limit; ++i) {
+                byte b = in[i];
+                result |= (b & 0x7F) << shift;
+                if ((b & 0x80) != 0x80) {
+                    transport.consumeReadBuffer(i - pos + 1);
+                    return result;
+                }
+                shift += 7;
+            }
+        }
+
         int result = 0;
         int shift = 0;
         while (true) {
@@ -530,6 +1053,24 @@ public class CompactProtocol extends Protocol {
     }
 
     private long readVarint64() throws IOException {
+        int available = transport.readBufferRemaining();
+        if (available > 0) {
+            byte[] in = transport.readBuffer();
+            int pos = transport.readBufferPosition();
+            int limit = pos + Math.min(available, 10);
+            long result = 0;
+            int shift = 0;
+            for (int i = pos; i < limit; ++i) {
+                byte b = in[i];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) != 0x80) {
+                    transport.consumeReadBuffer(i - pos + 1);
+                    return result;
+                }
+                shift += 7;
+            }
+        }
+
         long result = 0;
         int shift = 0;
         while (true) {
@@ -563,7 +1104,7 @@ public class CompactProtocol extends Protocol {
         }
     }
 
-    private static final class CompactTypes {
+    static final class CompactTypes {
         public static final byte BOOLEAN_TRUE   = 0x01;
         public static final byte BOOLEAN_FALSE  = 0x02;
         public static final byte BYTE           = 0x03;
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.protocol;
+
+/**
+ * Packs and unpacks the field and container headers returned by
+ * {@link Protocol#readFieldHeader()}, {@link Protocol#readListHeader()},
+ * {@link Protocol#readSetHeader()} and {@link Protocol#readMapHeader()}.
+ *
+ * <p>Headers are plain primitives, so reading them allocates nothing.
+ * A field header is an {@code int} holding the type ID in bits 16-23 and
+ * the field ID in the low 16 bits.  A list or set header is a {@code long}
+ * holding the element type in bits 32-39 and the size in the low 32 bits;
+ * a map header additionally holds the key type in bits 40-47, with the value
+ * type in bits 32-39.
+ */
+public final class Headers {
+    /**
+     * The header of the field-stop marker that terminates every struct.
+     */
+    public static final int FIELD_STOP = 0;
+
+    private Headers() {
+        // no instances
+    }
+
+    public static int field(byte typeId, short fieldId) {
+        return ((typeId & 0xFF) << 16) | (fieldId & 0xFFFF);
+    }
+
+    public static byte fieldType(int header) {
+        return (byte) (header >>> 16);
+    }
+
+    public static short fieldId(int header) {
+        return (short) header;
+    }
+
+    public static long list(byte elementTypeId, int size) {
+        return ((elementTypeId & 0xFFL) << 32) | (size & 0xFFFFFFFFL);
+    }
+
+    public static long set(byte elementTypeId, int size) {
+        return list(elementTypeId, size);
+    }
+
+    public static long map(byte keyTypeId, byte valueTypeId, int size) {
+        return ((keyTypeId & 0xFFL) << 40) | ((valueTypeId & 0xFFL) << 32) | (size & 0xFFFFFFFFL);
+    }
+
+    public static byte elementType(long header) {
+        return (byte) (header >>> 32);
+    }
+
+    public static byte keyType(long header) {
+        return (byte) (header >>> 40);
+    }
+
+    public static byte valueType(long header) {
+        return (byte) (header >>> 32);
+    }
+
+    public static int size(long header) {
+        return (int) header;
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.protocol;
+
+import com.bendb.thrifty.transport.FramedTransport;
+import com.bendb.thrifty.transport.Transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Decodes messages from input that arrives in arbitrary chunks, such as
+ * reads from a non-blocking socket, without ever blocking.
+ *
+ * <p>Input is appended to a single buffer as it is received.  As it arrives,
+ * it is scanned for the end of the current message; scanning resumes where it
+ * left off when more input is fed, so no input is examined twice.  Once the
+ * whole message is present it is decoded in place, straight from the buffer:
+ *
+ * <pre>{@code
+ * decoder.readFrom(channel);
+ *
+ * MessageMetadata metadata;
+ * while ((metadata = decoder.nextMessage()) != null) {
+ *     Protocol protocol = decoder.protocol();
+ *     // ...read the message body from protocol...
+ *     protocol.readMessageEnd();
+ * }
+ * }</pre>
+ *
+ * <p>Because the end of a message is known before it is decoded, reading
+ * past it fails with an {@link EOFException} rather than blocking, and any
+ * part of it left unread is discarded when the next message is requested.
+ *
+ * <p>Unframed messages are supported, as the boundaries are found by
+ * following the protocol's own encoding.  As there is no frame size to
+ * check, a maximum message size is enforced instead: a message that grows
+ * beyond it, or that declares a string or container too large to fit in
+ * it, fails with a {@link ProtocolException} as soon as that is known.
+ * Instances of this class are <em>not</em> threadsafe.
+ */
+public final class MessageDecoder {
+    /**
+     * The default limit on the size of messages, matching that of frames
+     * read by {@link FramedTransport}.
+     */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = FramedTransport.DEFAULT_MAX_FRAME_SIZE;
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final int MIN_READ_SIZE = 1024;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private final MessageScanner scanner;
+    private final MessageTransport transport = new MessageTransport();
+    private final Protocol protocol;
+
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+    /** The offset of the current message, or of the next if none is current. */
+    private int start;
+
+    /** The offset past the last byte of input. */
+    private int limit;
+
+    /** The offset past the current message, or -1 if there is none. */
+    private int messageEnd = -1;
+
+    /**
+     * Creates a decoder for messages in the binary protocol, of up to
+     * {@link #DEFAULT_MAX_MESSAGE_SIZE} bytes.
+     */
+    public static MessageDecoder binary() {
+        return binary(DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * Creates a decoder for messages in the binary protocol.
+     *
+     * @param maxMessageSize the size, in bytes, of the largest message that
+     *                       will be accepted.
+     */
+    public static MessageDecoder binary(int maxMessageSize) {
+        return new MessageDecoder(new MessageScanner.Binary(maxMessageSize), false);
+    }
+
+    /**
+     * Creates a decoder for messages in the compact protocol, of up to
+     * {@link #DEFAULT_MAX_MESSAGE_SIZE} bytes.
+     */
+    public static MessageDecoder compact() {
+        return compact(DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * Creates a decoder for messages in the compact protocol.
+     *
+     * @param maxMessageSize the size, in bytes, of the largest message that
+     *                       will be accepted.
+     */
+    public static MessageDecoder compact(int maxMessageSize) {
+        return new MessageDecoder(new MessageScanner.Compact(maxMessageSize), true);
+    }
+
+    private MessageDecoder(MessageScanner scanner, boolean compact) {
+        this.scanner = scanner;
+        this.protocol = compact ? new CompactProtocol(transport) : new BinaryProtocol(transport);
+    }
+
+    /**
+     * Appends the given input.
+     */
+    public void feed(byte[] data, int offset, int count) {
+        ensureCapacity(count);
+        System.arraycopy(data, offset, buffer, limit, count);
+        limit += count;
+    }
+
+    /**
+     * Appends the remaining bytes of the given buffer.
+     */
+    public void feed(ByteBuffer data) {
+        int count = data.remaining();
+        ensureCapacity(count);
+        data.get(buffer, limit, count);
+        limit += count;
+    }
+
+    /**
+     * Reads whatever input is available from the given channel directly
+     * into the decoder's buffer.
+     *
+     * @return the number of bytes read, possibly zero, or -1 at the end of
+     *         the channel's stream.
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        ensureCapacity(MIN_READ_SIZE);
+        int read = channel.read(ByteBuffer.wrap(buffer, limit, buffer.length - limit));
+        if (read > 0) {
+            limit += read;
+        }
+        return read;
+    }
+
+    /**
+     * Discards the current message, if any, and begins decoding the next if
+     * it has been received in its entirety.
+     *
+     * @return the metadata of the next message, with the protocol positioned
+     *         at the start of its body, or {@code null} if more input is
+     *         needed.
+     */
+    public MessageMetadata nextMessage() throws IOException {
+        if (!advance()) {
+            return null;
+        }
+        return protocol.readMessageBegin();
+    }
+
+    /**
+     * Discards the current message, if any, and makes the next current if it
+     * has been received in its entirety.  Unlike {@link #nextMessage()}, the
+     * next message is left entirely unread, to be read from {@link #transport()}.
+     *
+     * @return true if a message is now current, or false if more input is
+     *         needed.
+     * @throws ProtocolException if the next message is malformed, or is
+     *                           larger than the maximum message size.
+     */
+    public boolean advance() throws ProtocolException {
+        if (messageEnd >= 0) {
+            start = messageEnd;
+            messageEnd = -1;
+
+            if (start == limit) {
+                // Nothing further is buffered, so start over at the beginning.
+                start = limit = 0;
+                if (buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+                    buffer = new byte[INITIAL_BUFFER_SIZE];
+                }
+            }
+
+            scanner.reset(start);
+        }
+
+        int end = scanner.scan(buffer, limit);
+        if (end == MessageScanner.INCOMPLETE) {
+            return false;
+        }
+
+        messageEnd = end;
+        transport.position = start;
+        return true;
+    }
+
+    /**
+     * Gets the protocol with which the current message is decoded.
+     */
+    public Protocol protocol() {
+        return protocol;
+    }
+
+    /**
+     * Gets a transport from which the current message, and nothing beyond it,
+     * can be read.
+     */
+    public Transport transport() {
+        return transport;
+    }
+
+    /**
+     * Gets the number of buffered bytes not belonging to the current message.
+     */
+    public int bufferedBytes() {
+        return limit - (messageEnd >= 0 ? messageEnd : start);
+    }
+
+    private void ensureCapacity(int count) {
+        if (buffer.length - limit >= count) {
+            return;
+        }
+
+        // Reclaim the space occupied by messages already decoded.
+        int required = limit - start + count;
+        byte[] target = buffer;
+        if (required > buffer.length) {
+            int newSize = Math.max(required, buffer.length << 1);
+            target = new byte[newSize < 0 ? required : newSize];
+        }
+
+        int distance = start;
+        System.arraycopy(buffer, start, target, 0, limit - start);
+        buffer = target;
+
+        start -= distance;
+        limit -= distance;
+        if (messageEnd >= 0) {
+            messageEnd -= distance;
+            transport.position -= distance;
+        }
+        scanner.shift(distance);
+    }
+
+    /**
+     * Reads the current message from the decoder's buffer.
+     */
+    private final class MessageTransport extends Transport {
+        int position;
+
+        private int end() {
+            return messageEnd >= 0 ? messageEnd : position;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int count) throws IOException {
+            int remaining = end() - position;
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int toCopy = Math.min(count, remaining);
+            System.arraycopy(buffer, position, data, offset, toCopy);
+            position += toCopy;
+            return toCopy;
+        }
+
+        @Override
+        public byte[] readBuffer() {
+            return buffer;
+        }
+
+        @Override
+        public int readBufferPosition() {
+            return position;
+        }
+
+        @Override
+        public int readBufferRemaining() {
+            return Math.max(0, end() - position);
+        }
+
+        @Override
+        public void consumeReadBuffer(int count) {
+            if (count < 0 || count > end() - position) {
+                throw new IllegalArgumentException("Cannot consume " + count + " bytes");
+            }
+            position += count;
+        }
+
+        @Override
+        public void skip(long count) throws IOException {
+            if (count < 0) {
+                throw new IllegalArgumentException("count < 0: " + count);
+            }
+
+            if (count > end() - position) {
+                position = end();
+                throw new EOFException();
+            }
+            position += (int) count;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int count) {
+            throw new UnsupportedOperationException("MessageDecoder is read-only");
+        }
+
+        @Override
+        public void flush() {
+            throw new UnsupportedOperationException("MessageDecoder is read-only");
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
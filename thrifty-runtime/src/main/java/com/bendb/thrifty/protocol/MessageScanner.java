@@ -0,0 +1,583 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.protocol;
+
+import com.bendb.thrifty.TType;
+
+import java.net.ProtocolException;
+
+/**
+ * Finds the end of a message in partially-received input, without decoding
+ * it, and without re-examining input it has already scanned.
+ *
+ * <p>Scanning proceeds one token (a header or a scalar value) at a time; a
+ * token is only consumed once all of its bytes are present, so that when
+ * the input runs out the scanner can simply stop, and later resume at the
+ * same token.  Nesting is tracked with an explicit stack of frames packed
+ * into {@code long}s, as in {@link Skipper}.
+ *
+ * <p>Messages larger than a given maximum are rejected, as are strings
+ * and containers whose declared lengths could not fit in such a message,
+ * so that a malformed or hostile peer cannot make the caller buffer
+ * unbounded input.
+ *
+ * <p>Subclasses know the wire format of a particular protocol.
+ */
+abstract class MessageScanner {
+    private static final int FRAME_STRUCT = 1;
+    private static final int FRAME_LIST = 2;
+    private static final int FRAME_MAP_KEY = 3;
+    private static final int FRAME_MAP_VALUE = 4;
+
+    static final byte NONE = -1;
+
+    /**
+     * Returned by the scanning methods of subclasses when the input ends
+     * before the token being scanned.
+     */
+    static final int INCOMPLETE = -1;
+
+    private final int maxMessageSize;
+
+    private long[] stack = new long[8];
+    private int depth;
+
+    /** The offset of the first byte of the message. */
+    private int start;
+
+    /** The offset of the next byte to scan. */
+    private int position;
+
+    /** The type of a value whose preceding header has been scanned, or NONE. */
+    private byte pendingType = NONE;
+
+    private boolean headerScanned;
+
+    /**
+     * Set by {@link #scanFieldHeader} to the type of the field's value;
+     * {@link TType#STOP} at the end of a struct, or {@link #NONE} if the
+     * header encodes the value too.
+     */
+    byte fieldType;
+
+    MessageScanner(int maxMessageSize) {
+        if (maxMessageSize <= 0) {
+            throw new IllegalArgumentException("maxMessageSize must be positive");
+        }
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Begins scanning a new message at the given offset.
+     */
+    final void reset(int offset) {
+        depth = 0;
+        start = offset;
+        position = offset;
+        pendingType = NONE;
+        headerScanned = false;
+    }
+
+    /**
+     * Adjusts the scan position after input has been moved {@code distance}
+     * bytes towards the start of its buffer.
+     */
+    final void shift(int distance) {
+        start -= distance;
+        position -= distance;
+    }
+
+    /**
+     * Scans as much of the message as is present in {@code buffer} up to
+     * {@code limit}.
+     *
+     * @return the offset just past the end of the message, or
+     *         {@link #INCOMPLETE} if more input is needed.
+     * @throws ProtocolException if the message is malformed, or is larger
+     *                           than the maximum message size.
+     */
+    final int scan(byte[] buffer, int limit) throws ProtocolException {
+        int end = scanMessage(buffer, limit);
+
+        // All of the input belongs to an incomplete message.
+        int size = (end == INCOMPLETE ? limit : end) - start;
+        if (size > maxMessageSize) {
+            throw new ProtocolException(
+                    "Message size " + (end == INCOMPLETE ? "of at least " : "") + size
+                    + " exceeds the maximum of " + maxMessageSize);
+        }
+        return end;
+    }
+
+    private int scanMessage(byte[] buffer, int limit) throws ProtocolException {
+        if (!headerScanned) {
+            int end = scanMessageHeader(buffer, position, limit);
+            if (end == INCOMPLETE) {
+                return INCOMPLETE;
+            }
+
+            position = end;
+            headerScanned = true;
+            pendingType = TType.STRUCT;
+        }
+
+        while (true) {
+            if (pendingType != NONE) {
+                int end = scanValue(buffer, position, limit, pendingType);
+                if (end == INCOMPLETE) {
+                    return INCOMPLETE;
+                }
+
+                position = end;
+                pendingType = NONE;
+            }
+
+            if (depth == 0) {
+                return position;
+            }
+
+            long frame = stack[depth - 1];
+            int remaining = Headers.size(frame);
+            switch ((int) (frame >>> 48)) {
+                case FRAME_STRUCT: {
+                    int end = scanFieldHeader(buffer, position, limit);
+                    if (end == INCOMPLETE) {
+                        return INCOMPLETE;
+                    }
+
+                    position = end;
+                    if (fieldType == TType.STOP) {
+                        --depth;
+                    } else {
+                        pendingType = fieldType;
+                    }
+                    break;
+                }
+
+                case FRAME_LIST:
+                    if (remaining == 0) {
+                        --depth;
+                    } else {
+                        stack[depth - 1] = frame - 1;
+                        pendingType = Headers.elementType(frame);
+                    }
+                    break;
+
+                case FRAME_MAP_KEY:
+                    if (remaining == 0) {
+                        --depth;
+                    } else {
+                        stack[depth - 1] = withKind(frame, FRAME_MAP_VALUE);
+                        pendingType = Headers.keyType(frame);
+                    }
+                    break;
+
+                case FRAME_MAP_VALUE:
+                    stack[depth - 1] = withKind(frame, FRAME_MAP_KEY) - 1;
+                    pendingType = Headers.valueType(frame);
+                    break;
+
+                default:
+                    throw new AssertionError("Unexpected frame: " + Long.toHexString(frame));
+            }
+        }
+    }
+
+    /**
+     * @return the offset past the message header, or {@link #INCOMPLETE}.
+     */
+    abstract int scanMessageHeader(byte[] buffer, int offset, int limit) throws ProtocolException;
+
+    /**
+     * Scans a field header, setting {@link #fieldType}.
+     *
+     * @return the offset past the header, or {@link #INCOMPLETE}.
+     */
+    abstract int scanFieldHeader(byte[] buffer, int offset, int limit) throws ProtocolException;
+
+    /**
+     * Scans a scalar value, or the header of a struct or container; in the
+     * latter case, subclasses call {@link #beginStruct()}, {@link #beginList}
+     * or {@link #beginMap} once the header is known to be complete.
+     *
+     * @return the offset past the value or header, or {@link #INCOMPLETE}.
+     */
+    abstract int scanValue(byte[] buffer, int offset, int limit, byte typeId) throws ProtocolException;
+
+    final void beginStruct() {
+        push(((long) FRAME_STRUCT) << 48);
+    }
+
+    final void beginList(byte elementType, int size) throws ProtocolException {
+        push(withKind(Headers.list(elementType, checkSize(size)), FRAME_LIST));
+    }
+
+    final void beginMap(byte keyType, byte valueType, int size) throws ProtocolException {
+        push(withKind(Headers.map(keyType, valueType, checkSize(size)), FRAME_MAP_KEY));
+    }
+
+    /**
+     * @return the offset past a string or binary value of the given length
+     *         beginning at {@code offset}, or {@link #INCOMPLETE}.
+     */
+    final int skipBytes(int offset, int limit, int length) throws ProtocolException {
+        if (length < 0) {
+            throw new ProtocolException("Negative length: " + length);
+        }
+        if (length > maxMessageSize) {
+            throw new ProtocolException(
+                    "Length " + length + " exceeds the maximum message size of " + maxMessageSize);
+        }
+        return limit - offset >= length ? offset + length : INCOMPLETE;
+    }
+
+    private void push(long frame) {
+        if (depth == stack.length) {
+            long[] newStack = new long[depth * 2];
+            System.arraycopy(stack, 0, newStack, 0, depth);
+            stack = newStack;
+        }
+        stack[depth++] = frame;
+    }
+
+    private static long withKind(long frame, int kind) {
+        return (frame & 0x0000FFFFFFFFFFFFL) | ((long) kind << 48);
+    }
+
+    private int checkSize(int size) throws ProtocolException {
+        if (size < 0) {
+            throw new ProtocolException("Negative container size: " + size);
+        }
+
+        // Every element takes at least one byte.
+        if (size > maxMessageSize) {
+            throw new ProtocolException(
+                    "Container size " + size + " exceeds the maximum message size of " + maxMessageSize);
+        }
+        return size;
+    }
+
+    static int readI32(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24)
+             | ((buffer[offset + 1] & 0xFF) << 16)
+             | ((buffer[offset + 2] & 0xFF) <<  8)
+             |  (buffer[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Scans the binary protocol, in either its strict or non-strict form.
+     */
+    static final class Binary extends MessageScanner {
+        private static final int VERSION_MASK = 0xffff0000;
+        private static final int VERSION_1 = 0x80010000;
+
+        Binary(int maxMessageSize) {
+            super(maxMessageSize);
+        }
+
+        @Override
+        int scanMessageHeader(byte[] buffer, int offset, int limit) throws ProtocolException {
+            if (limit - offset < 4) {
+                return INCOMPLETE;
+            }
+
+            int size = readI32(buffer, offset);
+            offset += 4;
+
+            if (size < 0) {
+                if ((size & VERSION_MASK) != VERSION_1) {
+                    throw new ProtocolException("Bad version in readMessageBegin");
+                }
+
+                // name, then sequence ID
+                if (limit - offset < 4) {
+                    return INCOMPLETE;
+                }
+                offset = skipBytes(offset + 4, limit, readI32(buffer, offset));
+                if (offset == INCOMPLETE || limit - offset < 4) {
+                    return INCOMPLETE;
+                }
+                return offset + 4;
+            } else {
+                // name, then type and sequence ID
+                offset = skipBytes(offset, limit, size);
+                if (offset == INCOMPLETE || limit - offset < 5) {
+                    return INCOMPLETE;
+                }
+                return offset + 5;
+            }
+        }
+
+        @Override
+        int scanFieldHeader(byte[] buffer, int offset, int limit) {
+            if (limit - offset < 1) {
+                return INCOMPLETE;
+            }
+
+            byte typeId = buffer[offset];
+            if (typeId == TType.STOP) {
+                fieldType = TType.STOP;
+                return offset + 1;
+            }
+
+            if (limit - offset < 3) {
+                return INCOMPLETE;
+            }
+
+            fieldType = typeId;
+            return offset + 3;
+        }
+
+        @Override
+        int scanValue(byte[] buffer, int offset, int limit, byte typeId) throws ProtocolException {
+            int width;
+            switch (typeId) {
+                case TType.BOOL:
+                case TType.BYTE:
+                    width = 1;
+                    break;
+
+                case TType.I16:
+                    width = 2;
+                    break;
+
+                case TType.I32:
+                case TType.ENUM:
+                    width = 4;
+                    break;
+
+                case TType.I64:
+                case TType.DOUBLE:
+                    width = 8;
+                    break;
+
+                case TType.STRING:
+                    if (limit - offset < 4) {
+                        return INCOMPLETE;
+                    }
+                    return skipBytes(offset + 4, limit, readI32(buffer, offset));
+
+                case TType.STRUCT:
+                    beginStruct();
+                    return offset;
+
+                case TType.LIST:
+                case TType.SET:
+                    if (limit - offset < 5) {
+                        return INCOMPLETE;
+                    }
+                    beginList(buffer[offset], readI32(buffer, offset + 1));
+                    return offset + 5;
+
+                case TType.MAP:
+                    if (limit - offset < 6) {
+                        return INCOMPLETE;
+                    }
+                    beginMap(buffer[offset], buffer[offset + 1], readI32(buffer, offset + 2));
+                    return offset + 6;
+
+                default:
+                    throw new ProtocolException("Unrecognized type code: " + typeId);
+            }
+
+            return limit - offset >= width ? offset + width : INCOMPLETE;
+        }
+    }
+
+    /**
+     * Scans the compact protocol.
+     */
+    static final class Compact extends MessageScanner {
+        private static final byte PROTOCOL_ID = (byte) 0x82;
+
+        /** Set by {@link #scanVarint} to the low 32 bits of the value scanned. */
+        private int varint;
+
+        Compact(int maxMessageSize) {
+            super(maxMessageSize);
+        }
+
+        @Override
+        int scanMessageHeader(byte[] buffer, int offset, int limit) throws ProtocolException {
+            if (limit - offset < 2) {
+                return INCOMPLETE;
+            }
+
+            if (buffer[offset] != PROTOCOL_ID) {
+                throw new ProtocolException(
+                        "Expected protocol ID " + Integer.toHexString(PROTOCOL_ID)
+                        + " but got " + Integer.toHexString(buffer[offset]));
+            }
+
+            // version and type, then sequence ID, then name
+            offset = scanVarint(buffer, offset + 2, limit);
+            if (offset == INCOMPLETE) {
+                return INCOMPLETE;
+            }
+
+            offset = scanVarint(buffer, offset, limit);
+            if (offset == INCOMPLETE) {
+                return INCOMPLETE;
+            }
+
+            return skipBytes(offset, limit, varint);
+        }
+
+        @Override
+        int scanFieldHeader(byte[] buffer, int offset, int limit) throws ProtocolException {
+            if (limit - offset < 1) {
+                return INCOMPLETE;
+            }
+
+            byte header = buffer[offset];
+            if (header == TType.STOP) {
+                fieldType = TType.STOP;
+                return offset + 1;
+            }
+
+            int end = offset + 1;
+            if ((header & 0xF0) == 0) {
+                // The field ID is not a delta, and follows as a varint
+                end = scanVarint(buffer, end, limit);
+                if (end == INCOMPLETE) {
+                    return INCOMPLETE;
+                }
+            }
+
+            byte compactType = (byte) (header & 0x0F);
+            if (compactType == CompactProtocol.CompactTypes.BOOLEAN_TRUE
+                    || compactType == CompactProtocol.CompactTypes.BOOLEAN_FALSE) {
+                // Boolean fields carry their value in the header
+                fieldType = NONE;
+            } else {
+                fieldType = toTType(compactType);
+            }
+            return end;
+        }
+
+        @Override
+        int scanValue(byte[] buffer, int offset, int limit, byte typeId) throws ProtocolException {
+            switch (typeId) {
+                case TType.BOOL:
+                case TType.BYTE:
+                    return limit - offset >= 1 ? offset + 1 : INCOMPLETE;
+
+                case TType.I16:
+                case TType.I32:
+                case TType.ENUM:
+                case TType.I64:
+                    return scanVarint(buffer, offset, limit);
+
+                case TType.DOUBLE:
+                    return limit - offset >= 8 ? offset + 8 : INCOMPLETE;
+
+                case TType.STRING: {
+                    int end = scanVarint(buffer, offset, limit);
+                    if (end == INCOMPLETE) {
+                        return INCOMPLETE;
+                    }
+                    return skipBytes(end, limit, varint);
+                }
+
+                case TType.STRUCT:
+                    beginStruct();
+                    return offset;
+
+                case TType.LIST:
+                case TType.SET: {
+                    if (limit - offset < 1) {
+                        return INCOMPLETE;
+                    }
+
+                    byte sizeAndType = buffer[offset];
+                    int size = (sizeAndType >> 4) & 0x0F;
+                    int end = offset + 1;
+                    if (size == 0x0F) {
+                        end = scanVarint(buffer, end, limit);
+                        if (end == INCOMPLETE) {
+                            return INCOMPLETE;
+                        }
+                        size = varint;
+                    }
+
+                    beginList(toTType((byte) (sizeAndType & 0x0F)), size);
+                    return end;
+                }
+
+                case TType.MAP: {
+                    int end = scanVarint(buffer, offset, limit);
+                    if (end == INCOMPLETE) {
+                        return INCOMPLETE;
+                    }
+
+                    int size = varint;
+                    if (size == 0) {
+                        beginMap(TType.STOP, TType.STOP, 0);
+                        return end;
+                    }
+
+                    if (limit - end < 1) {
+                        return INCOMPLETE;
+                    }
+
+                    byte keyAndValueTypes = buffer[end];
+                    beginMap(
+                            toTType((byte) ((keyAndValueTypes >> 4) & 0x0F)),
+                            toTType((byte) (keyAndValueTypes & 0x0F)),
+                            size);
+                    return end + 1;
+                }
+
+                default:
+                    throw new ProtocolException("Unrecognized type code: " + typeId);
+            }
+        }
+
+        /**
+         * Scans a varint of up to 64 bits, setting {@link #varint} to its
+         * low 32 bits.
+         */
+        private int scanVarint(byte[] buffer, int offset, int limit) throws ProtocolException {
+            int result = 0;
+            int shift = 0;
+            for (int i = offset; i < limit; ++i) {
+                byte b = buffer[i];
+                if (shift < 32) {
+                    result |= (b & 0x7F) << shift;
+                }
+
+                if ((b & 0x80) == 0) {
+                    varint = result;
+                    return i + 1;
+                }
+
+                shift += 7;
+                if (shift >= 70) {
+                    throw new ProtocolException("Varint is too long");
+                }
+            }
+            return INCOMPLETE;
+        }
+
+        private static byte toTType(byte compactType) throws ProtocolException {
+            try {
+                return CompactProtocol.CompactTypes.compactToTtype(compactType);
+            } catch (IllegalArgumentException e) {
+                throw new ProtocolException(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.protocol;
+
+import com.bendb.thrifty.transport.OkioTransport;
+import com.bendb.thrifty.util.Utf8;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+
+/**
+ * A {@link BinaryProtocol} that reads and writes okio streams directly.
+ *
+ * <p>Primitives are read and written via okio's own big-endian accessors,
+ * and strings and binary values are decoded from and encoded into pooled
+ * segments without intermediate byte arrays.
+ *
+ * <p>Instances of this class are <em>not</em> threadsafe.
+ */
+public class OkioBinaryProtocol extends BinaryProtocol {
+    private final OkioTransport okio;
+    private final long stringLengthLimit;
+
+    public OkioBinaryProtocol(BufferedSource source, BufferedSink sink) {
+        this(new OkioTransport(source, sink), -1, -1);
+    }
+
+    public OkioBinaryProtocol(OkioTransport transport) {
+        this(transport, -1, -1);
+    }
+
+    public OkioBinaryProtocol(OkioTransport transport, int stringLengthLimit, int containerLengthLimit) {
+        super(transport, stringLengthLimit, containerLengthLimit);
+        this.okio = transport;
+        this.stringLengthLimit = stringLengthLimit;
+    }
+
+    @Override
+    public void writeByte(byte b) throws IOException {
+        okio.sink().writeByte(b);
+    }
+
+    @Override
+    public void writeI16(short i16) throws IOException {
+        okio.sink().writeShort(i16);
+    }
+
+    @Override
+    public void writeI32(int i32) throws IOException {
+        okio.sink().writeInt(i32);
+    }
+
+    @Override
+    public void writeI64(long i64) throws IOException {
+        okio.sink().writeLong(i64);
+    }
+
+    @Override
+    public void writeString(String str) throws IOException {
+        BufferedSink sink = okio.sink();
+        sink.writeInt(Utf8.size(str));
+        sink.writeUtf8(str);
+    }
+
+    @Override
+    public void writeBinary(ByteString buf) throws IOException {
+        BufferedSink sink = okio.sink();
+        sink.writeInt(buf.size());
+        sink.write(buf);
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        return okio.source().readByte();
+    }
+
+    @Override
+    public short readI16() throws IOException {
+        return okio.source().readShort();
+    }
+
+    @Override
+    public int readI32() throws IOException {
+        return okio.source().readInt();
+    }
+
+    @Override
+    public long readI64() throws IOException {
+        return okio.source().readLong();
+    }
+
+    @Override
+    public String readString() throws IOException {
+        int sizeInBytes = readI32();
+        if (stringLengthLimit != -1 && sizeInBytes > stringLengthLimit) {
+            throw new ProtocolException("String size limit exceeded");
+        }
+        return okio.source().readUtf8(sizeInBytes);
+    }
+
+    @Override
+    public ByteString readBinary() throws IOException {
+        int sizeInBytes = readI32();
+        if (stringLengthLimit != -1 && sizeInBytes > stringLengthLimit) {
+            throw new ProtocolException("Binary size limit exceeded");
+        }
+        return okio.source().readByteString(sizeInBytes);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.protocol;
+
+import com.bendb.thrifty.transport.OkioTransport;
+import com.bendb.thrifty.util.Utf8;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+
+import java.io.IOException;
+
+/**
+ * A {@link CompactProtocol} that reads and writes okio streams directly.
+ *
+ * <p>Strings and binary values are decoded from and encoded into pooled
+ * segments without intermediate byte arrays, and doubles use okio's
+ * little-endian accessors.
+ *
+ * <p>Instances of this class are <em>not</em> threadsafe.
+ */
+public class OkioCompactProtocol extends CompactProtocol {
+    private final OkioTransport okio;
+
+    public OkioCompactProtocol(BufferedSource source, BufferedSink sink) {
+        this(new OkioTransport(source, sink));
+    }
+
+    public OkioCompactProtocol(OkioTransport transport) {
+        super(transport);
+        this.okio = transport;
+    }
+
+    @Override
+    public void writeByte(byte b) throws IOException {
+        okio.sink().writeByte(b);
+    }
+
+    @Override
+    public void writeDouble(double dub) throws IOException {
+        okio.sink().writeLongLe(Double.doubleToLongBits(dub));
+    }
+
+    @Override
+    public void writeString(String str) throws IOException {
+        writeVarint32(Utf8.size(str));
+        okio.sink().writeUtf8(str);
+    }
+
+    @Override
+    public void writeBinary(ByteString buf) throws IOException {
+        writeVarint32(buf.size());
+        okio.sink().write(buf);
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        return okio.source().readByte();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(okio.source().readLongLe());
+    }
+
+    @Override
+    public String readString() throws IOException {
+        int length = readVarint32();
+        if (length == 0) {
+            return "";
+        }
+        return okio.source().readUtf8(length);
+    }
+
+    @Override
+    public ByteString readBinary() throws IOException {
+        int length = readVarint32();
+        if (length == 0) {
+            return ByteString.EMPTY;
+        }
+        return okio.source().readByteString(length);
+    }
+}
@@ -15,15 +15,19 @@
  */
 package com.bendb.thrifty.protocol;
 
+import com.bendb.thrifty.TType;
 import com.bendb.thrifty.transport.Transport;
 import okio.ByteString;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.net.ProtocolException;
 
 public abstract class Protocol implements Closeable {
     protected final Transport transport;
 
+    private Skipper skipper;
+
     protected Protocol(Transport transport) {
         if (transport == null) {
             throw new NullPointerException("transport");
@@ -31,6 +35,14 @@ public abstract class Protocol implements Closeable {
         this.transport = transport;
     }
 
+    /**
+     * Gets the transport from which this protocol reads, and to which it
+     * writes.
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
     public abstract void writeMessageBegin(String name, byte typeId, int seqId) throws IOException;
 
     public abstract void writeMessageEnd() throws IOException;
@@ -115,6 +127,299 @@ public abstract class Protocol implements Closeable {
 
     public abstract ByteString readBinary() throws IOException;
 
+    // Bulk operations, for containers of numeric values.  Implementations
+    // are encouraged to override these with versions that avoid per-element
+    // dispatch.
+
+    /**
+     * Writes {@code count} int values from {@code src}, starting at {@code offset},
+     * exactly as if by calling {@link #writeI32(int)} for each.
+     */
+    public void writeI32Array(int[] src, int offset, int count) throws IOException {
+        checkBounds(src.length, offset, count);
+        for (int i = offset, end = offset + count; i < end; ++i) {
+            writeI32(src[i]);
+        }
+    }
+
+    /**
+     * Writes {@code count} long values from {@code src}, starting at {@code offset},
+     * exactly as if by calling {@link #writeI64(long)} for each.
+     */
+    public void writeI64Array(long[] src, int offset, int count) throws IOException {
+        checkBounds(src.length, offset, count);
+        for (int i = offset, end = offset + count; i < end; ++i) {
+            writeI64(src[i]);
+        }
+    }
+
+    /**
+     * Writes {@code count} double values from {@code src}, starting at {@code offset},
+     * exactly as if by calling {@link #writeDouble(double)} for each.
+     */
+    public void writeDoubleArray(double[] src, int offset, int count) throws IOException {
+        checkBounds(src.length, offset, count);
+        for (int i = offset, end = offset + count; i < end; ++i) {
+            writeDouble(src[i]);
+        }
+    }
+
+    /**
+     * Reads {@code count} int values into {@code dst}, starting at {@code offset},
+     * exactly as if by calling {@link #readI32()} for each.
+     */
+    public void readI32Array(int[] dst, int offset, int count) throws IOException {
+        checkBounds(dst.length, offset, count);
+        for (int i = offset, end = offset + count; i < end; ++i) {
+            dst[i] = readI32();
+        }
+    }
+
+    /**
+     * Reads {@code count} long values into {@code dst}, starting at {@code offset},
+     * exactly as if by calling {@link #readI64()} for each.
+     */
+    public void readI64Array(long[] dst, int offset, int count) throws IOException {
+        checkBounds(dst.length, offset, count);
+        for (int i = offset, end = offset + count; i < end; ++i) {
+            dst[i] = readI64();
+        }
+    }
+
+    /**
+     * Reads {@code count} double values into {@code dst}, starting at {@code offset},
+     * exactly as if by calling {@link #readDouble()} for each.
+     */
+    public void readDoubleArray(double[] dst, int offset, int count) throws IOException {
+        checkBounds(dst.length, offset, count);
+        for (int i = offset, end = offset + count; i < end; ++i) {
+            dst[i] = readDouble();
+        }
+    }
+
+    /**
+     * Reads a field header without allocating.  The result is packed as
+     * described in {@link Headers}; a header whose {@link Headers#fieldType(int)}
+     * is {@link com.bendb.thrifty.TType#STOP} marks the end of a struct.
+     *
+     * <p>The default implementation delegates to {@link #readFieldBegin()};
+     * protocols should override it where they can do better.
+     */
+    public int readFieldHeader() throws IOException {
+        FieldMetadata field = readFieldBegin();
+        return Headers.field(field.typeId, field.fieldId);
+    }
+
+    /**
+     * Reads a list header without allocating; see {@link Headers#list(byte, int)}.
+     */
+    public long readListHeader() throws IOException {
+        ListMetadata list = readListBegin();
+        return Headers.list(list.elementTypeId, list.size);
+    }
+
+    /**
+     * Reads a set header without allocating; see {@link Headers#set(byte, int)}.
+     */
+    public long readSetHeader() throws IOException {
+        SetMetadata set = readSetBegin();
+        return Headers.set(set.elementTypeId, set.size);
+    }
+
+    /**
+     * Reads a map header without allocating; see {@link Headers#map(byte, byte, int)}.
+     */
+    public long readMapHeader() throws IOException {
+        MapMetadata map = readMapBegin();
+        return Headers.map(map.keyTypeId, map.valueTypeId, map.size);
+    }
+
+    /**
+     * Reads and discards a value of the given type, including any nested
+     * structs and containers, without decoding it.
+     *
+     * <p>Nesting is handled iteratively, so arbitrarily deep values can be
+     * skipped without exhausting the call stack.  Protocols customize how
+     * scalars are skipped by overriding {@link #skipScalar(byte)}, and can
+     * enable skipping whole lists, sets and maps in a single jump by
+     * overriding {@link #fixedWidth(byte)}.
+     *
+     * @param typeId the {@link TType} of the value to skip.
+     * @throws ProtocolException if an unrecognized type is encountered.
+     */
+    public void skip(byte typeId) throws IOException {
+        if (skipper == null) {
+            skipper = new Skipper(this);
+        }
+        skipper.skip(typeId);
+    }
+
+    /**
+     * Reads and discards a single value that is neither a struct nor a
+     * container.
+     *
+     * <p>The default implementation reads the value with the corresponding
+     * {@code read} method; strings are read with {@link #readBinary()}, to
+     * avoid decoding them.
+     *
+     * @param typeId the {@link TType} of the value to skip.
+     * @throws ProtocolException if {@code typeId} is not a recognized scalar type.
+     */
+    protected void skipScalar(byte typeId) throws IOException {
+        switch (typeId) {
+            case TType.BOOL: readBool(); break;
+            case TType.BYTE: readByte(); break;
+            case TType.I16: readI16(); break;
+            case TType.I32: readI32(); break;
+            case TType.I64: readI64(); break;
+            case TType.DOUBLE: readDouble(); break;
+            case TType.STRING: readBinary(); break;
+            case TType.ENUM: readI32(); break;
+            default:
+                throw new ProtocolException("Unrecognized TType value: " + typeId);
+        }
+    }
+
+    /**
+     * Gets the number of bytes with which every value of the given type is
+     * encoded when it appears as a container element, or -1 if values of that
+     * type vary in size.
+     *
+     * <p>When the elements of a container have a fixed width, {@link #skip(byte)}
+     * skips the entire container with a single call to
+     * {@link Transport#skip(long)}.  The default implementation returns -1
+     * for all types.
+     *
+     * @param typeId the {@link TType} of a container element.
+     * @return the encoded width of each element, or -1.
+     */
+    protected int fixedWidth(byte typeId) {
+        return -1;
+    }
+
+    // Size computation.  Each sizeOf method returns the number of bytes that
+    // the corresponding write method would produce, without writing anything.
+    // Calls must be made in the same order as the writes they mirror, as some
+    // encodings depend on what came before; end markers that have no wire
+    // representation in any supported protocol have no sizeOf counterpart.
+    //
+    // These throw UnsupportedOperationException unless overridden.
+
+    public int sizeOfMessageBegin(String name, byte typeId, int seqId) {
+        throw sizingUnsupported();
+    }
+
+    public int sizeOfStructBegin(String structName) {
+        throw sizingUnsupported();
+    }
+
+    public int sizeOfStructEnd() {
+        throw sizingUnsupported();
+    }
+
+    public int sizeOfFieldBegin(String fieldName, int fieldId, byte typeId) {
+        throw sizingUnsupported();
+    }
+
+    public int sizeOfFieldStop() {
+        throw sizingUnsupported();
+    }
+
+    public int sizeOfMapBegin(byte keyTypeId, byte valueTypeId, int mapSize) {
+        throw sizingUnsupported();
+    }
+
+    public int sizeOfListBegin(byte elementTypeId, int listSize) {
+        throw sizingUnsupported();
+    }
+
+    public int sizeOfSetBegin(byte elementTypeId, int setSize) {
+        throw sizingUnsupported();
+    }
+
+    public int sizeOfBool(boolean b) {
+        throw sizingUnsupported();
+    }
+
+    public int sizeOfByte(byte b) {
+        throw sizingUnsupported();
+    }
+
+    public int sizeOfI16(short i16) {
+        throw sizingUnsupported();
+    }
+
+    public int sizeOfI32(int i32) {
+        throw sizingUnsupported();
+    }
+
+    public int sizeOfI64(long i64) {
+        throw sizingUnsupported();
+    }
+
+    public int sizeOfDouble(double dub) {
+        throw sizingUnsupported();
+    }
+
+    public int sizeOfString(String str) {
+        throw sizingUnsupported();
+    }
+
+    public int sizeOfBinary(ByteString buf) {
+        throw sizingUnsupported();
+    }
+
+    /**
+     * Gets the size of {@code count} int values from {@code src}, starting at
+     * {@code offset}, as written by {@link #writeI32Array(int[], int, int)}.
+     */
+    public int sizeOfI32Array(int[] src, int offset, int count) {
+        checkBounds(src.length, offset, count);
+        int size = 0;
+        for (int i = offset, end = offset + count; i < end; ++i) {
+            size += sizeOfI32(src[i]);
+        }
+        return size;
+    }
+
+    /**
+     * Gets the size of {@code count} long values from {@code src}, starting at
+     * {@code offset}, as written by {@link #writeI64Array(long[], int, int)}.
+     */
+    public int sizeOfI64Array(long[] src, int offset, int count) {
+        checkBounds(src.length, offset, count);
+        int size = 0;
+        for (int i = offset, end = offset + count; i < end; ++i) {
+            size += sizeOfI64(src[i]);
+        }
+        return size;
+    }
+
+    /**
+     * Gets the size of {@code count} double values from {@code src}, starting at
+     * {@code offset}, as written by {@link #writeDoubleArray(double[], int, int)}.
+     */
+    public int sizeOfDoubleArray(double[] src, int offset, int count) {
+        checkBounds(src.length, offset, count);
+        int size = 0;
+        for (int i = offset, end = offset + count; i < end; ++i) {
+            size += sizeOfDouble(src[i]);
+        }
+        return size;
+    }
+
+    private UnsupportedOperationException sizingUnsupported() {
+        return new UnsupportedOperationException(
+                getClass().getSimpleName() + " does not support size computation");
+    }
+
+    static void checkBounds(int length, int offset, int count) {
+        if (offset < 0 || count < 0 || offset > length - count) {
+            throw new ArrayIndexOutOfBoundsException(
+                    "length=" + length + ", offset=" + offset + ", count=" + count);
+        }
+    }
+
     //////////////
 
     public void flush() throws IOException {
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.protocol;
+
+import com.bendb.thrifty.TType;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+
+/**
+ * Skips values of arbitrary depth without recursion, and without decoding
+ * the values being skipped.
+ *
+ * <p>Nesting is tracked with an explicit stack of frames, one per open struct
+ * or container.  Each frame is packed into a single {@code long}: the frame
+ * kind in bits 48-55, key and value types in bits 40-47 and 32-39 (as in
+ * {@link Headers#map(byte, byte, int)}), and the number of elements left to
+ * skip in the low 32 bits.  The stack is retained between calls, so skipping
+ * allocates nothing once it has grown to the deepest nesting encountered.
+ */
+final class Skipper {
+    private static final int FRAME_STRUCT = 1;
+    private static final int FRAME_LIST = 2;
+    private static final int FRAME_SET = 3;
+    private static final int FRAME_MAP_KEY = 4;
+    private static final int FRAME_MAP_VALUE = 5;
+
+    private static final byte NONE = -1;
+
+    private final Protocol protocol;
+    private long[] stack = new long[8];
+    private int depth;
+
+    Skipper(Protocol protocol) {
+        this.protocol = protocol;
+    }
+
+    void skip(byte typeId) throws IOException {
+        depth = 0;
+
+        byte next = typeId;
+        while (true) {
+            if (next != NONE) {
+                begin(next);
+                next = NONE;
+            }
+
+            if (depth == 0) {
+                return;
+            }
+
+            long frame = stack[depth - 1];
+            int remaining = Headers.size(frame);
+            switch ((int) (frame >>> 48)) {
+                case FRAME_STRUCT:
+                    // 'remaining' is 1 when we have just finished skipping a field's value
+                    if (remaining != 0) {
+                        protocol.readFieldEnd();
+                    }
+
+                    byte fieldType = Headers.fieldType(protocol.readFieldHeader());
+                    if (fieldType == TType.STOP) {
+                        protocol.readStructEnd();
+                        --depth;
+                    } else {
+                        stack[depth - 1] = frame | 1;
+                        next = fieldType;
+                    }
+                    break;
+
+                case FRAME_LIST:
+                case FRAME_SET:
+                    if (remaining == 0) {
+                        if (frame >>> 48 == FRAME_LIST) {
+                            protocol.readListEnd();
+                        } else {
+                            protocol.readSetEnd();
+                        }
+                        --depth;
+                    } else {
+                        stack[depth - 1] = frame - 1;
+                        next = Headers.elementType(frame);
+                    }
+                    break;
+
+                case FRAME_MAP_KEY:
+                    if (remaining == 0) {
+                        protocol.readMapEnd();
+                        --depth;
+                    } else {
+                        stack[depth - 1] = withKind(frame, FRAME_MAP_VALUE);
+                        next = Headers.keyType(frame);
+                    }
+                    break;
+
+                case FRAME_MAP_VALUE:
+                    stack[depth - 1] = withKind(frame, FRAME_MAP_KEY) - 1;
+                    next = Headers.valueType(frame);
+                    break;
+
+                default:
+                    throw new AssertionError("Unexpected frame: " + Long.toHexString(frame));
+            }
+        }
+    }
+
+    /**
+     * Skips a scalar value or the header of a struct or container, pushing
+     * a frame if the value's contents remain to be skipped.
+     */
+    private void begin(byte typeId) throws IOException {
+        switch (typeId) {
+            case TType.STRUCT:
+                protocol.readStructBegin();
+                push(((long) FRAME_STRUCT) << 48);
+                break;
+
+            case TType.LIST: {
+                long header = protocol.readListHeader();
+                if (skipFixedWidth(Headers.elementType(header), Headers.size(header))) {
+                    protocol.readListEnd();
+                } else {
+                    push(withKind(header, FRAME_LIST));
+                }
+                break;
+            }
+
+            case TType.SET: {
+                long header = protocol.readSetHeader();
+                if (skipFixedWidth(Headers.elementType(header), Headers.size(header))) {
+                    protocol.readSetEnd();
+                } else {
+                    push(withKind(header, FRAME_SET));
+                }
+                break;
+            }
+
+            case TType.MAP: {
+                long header = protocol.readMapHeader();
+                int size = checkSize(Headers.size(header));
+                int keyWidth = protocol.fixedWidth(Headers.keyType(header));
+                int valueWidth = protocol.fixedWidth(Headers.valueType(header));
+                if (keyWidth > 0 && valueWidth > 0) {
+                    protocol.transport.skip((long) (keyWidth + valueWidth) * size);
+                    protocol.readMapEnd();
+                } else {
+                    push(withKind(header, FRAME_MAP_KEY));
+                }
+                break;
+            }
+
+            default:
+                protocol.skipScalar(typeId);
+                break;
+        }
+    }
+
+    /**
+     * Skips an entire list or set in one jump, if its elements have a fixed
+     * width in the current protocol.
+     */
+    private boolean skipFixedWidth(byte elementType, int size) throws IOException {
+        checkSize(size);
+        int width = protocol.fixedWidth(elementType);
+        if (width <= 0) {
+            return false;
+        }
+
+        protocol.transport.skip((long) width * size);
+        return true;
+    }
+
+    private void push(long frame) {
+        if (depth == stack.length) {
+            long[] newStack = new long[depth * 2];
+            System.arraycopy(stack, 0, newStack, 0, depth);
+            stack = newStack;
+        }
+        stack[depth++] = frame;
+    }
+
+    private static long withKind(long frame, int kind) {
+        return (frame & 0x0000FFFFFFFFFFFFL) | ((long) kind << 48);
+    }
+
+    private static int checkSize(int size) throws ProtocolException {
+        if (size < 0) {
+            throw new ProtocolException("Negative container size: " + size);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges identical calls to idempotent methods made while one is already
+ * awaiting its reply, so that a burst of callers asking for the same thing
+ * costs the server a single call:
+ *
+ * <pre>{@code
+ * CallCoalescer coalescer = new CallCoalescer();
+ * ClientConfig config = new ClientConfig.Builder()
+ *         .callCoalescer(coalescer)
+ *         .build();
+ * }</pre>
+ *
+ * <p>Calls are identical if they are to the same method with arguments that
+ * encode to the same bytes.  The first such call is sent as usual; those
+ * made before its reply arrives are not sent at all, and their callbacks
+ * receive its result, or its error, as well.  Calls made after the reply
+ * are sent afresh.  Merged calls share the fate of the call that was sent,
+ * including its timeout, or the failure of its client's connection.
+ *
+ * <p>Only methods annotated {@code (idempotent)} in their Thrift IDL are
+ * coalesced; calls made with a {@link CallHandle} never are, as each may
+ * have its own timeout or be cancelled.
+ *
+ * <p>A coalescer may be shared by several clients to the same servers, such
+ * as those of a {@link ClientPool}, to merge calls across all of them.
+ */
+public final class CallCoalescer {
+    private final ConcurrentMap<CallKey, Group> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong coalescedCalls = new AtomicLong(0);
+
+    /**
+     * Gets the number of calls that were not sent, having been merged with
+     * an identical call already awaiting its reply.
+     */
+    public long coalescedCalls() {
+        return coalescedCalls.get();
+    }
+
+    /**
+     * Gets the number of distinct calls currently awaiting replies.
+     */
+    public int inFlightCalls() {
+        return inFlight.size();
+    }
+
+    /**
+     * Merges the given call with an identical one in flight, if there is
+     * one.  Otherwise, the call is to be sent, and its outcome will be shared
+     * with identical calls made in the meantime.
+     *
+     * @return true if the call was merged, and must not be sent.
+     */
+    boolean join(MethodCall<?> call) {
+        CallKey key = call.key();
+        if (key == null) {
+            // Cannot be compared with other calls; just send it.
+            return false;
+        }
+
+        Group group = new Group(key);
+        while (true) {
+            Group existing = inFlight.putIfAbsent(key, group);
+            if (existing == null) {
+                call.coalesced = group;
+                return false;
+            }
+
+            if (existing.add(call.callback)) {
+                coalescedCalls.incrementAndGet();
+                return true;
+            }
+
+            // Completed just now; make way for a fresh call.
+            inFlight.remove(key, existing);
+        }
+    }
+
+    /**
+     * Calls that share the outcome of one sent call.
+     */
+    final class Group {
+        private final CallKey key;
+
+        // Guarded by this
+        private List<ServiceMethodCallback<?>> followers;
+        private boolean done;
+
+        Group(CallKey key) {
+            this.key = key;
+        }
+
+        synchronized boolean add(ServiceMethodCallback<?> callback) {
+            if (done) {
+                return false;
+            }
+            if (followers == null) {
+                followers = new ArrayList<>();
+            }
+            followers.add(callback);
+            return true;
+        }
+
+        /**
+         * Marks the sent call complete, so that later calls are sent
+         * afresh, and gets the callbacks of those merged with it.
+         */
+        List<ServiceMethodCallback<?>> complete() {
+            List<ServiceMethodCallback<?>> followers;
+            synchronized (this) {
+                done = true;
+                followers = this.followers;
+                this.followers = null;
+            }
+
+            inFlight.remove(key, this);
+            return followers;
+        }
+    }
+}
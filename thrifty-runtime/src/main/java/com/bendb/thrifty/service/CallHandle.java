@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps the callback of a single asynchronous call, to give that call its
+ * own timeout and a means of cancelling it:
+ *
+ * <pre>{@code
+ * CallHandle<Foo> handle = CallHandle.withTimeout(callback, 50, TimeUnit.MILLISECONDS);
+ * client.getFoo(id, handle);
+ *
+ * // Later, should the reply no longer be wanted:
+ * handle.cancel();
+ * }</pre>
+ *
+ * <p>A cancelled or expired call fails with a {@link CancellationException}
+ * or a {@link java.util.concurrent.TimeoutException} respectively, and
+ * frees its place among the client's in-flight calls at once; its reply,
+ * should one arrive later, is discarded.
+ *
+ * <p>Each handle may be used for one call only.  Oneway calls cannot be
+ * timed out or cancelled.
+ */
+public final class CallHandle<T> implements ServiceMethodCallback<T> {
+    /** Uses the client's configured timeout. */
+    static final long DEFAULT_TIMEOUT = -1;
+
+    private final ServiceMethodCallback<T> callback;
+    private final long timeoutNanos;
+
+    // Guarded by this
+    private ClientBase client;
+    private MethodCall<?> call;
+    private boolean used;
+    private boolean cancelled;
+
+    private CallHandle(ServiceMethodCallback<T> callback, long timeoutNanos) {
+        if (callback == null) {
+            throw new NullPointerException("callback");
+        }
+        this.callback = callback;
+        this.timeoutNanos = timeoutNanos;
+    }
+
+    /**
+     * Wraps a callback for a call that uses its client's timeout, but may be
+     * cancelled.
+     */
+    public static <T> CallHandle<T> of(ServiceMethodCallback<T> callback) {
+        return new CallHandle<>(callback, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Wraps a callback for a call with the given timeout in place of its
+     * client's.  A timeout of zero means the call never times out.
+     */
+    public static <T> CallHandle<T> withTimeout(ServiceMethodCallback<T> callback, long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout cannot be negative");
+        }
+        return new CallHandle<>(callback, unit.toNanos(timeout));
+    }
+
+    /**
+     * Fails the call with a {@link CancellationException}, unless it has
+     * already completed.  A handle cancelled before use fails its call as
+     * soon as it is made.
+     *
+     * @return true if the call was cancelled.
+     */
+    public boolean cancel() {
+        ClientBase client;
+        MethodCall<?> call;
+        synchronized (this) {
+            if (cancelled) {
+                return false;
+            }
+            cancelled = true;
+            client = this.client;
+            call = this.call;
+        }
+
+        if (client == null) {
+            // Not yet used; the call will be failed when made.
+            return true;
+        }
+        return client.abandon(call, new CancellationException("Call to " + call.name + " was cancelled"));
+    }
+
+    /**
+     * Gets the timeout of the call in nanoseconds, zero if it has none, or
+     * {@link #DEFAULT_TIMEOUT}.
+     */
+    long timeoutNanos() {
+        return timeoutNanos;
+    }
+
+    /**
+     * Associates this handle with the call it was used for.
+     *
+     * @return false if the handle was cancelled already.
+     */
+    synchronized boolean bind(ClientBase client, MethodCall<?> call) {
+        if (used) {
+            throw new IllegalStateException("A CallHandle may be used for one call only");
+        }
+        used = true;
+        this.client = client;
+        this.call = call;
+        return !cancelled;
+    }
+
+    @Override
+    public void onSuccess(T result) {
+        callback.onSuccess(result);
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        callback.onError(error);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import com.bendb.thrifty.protocol.BinaryProtocol;
+import com.bendb.thrifty.protocol.Protocol;
+import com.bendb.thrifty.transport.BufferTransport;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Identifies a call by its method and the encoding of its arguments, so
+ * that calls asking for the same thing compare equal.
+ */
+final class CallKey {
+    /**
+     * Encodes arguments on the calling thread.
+     */
+    private static final ThreadLocal<Encoder> ENCODERS = new ThreadLocal<Encoder>() {
+        @Override
+        protected Encoder initialValue() {
+            return new Encoder();
+        }
+    };
+
+    private final String methodName;
+    private final byte[] args;
+    private final int hash;
+
+    private CallKey(String methodName, byte[] args) {
+        this.methodName = methodName;
+        this.args = args;
+        this.hash = 31 * methodName.hashCode() + Arrays.hashCode(args);
+    }
+
+    /**
+     * Gets the key of the given call, or {@code null} if its arguments
+     * cannot be encoded.
+     */
+    static CallKey of(MethodCall<?> call) {
+        try {
+            return ENCODERS.get().keyFor(call);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CallKey)) {
+            return false;
+        }
+
+        CallKey that = (CallKey) o;
+        return hash == that.hash
+                && methodName.equals(that.methodName)
+                && Arrays.equals(args, that.args);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    private static final class Encoder {
+        private final BufferTransport transport = new BufferTransport();
+        private final Protocol protocol = new BinaryProtocol(transport);
+
+        CallKey keyFor(MethodCall<?> call) throws IOException {
+            try {
+                call.send(protocol);
+                protocol.flush();
+                return new CallKey(call.name, transport.b.readByteArray());
+            } finally {
+                transport.b.clear();
+            }
+        }
+    }
+}
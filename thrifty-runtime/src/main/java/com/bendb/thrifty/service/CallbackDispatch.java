@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Determines the threads on which a client invokes method callbacks, and
+ * which callbacks are kept in order with respect to one another.
+ *
+ * <p>By default, a client reading on a thread of its own invokes every
+ * callback on one further thread, also of its own, in the order that
+ * replies arrive; a client on an {@link EventLoopGroup} invokes them on the
+ * event-loop thread.  Set one of these instead with
+ * {@link ClientConfig.Builder#callbackDispatch(CallbackDispatch)}:
+ *
+ * <ul>
+ *     <li>{@link #inline()}, on the thread that read the reply, with no
+ *     hand-off at all;</li>
+ *     <li>{@link #executor(Executor)}, on a shared executor, in no particular
+ *     order;</li>
+ *     <li>{@link #ordered(Executor, KeySelector)}, on a shared executor, in
+ *     reply order among callbacks with equal keys only.</li>
+ * </ul>
+ */
+public abstract class CallbackDispatch {
+    /**
+     * Selects the ordering key of a call, for {@link #ordered}.
+     */
+    public interface KeySelector {
+        /**
+         * Gets the key of a call; callbacks of calls with equal keys are
+         * invoked one at a time, in the order their replies were read.
+         *
+         * @param methodName the name of the method called.
+         * @param callback the callback to be invoked.
+         * @return the ordering key, or {@code null} if the callback need not
+         *         be ordered with respect to any other.
+         */
+        Object keyFor(String methodName, ServiceMethodCallback<?> callback);
+    }
+
+    private static final CallbackDispatch INLINE = new CallbackDispatch() {
+        @Override
+        void dispatch(MethodCall<?> call, Runnable task) {
+            task.run();
+        }
+
+        @Override
+        boolean isInline() {
+            return true;
+        }
+    };
+
+    CallbackDispatch() {
+    }
+
+    /**
+     * Invokes callbacks on the thread that read the reply.
+     *
+     * <p>This is the cheapest choice, but callbacks then hold up the reading
+     * of further replies, and so should be brief and must not block.
+     */
+    public static CallbackDispatch inline() {
+        return INLINE;
+    }
+
+    /**
+     * Invokes each callback as a separate task on the given executor, which
+     * may be shared by many clients.  Callbacks may run concurrently and in
+     * any order.
+     */
+    public static CallbackDispatch executor(final Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+
+        return new CallbackDispatch() {
+            @Override
+            void dispatch(MethodCall<?> call, Runnable task) {
+                executor.execute(task);
+            }
+        };
+    }
+
+    /**
+     * Invokes callbacks on the given executor, one at a time and in reply
+     * order among calls with equal keys, but concurrently otherwise.
+     *
+     * <p>A selector returning the same key for every call reproduces the
+     * default ordering on a shared executor.
+     */
+    public static CallbackDispatch ordered(Executor executor, KeySelector selector) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        if (selector == null) {
+            throw new NullPointerException("selector");
+        }
+        return new Ordered(executor, selector);
+    }
+
+    /**
+     * Arranges for the given task, which invokes the callback of the given
+     * call, to be run.
+     */
+    abstract void dispatch(MethodCall<?> call, Runnable task);
+
+    /**
+     * Gets whether tasks are run immediately on the dispatching thread, in
+     * which case there is no need to create them.
+     */
+    boolean isInline() {
+        return false;
+    }
+
+    private static final class Ordered extends CallbackDispatch {
+        private final Executor executor;
+        private final KeySelector selector;
+        private final ConcurrentMap<Object, Lane> lanes = new ConcurrentHashMap<>();
+
+        Ordered(Executor executor, KeySelector selector) {
+            this.executor = executor;
+            this.selector = selector;
+        }
+
+        @Override
+        void dispatch(MethodCall<?> call, Runnable task) {
+            Object key = selector.keyFor(call.name, call.callback);
+            if (key == null) {
+                executor.execute(task);
+                return;
+            }
+
+            while (true) {
+                Lane lane = lanes.get(key);
+                if (lane == null) {
+                    Lane newLane = new Lane(key);
+                    lane = lanes.putIfAbsent(key, newLane);
+                    if (lane == null) {
+                        lane = newLane;
+                    }
+                }
+
+                if (lane.offer(task)) {
+                    return;
+                }
+
+                // The lane drained and retired just now; make a new one.
+            }
+        }
+
+        /**
+         * The tasks of one key, run one after another as a single task on the
+         * executor.  A lane retires once it runs dry, and is never reused.
+         */
+        private final class Lane implements Runnable {
+            private final Object key;
+            private final Queue<Runnable> tasks = new ArrayDeque<>();
+            private boolean scheduled;
+            private boolean retired;
+
+            Lane(Object key) {
+                this.key = key;
+            }
+
+            boolean offer(Runnable task) {
+                synchronized (this) {
+                    if (retired) {
+                        return false;
+                    }
+
+                    tasks.add(task);
+                    if (scheduled) {
+                        return true;
+                    }
+                    scheduled = true;
+                }
+
+                try {
+                    executor.execute(this);
+                } catch (RuntimeException e) {
+                    // Never run, so never to retire by itself
+                    synchronized (this) {
+                        retired = true;
+                        lanes.remove(key, this);
+                    }
+                    throw e;
+                }
+                return true;
+            }
+
+            @Override
+            public void run() {
+                while (true) {
+                    Runnable task;
+                    synchronized (this) {
+                        task = tasks.poll();
+                        if (task == null) {
+                            retired = true;
+                            lanes.remove(key, this);
+                            return;
+                        }
+                    }
+
+                    try {
+                        task.run();
+                    } catch (RuntimeException ignored) {
+                        // One failed task must not stall the rest of its lane
+                    }
+                }
+            }
+        }
+    }
+}
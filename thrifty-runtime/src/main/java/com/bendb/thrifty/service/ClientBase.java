@@ -15,34 +15,51 @@
  */
 package com.bendb.thrifty.service;
 
+import com.bendb.thrifty.TType;
 import com.bendb.thrifty.ThriftException;
 import com.bendb.thrifty.protocol.MessageMetadata;
 import com.bendb.thrifty.protocol.Protocol;
+import com.bendb.thrifty.transport.Transport;
+import com.bendb.thrifty.util.ProtocolUtil;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InterruptedIOException;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Implements a basic service client that executes methods asynchronously.
  *
  * <p>Note that, while the client-facing API of this class is callback-based,
- * the implementation itself is <strong>blocking</strong>.  Unlike the Apache
+ * the implementation itself is, by default, <strong>blocking</strong>, using
+ * a reader and a writer thread per client.  Unlike the Apache
  * implementation, there is no presumption made here about framed encoding
  * at the transport level.  If your backend requires framing, be sure to
  * configure your {@link Protocol} and {@link com.bendb.thrifty.transport.Transport}
  * objects appropriately.
+ *
+ * <p>If the protocol's transport is an {@link EventLoopTransport}, the client
+ * starts no threads at all.  Calls are instead encoded, replies decoded and
+ * callbacks invoked on the transport's {@link EventLoopGroup} thread, which
+ * is shared with other clients; callbacks should therefore not block.
+ *
+ * <p>Where callbacks are invoked may be changed with a {@link CallbackDispatch}.
+ *
+ * <p>Calls may be given a timeout, for the client as a whole with
+ * {@link ClientConfig.Builder#callTimeout(long, TimeUnit)} or for one call
+ * with a {@link CallHandle}, which may also cancel its call.  Idempotent
+ * calls may be hedged, with a {@link HedgePolicy}, and identical ones merged,
+ * with a {@link CallCoalescer}.
  */
 public class ClientBase implements Closeable {
     /**
@@ -73,11 +90,50 @@ public class ClientBase implements Closeable {
         void onError(Throwable error);
     }
 
+    /**
+     * Chooses where to send backup attempts of hedged calls.
+     */
+    interface Alternatives {
+        /**
+         * Gets another client to the same servers as the given one, or
+         * {@code null} if there is none.
+         */
+        ClientBase alternativeTo(ClientBase client);
+    }
+
+    /**
+     * The greatest number of calls taken from the outbox at once.
+     */
+    private static final int MAX_BATCH_SIZE = 64;
+
+    /**
+     * The greatest number of abandoned calls whose sequence IDs are
+     * remembered; see {@link #abandoned}.
+     */
+    static final int MAX_ABANDONED = 1024;
+
+    /**
+     * Stands in for calls whose replies are to be discarded.
+     */
+    private static final MethodCall<Void> ABANDONED = new MethodCall<Void>("abandoned", TMessageType.ONEWAY, null) {
+        @Override
+        protected void send(Protocol protocol) {
+            throw new AssertionError();
+        }
+
+        @Override
+        protected Void receive(Protocol protocol, MessageMetadata metadata) {
+            throw new AssertionError();
+        }
+    };
+
     /**
      * A sequence ID generator; contains the most-recently-used
-     * sequence ID (or zero, if no calls have been made).
+     * sequence ID (or zero, if no calls have been made).  Only
+     * the writing thread assigns IDs, holding the lock of the
+     * {@link #inbox}.
      */
-    private final AtomicInteger seqId = new AtomicInteger(0);
+    private int seqId = 0;
 
     /**
      * A flag indicating whether the client is active and connected.
@@ -85,46 +141,181 @@ public class ClientBase implements Closeable {
     private final AtomicBoolean running = new AtomicBoolean(true);
 
     /**
-     * A single-thread executor on which to invoke method callbacks.
+     * Determines where method callbacks are invoked.
+     */
+    private final CallbackDispatch callbackDispatch;
+
+    /**
+     * A single-thread executor on which to invoke method callbacks, if
+     * none was configured; it guarantees that method responses won't
+     * race each other.  Owned, and shut down, by this client.
+     */
+    private final ExecutorService callbackExecutor;
+
+    /**
+     * A queue of method calls waiting to be sent to the server.  Any
+     * thread may enqueue without locking; only the writing thread
+     * dequeues.
+     */
+    private final MpscQueue<MethodCall<?>> outbox = new MpscQueue<>();
+
+    /**
+     * Method calls awaiting response from the server, indexed by
+     * the sequence ID generated when the call was sent.  Replies
+     * may arrive in any order.
      *
-     * <p>I expect that we'll revisit this design choice; it guarantees
-     * that method responses won't race each other, but arguably that's
-     * a higher-level concern, and this does feel a bit heavy-handed.
+     * <p>Only the writing and reading threads touch the inbox, each
+     * once per batch or reply, so its lock is all but uncontended.
+     */
+    private final PendingCalls inbox;
+
+    /**
+     * The sequence IDs of calls that timed out or were cancelled after being
+     * sent, whose replies are yet to arrive and be discarded.  Only the
+     * latest {@link #MAX_ABANDONED} are kept; a server that never answers
+     * would otherwise have them pile up forever.  Guarded by the lock of the
+     * {@link #inbox}, as are the fields that follow.
+     */
+    private final PendingCalls abandoned = new PendingCalls();
+
+    /**
+     * The sequence IDs put in {@link #abandoned}, oldest first, as a ring
+     * starting at {@link #abandonedHead}.  Some may since have been removed
+     * by the arrival of their replies.
+     */
+    private final int[] abandonedOrder = new int[MAX_ABANDONED];
+    private int abandonedHead = 0;
+    private int abandonedCount = 0;
+
+    /**
+     * The greatest sequence ID dropped from {@link #abandoned} to make
+     * room, or zero if none has been.  A reply with an unknown ID no
+     * greater than this is a late one to a forgotten call, and is discarded
+     * like the rest.
+     */
+    private int forgottenSeqId = 0;
+
+    /**
+     * The number of calls enqueued, but not yet completed.
+     */
+    private final AtomicInteger outstanding = new AtomicInteger(0);
+
+    /**
+     * The greatest number of calls that may be in the {@link #inbox} at once.
+     */
+    private final int maxInFlight;
+
+    /**
+     * How long calls may wait for replies, unless overridden; zero if forever.
      */
-    private final ExecutorService callbackExecutor = Executors.newSingleThreadExecutor();
+    private final long callTimeoutNanos;
 
     /**
-     * A queue of method calls waiting to be sent to the server.
+     * Decides when to hedge idempotent calls, or {@code null} if they are
+     * never hedged.
      */
-    private final Queue<MethodCall<?>> outbox = new LinkedList<>();
+    private final HedgePolicy hedgePolicy;
 
     /**
-     * A map of method calls awaiting response from the server,
-     * indexed by the sequence ID generated when the call was
-     * sent.
+     * Merges identical idempotent calls, or {@code null} if they are all sent.
      */
-    private final Map<Integer, MethodCall> inbox = new HashMap<>();
+    private final CallCoalescer coalescer;
 
-    private final Lock lock = new ReentrantLock();
-    private final Condition hasQueuedData = lock.newCondition();
-    private final Condition waitingForReply = lock.newCondition();
+    /**
+     * Where to send backup attempts, if not on this client; set by the
+     * {@link ClientPool} to which this client belongs, if any.
+     */
+    volatile Alternatives alternatives;
+
+    /**
+     * The calls, and their sequence IDs, taken from the outbox to be sent
+     * together.  Only used by the writing thread.
+     */
+    private final MethodCall<?>[] batch = new MethodCall<?>[MAX_BATCH_SIZE];
+    private final int[] batchSeqIds = new int[MAX_BATCH_SIZE];
+
+    /**
+     * Set while the writer thread is parked, or about to park, so that
+     * threads that may have given it work know to wake it.
+     */
+    private volatile boolean writerParked;
+
+    /**
+     * Decides when to flush; the calls written since the last flush are
+     * tracked in {@link #unflushed}, by the writing thread only.
+     */
+    private final FlushPolicy flushPolicy;
+    private final FlushPolicy.Batch unflushed = new FlushPolicy.Batch();
 
     private final Protocol protocol;
     private final Listener listener;
+
+    /**
+     * Whether each message's size is worked out before it is written, for
+     * the flush policy or so that the transport can make room for it.
+     */
+    private final boolean needsSizes;
+
+    // Set when running on dedicated threads
     private final RunLoop writer;
     private final RunLoop reader;
 
+    // Set when running on an event loop
+    private final EventLoopTransport eventLoopTransport;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final Runnable drainOutbox = new DrainOutboxTask();
+    private final Runnable lingeringFlush = new LingeringFlushTask();
+    private boolean lingeringFlushScheduled;
+
     protected ClientBase(Protocol protocol, Listener listener) {
+        this(protocol, listener, ClientConfig.DEFAULT);
+    }
+
+    protected ClientBase(Protocol protocol, Listener listener, ClientConfig config) {
+        if (config == null) {
+            throw new NullPointerException("config");
+        }
+
         this.protocol = protocol;
         this.listener = listener;
-        this.writer = new WriterThread();
-        this.reader = new ReaderThread();
+        this.maxInFlight = config.maxInFlight();
+        this.flushPolicy = config.flushPolicy();
+        this.callTimeoutNanos = config.callTimeout(TimeUnit.NANOSECONDS);
+        this.hedgePolicy = config.hedgePolicy();
+        this.coalescer = config.callCoalescer();
+        this.inbox = new PendingCalls(Math.min(maxInFlight, 1024));
+
+        CallbackDispatch dispatch = config.callbackDispatch();
 
-        writer.setDaemon(true);
-        reader.setDaemon(true);
+        Transport transport = protocol.getTransport();
+        this.needsSizes = flushPolicy.needsSizes() || transport.usesWriteHints();
 
-        writer.start();
-        reader.start();
+        if (transport instanceof EventLoopTransport) {
+            this.eventLoopTransport = (EventLoopTransport) transport;
+            this.callbackExecutor = null;
+            this.callbackDispatch = dispatch != null ? dispatch : CallbackDispatch.inline();
+            this.writer = null;
+            this.reader = null;
+
+            eventLoopTransport.start(new EventLoopHandler());
+        } else {
+            this.eventLoopTransport = null;
+            if (dispatch != null) {
+                this.callbackExecutor = null;
+                this.callbackDispatch = dispatch;
+            } else {
+                this.callbackExecutor = Executors.newSingleThreadExecutor();
+                this.callbackDispatch = CallbackDispatch.executor(callbackExecutor);
+            }
+            this.writer = new WriterThread();
+            this.reader = new ReaderThread();
+
+            writer.setDaemon(true);
+            reader.setDaemon(true);
+
+            writer.start();
+            reader.start();
+        }
     }
 
     /**
@@ -134,23 +325,182 @@ public class ClientBase implements Closeable {
      * @param methodCall the remote method call to be invoked
      */
     protected void enqueue(MethodCall<?> methodCall) {
+        if (methodCall.callback == null && methodCall.callTypeId != TMessageType.ONEWAY) {
+            throw new NullPointerException("callback");
+        }
+
         if (!running.get()) {
             throw new IllegalStateException("Cannot write to a closed service client");
         }
 
-        lock.lock();
-        try {
-            if (!running.get()) {
-                throw new IllegalStateException("Cannot write to a closed service client");
+        if (coalescer != null
+                && methodCall.callTypeId != TMessageType.ONEWAY
+                && !(methodCall.callback instanceof CallHandle)
+                && methodCall.isIdempotent()
+                && coalescer.join(methodCall)) {
+            // An identical call is in flight, and will answer this one too.
+            return;
+        }
+
+        HedgedCall hedge = null;
+        if (hedgePolicy != null
+                && methodCall.callTypeId != TMessageType.ONEWAY
+                && methodCall.isIdempotent()) {
+            hedge = new HedgedCall(hedgePolicy, this, methodCall);
+            methodCall.hedge = hedge;
+        }
+
+        if (submit(methodCall, true) && hedge != null) {
+            hedge.start();
+        }
+    }
+
+    /**
+     * When invoked by a derived instance, answers the given call from the
+     * given cache if it holds an unexpired result for it, and otherwise
+     * places the call in a queue to be sent to the server, its result to be
+     * cached when it arrives.
+     *
+     * <p>Results from the cache are passed to the call's callback as any
+     * other result would be.  Calls made with a {@link CallHandle} bypass
+     * the cache.
+     *
+     * @param methodCall the remote method call to be invoked
+     * @param cache the cache of the call's method
+     */
+    protected <T> void enqueue(MethodCall<T> methodCall, ResponseCache<T> cache) {
+        if (methodCall.callback == null) {
+            throw new NullPointerException("callback");
+        }
+
+        if (!running.get()) {
+            throw new IllegalStateException("Cannot write to a closed service client");
+        }
+
+        if (!(methodCall.callback instanceof CallHandle)) {
+            CallKey key = methodCall.key();
+            if (key != null) {
+                T result = cache.get(key);
+                if (result != null) {
+                    complete(methodCall, result);
+                    return;
+                }
+                methodCall.cacheMiss = new ResponseCache.Miss(cache, key);
             }
+        }
 
-            outbox.add(methodCall);
-            hasQueuedData.signal();
-        } finally {
-            lock.unlock();
+        enqueue(methodCall);
+    }
+
+    /**
+     * Places the backup attempt of a hedged call in the queue.
+     */
+    void enqueueBackup(MethodCall<?> backup) {
+        if (!running.get()) {
+            throw new IllegalStateException("Cannot write to a closed service client");
+        }
+        submit(backup, false);
+    }
+
+    /**
+     * Gets the client on which to send the backup attempt of a call hedged
+     * on this one.
+     */
+    ClientBase alternative() {
+        Alternatives alternatives = this.alternatives;
+        ClientBase alternative = alternatives != null ? alternatives.alternativeTo(this) : null;
+        return alternative != null && alternative.isRunning() ? alternative : this;
+    }
+
+    /**
+     * Places the given call in the outbox, arranging for it to time out if
+     * need be.
+     *
+     * @param bindHandle whether the call's {@link CallHandle}, if any, is to
+     *                   be bound to it; only one attempt of a hedged call
+     *                   can be.
+     * @return false if the call was cancelled before it could be queued, or
+     *         failed because the client closed meanwhile.
+     */
+    private boolean submit(MethodCall<?> methodCall, boolean bindHandle) {
+        CallHandle<?> handle = null;
+        long timeoutNanos = 0;
+        if (methodCall.callTypeId != TMessageType.ONEWAY) {
+            timeoutNanos = callTimeoutNanos;
+            if (methodCall.callback instanceof CallHandle) {
+                handle = (CallHandle<?>) methodCall.callback;
+                if (handle.timeoutNanos() != CallHandle.DEFAULT_TIMEOUT) {
+                    timeoutNanos = handle.timeoutNanos();
+                }
+            }
+
+            if (handle != null || timeoutNanos > 0 || methodCall.hedge != null) {
+                methodCall.state = new CallState(methodCall, timeoutNanos);
+            }
         }
+
+        outstanding.incrementAndGet();
+
+        if (handle != null && bindHandle) {
+            boolean cancelled;
+            try {
+                cancelled = !handle.bind(this, methodCall);
+            } catch (RuntimeException e) {
+                outstanding.decrementAndGet();
+                throw e;
+            }
+
+            if (cancelled) {
+                abandon(methodCall, new CancellationException("Call to " + methodCall.name + " was cancelled"));
+                return false;
+            }
+        }
+
+        if (timeoutNanos > 0) {
+            methodCall.state.timeout = TimerWheel.shared().schedule(
+                    methodCall.state, timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+
+        outbox.offer(methodCall);
+
+        if (!running.get()) {
+            // Closed meanwhile, perhaps too late to find this call; the client
+            // stops running before failing what is queued, so one of the two
+            // will.
+            failPending(null);
+            return false;
+        }
+
+        if (eventLoopTransport != null) {
+            if (drainScheduled.compareAndSet(false, true)) {
+                eventLoopTransport.execute(drainOutbox);
+            }
+        } else if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of calls made on this client that have yet to
+     * complete, whether still queued or awaiting replies.
+     */
+    public int outstandingCalls() {
+        return outstanding.get();
+    }
+
+    /**
+     * Gets whether this client may still be used.
+     */
+    public boolean isRunning() {
+        return running.get();
     }
 
+    /**
+     * Closes the client and its connection.  Calls still queued or awaiting
+     * replies fail with an {@link IOException}; should the connection fail
+     * instead, they fail with its error.
+     */
     @Override
     public void close() throws IOException {
         close(null);
@@ -161,19 +511,18 @@ public class ClientBase implements Closeable {
             return;
         }
 
-        lock.lock();
-        try {
-            outbox.clear();
-            inbox.clear();
-
-            waitingForReply.signalAll();
-            hasQueuedData.signalAll();
-        } finally {
-            lock.unlock();
+        synchronized (inbox) {
+            abandoned.clear();
+            abandonedCount = 0;
         }
 
-        reader.interrupt();
-        writer.interrupt();
+        // Before the callback executor is shut down.
+        failPending(error);
+
+        if (reader != null) {
+            reader.interrupt();
+            writer.interrupt();
+        }
 
         try {
             protocol.close();
@@ -181,10 +530,12 @@ public class ClientBase implements Closeable {
             // nope
         }
 
-        try {
-            callbackExecutor.shutdown();
-        } catch (Exception ignored) {
-            // nope
+        if (callbackExecutor != null) {
+            try {
+                callbackExecutor.shutdown();
+            } catch (Exception ignored) {
+                // nope
+            }
         }
 
         // Listener callbacks need to be synchronous - we have just
@@ -198,6 +549,63 @@ public class ClientBase implements Closeable {
         }
     }
 
+    /**
+     * Fails every call still queued or awaiting its reply, the client having
+     * stopped running.  Each call fails once, whether here, by timing out or
+     * being cancelled, or with its reply.
+     *
+     * @param error the error that closed the client, or {@code null} if it
+     *              was closed on purpose.
+     */
+    private void failPending(Throwable error) {
+        List<MethodCall<?>> pending = new ArrayList<>();
+        synchronized (inbox) {
+            // The writing thread takes calls from the outbox holding this
+            // lock, so taking them here too is safe.
+            inbox.drainTo(pending);
+            MethodCall<?> call;
+            while ((call = outbox.poll()) != null) {
+                pending.add(call);
+            }
+
+            for (int i = pending.size() - 1; i >= 0; --i) {
+                CallState state = pending.get(i).state;
+                if (state != null) {
+                    if (state.abandoned) {
+                        // Already failed.
+                        pending.remove(i);
+                        continue;
+                    }
+                    state.abandoned = true;
+                }
+            }
+        }
+
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        Throwable reason = error != null ? error : new IOException("The client was closed");
+        for (MethodCall<?> call : pending) {
+            if (call.state != null) {
+                call.state.cancelTimeout();
+            }
+            outstanding.decrementAndGet();
+
+            if (call.callback == null) {
+                // Oneway, and unsent.
+                continue;
+            }
+
+            try {
+                fail(call, reason);
+            } catch (RejectedExecutionException e) {
+                // The callback executor has been shut down.
+                invokeError(call, reason);
+            }
+        }
+    }
+
     private abstract class RunLoop extends Thread {
         @Override
         public void run() {
@@ -226,139 +634,547 @@ public class ClientBase implements Closeable {
     }
 
     private class WriterThread extends RunLoop {
-        @SuppressWarnings("Duplicates")
         @Override
         void act() throws Exception {
-            final MethodCall call;
-
-            lock.lock();
-            try {
-                while (outbox.isEmpty()) {
-                    hasQueuedData.await();
-
-                    if (!running.get()) {
+            int count = takeBatch();
+            if (count == 0) {
+                // Nothing more can be sent now.  Flush, unless the policy
+                // would rather wait a while for more calls to share it.
+                long waitNanos = 0; // indefinitely
+                if (!unflushed.isEmpty()) {
+                    waitNanos = flushDelayNanos();
+                    if (waitNanos <= 0) {
+                        flush();
                         return;
                     }
                 }
 
-                call = outbox.remove();
-            } finally {
-                lock.unlock();
+                // Announce the intent to park before checking once more, so
+                // that a call enqueued or a slot freed in the meantime cannot
+                // be missed.
+                writerParked = true;
+                try {
+                    count = takeBatch();
+                    if (count == 0) {
+                        if (waitNanos > 0) {
+                            LockSupport.parkNanos(this, waitNanos);
+                        } else {
+                            LockSupport.park(this);
+                        }
+                        return;
+                    }
+                } finally {
+                    writerParked = false;
+                }
             }
 
-            boolean isOneWay = call.callTypeId == TMessageType.ONEWAY;
-            int sid = seqId.incrementAndGet();
+            sendBatch(count);
+        }
+    }
 
-            protocol.writeMessageBegin(call.name, call.callTypeId, sid);
-            call.send(protocol);
-            protocol.writeMessageEnd();
+    private class ReaderThread extends RunLoop {
+        @Override
+        void act() throws Exception {
+            receive();
+        }
+    }
 
-            // Small messages may be lingering in a send buffer, but too
-            // many flushes are not good.  As a first guess at an heuristic
-            // to improve latency, only flush if there are no more queued
-            // method calls.
-            boolean hasMoreCalls;
+    /**
+     * Sends queued calls on the event-loop thread until the queue is empty or
+     * the in-flight limit is reached, then flushes or arranges to flush.
+     */
+    private class DrainOutboxTask implements Runnable {
+        @Override
+        public void run() {
+            // Cleared first, so that calls enqueued while draining schedule
+            // another run rather than being missed.
+            drainScheduled.set(false);
 
-            lock.lock();
             try {
-                hasMoreCalls = !outbox.isEmpty();
-            } finally {
-                lock.unlock();
+                int count;
+                while (running.get() && (count = takeBatch()) > 0) {
+                    sendBatch(count);
+                }
+                flushOrLinger();
+            } catch (Exception e) {
+                close(e);
             }
+        }
+    }
 
-            if (!hasMoreCalls) {
-                protocol.flush();
+    /**
+     * Flushes on the event-loop thread once the flush policy has lingered
+     * long enough.
+     */
+    private class LingeringFlushTask implements Runnable {
+        @Override
+        public void run() {
+            lingeringFlushScheduled = false;
+
+            try {
+                flushOrLinger();
+            } catch (Exception e) {
+                close(e);
             }
+        }
+    }
 
-            if (isOneWay) {
-                // null is always safe to pass here - oneway methods
-                // are guaranteed to be Void anyways.
-                //noinspection unchecked
-                complete(call, null);
-            } else {
-                lock.lock();
-                try {
-                    MethodCall<?> oldCall = inbox.put(sid, call);
-                    if (oldCall != null) {
-                        throw new IllegalStateException("Reused sequence ID! (id=" + sid + ")");
+    private class EventLoopHandler implements EventLoopTransport.Handler {
+        @Override
+        public void onFrame() throws Exception {
+            receive();
+        }
+
+        @Override
+        public void onClosed(Throwable error) {
+            close(error);
+        }
+    }
+
+    /**
+     * Takes as many calls from the outbox as may be sent now, up to
+     * {@link #MAX_BATCH_SIZE}, assigning their sequence IDs and registering
+     * those expecting replies in the inbox.  Registration happens before
+     * writing, so that a prompt reply cannot arrive ahead of its call.
+     *
+     * <p>Only ever called from a single thread at a time: the writer thread,
+     * or the event-loop thread.
+     *
+     * @return the number of calls taken into {@link #batch}.
+     */
+    private int takeBatch() {
+        if (outbox.isEmpty()) {
+            return 0;
+        }
+
+        int count = 0;
+        synchronized (inbox) {
+            MethodCall<?> call;
+            while (count < MAX_BATCH_SIZE && (call = outbox.peek()) != null) {
+                CallState state = call.state;
+                if (state != null && state.abandoned) {
+                    // Already failed; it will never be sent.
+                    outbox.poll();
+                    continue;
+                }
+
+                boolean isOneWay = call.callTypeId == TMessageType.ONEWAY;
+                if (!isOneWay && inbox.size() >= maxInFlight) {
+                    break;
+                }
+
+                outbox.poll();
+
+                int sid = ++seqId;
+                if (!isOneWay) {
+                    inbox.put(sid, call);
+                    if (state != null) {
+                        state.sent = true;
+                        state.seqId = sid;
                     }
-                    waitingForReply.signal();
-                } finally {
-                    lock.unlock();
                 }
+
+                batch[count] = call;
+                batchSeqIds[count] = sid;
+                count++;
             }
         }
+        return count;
     }
 
-    private class ReaderThread extends RunLoop {
-        @SuppressWarnings("Duplicates")
-        @Override
-        void act() throws Exception {
-            MessageMetadata metadata = protocol.readMessageBegin();
+    /**
+     * Writes the first {@code count} calls of the {@link #batch} to the
+     * server, without flushing.
+     */
+    private void sendBatch(int count) throws IOException {
+        Transport transport = protocol.getTransport();
+        for (int i = 0; i < count; ++i) {
+            MethodCall<?> call = batch[i];
+            batch[i] = null;
 
-            MethodCall call;
-            lock.lock();
-            try {
-                call = inbox.remove(metadata.seqId);
-            } finally {
-                lock.unlock();
+            int size = needsSizes ? sizeOf(call, batchSeqIds[i]) : 0;
+            if (size > 0) {
+                transport.expectWrite(size);
             }
 
+            protocol.writeMessageBegin(call.name, call.callTypeId, batchSeqIds[i]);
+            call.send(protocol);
+            protocol.writeMessageEnd();
+
+            unflushed.recordWrite(size, System.nanoTime());
+            if (flushPolicy.shouldFlush(unflushed)) {
+                flush();
+            }
+
+            if (call.callTypeId == TMessageType.ONEWAY) {
+                outstanding.decrementAndGet();
+                if (call.callback != null) {
+                    // null is always safe to pass here - oneway methods
+                    // are guaranteed to be Void anyways.
+                    complete(call, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the encoded size of the given call as a message, or zero if it
+     * cannot be computed.
+     */
+    private int sizeOf(MethodCall<?> call, int sid) {
+        try {
+            int size = call.sizeOf(protocol);
+            if (size < 0) {
+                return 0;
+            }
+            return size + protocol.sizeOfMessageBegin(call.name, call.callTypeId, sid);
+        } catch (UnsupportedOperationException e) {
+            return 0;
+        }
+    }
+
+    private void flush() throws IOException {
+        protocol.flush();
+        unflushed.flushed();
+    }
+
+    /**
+     * Gets how much longer the flush policy would wait before flushing the
+     * calls written so far, if nothing more is sent.
+     */
+    private long flushDelayNanos() {
+        long deadline = unflushed.firstWriteNanos + flushPolicy.lingerNanos(unflushed);
+        return deadline - System.nanoTime();
+    }
+
+    /**
+     * Flushes, on the event-loop thread, if the flush policy is done waiting
+     * for more calls; otherwise, arranges to check again when it will be.
+     */
+    private void flushOrLinger() throws IOException {
+        if (!running.get() || unflushed.isEmpty()) {
+            return;
+        }
+
+        long waitNanos = flushDelayNanos();
+        if (waitNanos <= 0) {
+            flush();
+        } else if (!lingeringFlushScheduled) {
+            lingeringFlushScheduled = true;
+            eventLoopTransport.schedule(lingeringFlush, waitNanos);
+        }
+    }
+
+    /**
+     * Reads one reply from the server, and completes its call.  Only ever
+     * called from a single thread at a time: the reader thread, or the
+     * event-loop thread.
+     */
+    private void receive() throws Exception {
+        MessageMetadata metadata = protocol.readMessageBegin();
+
+        MethodCall<?> call;
+        boolean wasAbandoned = false;
+        boolean freedLastSlot;
+        synchronized (inbox) {
+            call = inbox.remove(metadata.seqId);
             if (call == null) {
-                throw new ThriftException(
-                        ThriftException.Kind.BAD_SEQUENCE_ID,
-                        "Unrecognized sequence ID");
+                wasAbandoned = wasAbandoned(metadata.seqId);
             }
+            freedLastSlot = call != null && inbox.size() == maxInFlight - 1;
+        }
+
+        if (freedLastSlot) {
+            slotFreed();
+        }
 
-            if (metadata.type == TMessageType.EXCEPTION) {
-                ThriftException e = ThriftException.read(protocol);
-                fail(call, e);
-                protocol.readMessageEnd();
-            } else if (metadata.type != TMessageType.REPLY) {
-                throw new ThriftException(
-                        ThriftException.Kind.INVALID_MESSAGE_TYPE,
-                        "Invalid message type: " + metadata.type);
+        if (wasAbandoned) {
+            // Too late; the call has already failed.
+            ProtocolUtil.skip(protocol, TType.STRUCT);
+            protocol.readMessageEnd();
+            return;
+        }
+
+        if (call == null) {
+            throw new ThriftException(
+                    ThriftException.Kind.BAD_SEQUENCE_ID,
+                    "Unrecognized sequence ID");
+        }
+
+        if (call.state != null) {
+            call.state.cancelTimeout();
+        }
+
+        outstanding.decrementAndGet();
+
+        if (metadata.type == TMessageType.EXCEPTION) {
+            ThriftException e = ThriftException.read(protocol);
+            protocol.readMessageEnd();
+            fail(call, e);
+            return;
+        } else if (metadata.type != TMessageType.REPLY) {
+            throw new ThriftException(
+                    ThriftException.Kind.INVALID_MESSAGE_TYPE,
+                    "Invalid message type: " + metadata.type);
+        }
+
+        if (!metadata.name.equals(call.name)) {
+            throw new ThriftException(
+                    ThriftException.Kind.WRONG_METHOD_NAME,
+                    "Unexpected method name in reply; expected " + call.name
+                            + " but received " + metadata.name);
+        }
+
+        try {
+            complete(call, call.receive(protocol, metadata));
+        } catch (Exception e) {
+            fail(call, e);
+        } finally {
+            protocol.readMessageEnd();
+        }
+    }
+
+    /**
+     * Wakes the writer, which may be waiting for exactly the slot in the
+     * inbox that was just freed.
+     */
+    private void slotFreed() {
+        if (eventLoopTransport != null) {
+            if (!outbox.isEmpty() && drainScheduled.compareAndSet(false, true)) {
+                eventLoopTransport.execute(drainOutbox);
             }
+        } else if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
 
-            if (metadata.seqId != seqId.get()) {
-                throw new ThriftException(
-                        ThriftException.Kind.BAD_SEQUENCE_ID,
-                        "Out-of-order response");
+    /**
+     * Fails the given call with the given error, unless it has already
+     * completed, and frees its slot in the inbox.  Its reply, should one
+     * arrive, is discarded.  May be called from any thread.
+     *
+     * @return true if the call was failed.
+     */
+    boolean abandon(MethodCall<?> call, Throwable error) {
+        CallState state = call.state;
+        if (state == null) {
+            return false;
+        }
+
+        boolean freedLastSlot = false;
+        synchronized (inbox) {
+            if (!running.get() || state.abandoned) {
+                return false;
             }
 
-            if (!metadata.name.equals(call.name)) {
-                throw new ThriftException(
-                        ThriftException.Kind.WRONG_METHOD_NAME,
-                        "Unexpected method name in reply; expected " + call.name
-                                + " but received " + metadata.name);
+            if (state.sent) {
+                if (inbox.remove(state.seqId) == null) {
+                    // The reply won.
+                    return false;
+                }
+                rememberAbandoned(state.seqId);
+                freedLastSlot = inbox.size() == maxInFlight - 1;
             }
+            state.abandoned = true;
+        }
 
-            try {
-                complete(call, call.receive(protocol, metadata));
-            } catch (Exception e) {
-                fail(call, e);
-            } finally {
-                protocol.readMessageEnd();
+        state.cancelTimeout();
+        outstanding.decrementAndGet();
+
+        if (freedLastSlot) {
+            slotFreed();
+        }
+
+        if (eventLoopTransport != null && callbackDispatch.isInline()) {
+            // Keep callbacks on the event-loop thread.
+            final MethodCall<?> failed = call;
+            final Throwable reason = error;
+            eventLoopTransport.execute(new Runnable() {
+                @Override
+                public void run() {
+                    invokeError(failed, reason);
+                }
+            });
+        } else {
+            fail(call, error);
+        }
+        return true;
+    }
+
+    /**
+     * Records that the reply to the given sent call is to be discarded,
+     * forgetting the oldest such call if there are too many.  Must hold the
+     * lock of the {@link #inbox}.
+     */
+    private void rememberAbandoned(int sid) {
+        if (abandonedCount == MAX_ABANDONED) {
+            int oldest = abandonedOrder[abandonedHead];
+            abandonedHead = (abandonedHead + 1) % MAX_ABANDONED;
+            abandonedCount--;
+
+            // IDs may wrap around, so compare them by difference.
+            if (abandoned.remove(oldest) != null
+                    && (forgottenSeqId == 0 || oldest - forgottenSeqId > 0)) {
+                forgottenSeqId = oldest;
             }
         }
+
+        abandonedOrder[(abandonedHead + abandonedCount) % MAX_ABANDONED] = sid;
+        abandonedCount++;
+        abandoned.put(sid, ABANDONED);
+    }
+
+    /**
+     * Determines whether the reply with the given sequence ID, which matches
+     * no call in the inbox, belongs to an abandoned call.  Must hold the lock
+     * of the {@link #inbox}.
+     */
+    private boolean wasAbandoned(int sid) {
+        if (abandoned.remove(sid) != null) {
+            return true;
+        }
+
+        // Its call may have been forgotten; it must at least have been sent.
+        return forgottenSeqId != 0
+                && sid - forgottenSeqId <= 0
+                && seqId - sid >= 0;
     }
 
-    private void complete(final MethodCall call, final Object result) {
-        callbackExecutor.submit(new Runnable() {
-            @SuppressWarnings("unchecked")
+    /**
+     * Tracks a call that may time out or be cancelled.  The sequence ID and
+     * flags are guarded by the lock of the {@link #inbox}.
+     */
+    final class CallState implements Runnable {
+        private final MethodCall<?> call;
+        private final long timeoutNanos;
+
+        volatile TimerWheel.Timeout timeout;
+
+        boolean sent;
+        int seqId;
+        boolean abandoned;
+
+        CallState(MethodCall<?> call, long timeoutNanos) {
+            this.call = call;
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        /**
+         * Invoked by the timer when the call runs out of time.
+         */
+        @Override
+        public void run() {
+            long millis = TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+            abandon(call, new TimeoutException("Call to " + call.name + " timed out after " + millis + " ms"));
+        }
+
+        void cancelTimeout() {
+            TimerWheel.Timeout timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+    }
+
+    private void complete(final MethodCall<?> call, final Object result) {
+        if (callbackDispatch.isInline()) {
+            invokeSuccess(call, result);
+            return;
+        }
+
+        callbackDispatch.dispatch(call, new Runnable() {
             @Override
             public void run() {
-                call.callback.onSuccess(result);
+                invokeSuccess(call, result);
             }
         });
     }
 
     private void fail(final MethodCall<?> call, final Throwable error) {
-        callbackExecutor.submit(new Runnable() {
+        if (callbackDispatch.isInline()) {
+            invokeError(call, error);
+            return;
+        }
+
+        callbackDispatch.dispatch(call, new Runnable() {
             @Override
             public void run() {
-                call.callback.onError(error);
+                invokeError(call, error);
             }
         });
     }
+
+    // A throwing callback affects neither the client nor other callbacks.
+
+    private static void invokeSuccess(MethodCall<?> call, Object result) {
+        if (call.hedge != null && !call.hedge.onOutcome(call, null)) {
+            return;
+        }
+        deliverSuccess(call, result);
+    }
+
+    private static void invokeError(MethodCall<?> call, Throwable error) {
+        if (call.hedge != null && !call.hedge.onOutcome(call, error)) {
+            return;
+        }
+        deliverError(call, error);
+    }
+
+    /**
+     * Passes a call's result to its callback, and to those of any calls
+     * merged with it, having cached it if the call missed a cache.
+     */
+    static void deliverSuccess(MethodCall<?> call, Object result) {
+        if (call.cacheMiss != null) {
+            call.cacheMiss.store(result);
+        }
+
+        List<ServiceMethodCallback<?>> followers = call.coalesced != null
+                ? call.coalesced.complete()
+                : null;
+
+        invokeSuccess(call.callback, result);
+        if (followers != null) {
+            for (ServiceMethodCallback<?> follower : followers) {
+                invokeSuccess(follower, result);
+            }
+        }
+    }
+
+    /**
+     * Passes a call's error to its callback, and to those of any calls
+     * merged with it.
+     */
+    static void deliverError(MethodCall<?> call, Throwable error) {
+        List<ServiceMethodCallback<?>> followers = call.coalesced != null
+                ? call.coalesced.complete()
+                : null;
+
+        invokeError(call.callback, error);
+        if (followers != null) {
+            for (ServiceMethodCallback<?> follower : followers) {
+                invokeError(follower, error);
+            }
+        }
+    }
+
+    private static void invokeSuccess(ServiceMethodCallback<?> callback, Object result) {
+        // The result was read, or cached, by the call that this callback
+        // was given with, or by an identical one, so it is of the right type.
+        @SuppressWarnings("unchecked")
+        ServiceMethodCallback<Object> cb = (ServiceMethodCallback<Object>) callback;
+        try {
+            cb.onSuccess(result);
+        } catch (Exception ignored) {
+            // nope
+        }
+    }
+
+    private static void invokeError(ServiceMethodCallback<?> callback, Throwable error) {
+        try {
+            callback.onError(error);
+        } catch (Exception ignored) {
+            // nope
+        }
+    }
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Options controlling the behavior of a service client.
+ *
+ * <p>Instances are immutable, and may be shared among clients.
+ */
+public final class ClientConfig {
+    /**
+     * The configuration used by clients constructed without one.
+     */
+    public static final ClientConfig DEFAULT = new Builder().build();
+
+    private final int maxInFlight;
+    private final CallbackDispatch callbackDispatch;
+    private final FlushPolicy flushPolicy;
+    private final long callTimeoutNanos;
+    private final HedgePolicy hedgePolicy;
+    private final CallCoalescer callCoalescer;
+
+    private ClientConfig(Builder builder) {
+        this.maxInFlight = builder.maxInFlight;
+        this.callbackDispatch = builder.callbackDispatch;
+        this.flushPolicy = builder.flushPolicy;
+        this.callTimeoutNanos = builder.callTimeoutNanos;
+        this.hedgePolicy = builder.hedgePolicy;
+        this.callCoalescer = builder.callCoalescer;
+    }
+
+    /**
+     * Gets the greatest number of calls that may be awaiting replies at once.
+     */
+    public int maxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Gets the means by which callbacks are invoked, or {@code null} if the
+     * client's default is used.
+     */
+    public CallbackDispatch callbackDispatch() {
+        return callbackDispatch;
+    }
+
+    /**
+     * Gets the policy deciding when written calls are flushed.
+     */
+    public FlushPolicy flushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * Gets how long each call may take before failing, in the given unit, or
+     * zero if calls never time out.
+     */
+    public long callTimeout(TimeUnit unit) {
+        return unit.convert(callTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the policy by which idempotent calls are hedged, or {@code null}
+     * if they are not.
+     */
+    public HedgePolicy hedgePolicy() {
+        return hedgePolicy;
+    }
+
+    /**
+     * Gets the coalescer by which identical idempotent calls are merged, or
+     * {@code null} if they are not.
+     */
+    public CallCoalescer callCoalescer() {
+        return callCoalescer;
+    }
+
+    public static final class Builder {
+        private int maxInFlight = Integer.MAX_VALUE;
+        private CallbackDispatch callbackDispatch;
+        private FlushPolicy flushPolicy = FlushPolicy.whenIdle();
+        private long callTimeoutNanos;
+        private HedgePolicy hedgePolicy;
+        private CallCoalescer callCoalescer;
+
+        public Builder() {
+        }
+
+        public Builder(ClientConfig config) {
+            this.maxInFlight = config.maxInFlight;
+            this.callbackDispatch = config.callbackDispatch;
+            this.flushPolicy = config.flushPolicy;
+            this.callTimeoutNanos = config.callTimeoutNanos;
+            this.hedgePolicy = config.hedgePolicy;
+            this.callCoalescer = config.callCoalescer;
+        }
+
+        /**
+         * Limits the number of calls that may be awaiting replies at once.
+         * Calls made beyond the limit are queued, and sent as earlier calls
+         * complete.  Oneway calls do not count towards the limit.
+         *
+         * <p>By default, there is no limit.  A limit of one disables
+         * pipelining altogether.
+         */
+        public Builder maxInFlight(int maxInFlight) {
+            if (maxInFlight <= 0) {
+                throw new IllegalArgumentException("maxInFlight must be positive");
+            }
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Sets the means by which callbacks are invoked.
+         *
+         * <p>By default, each client invokes callbacks in reply order on a
+         * thread of its own, or on its event-loop thread if it has one.
+         */
+        public Builder callbackDispatch(CallbackDispatch callbackDispatch) {
+            if (callbackDispatch == null) {
+                throw new NullPointerException("callbackDispatch");
+            }
+            this.callbackDispatch = callbackDispatch;
+            return this;
+        }
+
+        /**
+         * Sets the policy deciding when written calls are flushed.  Defaults
+         * to {@link FlushPolicy#whenIdle()}.
+         */
+        public Builder flushPolicy(FlushPolicy flushPolicy) {
+            if (flushPolicy == null) {
+                throw new NullPointerException("flushPolicy");
+            }
+            this.flushPolicy = flushPolicy;
+            return this;
+        }
+
+        /**
+         * Limits how long each call may wait for its reply, counting from
+         * when it is made.  A call that runs out of time fails with a
+         * {@link java.util.concurrent.TimeoutException}, and no longer counts
+         * towards {@link #maxInFlight(int)}; the connection itself is
+         * unaffected.  Individual calls may override the limit with a
+         * {@link CallHandle}.
+         *
+         * <p>Timeouts are checked about every ten milliseconds, by a thread
+         * shared among all clients.  By default, and with a timeout of zero,
+         * calls never time out.
+         */
+        public Builder callTimeout(long timeout, TimeUnit unit) {
+            if (timeout < 0) {
+                throw new IllegalArgumentException("timeout cannot be negative");
+            }
+            this.callTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * Sets the policy by which calls to idempotent methods are hedged.
+         * By default, calls are never hedged.
+         */
+        public Builder hedgePolicy(HedgePolicy hedgePolicy) {
+            if (hedgePolicy == null) {
+                throw new NullPointerException("hedgePolicy");
+            }
+            this.hedgePolicy = hedgePolicy;
+            return this;
+        }
+
+        /**
+         * Sets the coalescer by which identical calls to idempotent methods,
+         * made while one is awaiting its reply, are merged.  By default,
+         * every call is sent.
+         */
+        public Builder callCoalescer(CallCoalescer callCoalescer) {
+            if (callCoalescer == null) {
+                throw new NullPointerException("callCoalescer");
+            }
+            this.callCoalescer = callCoalescer;
+            return this;
+        }
+
+        public ClientConfig build() {
+            return new ClientConfig(this);
+        }
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Spreads calls to one endpoint over several connections, each with its own
+ * client.
+ *
+ * <p>A single client serializes all of its calls on one connection, with
+ * one thread writing.  A pool instead hands out, for each call, whichever of
+ * its clients has the fewest calls outstanding:
+ *
+ * <pre>{@code
+ * ClientPool<FooClient> pool = new ClientPool.Builder<>(new ClientPool.Factory<FooClient>() {
+ *     public FooClient create(ClientBase.Listener listener) throws IOException {
+ *         SocketTransport transport = new SocketTransport.Builder("host", 9090).build();
+ *         transport.connect();
+ *         return new FooClient(new CompactProtocol(transport), listener);
+ *     }
+ * }).maxConnections(8).build();
+ *
+ * pool.client().bar(42, callback);
+ * }</pre>
+ *
+ * <p>The pool grows with load: when even the least busy client has
+ * {@linkplain Builder#growThreshold(int) enough calls outstanding}, another
+ * connection is opened, up to {@linkplain Builder#maxConnections(int) a
+ * limit}.  Connections left idle for {@linkplain Builder#idleTimeout(long,
+ * TimeUnit) long enough} are closed, down to
+ * {@linkplain Builder#minConnections(int) a minimum}.  A client that fails
+ * is dropped from the pool at once, and replaced as it is needed; calls
+ * already made on it, whether sent or still queued, fail with its error.
+ *
+ * <p>Connections are opened on the thread calling {@link #client()}, one at
+ * a time; while one is opening, other callers use the clients already open
+ * rather than waiting, unless there are none.
+ *
+ * <p>Clients configured with a {@link HedgePolicy} send backup attempts to
+ * the least busy of the pool's other clients.
+ */
+public final class ClientPool<C extends ClientBase> implements Closeable {
+    /**
+     * Opens new connections.
+     */
+    public interface Factory<C extends ClientBase> {
+        /**
+         * Creates a client over a newly-opened connection.
+         *
+         * @param listener the listener that the client must be given, so that
+         *                 the pool learns when it fails.
+         */
+        C create(ClientBase.Listener listener) throws IOException;
+    }
+
+    private final Factory<C> factory;
+    private final int minConnections;
+    private final int maxConnections;
+    private final int growThreshold;
+    private final long idleTimeoutNanos;
+
+    /**
+     * The clients to choose among.  Replaced wholesale on every change, so
+     * that choosing never locks.
+     */
+    private final List<Entry> entries = new CopyOnWriteArrayList<>();
+
+    /**
+     * Clients no longer chosen, to be closed once their calls complete.
+     * Guarded by {@link #growLock}.
+     */
+    private final List<Entry> retired = new ArrayList<>();
+
+    /**
+     * Held while opening a connection, and while sweeping for idle ones.
+     */
+    private final ReentrantLock growLock = new ReentrantLock();
+
+    /**
+     * Rotates the starting point of each search, so that ties are broken
+     * fairly.
+     */
+    private final AtomicInteger nextStart = new AtomicInteger(0);
+
+    /**
+     * Directs the backups of calls hedged on one client to another.
+     */
+    private final ClientBase.Alternatives alternatives = new ClientBase.Alternatives() {
+        @Override
+        public ClientBase alternativeTo(ClientBase client) {
+            Entry entry = leastLoaded(client);
+            return entry != null ? entry.client : null;
+        }
+    };
+
+    private volatile long nextSweepNanos;
+    private volatile boolean closed;
+
+    private ClientPool(Builder<C> builder) {
+        this.factory = builder.factory;
+        this.minConnections = builder.minConnections;
+        this.maxConnections = builder.maxConnections;
+        this.growThreshold = builder.growThreshold;
+        this.idleTimeoutNanos = builder.idleTimeoutNanos;
+        this.nextSweepNanos = System.nanoTime() + idleTimeoutNanos;
+    }
+
+    /**
+     * Gets the client on which to make the next call: the one with the
+     * fewest calls outstanding, or a new one if the pool is due to grow.
+     *
+     * @throws IOException if the pool is empty, and a new connection cannot
+     *                     be opened.
+     */
+    public C client() throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Cannot use a closed pool");
+        }
+
+        long now = System.nanoTime();
+
+        Entry best = leastLoaded();
+        if (best == null) {
+            best = grow(true);
+        } else if (shouldGrow(best)) {
+            Entry created = grow(false);
+            if (created != null) {
+                best = created;
+            }
+        }
+
+        best.lastUsedNanos = now;
+
+        if (now - nextSweepNanos >= 0) {
+            sweep(now);
+        }
+
+        return best.client;
+    }
+
+    /**
+     * Gets the number of clients currently in use by the pool.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Closes every client in the pool.  Calls outstanding on them fail with
+     * an {@link IOException}.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        List<Entry> toClose = new ArrayList<>();
+        growLock.lock();
+        try {
+            toClose.addAll(entries);
+            toClose.addAll(retired);
+            entries.clear();
+            retired.clear();
+        } finally {
+            growLock.unlock();
+        }
+
+        for (Entry entry : toClose) {
+            entry.closeQuietly();
+        }
+    }
+
+    private Entry leastLoaded() {
+        return leastLoaded(null);
+    }
+
+    /**
+     * Gets the running client with the fewest calls outstanding, other than
+     * {@code excluded}.
+     */
+    private Entry leastLoaded(ClientBase excluded) {
+        Object[] snapshot = entries.toArray();
+        int count = snapshot.length;
+        if (count == 0) {
+            return null;
+        }
+
+        int start = (nextStart.getAndIncrement() & Integer.MAX_VALUE) % count;
+        Entry best = null;
+        int bestOutstanding = Integer.MAX_VALUE;
+        for (int i = 0; i < count; ++i) {
+            @SuppressWarnings("unchecked")
+            Entry entry = (Entry) snapshot[(start + i) % count];
+            if (entry.client == excluded || !entry.client.isRunning()) {
+                continue;
+            }
+
+            int outstanding = entry.client.outstandingCalls();
+            if (outstanding < bestOutstanding) {
+                best = entry;
+                bestOutstanding = outstanding;
+                if (outstanding == 0) {
+                    break;
+                }
+            }
+        }
+        return best;
+    }
+
+    private boolean shouldGrow(Entry best) {
+        int size = entries.size();
+        return size < minConnections
+                || (size < maxConnections && best.client.outstandingCalls() >= growThreshold);
+    }
+
+    /**
+     * Opens a new connection and adds its client to the pool.
+     *
+     * @param required whether to wait for another thread's connection
+     *                 attempt, rather than giving up.
+     * @return the new entry, or {@code null} if none was needed or another
+     *         thread was already opening one.
+     */
+    private Entry grow(boolean required) throws IOException {
+        if (required) {
+            growLock.lock();
+        } else if (!growLock.tryLock()) {
+            return null;
+        }
+
+        try {
+            if (closed) {
+                throw new IllegalStateException("Cannot use a closed pool");
+            }
+
+            // Another thread may have grown the pool while we waited.
+            Entry best = leastLoaded();
+            if (best != null && !shouldGrow(best)) {
+                return required ? best : null;
+            }
+
+            Entry entry = new Entry();
+            entry.client = factory.create(entry);
+            if (entry.client == null) {
+                throw new NullPointerException("Factory returned a null client");
+            }
+
+            entry.client.alternatives = alternatives;
+
+            entries.add(entry);
+            if (!entry.client.isRunning()) {
+                // Failed before it could even be added
+                entries.remove(entry);
+                throw new IOException("Client closed as soon as it was opened");
+            }
+            return entry;
+        } finally {
+            growLock.unlock();
+        }
+    }
+
+    /**
+     * Retires clients left idle for too long, and closes retired clients
+     * with nothing outstanding.
+     */
+    private void sweep(long now) {
+        if (!growLock.tryLock()) {
+            return;
+        }
+
+        List<Entry> toClose = new ArrayList<>();
+        try {
+            nextSweepNanos = now + Math.max(idleTimeoutNanos / 4, 1);
+
+            // Closed only once idle, and retired for a full sweep, so that
+            // a caller that chose a client just before its retirement has
+            // had ample time to make its call.
+            for (int i = retired.size() - 1; i >= 0; --i) {
+                Entry entry = retired.get(i);
+                if (!entry.client.isRunning()
+                        || (entry.client.outstandingCalls() == 0
+                                && now - entry.lastUsedNanos >= idleTimeoutNanos)) {
+                    retired.remove(i);
+                    toClose.add(entry);
+                }
+            }
+
+            int size = entries.size();
+            for (Entry entry : entries) {
+                if (size <= minConnections) {
+                    break;
+                }
+
+                if (entry.client.outstandingCalls() == 0
+                        && now - entry.lastUsedNanos >= idleTimeoutNanos) {
+                    entries.remove(entry);
+                    entry.lastUsedNanos = now;
+                    retired.add(entry);
+                    size--;
+                }
+            }
+        } finally {
+            growLock.unlock();
+        }
+
+        for (Entry entry : toClose) {
+            entry.closeQuietly();
+        }
+    }
+
+    /**
+     * A client in the pool, which also listens for its failure.
+     */
+    private final class Entry implements ClientBase.Listener {
+        C client;
+        volatile long lastUsedNanos = System.nanoTime();
+
+        @Override
+        public void onTransportClosed() {
+            remove();
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            remove();
+        }
+
+        private void remove() {
+            // If retired instead, the next sweep will find it closed.
+            entries.remove(this);
+        }
+
+        void closeQuietly() {
+            try {
+                client.close();
+            } catch (IOException ignored) {
+                // nope
+            }
+        }
+    }
+
+    public static final class Builder<C extends ClientBase> {
+        private final Factory<C> factory;
+        private int minConnections = 1;
+        private int maxConnections = Runtime.getRuntime().availableProcessors();
+        private int growThreshold = 16;
+        private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(60);
+
+        public Builder(Factory<C> factory) {
+            if (factory == null) {
+                throw new NullPointerException("factory");
+            }
+            this.factory = factory;
+        }
+
+        /**
+         * Sets the number of connections below which the pool does not
+         * shrink.  Defaults to one.
+         */
+        public Builder<C> minConnections(int minConnections) {
+            if (minConnections < 1) {
+                throw new IllegalArgumentException("minConnections must be positive");
+            }
+            this.minConnections = minConnections;
+            return this;
+        }
+
+        /**
+         * Sets the number of connections beyond which the pool does not
+         * grow.  Defaults to the number of available processors.
+         */
+        public Builder<C> maxConnections(int maxConnections) {
+            if (maxConnections < 1) {
+                throw new IllegalArgumentException("maxConnections must be positive");
+            }
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /**
+         * Sets the number of calls outstanding on the least busy client at
+         * which the pool opens another connection.  Defaults to 16.
+         */
+        public Builder<C> growThreshold(int growThreshold) {
+            if (growThreshold < 1) {
+                throw new IllegalArgumentException("growThreshold must be positive");
+            }
+            this.growThreshold = growThreshold;
+            return this;
+        }
+
+        /**
+         * Sets how long a connection beyond the minimum may go unused
+         * before it is closed.  Defaults to one minute.
+         */
+        public Builder<C> idleTimeout(long idleTimeout, TimeUnit unit) {
+            if (idleTimeout <= 0) {
+                throw new IllegalArgumentException("idleTimeout must be positive");
+            }
+            this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+            return this;
+        }
+
+        public ClientPool<C> build() {
+            if (minConnections > maxConnections) {
+                throw new IllegalStateException("minConnections cannot exceed maxConnections");
+            }
+            return new ClientPool<>(this);
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Routes the calls of a service across many nodes, each serving a shard of
+ * its keys, by consistent hashing.
+ *
+ * <p>The router implements the service's generated interface, so that
+ * callers need not know that it is sharded at all.  Each method is given a
+ * {@link KeyExtractor}, which picks from its arguments the key that
+ * determines the node to call:
+ *
+ * <pre>{@code
+ * ConsistentHashRouter<KeyValue> router = new ConsistentHashRouter.Builder<>(KeyValue.class)
+ *         .route("get", new ConsistentHashRouter.KeyExtractor() {
+ *             public Object keyFor(Object[] args) {
+ *                 return args[0];
+ *             }
+ *         })
+ *         .build();
+ *
+ * router.addNode("kv-1:9090", kv1Client);
+ * router.addNode("kv-2:9090", kv2Client);
+ *
+ * router.service().get("some-key", callback);
+ * }</pre>
+ *
+ * <p>Each node is placed on a hash ring at many points, its virtual nodes,
+ * and a key belongs to the node at the first point following the key's
+ * hash.  Adding a node therefore moves to it only about {@code 1/N} of the
+ * keys, and removing one moves only its own keys, spread evenly among the
+ * rest.  Placement depends only on node names, so every router given the
+ * same names agrees on where each key lives.
+ *
+ * <p>Routing never locks; nodes may be added and removed at any time.
+ * Calls already made are unaffected.
+ */
+public final class ConsistentHashRouter<S> {
+    /**
+     * Extracts the routing key of a call from its arguments.
+     */
+    public interface KeyExtractor {
+        /**
+         * Gets the key of a call.
+         *
+         * <p>Keys are hashed by content if they are strings or byte arrays,
+         * and by {@link Object#hashCode()} otherwise.
+         *
+         * @param args the arguments of the call, including its callback.
+         */
+        Object keyFor(Object[] args);
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Class<S> serviceInterface;
+    private final int virtualNodes;
+    private final Map<String, KeyExtractor> extractors;
+    private final S service;
+
+    private final Object lock = new Object();
+
+    /**
+     * The nodes by name, in order of addition.  Guarded by {@link #lock}.
+     */
+    private final Map<String, S> nodes = new LinkedHashMap<>();
+
+    /**
+     * The current ring; replaced wholesale whenever the nodes change.
+     */
+    private volatile Ring<S> ring = Ring.empty();
+
+    private ConsistentHashRouter(Builder<S> builder) {
+        this.serviceInterface = builder.serviceInterface;
+        this.virtualNodes = builder.virtualNodes;
+        this.extractors = Collections.unmodifiableMap(new HashMap<>(builder.extractors));
+        this.service = serviceInterface.cast(Proxy.newProxyInstance(
+                serviceInterface.getClassLoader(),
+                new Class<?>[] { serviceInterface },
+                new RoutingHandler()));
+    }
+
+    /**
+     * Gets an implementation of the service interface that routes each call
+     * to the node owning its key.
+     */
+    public S service() {
+        return service;
+    }
+
+    /**
+     * Adds a node, or replaces the client of an existing one.
+     *
+     * @param name the node's name, typically its address, which determines
+     *             the keys it is given.
+     * @param client the client with which to call the node.
+     * @return the client previously serving the node, if any, which the
+     *         caller may now close.
+     */
+    public S addNode(String name, S client) {
+        if (name == null) {
+            throw new NullPointerException("name");
+        }
+        if (client == null) {
+            throw new NullPointerException("client");
+        }
+
+        synchronized (lock) {
+            S previous = nodes.put(name, client);
+            ring = Ring.build(nodes, virtualNodes);
+            return previous;
+        }
+    }
+
+    /**
+     * Removes a node; its keys are taken over by the remaining nodes.
+     *
+     * @return the client that served the node, which the caller may now
+     *         close, or {@code null} if there was no such node.
+     */
+    public S removeNode(String name) {
+        synchronized (lock) {
+            S previous = nodes.remove(name);
+            if (previous != null) {
+                ring = Ring.build(nodes, virtualNodes);
+            }
+            return previous;
+        }
+    }
+
+    /**
+     * Gets the client of the node owning the given key.
+     *
+     * @throws IllegalStateException if there are no nodes.
+     */
+    public S nodeFor(Object key) {
+        S client = ring.lookup(hash(key));
+        if (client == null) {
+            throw new IllegalStateException("No nodes to route to");
+        }
+        return client;
+    }
+
+    private final class RoutingHandler implements InvocationHandler {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals": return proxy == args[0];
+                    case "hashCode": return System.identityHashCode(proxy);
+                    case "toString": return "ConsistentHashRouter<" + serviceInterface.getName() + ">";
+                    default: throw new AssertionError(method);
+                }
+            }
+
+            KeyExtractor extractor = extractors.get(method.getName());
+            if (extractor == null) {
+                throw new UnsupportedOperationException(
+                        "No key extractor given for method " + method.getName());
+            }
+
+            S client = nodeFor(extractor.keyFor(args));
+            try {
+                return method.invoke(client, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * An immutable hash ring: the points of every virtual node, sorted, and
+     * the node owning each.
+     */
+    private static final class Ring<S> {
+        private static final Ring<Object> EMPTY = new Ring<>(new int[0], new Object[0]);
+
+        private final int[] points;
+        private final Object[] owners;
+
+        private Ring(int[] points, Object[] owners) {
+            this.points = points;
+            this.owners = owners;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <S> Ring<S> empty() {
+            return (Ring<S>) EMPTY;
+        }
+
+        static <S> Ring<S> build(Map<String, S> nodes, int virtualNodes) {
+            int count = nodes.size() * virtualNodes;
+            long[] entries = new long[count];
+            Object[] clients = new Object[nodes.size()];
+
+            // Each entry packs a point above the index of its node, so that
+            // sorting orders by point, and equal points by insertion order.
+            int n = 0;
+            int i = 0;
+            for (Map.Entry<String, S> node : nodes.entrySet()) {
+                clients[n] = node.getValue();
+                for (int v = 0; v < virtualNodes; ++v) {
+                    byte[] label = (node.getKey() + "#" + v).getBytes(UTF_8);
+                    int point = murmur3(label);
+                    entries[i++] = ((long) point << 32) | n;
+                }
+                n++;
+            }
+            Arrays.sort(entries);
+
+            int[] points = new int[count];
+            Object[] owners = new Object[count];
+            for (i = 0; i < count; ++i) {
+                points[i] = (int) (entries[i] >> 32);
+                owners[i] = clients[(int) entries[i]];
+            }
+            return new Ring<>(points, owners);
+        }
+
+        @SuppressWarnings("unchecked")
+        S lookup(int hash) {
+            if (points.length == 0) {
+                return null;
+            }
+
+            int index = Arrays.binarySearch(points, hash);
+            if (index < 0) {
+                index = -index - 1;
+                if (index == points.length) {
+                    index = 0; // wrap around
+                }
+            } else {
+                // Equal points: the first owns the key.
+                while (index > 0 && points[index - 1] == hash) {
+                    index--;
+                }
+            }
+            return (S) owners[index];
+        }
+    }
+
+    static int hash(Object key) {
+        if (key instanceof String) {
+            return murmur3(((String) key).getBytes(UTF_8));
+        } else if (key instanceof byte[]) {
+            return murmur3((byte[]) key);
+        } else if (key == null) {
+            return 0;
+        } else {
+            return fmix(key.hashCode());
+        }
+    }
+
+    /**
+     * The 32-bit variant of MurmurHash3, with a seed of zero.
+     */
+    private static int murmur3(byte[] data) {
+        final int c1 = 0xcc9e2d51;
+        final int c2 = 0x1b873593;
+
+        int h = 0;
+        int blocks = data.length / 4;
+        for (int i = 0; i < blocks; ++i) {
+            int k = (data[4 * i] & 0xFF)
+                    | (data[4 * i + 1] & 0xFF) << 8
+                    | (data[4 * i + 2] & 0xFF) << 16
+                    | (data[4 * i + 3] & 0xFF) << 24;
+            k *= c1;
+            k = Integer.rotateLeft(k, 15);
+            k *= c2;
+
+            h ^= k;
+            h = Integer.rotateLeft(h, 13);
+            h = h * 5 + 0xe6546b64;
+        }
+
+        int tail = blocks * 4;
+        int remainder = data.length - tail;
+        if (remainder > 0) {
+            int k = data[tail] & 0xFF;
+            if (remainder > 1) {
+                k ^= (data[tail + 1] & 0xFF) << 8;
+            }
+            if (remainder > 2) {
+                k ^= (data[tail + 2] & 0xFF) << 16;
+            }
+            k *= c1;
+            k = Integer.rotateLeft(k, 15);
+            k *= c2;
+            h ^= k;
+        }
+
+        return fmix(h ^ data.length);
+    }
+
+    private static int fmix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    public static final class Builder<S> {
+        private final Class<S> serviceInterface;
+        private final Map<String, KeyExtractor> extractors = new HashMap<>();
+        private int virtualNodes = 160;
+
+        public Builder(Class<S> serviceInterface) {
+            if (serviceInterface == null) {
+                throw new NullPointerException("serviceInterface");
+            }
+            if (!serviceInterface.isInterface()) {
+                throw new IllegalArgumentException(serviceInterface.getName() + " is not an interface");
+            }
+            this.serviceInterface = serviceInterface;
+        }
+
+        /**
+         * Sets the number of points at which each node is placed on the
+         * ring.  More points spread keys more evenly, at the cost of memory
+         * and of time spent when nodes change.  Defaults to 160.
+         */
+        public Builder<S> virtualNodes(int virtualNodes) {
+            if (virtualNodes < 1) {
+                throw new IllegalArgumentException("virtualNodes must be positive");
+            }
+            this.virtualNodes = virtualNodes;
+            return this;
+        }
+
+        /**
+         * Routes calls of the named method by the keys given by the
+         * extractor.  Calls of methods without an extractor fail with an
+         * {@link UnsupportedOperationException}.
+         */
+        public Builder<S> route(String methodName, KeyExtractor extractor) {
+            if (methodName == null) {
+                throw new NullPointerException("methodName");
+            }
+            if (extractor == null) {
+                throw new NullPointerException("extractor");
+            }
+
+            boolean found = false;
+            for (Method method : serviceInterface.getMethods()) {
+                if (method.getName().equals(methodName)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                throw new IllegalArgumentException(
+                        serviceInterface.getName() + " has no method named " + methodName);
+            }
+
+            extractors.put(methodName, extractor);
+            return this;
+        }
+
+        public ConsistentHashRouter<S> build() {
+            return new ConsistentHashRouter<>(this);
+        }
+    }
+}
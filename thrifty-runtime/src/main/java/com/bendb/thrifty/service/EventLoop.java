@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single selector thread, servicing the I/O of any number of
+ * {@link EventLoopTransport EventLoopTransports} and running tasks submitted
+ * to it.
+ *
+ * <p>Every transport is bound to one loop for its lifetime, and all of its
+ * socket I/O, encoding and decoding happens on that loop's thread.
+ */
+final class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Tasks to run once their deadlines pass.  Only touched on the loop's
+     * own thread.
+     */
+    private final PriorityQueue<ScheduledTask> scheduled = new PriorityQueue<>();
+    private long nextScheduledId;
+
+    /**
+     * Set when the selector has been woken for pending tasks, so that
+     * producers racing to submit tasks wake it only once.
+     */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+    private volatile boolean running = true;
+
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs the given task on this loop's thread, after any previously
+     * submitted tasks.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the given task on this loop's thread once the given delay has
+     * elapsed.  May only be called on the loop's own thread.
+     *
+     * <p>Waits are made with the selector, which counts in whole
+     * milliseconds; shorter delays are rounded up.
+     */
+    void schedule(Runnable task, long delayNanos) {
+        if (!inEventLoop()) {
+            throw new IllegalStateException("Tasks may only be scheduled from the event loop");
+        }
+        scheduled.add(new ScheduledTask(task, System.nanoTime() + delayNanos, nextScheduledId++));
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Releases the selector of a loop that was never started; a started
+     * loop closes its own selector once it has been shut down.
+     */
+    void closeUnstarted() {
+        running = false;
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+            // nope
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                ScheduledTask next = scheduled.peek();
+                if (next == null) {
+                    selector.select();
+                } else {
+                    long remaining = next.deadlineNanos - System.nanoTime();
+                    if (remaining <= 0) {
+                        selector.selectNow();
+                    } else {
+                        // Rounded up, as zero would wait forever
+                        selector.select((remaining + 999999) / 1000000);
+                    }
+                }
+            } catch (IOException e) {
+                break;
+            }
+
+            wakeupPending.set(false);
+
+            Set<SelectionKey> selected = selector.selectedKeys();
+            for (Iterator<SelectionKey> it = selected.iterator(); it.hasNext(); ) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                EventLoopTransport transport = (EventLoopTransport) key.attachment();
+                transport.handleReady(key);
+            }
+
+            runTasks();
+            runScheduledTasks();
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            EventLoopTransport transport = (EventLoopTransport) key.attachment();
+            transport.fail(null);
+        }
+
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+            // nope
+        }
+    }
+
+    private void runScheduledTasks() {
+        long now = System.nanoTime();
+        ScheduledTask next;
+        while ((next = scheduled.peek()) != null && now - next.deadlineNanos >= 0) {
+            scheduled.poll();
+            try {
+                next.task.run();
+            } catch (Throwable ignored) {
+                // As with other tasks
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable ignored) {
+                // Tasks handle their own errors; a misbehaving one must
+                // not take the loop, and every other connection, with it.
+            }
+        }
+    }
+
+    private static final class ScheduledTask implements Comparable<ScheduledTask> {
+        final Runnable task;
+        final long deadlineNanos;
+
+        /** Breaks ties between equal deadlines in order of scheduling. */
+        final long id;
+
+        ScheduledTask(Runnable task, long deadlineNanos, long id) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            long diff = deadlineNanos - other.deadlineNanos;
+            if (diff != 0) {
+                return diff < 0 ? -1 : 1;
+            }
+            return id < other.id ? -1 : (id == other.id ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed group of selector threads shared by many service clients.
+ *
+ * <p>A client normally runs two dedicated threads of its own, one reading
+ * and one writing.  Clients whose protocol is built on an
+ * {@link EventLoopTransport} instead do all of their I/O on one of this
+ * group's threads, so that the number of threads needed does not grow with
+ * the number of connections:
+ *
+ * <pre>{@code
+ * EventLoopGroup group = new EventLoopGroup(4);
+ *
+ * EventLoopTransport transport = new EventLoopTransport.Builder(group, "host", 9090).build();
+ * transport.connect();
+ *
+ * FooClient client = new FooClient(new CompactProtocol(transport), listener);
+ * }</pre>
+ *
+ * <p>Connections are assigned to threads round-robin.  Closing the group
+ * closes every connection using it.
+ */
+public final class EventLoopGroup implements Closeable {
+    private static final AtomicInteger GROUP_ID = new AtomicInteger(0);
+
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger(0);
+
+    /**
+     * Creates a group with one thread per available processor.
+     */
+    public EventLoopGroup() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public EventLoopGroup(int threadCount) throws IOException {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("threadCount must be positive");
+        }
+
+        int groupId = GROUP_ID.incrementAndGet();
+        EventLoop[] loops = new EventLoop[threadCount];
+        try {
+            for (int i = 0; i < threadCount; ++i) {
+                loops[i] = new EventLoop("thrifty-event-loop-" + groupId + "-" + i);
+            }
+        } catch (IOException e) {
+            // None of the loops has a thread to close its selector yet.
+            for (EventLoop loop : loops) {
+                if (loop != null) {
+                    loop.closeUnstarted();
+                }
+            }
+            throw e;
+        }
+
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+
+        this.loops = loops;
+    }
+
+    EventLoop next() {
+        int index = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+        return loops[index];
+    }
+
+    @Override
+    public void close() {
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
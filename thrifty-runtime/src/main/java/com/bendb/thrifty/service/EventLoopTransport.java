@@ -0,0 +1,638 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import com.bendb.thrifty.protocol.MessageDecoder;
+import com.bendb.thrifty.transport.FramedTransport;
+import com.bendb.thrifty.transport.Transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A non-blocking transport whose I/O is driven by an
+ * {@link EventLoopGroup}.
+ *
+ * <p>Service clients built on this transport do not start threads of their
+ * own; calls are encoded, and replies decoded, on the transport's event-loop
+ * thread.  Incoming data is accumulated until a whole frame is available,
+ * so decoding never blocks; outgoing frames are written as far as the
+ * socket allows, with the remainder written when it becomes writable.
+ *
+ * <p>As with {@link FramedTransport}, each message is sent as a
+ * length-prefixed frame of its own, ended by {@link #endMessage()}, which is
+ * what non-blocking Thrift servers expect; messages written before a flush
+ * are still written to the socket together.
+ * Do not wrap this transport in a {@link FramedTransport}.  Servers that
+ * do not use framing are supported with {@link Builder#unframed(MessageDecoder)},
+ * in which case the end of each message is found by scanning it as it
+ * arrives.
+ *
+ * <p>Other than {@link #connect()} and {@link #close()}, the methods of this
+ * class must only be called on its event-loop thread; a {@link ClientBase}
+ * using it takes care of that.
+ */
+public class EventLoopTransport extends Transport {
+    private static final int HEADER_SIZE = 4;
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Receives events from the transport, on its event-loop thread.
+     */
+    interface Handler {
+        /**
+         * Invoked when a whole frame has been received, and can be read from
+         * the transport without blocking.  Any of the frame not read by the
+         * handler is discarded.
+         */
+        void onFrame() throws Exception;
+
+        /**
+         * Invoked when the connection has failed or been closed by the peer.
+         *
+         * @param error the cause of the failure, or {@code null} if the event
+         *              loop was shut down.
+         */
+        void onClosed(Throwable error);
+    }
+
+    public static class Builder {
+        private final EventLoopGroup group;
+        private final String host;
+        private final int port;
+        private int connectTimeout;
+        private int maxFrameSize = FramedTransport.DEFAULT_MAX_FRAME_SIZE;
+        private boolean tcpNoDelay = true;
+        private MessageDecoder decoder;
+
+        public Builder(EventLoopGroup group, String host, int port) {
+            if (group == null) {
+                throw new NullPointerException("group");
+            }
+
+            if (host == null || host.length() == 0) {
+                throw new NullPointerException("host");
+            }
+
+            if (port < 0 || port > 0xFFFF) {
+                throw new IllegalStateException("Invalid port number: " + port);
+            }
+
+            this.group = group;
+            this.host = host;
+            this.port = port;
+        }
+
+        public Builder connectTimeout(int connectTimeout) {
+            if (connectTimeout < 0) {
+                throw new IllegalArgumentException("connectTimeout cannot be negative");
+            }
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        /**
+         * Sets the size of the largest frame that will be accepted when
+         * reading or, if {@link #unframed(MessageDecoder) unframed}, of the
+         * largest message.
+         */
+        public Builder maxFrameSize(int maxFrameSize) {
+            if (maxFrameSize <= 0) {
+                throw new IllegalArgumentException("maxFrameSize must be positive");
+            }
+            this.maxFrameSize = maxFrameSize;
+            return this;
+        }
+
+        public Builder tcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        /**
+         * Sends and receives messages without framing, using the given decoder
+         * to find where each received message ends.  The decoder must be of
+         * the same protocol as the client, and must not be shared with other
+         * transports.
+         */
+        public Builder unframed(MessageDecoder decoder) {
+            if (decoder == null) {
+                throw new NullPointerException("decoder");
+            }
+            this.decoder = decoder;
+            return this;
+        }
+
+        public EventLoopTransport build() {
+            return new EventLoopTransport(this);
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final int connectTimeout;
+    private final int maxFrameSize;
+    private final boolean tcpNoDelay;
+    private final EventLoop loop;
+
+    // Null when framed.
+    private final MessageDecoder decoder;
+    private final Transport message;
+    private final int headerSize;
+
+    private volatile SocketChannel channel;
+    private volatile boolean closed;
+    private SelectionKey key;
+    private Handler handler;
+
+    // Incoming bytes, in write mode between reads.  While a frame is being
+    // handled, its unread bytes lie between readPos and frameEnd.
+    private ByteBuffer inBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private int readPos;
+    private int frameEnd;
+
+    // Frames being encoded.  Completed frames lie before frameStart; the
+    // current frame's header slot is the headerSize bytes starting there.
+    private byte[] writeBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private int frameStart;
+    private int writePos;
+
+    // Encoded frames not yet accepted by the socket, in write mode.
+    private ByteBuffer outBuffer = ByteBuffer.allocate(0);
+
+    EventLoopTransport(Builder builder) {
+        this.host = builder.host;
+        this.port = builder.port;
+        this.connectTimeout = builder.connectTimeout;
+        this.maxFrameSize = builder.maxFrameSize;
+        this.tcpNoDelay = builder.tcpNoDelay;
+        this.loop = builder.group.next();
+        this.decoder = builder.decoder;
+        this.message = decoder != null ? decoder.transport() : null;
+        this.headerSize = decoder != null ? 0 : HEADER_SIZE;
+        this.writePos = headerSize;
+    }
+
+    public boolean isConnected() {
+        SocketChannel c = channel;
+        return c != null && c.isConnected() && !closed;
+    }
+
+    /**
+     * Connects to the server, blocking the calling thread until the
+     * connection is established.
+     */
+    public void connect() throws IOException {
+        if (channel != null) {
+            throw new IllegalStateException("Already connected");
+        }
+
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            channel.socket().connect(new InetSocketAddress(host, port), connectTimeout);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // nope
+            }
+            throw e;
+        }
+
+        this.channel = channel;
+    }
+
+    /**
+     * Begins delivering events to the given handler.  Until this is called,
+     * nothing is read from the connection.
+     */
+    void start(final Handler handler) {
+        if (channel == null) {
+            throw new IllegalStateException("Not connected");
+        }
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (closed) {
+                    return;
+                }
+
+                EventLoopTransport.this.handler = handler;
+                try {
+                    key = channel.register(loop.selector(), SelectionKey.OP_READ, EventLoopTransport.this);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the given task on this transport's event-loop thread.
+     */
+    void execute(Runnable task) {
+        loop.execute(task);
+    }
+
+    boolean inEventLoop() {
+        return loop.inEventLoop();
+    }
+
+    void schedule(Runnable task, long delayNanos) {
+        loop.schedule(task, delayNanos);
+    }
+
+    void handleReady(SelectionKey key) {
+        try {
+            if (key.isValid() && key.isReadable()) {
+                onReadable();
+            }
+
+            if (key.isValid() && key.isWritable()) {
+                writePending();
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    private void onReadable() throws Exception {
+        if (decoder != null) {
+            onReadableUnframed();
+            return;
+        }
+
+        if (channel.read(inBuffer) < 0) {
+            throw new EOFException("Connection closed by server");
+        }
+
+        inBuffer.flip();
+        int required = dispatchFrames();
+        if (closed) {
+            return;
+        }
+        inBuffer.compact();
+
+        if (required > inBuffer.capacity()) {
+            ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(required, inBuffer.capacity() << 1));
+            inBuffer.flip();
+            newBuffer.put(inBuffer);
+            inBuffer = newBuffer;
+        } else if (inBuffer.position() == 0 && inBuffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            inBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        }
+    }
+
+    private void onReadableUnframed() throws Exception {
+        if (decoder.readFrom(channel) < 0) {
+            throw new EOFException("Connection closed by server");
+        }
+
+        while (decoder.advance()) {
+            handler.onFrame();
+            if (closed) {
+                return;
+            }
+        }
+
+        // The decoder enforces its own limit, which may be the larger.
+        int pending = decoder.bufferedBytes();
+        if (pending > maxFrameSize) {
+            throw new ProtocolException(
+                    "Message size of at least " + pending + " exceeds the maximum of " + maxFrameSize);
+        }
+    }
+
+    /**
+     * Hands each complete frame in the input buffer to the handler.
+     *
+     * @return the buffer capacity needed to hold the next, incomplete, frame.
+     */
+    private int dispatchFrames() throws Exception {
+        while (inBuffer.remaining() >= HEADER_SIZE) {
+            int start = inBuffer.position();
+            int size = inBuffer.getInt(start);
+            if (size < 0) {
+                throw new ProtocolException("Negative frame size: " + size);
+            }
+
+            if (size > maxFrameSize) {
+                throw new ProtocolException(
+                        "Frame size " + size + " exceeds the maximum of " + maxFrameSize);
+            }
+
+            if (inBuffer.remaining() < HEADER_SIZE + size) {
+                return HEADER_SIZE + size;
+            }
+
+            readPos = start + HEADER_SIZE;
+            frameEnd = readPos + size;
+
+            if (size > 0) {
+                handler.onFrame();
+                if (closed) {
+                    return 0;
+                }
+            }
+
+            inBuffer.position(frameEnd);
+            readPos = frameEnd = 0;
+        }
+
+        return HEADER_SIZE;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (message != null) {
+            return message.read(buffer, offset, count);
+        }
+
+        int remaining = frameEnd - readPos;
+        if (remaining <= 0) {
+            return -1;
+        }
+
+        int toCopy = Math.min(count, remaining);
+        System.arraycopy(inBuffer.array(), readPos, buffer, offset, toCopy);
+        readPos += toCopy;
+        return toCopy;
+    }
+
+    @Override
+    public void skip(long count) throws IOException {
+        if (message != null) {
+            message.skip(count);
+            return;
+        }
+
+        if (count < 0) {
+            throw new IllegalArgumentException("count < 0: " + count);
+        }
+
+        if (count > frameEnd - readPos) {
+            readPos = frameEnd;
+            throw new EOFException();
+        }
+        readPos += (int) count;
+    }
+
+    @Override
+    public byte[] readBuffer() {
+        if (message != null) {
+            return message.readBuffer();
+        }
+        return inBuffer.array();
+    }
+
+    @Override
+    public int readBufferPosition() {
+        if (message != null) {
+            return message.readBufferPosition();
+        }
+        return readPos;
+    }
+
+    @Override
+    public int readBufferRemaining() {
+        if (message != null) {
+            return message.readBufferRemaining();
+        }
+        return Math.max(0, frameEnd - readPos);
+    }
+
+    @Override
+    public void consumeReadBuffer(int count) {
+        if (message != null) {
+            message.consumeReadBuffer(count);
+            return;
+        }
+
+        if (count < 0 || count > frameEnd - readPos) {
+            throw new IllegalArgumentException("Cannot consume " + count + " bytes");
+        }
+        readPos += count;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        ensureWriteCapacity(count);
+        System.arraycopy(buffer, offset, writeBuffer, writePos, count);
+        writePos += count;
+    }
+
+    @Override
+    public int reserveWrite(int count) throws IOException {
+        ensureWriteCapacity(count);
+        return writePos;
+    }
+
+    @Override
+    public byte[] writeBuffer() {
+        return writeBuffer;
+    }
+
+    @Override
+    public void commitWrite(int count) {
+        if (count < 0 || count > writeBuffer.length - writePos) {
+            throw new IllegalArgumentException("Cannot commit " + count + " bytes");
+        }
+        writePos += count;
+    }
+
+    @Override
+    public void expectWrite(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count < 0: " + count);
+        }
+        ensureWriteCapacity(count);
+    }
+
+    @Override
+    public boolean usesWriteHints() {
+        return true;
+    }
+
+    private void ensureWriteCapacity(int count) {
+        int required = writePos + count;
+        if (required < 0) {
+            throw new IllegalStateException("Frame too large");
+        }
+
+        if (required > writeBuffer.length) {
+            int newSize = Math.max(required, writeBuffer.length << 1);
+            if (newSize < 0) {
+                newSize = required;
+            }
+
+            byte[] newBuffer = new byte[newSize];
+            System.arraycopy(writeBuffer, 0, newBuffer, 0, writePos);
+            writeBuffer = newBuffer;
+        }
+    }
+
+    /**
+     * Ends the current frame, if anything has been written to it.  Unframed,
+     * it just marks the message as complete.
+     */
+    @Override
+    public void endMessage() {
+        int size = writePos - frameStart - headerSize;
+        if (size == 0) {
+            return;
+        }
+
+        if (headerSize != 0) {
+            writeBuffer[frameStart]     = (byte) ((size >> 24) & 0xFF);
+            writeBuffer[frameStart + 1] = (byte) ((size >> 16) & 0xFF);
+            writeBuffer[frameStart + 2] = (byte) ((size >>  8) & 0xFF);
+            writeBuffer[frameStart + 3] = (byte)  (size        & 0xFF);
+        }
+
+        ensureWriteCapacity(headerSize);
+        frameStart = writePos;
+        writePos += headerSize;
+    }
+
+    /**
+     * Completes the current frame, and writes the frames encoded so far as
+     * far as the socket will accept without blocking.  The rest is written
+     * as the socket becomes writable.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+
+        endMessage();
+
+        int frameLength = frameStart;
+        if (frameLength == 0) {
+            return;
+        }
+
+        frameStart = 0;
+        writePos = headerSize;
+
+        if (outBuffer.position() == 0) {
+            // Nothing is queued ahead of this frame, so try writing it
+            // directly and queue only what the socket would not take.
+            ByteBuffer frame = ByteBuffer.wrap(writeBuffer, 0, frameLength);
+            channel.write(frame);
+            if (frame.hasRemaining()) {
+                enqueueOutput(frame);
+            }
+        } else {
+            enqueueOutput(ByteBuffer.wrap(writeBuffer, 0, frameLength));
+        }
+
+        if (writeBuffer.length > MAX_RETAINED_BUFFER_SIZE) {
+            writeBuffer = new byte[INITIAL_BUFFER_SIZE];
+        }
+
+        updateInterest();
+    }
+
+    private void enqueueOutput(ByteBuffer data) {
+        if (data.remaining() > outBuffer.remaining()) {
+            int required = outBuffer.position() + data.remaining();
+            ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(required, outBuffer.capacity() << 1));
+            outBuffer.flip();
+            newBuffer.put(outBuffer);
+            outBuffer = newBuffer;
+        }
+        outBuffer.put(data);
+    }
+
+    private void writePending() throws IOException {
+        outBuffer.flip();
+        channel.write(outBuffer);
+        outBuffer.compact();
+
+        if (outBuffer.position() == 0 && outBuffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            outBuffer = ByteBuffer.allocate(0);
+        }
+
+        updateInterest();
+    }
+
+    private void updateInterest() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+
+        int ops = SelectionKey.OP_READ;
+        if (outBuffer.position() > 0) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    /**
+     * Closes the connection because of an error, or because the event loop
+     * is shutting down, and notifies the handler.
+     */
+    void fail(Throwable error) {
+        if (closed) {
+            return;
+        }
+
+        closeChannel();
+
+        if (handler != null) {
+            handler.onClosed(error);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        closed = true;
+
+        SocketChannel channel = this.channel;
+        if (channel != null) {
+            try {
+                // Also cancels the selection key.
+                channel.close();
+            } catch (IOException ignored) {
+                // nope
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a client flushes the calls it has written, trading latency
+ * for fewer, larger writes to the network.
+ *
+ * <p>A client writes calls as soon as it can, but they may sit in a buffer
+ * until flushed.  After each call is written, the policy may flush at once;
+ * once there is nothing more that can be sent, the policy may
+ * <em>linger</em> a while, in case more calls arrive to share the flush:
+ *
+ * <ul>
+ *     <li>{@link #immediate()} flushes every call;</li>
+ *     <li>{@link #whenIdle()}, the default, flushes once there is nothing
+ *     more to send, without lingering;</li>
+ *     <li>{@link #calls(int, long, TimeUnit)} and
+ *     {@link #bytes(int, long, TimeUnit)} flush once enough calls or bytes
+ *     are waiting, or once the oldest has waited long enough;</li>
+ *     <li>{@link #window(long, TimeUnit)} flushes once the oldest call has
+ *     waited a fixed time;</li>
+ *     <li>{@link #adaptive(long, TimeUnit)} lingers only while calls arrive
+ *     quickly enough that another is likely within the window.</li>
+ * </ul>
+ *
+ * <p>Batching happens only at the level of writes to the socket.  Each call
+ * is still a message of its own; on a framed transport, such as a
+ * {@link com.bendb.thrifty.transport.FramedTransport} or a framed
+ * {@link EventLoopTransport}, each is sent in a frame of its own, as
+ * non-blocking servers require, with a flush writing all of them at once.
+ *
+ * <p>Policies hold no state of their own, and may be shared among clients.
+ * Clients on an {@link EventLoopGroup} wait with millisecond precision at
+ * best, so windows shorter than that are rounded up.
+ */
+public abstract class FlushPolicy {
+    private static final FlushPolicy IMMEDIATE = new FlushPolicy() {
+        @Override
+        boolean shouldFlush(Batch batch) {
+            return true;
+        }
+    };
+
+    private static final FlushPolicy WHEN_IDLE = new FlushPolicy() {
+    };
+
+    FlushPolicy() {
+    }
+
+    /**
+     * Flushes after every call, for the lowest latency.
+     */
+    public static FlushPolicy immediate() {
+        return IMMEDIATE;
+    }
+
+    /**
+     * Flushes once there are no more calls that can be sent, so that calls
+     * arriving in a burst share a flush.
+     */
+    public static FlushPolicy whenIdle() {
+        return WHEN_IDLE;
+    }
+
+    /**
+     * Flushes once {@code count} calls are waiting, or once the oldest has
+     * waited for {@code maxDelay}.
+     */
+    public static FlushPolicy calls(final int count, long maxDelay, TimeUnit unit) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be positive");
+        }
+
+        return new Lingering(maxDelay, unit) {
+            @Override
+            boolean shouldFlush(Batch batch) {
+                return batch.calls >= count;
+            }
+        };
+    }
+
+    /**
+     * Flushes once {@code byteCount} bytes are waiting, or once the oldest
+     * call has waited for {@code maxDelay}.
+     *
+     * <p>Call sizes are computed without encoding, with
+     * {@link MethodCall#sizeOf}; calls whose size cannot be computed count as
+     * empty.
+     */
+    public static FlushPolicy bytes(final int byteCount, long maxDelay, TimeUnit unit) {
+        if (byteCount < 1) {
+            throw new IllegalArgumentException("byteCount must be positive");
+        }
+
+        return new Lingering(maxDelay, unit) {
+            @Override
+            boolean needsSizes() {
+                return true;
+            }
+
+            @Override
+            boolean shouldFlush(Batch batch) {
+                return batch.bytes >= byteCount;
+            }
+        };
+    }
+
+    /**
+     * Flushes once the oldest call waiting has waited for {@code window},
+     * however many calls arrive in the meantime.
+     */
+    public static FlushPolicy window(long window, TimeUnit unit) {
+        return new Lingering(window, unit);
+    }
+
+    /**
+     * Lingers only while calls are arriving faster than one per
+     * {@code maxDelay}, for about twice the average time between them;
+     * otherwise, flushes as soon as there is nothing more to send.
+     *
+     * <p>Under light load this flushes each call at once, and under heavy
+     * load it waits just long enough for the next few calls.
+     */
+    public static FlushPolicy adaptive(long maxDelay, TimeUnit unit) {
+        return new Lingering(maxDelay, unit) {
+            @Override
+            long lingerNanos(Batch batch) {
+                long gap = batch.averageGapNanos;
+                if (gap < 0 || gap >= maxDelayNanos) {
+                    return 0;
+                }
+                return Math.min(maxDelayNanos, gap * 2);
+            }
+        };
+    }
+
+    /**
+     * Gets whether call sizes are to be recorded in each {@link Batch}.
+     */
+    boolean needsSizes() {
+        return false;
+    }
+
+    /**
+     * Gets whether to flush now, a call having just been written.
+     */
+    boolean shouldFlush(Batch batch) {
+        return false;
+    }
+
+    /**
+     * Gets how long after the oldest call was written to wait before
+     * flushing, once nothing more can be sent.
+     */
+    long lingerNanos(Batch batch) {
+        return 0;
+    }
+
+    private static class Lingering extends FlushPolicy {
+        final long maxDelayNanos;
+
+        Lingering(long maxDelay, TimeUnit unit) {
+            if (maxDelay < 0) {
+                throw new IllegalArgumentException("delay cannot be negative");
+            }
+            this.maxDelayNanos = unit.toNanos(maxDelay);
+        }
+
+        @Override
+        long lingerNanos(Batch batch) {
+            return maxDelayNanos;
+        }
+    }
+
+    /**
+     * The calls written by one client since it last flushed.  Owned by the
+     * client's writing thread.
+     */
+    static final class Batch {
+        int calls;
+        long bytes;
+
+        /** When the oldest call was written, if any has been. */
+        long firstWriteNanos;
+
+        /** When the newest call was written, ever. */
+        private long lastWriteNanos;
+        private boolean hasWritten;
+
+        /**
+         * A moving average of the time between writes, or -1 until there
+         * have been two.
+         */
+        long averageGapNanos = -1;
+
+        void recordWrite(long size, long now) {
+            if (calls == 0) {
+                firstWriteNanos = now;
+            }
+            calls++;
+            bytes += size;
+
+            if (hasWritten) {
+                long gap = now - lastWriteNanos;
+                averageGapNanos = averageGapNanos < 0
+                        ? gap
+                        : averageGapNanos + (gap - averageGapNanos) / 8;
+            }
+            lastWriteNanos = now;
+            hasWritten = true;
+        }
+
+        boolean isEmpty() {
+            return calls == 0;
+        }
+
+        void flushed() {
+            calls = 0;
+            bytes = 0;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when to send a backup of an idempotent call whose reply is slow in
+ * coming, so that one slow server or connection does not dictate tail
+ * latency.
+ *
+ * <p>A call is hedged once it has gone unanswered for longer than a given
+ * percentile of recent calls to the same method took; with the default of
+ * the 95th percentile, about one call in twenty is sent twice.  The backup
+ * goes to another client of the same {@link ClientPool}, if there is one,
+ * and otherwise on the same connection.  Whichever reply comes first
+ * completes the call, and the other attempt is cancelled.
+ *
+ * <p>Only methods annotated {@code (idempotent)} in their Thrift IDL are
+ * hedged, as the server may well execute both attempts.
+ *
+ * <p>A policy records the latencies of the calls it hedges, and so should be
+ * shared by clients of the same servers, and not by others.
+ */
+public final class HedgePolicy {
+    /**
+     * The number of recent latencies kept for each method.
+     */
+    private static final int WINDOW_SIZE = 1024;
+
+    /**
+     * The number of latencies needed before they are trusted; until then,
+     * the maximum delay is used.
+     */
+    private static final int MIN_SAMPLES = 64;
+
+    /**
+     * How often, in samples, the percentile is recomputed.
+     */
+    private static final int RECOMPUTE_INTERVAL = 64;
+
+    private final double percentile;
+    private final long minDelayNanos;
+    private final long maxDelayNanos;
+
+    private final ConcurrentMap<String, LatencyWindow> windows = new ConcurrentHashMap<>();
+
+    private HedgePolicy(Builder builder) {
+        this.percentile = builder.percentile;
+        this.minDelayNanos = builder.minDelayNanos;
+        this.maxDelayNanos = builder.maxDelayNanos;
+    }
+
+    /**
+     * Gets how long a call to the given method may go unanswered before it
+     * is hedged.
+     */
+    long delayNanos(String methodName) {
+        LatencyWindow window = windows.get(methodName);
+        long delay = window != null ? window.percentileNanos() : -1;
+        if (delay < 0) {
+            return maxDelayNanos;
+        }
+        return Math.max(minDelayNanos, Math.min(maxDelayNanos, delay));
+    }
+
+    /**
+     * Records how long a call to the given method took to be answered.
+     */
+    void record(String methodName, long latencyNanos) {
+        LatencyWindow window = windows.get(methodName);
+        if (window == null) {
+            LatencyWindow created = new LatencyWindow();
+            window = windows.putIfAbsent(methodName, created);
+            if (window == null) {
+                window = created;
+            }
+        }
+        window.record(latencyNanos);
+    }
+
+    /**
+     * The most recent latencies of one method, in a ring.
+     */
+    private final class LatencyWindow {
+        private final long[] samples = new long[WINDOW_SIZE];
+        private final long[] sorted = new long[WINDOW_SIZE];
+        private int count;
+        private int next;
+        private int sinceRecompute;
+
+        private volatile long cachedPercentileNanos = -1;
+
+        synchronized void record(long latencyNanos) {
+            samples[next] = latencyNanos;
+            next = (next + 1) % WINDOW_SIZE;
+            if (count < WINDOW_SIZE) {
+                count++;
+            }
+
+            if (count >= MIN_SAMPLES && ++sinceRecompute >= RECOMPUTE_INTERVAL) {
+                sinceRecompute = 0;
+                System.arraycopy(samples, 0, sorted, 0, count);
+                Arrays.sort(sorted, 0, count);
+
+                int index = (int) Math.ceil(percentile / 100 * count) - 1;
+                cachedPercentileNanos = sorted[Math.max(0, Math.min(count - 1, index))];
+            }
+        }
+
+        long percentileNanos() {
+            return cachedPercentileNanos;
+        }
+    }
+
+    public static final class Builder {
+        private double percentile = 95;
+        private long minDelayNanos = TimeUnit.MILLISECONDS.toNanos(1);
+        private long maxDelayNanos = TimeUnit.SECONDS.toNanos(1);
+
+        /**
+         * Sets the percentile of recent latencies after which calls are
+         * hedged, between 0 and 100 exclusive.  Defaults to 95.
+         */
+        public Builder percentile(double percentile) {
+            if (!(percentile > 0 && percentile < 100)) {
+                throw new IllegalArgumentException("percentile must be between 0 and 100");
+            }
+            this.percentile = percentile;
+            return this;
+        }
+
+        /**
+         * Sets the least time to wait before hedging, however fast recent
+         * calls were.  Defaults to one millisecond, which is also the tick
+         * of the timer that hedges; shorter delays may run up to a tick
+         * late.
+         */
+        public Builder minDelay(long minDelay, TimeUnit unit) {
+            if (minDelay < 0) {
+                throw new IllegalArgumentException("minDelay cannot be negative");
+            }
+            this.minDelayNanos = unit.toNanos(minDelay);
+            return this;
+        }
+
+        /**
+         * Sets the most time to wait before hedging, however slow recent
+         * calls were; this is also the delay used until enough calls have
+         * been made to judge.  Defaults to one second.
+         */
+        public Builder maxDelay(long maxDelay, TimeUnit unit) {
+            if (maxDelay < 0) {
+                throw new IllegalArgumentException("maxDelay cannot be negative");
+            }
+            this.maxDelayNanos = unit.toNanos(maxDelay);
+            return this;
+        }
+
+        public HedgePolicy build() {
+            if (minDelayNanos > maxDelayNanos) {
+                throw new IllegalStateException("minDelay cannot exceed maxDelay");
+            }
+            return new HedgePolicy(this);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * One logical call made in up to two attempts: the original, and a backup
+ * sent if the original is slow to be answered.  The first reply, of either,
+ * is passed on to the callback; the other attempt is then cancelled.
+ *
+ * <p>An attempt that fails without a reply, while the other may yet be
+ * answered, is ignored.  The original timing out or being cancelled fails
+ * the whole call, though, as those apply to the call rather than the
+ * attempt.
+ */
+final class HedgedCall implements Runnable {
+    private final HedgePolicy policy;
+    private final ClientBase client;
+    private final MethodCall<?> primary;
+    private final long startNanos = System.nanoTime();
+
+    private volatile TimerWheel.Timeout timeout;
+
+    // Guarded by this
+    private MethodCall<?> backup;
+    private ClientBase backupClient;
+    private int pending = 1;
+    private Throwable deferredError;
+    private boolean done;
+
+    HedgedCall(HedgePolicy policy, ClientBase client, MethodCall<?> primary) {
+        this.policy = policy;
+        this.client = client;
+        this.primary = primary;
+    }
+
+    /**
+     * Starts the clock on the original attempt, which has been sent.
+     */
+    void start() {
+        timeout = TimerWheel.fine().schedule(this, policy.delayNanos(primary.name), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sends the backup, the original having gone unanswered for too long.
+     */
+    @Override
+    public void run() {
+        MethodCall<?> backup;
+        ClientBase target;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+
+            backup = primary.duplicate();
+            backup.hedge = this;
+            backup.coalesced = primary.coalesced;
+            backup.cacheMiss = primary.cacheMiss;
+            target = client.alternative();
+
+            this.backup = backup;
+            this.backupClient = target;
+            pending++;
+        }
+
+        try {
+            target.enqueueBackup(backup);
+        } catch (RuntimeException e) {
+            Throwable error;
+            synchronized (this) {
+                pending--;
+                error = pending == 0 && !done ? deferredError : null;
+                done |= error != null;
+            }
+
+            if (error != null) {
+                ClientBase.deliverError(primary, error);
+            }
+        }
+    }
+
+    /**
+     * Decides whether the outcome of the given attempt is to be passed on to
+     * the callback, cancelling the other attempt if so.
+     *
+     * @param error the error with which the attempt failed, or {@code null}
+     *              if it succeeded.
+     */
+    boolean onOutcome(MethodCall<?> attempt, Throwable error) {
+        MethodCall<?> loser;
+        ClientBase loserClient;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+
+            pending--;
+            if (error != null && pending > 0 && !appliesToCall(attempt, error)) {
+                // The other attempt may yet be answered.
+                deferredError = error;
+                return false;
+            }
+
+            done = true;
+            if (attempt == primary) {
+                loser = backup;
+                loserClient = backupClient;
+            } else {
+                loser = primary;
+                loserClient = client;
+            }
+        }
+
+        TimerWheel.Timeout timeout = this.timeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+
+        if (error == null) {
+            policy.record(primary.name, System.nanoTime() - startNanos);
+        }
+
+        if (loser != null) {
+            loserClient.abandon(loser, new CancellationException(
+                    "Call to " + primary.name + " was answered by another attempt"));
+        }
+        return true;
+    }
+
+    private boolean appliesToCall(MethodCall<?> attempt, Throwable error) {
+        return attempt == primary
+                && (error instanceof TimeoutException || error instanceof CancellationException);
+    }
+}
@@ -21,14 +21,46 @@ import com.bendb.thrifty.protocol.Protocol;
 import java.io.IOException;
 
 /**
- * A closure capturing all data necessary to send and receive an asynchronous
- * service method call.
+ * A closure capturing all data necessary to send and receive a service
+ * method call.  Asynchronous calls, made through {@link ClientBase}, must
+ * have a callback unless oneway; synchronous calls, made through
+ * {@link SyncClientBase}, have none.
  */
 public abstract class MethodCall<T> {
     protected final String name;
     protected final byte callTypeId;
     protected final ServiceMethodCallback<T> callback;
 
+    /**
+     * Set by the client on which the call is made, if the call may time out
+     * or be cancelled.
+     */
+    ClientBase.CallState state;
+
+    /**
+     * Set by the client on which the call is made, if the call is one
+     * attempt of a hedged call.
+     */
+    HedgedCall hedge;
+
+    /**
+     * Set by the client on which the call is made, if identical calls are to
+     * share the call's outcome.
+     */
+    CallCoalescer.Group coalesced;
+
+    /**
+     * Set by the client on which the call is made, if the call missed a
+     * cache that its result is to fill.
+     */
+    ResponseCache.Miss cacheMiss;
+
+    /**
+     * The call's {@link CallKey}, once computed by {@link #key()}.
+     */
+    private CallKey key;
+    private boolean keyComputed;
+
     public MethodCall(
             String name,
             byte callTypeId,
@@ -36,9 +68,6 @@ public abstract class MethodCall<T> {
         if (name == null) {
             throw new NullPointerException("name");
         }
-        if (callback == null && callTypeId != TMessageType.ONEWAY) {
-            throw new NullPointerException("callback");
-        }
         if (callTypeId != TMessageType.CALL && callTypeId != TMessageType.ONEWAY) {
             throw new IllegalArgumentException("Unexpected call type: " + callTypeId);
         }
@@ -48,7 +77,48 @@ public abstract class MethodCall<T> {
         this.callback = callback;
     }
 
+    /**
+     * Gets the key identifying the call to caches and coalescers, or
+     * {@code null} if its arguments cannot be encoded.  The arguments are
+     * encoded once, however many of them ask; only the thread making the
+     * call may do so.
+     */
+    CallKey key() {
+        if (!keyComputed) {
+            key = CallKey.of(this);
+            keyComputed = true;
+        }
+        return key;
+    }
+
     protected abstract void send(Protocol protocol) throws IOException;
 
     protected abstract T receive(Protocol protocol, MessageMetadata metadata) throws Exception;
+
+    /**
+     * Gets the number of bytes that {@link #send(Protocol)} would write, or
+     * -1 if unknown.  Generated calls compute this exactly, without encoding
+     * anything.
+     */
+    protected int sizeOf(Protocol protocol) {
+        return -1;
+    }
+
+    /**
+     * Gets whether the call may safely be sent more than once.  Generated
+     * calls to methods annotated {@code (idempotent)} may be.
+     */
+    protected boolean isIdempotent() {
+        return false;
+    }
+
+    /**
+     * Creates a copy of this call, with the same arguments and callback, to
+     * be sent as another attempt.  Only idempotent calls need support this.
+     *
+     * @throws UnsupportedOperationException if the call is not idempotent.
+     */
+    protected MethodCall<T> duplicate() {
+        throw new UnsupportedOperationException("Call to " + name + " is not idempotent");
+    }
 }
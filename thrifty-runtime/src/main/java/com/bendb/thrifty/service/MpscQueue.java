@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded, lock-free queue into which any number of threads may offer
+ * elements, but from which only one thread at a time may take them.
+ *
+ * <p>Offering costs a single atomic swap, however many threads contend.  An
+ * element whose producer has swapped itself in, but not yet linked itself to
+ * its predecessor, is briefly invisible to the consumer; the queue then
+ * appears to end just before it.  Producers that need to wake a waiting
+ * consumer must therefore do so <em>after</em> {@link #offer} returns.
+ */
+final class MpscQueue<E> {
+    /**
+     * The most recently offered node.  Producers contend here, and only here.
+     */
+    private final AtomicReference<Node<E>> tail;
+
+    /**
+     * A stub node whose successor holds the oldest element.  Owned by the
+     * consumer.
+     */
+    private Node<E> head;
+
+    MpscQueue() {
+        Node<E> stub = new Node<>(null);
+        this.head = stub;
+        this.tail = new AtomicReference<>(stub);
+    }
+
+    /**
+     * Appends the given element; may be called from any thread.
+     */
+    void offer(E element) {
+        if (element == null) {
+            throw new NullPointerException("element");
+        }
+
+        Node<E> node = new Node<>(element);
+        Node<E> prev = tail.getAndSet(node);
+        prev.next = node;
+    }
+
+    /**
+     * Gets the oldest element without removing it, or {@code null} if the
+     * queue is empty.  Consumer only.
+     */
+    E peek() {
+        Node<E> next = head.next;
+        return next != null ? next.value : null;
+    }
+
+    /**
+     * Removes and returns the oldest element, or {@code null} if the queue is
+     * empty.  Consumer only.
+     */
+    E poll() {
+        Node<E> next = head.next;
+        if (next == null) {
+            return null;
+        }
+
+        E value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    /**
+     * Gets whether the queue is empty.  Consumer only.
+     */
+    boolean isEmpty() {
+        return head.next == null;
+    }
+
+    private static final class Node<E> {
+        E value;
+        volatile Node<E> next;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Method calls awaiting replies, keyed by sequence ID.
+ *
+ * <p>An open-addressing hash table with linear probing, holding keys in a
+ * primitive array so that sequence IDs are never boxed.  Removal shifts
+ * later entries of the same probe run back, rather than leaving tombstones,
+ * so lookups stay short however many calls come and go.
+ *
+ * <p>Instances are <em>not</em> threadsafe.
+ */
+final class PendingCalls {
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] keys;
+    private MethodCall<?>[] values;
+    private int mask;
+    private int shift;
+    private int size;
+
+    PendingCalls() {
+        this(MIN_CAPACITY);
+    }
+
+    PendingCalls(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2 && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds the given call.
+     *
+     * @throws IllegalStateException if a call with the same ID is present.
+     */
+    void put(int seqId, MethodCall<?> call) {
+        if (call == null) {
+            throw new NullPointerException("call");
+        }
+
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length << 1);
+        }
+
+        int index = indexOf(seqId);
+        while (values[index] != null) {
+            if (keys[index] == seqId) {
+                throw new IllegalStateException("Reused sequence ID! (id=" + seqId + ")");
+            }
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = seqId;
+        values[index] = call;
+        size++;
+    }
+
+    /**
+     * Removes and returns the call with the given ID, or {@code null} if
+     * there is none.
+     */
+    MethodCall<?> remove(int seqId) {
+        int index = indexOf(seqId);
+        while (true) {
+            MethodCall<?> call = values[index];
+            if (call == null) {
+                return null;
+            }
+            if (keys[index] == seqId) {
+                deleteAt(index);
+                size--;
+                return call;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Removes every call, adding them to the given list in no particular
+     * order.
+     */
+    void drainTo(List<MethodCall<?>> calls) {
+        for (MethodCall<?> call : values) {
+            if (call != null) {
+                calls.add(call);
+            }
+        }
+        clear();
+    }
+
+    /**
+     * Empties the slot at {@code hole}, moving back any later entries of its
+     * probe run that could otherwise no longer be found.
+     */
+    private void deleteAt(int hole) {
+        int index = hole;
+        while (true) {
+            index = (index + 1) & mask;
+            MethodCall<?> call = values[index];
+            if (call == null) {
+                break;
+            }
+
+            // An entry may fill the hole only if its home slot does not lie
+            // cyclically within (hole, index].
+            int home = indexOf(keys[index]);
+            if (((index - home) & mask) >= ((index - hole) & mask)) {
+                keys[hole] = keys[index];
+                values[hole] = call;
+                hole = index;
+            }
+        }
+        values[hole] = null;
+    }
+
+    private int indexOf(int seqId) {
+        // Sequence IDs are consecutive; Fibonacci hashing spreads them so
+        // that neighbors do not form one long probe run.
+        return (seqId * 0x9E3779B9) >>> shift;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new MethodCall<?>[capacity];
+        mask = capacity - 1;
+        shift = Integer.numberOfLeadingZeros(capacity) + 1;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        MethodCall<?>[] oldValues = values;
+        allocate(capacity);
+
+        for (int i = 0; i < oldKeys.length; ++i) {
+            MethodCall<?> call = oldValues[i];
+            if (call != null) {
+                int index = indexOf(oldKeys[i]);
+                while (values[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = oldKeys[i];
+                values[index] = call;
+            }
+        }
+    }
+}
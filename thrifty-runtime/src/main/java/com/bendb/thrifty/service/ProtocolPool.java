@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import com.bendb.thrifty.protocol.Protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A pool of connections, each a {@link Protocol} over its own transport, for
+ * use by synchronous clients.
+ *
+ * <p>A connection is checked out for the length of one call, and is returned
+ * afterwards for reuse unless the call failed in a way that could leave it
+ * in an unknown state, in which case it is closed.  Connections are opened
+ * on demand, so there are never fewer than the number of calls in progress
+ * at once; at most {@code maxIdle} are kept open between calls.  The most
+ * recently used connection is reused first.
+ *
+ * <pre>{@code
+ * ProtocolPool pool = new ProtocolPool(new ProtocolPool.Factory() {
+ *     public Protocol create() throws IOException {
+ *         SocketTransport transport = new SocketTransport.Builder("host", 9090).build();
+ *         transport.connect();
+ *         return new CompactProtocol(transport);
+ *     }
+ * }, 16);
+ *
+ * FooSyncClient client = new FooSyncClient(pool);
+ * }</pre>
+ */
+public final class ProtocolPool implements Closeable {
+    /**
+     * Opens new connections.
+     */
+    public interface Factory {
+        /**
+         * Creates a protocol over a newly-opened connection.
+         */
+        Protocol create() throws IOException;
+    }
+
+    private final Factory factory;
+    private final int maxIdle;
+    private final Deque<Protocol> idle = new ArrayDeque<>();
+    private boolean closed;
+
+    public ProtocolPool(Factory factory, int maxIdle) {
+        if (factory == null) {
+            throw new NullPointerException("factory");
+        }
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("maxIdle must not be negative");
+        }
+
+        this.factory = factory;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Checks out an idle connection, or opens a new one if there is none.
+     * The caller must pass it back to either {@link #release} or
+     * {@link #discard} when done.
+     */
+    public Protocol acquire() throws IOException {
+        synchronized (idle) {
+            if (closed) {
+                throw new IllegalStateException("Cannot use a closed pool");
+            }
+
+            Protocol protocol = idle.pollFirst();
+            if (protocol != null) {
+                return protocol;
+            }
+        }
+
+        return factory.create();
+    }
+
+    /**
+     * Returns a connection in a known-good state to the pool.
+     */
+    public void release(Protocol protocol) {
+        synchronized (idle) {
+            if (!closed && idle.size() < maxIdle) {
+                idle.addFirst(protocol);
+                return;
+            }
+        }
+
+        closeQuietly(protocol);
+    }
+
+    /**
+     * Closes a connection that is not to be reused.
+     */
+    public void discard(Protocol protocol) {
+        closeQuietly(protocol);
+    }
+
+    /**
+     * Gets the number of connections open and waiting to be checked out.
+     */
+    public int idleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    /**
+     * Closes all idle connections; those checked out are closed as they are
+     * returned.
+     */
+    @Override
+    public void close() {
+        Protocol[] toClose;
+        synchronized (idle) {
+            closed = true;
+            toClose = idle.toArray(new Protocol[idle.size()]);
+            idle.clear();
+        }
+
+        for (Protocol protocol : toClose) {
+            closeQuietly(protocol);
+        }
+    }
+
+    private static void closeQuietly(Protocol protocol) {
+        try {
+            protocol.close();
+        } catch (IOException ignored) {
+            // nope
+        }
+    }
+}
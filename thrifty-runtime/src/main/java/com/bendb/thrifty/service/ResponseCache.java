@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds recent results of a service method, so that calls repeating one
+ * are answered without going to the server at all.
+ *
+ * <p>Generated clients keep one cache for each method annotated with a
+ * {@code cache.ttl} in its Thrift IDL, and, optionally, a
+ * {@code cache.max_entries} (by default, 1000):
+ *
+ * <pre>{@code
+ * service Catalog {
+ *   Product getProduct(1: string sku) (idempotent, cache.ttl = "30s", cache.max_entries = "5000")
+ * }
+ * }</pre>
+ *
+ * <p>Calls are keyed by method and the encoding of their arguments, as with
+ * a {@link CallCoalescer}.  Only successful results are cached; errors are
+ * never remembered.  A result is served until its time to live has passed,
+ * counting from when it was received, or until it is evicted to make room;
+ * the least recently used results are evicted first.  Calls made with a
+ * {@link CallHandle} bypass the cache entirely.
+ *
+ * <p>Instances are threadsafe.  Larger caches spread their entries over
+ * several independently locked segments, each evicting on its own, so that
+ * concurrent callers rarely contend; eviction order is then only roughly
+ * that of last use across the whole cache.
+ */
+public final class ResponseCache<T> {
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_CAPACITY = 64;
+
+    private final List<Segment<T>> segments;
+    private final int segmentMask;
+    private final long ttlNanos;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * Creates a cache holding at most {@code maxEntries} results, each for
+     * at most the given time to live.
+     */
+    public ResponseCache(int maxEntries, long ttl, TimeUnit unit) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("ttl must be positive");
+        }
+
+        // Small caches are not split, so that eviction stays close to LRU.
+        int segmentCount = Integer.highestOneBit(
+                Math.max(1, Math.min(MAX_SEGMENTS, maxEntries / MIN_SEGMENT_CAPACITY)));
+        List<Segment<T>> segments = new ArrayList<>(segmentCount);
+        for (int i = 0; i < segmentCount; ++i) {
+            // Spread the remainder, so that capacities sum to maxEntries.
+            int capacity = maxEntries / segmentCount + (i < maxEntries % segmentCount ? 1 : 0);
+            segments.add(new Segment<T>(capacity));
+        }
+
+        this.segments = segments;
+        this.segmentMask = segmentCount - 1;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Gets the number of calls answered from the cache.
+     */
+    public long hitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of calls that consulted the cache, but were sent to
+     * the server.
+     */
+    public long missCount() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of results held, including any that have expired but
+     * have not yet been removed.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<T> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Discards every result held.
+     */
+    public void invalidateAll() {
+        for (Segment<T> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Gets the unexpired result of calls with the given key, or {@code null}
+     * if there is none.
+     */
+    T get(CallKey key) {
+        Segment<T> segment = segmentFor(key);
+        Cached<T> entry;
+        synchronized (segment) {
+            entry = segment.get(key);
+            if (entry != null && entry.expiresAt - System.nanoTime() <= 0) {
+                segment.remove(key);
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    void put(CallKey key, T value) {
+        if (value == null) {
+            return;
+        }
+
+        Cached<T> entry = new Cached<>(value, System.nanoTime() + ttlNanos);
+        Segment<T> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, entry);
+        }
+    }
+
+    private Segment<T> segmentFor(CallKey key) {
+        int h = key.hashCode();
+        return segments.get((h ^ (h >>> 16)) & segmentMask);
+    }
+
+    /**
+     * A call sent after missing the cache, whose result is to be cached
+     * when it arrives.
+     */
+    static final class Miss {
+        private final ResponseCache<?> cache;
+        private final CallKey key;
+
+        Miss(ResponseCache<?> cache, CallKey key) {
+            this.cache = cache;
+            this.key = key;
+        }
+
+        @SuppressWarnings("unchecked")
+        void store(Object result) {
+            ((ResponseCache<Object>) cache).put(key, result);
+        }
+    }
+
+    private static final class Cached<T> {
+        final T value;
+        final long expiresAt;
+
+        Cached(T value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * An access-ordered map evicting its least recently used entry when
+     * full.  Guarded by itself.
+     */
+    private static final class Segment<T> extends LinkedHashMap<CallKey, Cached<T>> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CallKey, Cached<T>> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import com.bendb.thrifty.ThriftException;
+import com.bendb.thrifty.protocol.MessageMetadata;
+import com.bendb.thrifty.protocol.Protocol;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Implements a service client that executes methods synchronously, on the
+ * calling thread.
+ *
+ * <p>Each call checks a connection out of a {@link ProtocolPool}, then
+ * writes the call, flushes, and reads the reply before returning the
+ * connection; no other thread is involved at any point.  Calls made
+ * concurrently use separate connections.  This suits callers that already
+ * run on a pool of worker threads, and want each call to cost no more than
+ * the round trip itself.
+ *
+ * <p>Calls are encoded and decoded by the same {@link MethodCall} classes as
+ * used by {@link ClientBase}.
+ */
+public class SyncClientBase {
+    private final ProtocolPool pool;
+
+    /**
+     * A sequence ID generator; contains the most-recently-used
+     * sequence ID (or zero, if no calls have been made).
+     */
+    private final AtomicInteger seqId = new AtomicInteger(0);
+
+    protected SyncClientBase(ProtocolPool pool) {
+        if (pool == null) {
+            throw new NullPointerException("pool");
+        }
+        this.pool = pool;
+    }
+
+    /**
+     * When invoked by a derived instance, sends the given call to the server
+     * and waits for its result.  The call's callback is not used, and may be
+     * {@code null}.
+     *
+     * @param methodCall the remote method call to be invoked
+     * @return the call's result, or {@code null} for void and oneway methods.
+     * @throws IOException if the connection fails.
+     * @throws ThriftException if the server replies with an error, or with a
+     *                         reply that cannot be understood.
+     * @throws Exception any exception declared by the method, as thrown by
+     *                   the server.
+     */
+    protected <T> T execute(MethodCall<T> methodCall) throws Exception {
+        Protocol protocol = pool.acquire();
+
+        // Whether the connection was left between messages, and may be reused
+        boolean reusable = false;
+        try {
+            int sid = seqId.incrementAndGet();
+            protocol.writeMessageBegin(methodCall.name, methodCall.callTypeId, sid);
+            methodCall.send(protocol);
+            protocol.writeMessageEnd();
+            protocol.flush();
+
+            if (methodCall.callTypeId == TMessageType.ONEWAY) {
+                reusable = true;
+                return null;
+            }
+
+            MessageMetadata metadata = protocol.readMessageBegin();
+            if (metadata.seqId != sid) {
+                throw new ThriftException(
+                        ThriftException.Kind.BAD_SEQUENCE_ID,
+                        "Unrecognized sequence ID");
+            }
+
+            if (metadata.type == TMessageType.EXCEPTION) {
+                ThriftException e = ThriftException.read(protocol);
+                protocol.readMessageEnd();
+                reusable = true;
+                throw e;
+            } else if (metadata.type != TMessageType.REPLY) {
+                throw new ThriftException(
+                        ThriftException.Kind.INVALID_MESSAGE_TYPE,
+                        "Invalid message type: " + metadata.type);
+            }
+
+            if (!metadata.name.equals(methodCall.name)) {
+                throw new ThriftException(
+                        ThriftException.Kind.WRONG_METHOD_NAME,
+                        "Unexpected method name in reply; expected " + methodCall.name
+                                + " but received " + metadata.name);
+            }
+
+            T result;
+            try {
+                result = methodCall.receive(protocol, metadata);
+            } catch (ThriftException e) {
+                // A missing result is only detected once the whole reply
+                // has been read; anything else leaves it part-read.
+                if (e.kind == ThriftException.Kind.MISSING_RESULT) {
+                    protocol.readMessageEnd();
+                    reusable = true;
+                }
+                throw e;
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                // Declared exceptions are likewise only thrown once the
+                // whole reply has been read.
+                protocol.readMessageEnd();
+                reusable = true;
+                throw e;
+            }
+
+            protocol.readMessageEnd();
+            reusable = true;
+            return result;
+        } finally {
+            if (reusable) {
+                pool.release(protocol);
+            } else {
+                pool.discard(protocol);
+            }
+        }
+    }
+
+    /**
+     * When invoked by a derived instance, gets the given call's result from
+     * the given cache if it holds an unexpired one, and otherwise executes
+     * the call as {@link #execute(MethodCall)} does, caching its result.
+     *
+     * @param methodCall the remote method call to be invoked
+     * @param cache the cache of the call's method
+     * @return the call's result.
+     */
+    protected <T> T execute(MethodCall<T> methodCall, ResponseCache<T> cache) throws Exception {
+        CallKey key = methodCall.key();
+        if (key == null) {
+            return execute(methodCall);
+        }
+
+        T result = cache.get(key);
+        if (result == null) {
+            result = execute(methodCall);
+            cache.put(key, result);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel: a ring of buckets, each holding the timeouts that
+ * fall due in one tick, which a single thread visits in turn.  Scheduling
+ * and cancelling cost O(1) however many timeouts are pending, at the price
+ * of expiring up to a tick late.
+ *
+ * <p>Timeouts reach the ticking thread through lock-free queues, so that
+ * any thread may schedule or cancel them.  Tasks run on the ticking thread,
+ * and should be brief.
+ */
+final class TimerWheel {
+    private static final long DEFAULT_TICK_MILLIS = 10;
+    private static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * The tick of the wheel for hedging, whose delays are often only a few
+     * milliseconds; its wheel spans the default maximum hedge delay.
+     */
+    private static final long FINE_TICK_MILLIS = 1;
+    private static final int FINE_WHEEL_SIZE = 1024;
+
+    /**
+     * The greatest number of new timeouts placed on the wheel per tick, so
+     * that a flood of them cannot delay expiry indefinitely.
+     */
+    private static final int MAX_ADDED_PER_TICK = 100000;
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private static final class SharedHolder {
+        static final TimerWheel SHARED = new TimerWheel(
+                "thrifty-timer", DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+    }
+
+    private static final class FineHolder {
+        static final TimerWheel FINE = new TimerWheel(
+                "thrifty-hedge-timer", FINE_TICK_MILLIS, TimeUnit.MILLISECONDS, FINE_WHEEL_SIZE);
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startNanos;
+
+    private final MpscQueue<Timeout> added = new MpscQueue<>();
+    private final MpscQueue<Timeout> cancelled = new MpscQueue<>();
+
+    private final Thread worker;
+    private volatile boolean stopped;
+
+    /**
+     * Gets the wheel shared by every client in the process, starting it
+     * if need be.
+     */
+    static TimerWheel shared() {
+        return SharedHolder.SHARED;
+    }
+
+    /**
+     * Gets the wheel, with a one-millisecond tick, shared by every hedged
+     * call in the process, starting it if need be.  Call timeouts do not
+     * need such precision, and use the coarser {@link #shared()} wheel.
+     */
+    static TimerWheel fine() {
+        return FineHolder.FINE;
+    }
+
+    TimerWheel(String name, long tick, TimeUnit unit, int wheelSize) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("tick must be positive");
+        }
+        if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+            throw new IllegalArgumentException("wheelSize out of range: " + wheelSize);
+        }
+
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+
+        this.tickNanos = unit.toNanos(tick);
+        this.wheel = new Bucket[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; ++i) {
+            wheel[i] = new Bucket();
+        }
+
+        this.startNanos = System.nanoTime();
+        this.worker = new Worker(name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Arranges for the given task to run once the given delay has passed.
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+
+        Timeout timeout = new Timeout(this, task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+        added.offer(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops ticking; pending timeouts never expire.
+     */
+    void stop() {
+        stopped = true;
+        LockSupport.unpark(worker);
+    }
+
+    private final class Worker extends Thread {
+        private long tick;
+
+        Worker(String name) {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                long tickEnd = startNanos + (tick + 1) * tickNanos;
+                long sleep;
+                while ((sleep = tickEnd - System.nanoTime()) > 0 && !stopped) {
+                    LockSupport.parkNanos(this, sleep);
+                }
+
+                removeCancelled();
+                transferAdded();
+                expire(wheel[(int) (tick & mask)]);
+                tick++;
+            }
+        }
+
+        private void removeCancelled() {
+            Timeout timeout;
+            while ((timeout = cancelled.poll()) != null) {
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                }
+            }
+        }
+
+        private void transferAdded() {
+            Timeout timeout;
+            for (int i = 0; i < MAX_ADDED_PER_TICK && (timeout = added.poll()) != null; ++i) {
+                if (timeout.state != PENDING) {
+                    continue;
+                }
+
+                // The tick in which the deadline falls; one already past
+                // expires in this tick.
+                long due = (timeout.deadlineNanos - startNanos) / tickNanos;
+                timeout.remainingRounds = (due - tick) / wheel.length;
+
+                long ticks = Math.max(due, tick);
+                wheel[(int) (ticks & mask)].add(timeout);
+            }
+        }
+
+        private void expire(Bucket bucket) {
+            Timeout timeout = bucket.head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.state != PENDING) {
+                    bucket.remove(timeout);
+                } else if (timeout.remainingRounds <= 0) {
+                    bucket.remove(timeout);
+                    timeout.expire();
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * A doubly-linked list of timeouts, touched only by the ticking thread.
+     */
+    private static final class Bucket {
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    /**
+     * A handle to a scheduled task.
+     */
+    static final class Timeout {
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimerWheel timer;
+        private final Runnable task;
+        private final long deadlineNanos;
+
+        private volatile int state = PENDING;
+
+        // Owned by the ticking thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        Timeout(TimerWheel timer, Runnable task, long deadlineNanos) {
+            this.timer = timer;
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Prevents the task from running, if it has not already.
+         *
+         * @return true if the task will now never run.
+         */
+        boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                return false;
+            }
+            timer.cancelled.offer(this);
+            return true;
+        }
+
+        boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+            if (!STATE.compareAndSet(this, PENDING, EXPIRED)) {
+                return;
+            }
+
+            try {
+                task.run();
+            } catch (Throwable ignored) {
+                // nope
+            }
+        }
+    }
+}
@@ -35,6 +35,11 @@ public class BufferTransport extends Transport {
         return b.read(buffer, offset, count);
     }
 
+    @Override
+    public void skip(long count) throws IOException {
+        b.skip(count);
+    }
+
     @Override
     public void write(byte[] buffer, int offset, int count) throws IOException {
         b.write(buffer, offset, count);
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.transport;
+
+import java.io.IOException;
+
+/**
+ * A transport decorator that accumulates writes in a fixed-size buffer,
+ * only writing to the underlying transport when the buffer fills or when
+ * {@link #flush()} is called.  Similarly, reads are satisfied from a buffer
+ * that is refilled from the underlying transport as needed.
+ *
+ * <p>Both buffers are exposed to protocols - via {@link #reserveWrite(int)}
+ * and {@link #readBuffer()} respectively - allowing values to be encoded and
+ * decoded in place.
+ *
+ * <p>Instances of this class are <em>not</em> threadsafe.
+ */
+public class BufferedTransport extends Transport {
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final Transport inner;
+
+    // Read state
+    private final byte[] readBuffer;
+    private int readPos;
+    private int readLimit;
+
+    // Write state
+    private final byte[] writeBuffer;
+    private int writePos;
+
+    public BufferedTransport(Transport inner) {
+        this(inner, DEFAULT_BUFFER_SIZE);
+    }
+
+    public BufferedTransport(Transport inner, int bufferSize) {
+        if (inner == null) {
+            throw new NullPointerException("inner");
+        }
+
+        if (bufferSize < 16) {
+            throw new IllegalArgumentException("bufferSize must be at least 16 bytes");
+        }
+
+        this.inner = inner;
+        this.readBuffer = new byte[bufferSize];
+        this.writeBuffer = new byte[bufferSize];
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (readPos == readLimit) {
+            if (count >= readBuffer.length) {
+                // Too large to buffer; read straight into the caller's array.
+                return inner.read(buffer, offset, count);
+            }
+
+            if (!fillReadBuffer()) {
+                return -1;
+            }
+        }
+
+        int toCopy = Math.min(count, readLimit - readPos);
+        System.arraycopy(readBuffer, readPos, buffer, offset, toCopy);
+        readPos += toCopy;
+        return toCopy;
+    }
+
+    @Override
+    public byte[] readBuffer() {
+        return readBuffer;
+    }
+
+    @Override
+    public int readBufferPosition() {
+        return readPos;
+    }
+
+    @Override
+    public int readBufferRemaining() {
+        return readLimit - readPos;
+    }
+
+    @Override
+    public void consumeReadBuffer(int count) {
+        if (count < 0 || count > readLimit - readPos) {
+            throw new IllegalArgumentException("Cannot consume " + count + " bytes");
+        }
+        readPos += count;
+    }
+
+    @Override
+    public void skip(long count) throws IOException {
+        if (count < 0) {
+            throw new IllegalArgumentException("count < 0: " + count);
+        }
+
+        int buffered = (int) Math.min(count, readLimit - readPos);
+        readPos += buffered;
+        if (count > buffered) {
+            inner.skip(count - buffered);
+        }
+    }
+
+    private boolean fillReadBuffer() throws IOException {
+        int read = inner.read(readBuffer, 0, readBuffer.length);
+        if (read <= 0) {
+            return false;
+        }
+
+        readPos = 0;
+        readLimit = read;
+        return true;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        if (count > writeBuffer.length - writePos) {
+            flushBuffer();
+        }
+
+        if (count >= writeBuffer.length) {
+            // Too large to buffer; copying it would only add overhead.
+            inner.write(buffer, offset, count);
+            return;
+        }
+
+        System.arraycopy(buffer, offset, writeBuffer, writePos, count);
+        writePos += count;
+    }
+
+    @Override
+    public int reserveWrite(int count) throws IOException {
+        if (count > writeBuffer.length) {
+            return -1;
+        }
+
+        if (count > writeBuffer.length - writePos) {
+            flushBuffer();
+        }
+
+        return writePos;
+    }
+
+    @Override
+    public byte[] writeBuffer() {
+        return writeBuffer;
+    }
+
+    @Override
+    public void commitWrite(int count) {
+        if (count < 0 || count > writeBuffer.length - writePos) {
+            throw new IllegalArgumentException("Cannot commit " + count + " bytes");
+        }
+        writePos += count;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        inner.flush();
+    }
+
+    /**
+     * Writes any buffered bytes, then closes the underlying transport.  The
+     * underlying transport is closed even if the write fails, and the first
+     * error encountered is thrown.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        try {
+            flush();
+        } catch (IOException e) {
+            error = e;
+        }
+
+        readPos = 0;
+        readLimit = 0;
+        writePos = 0;
+
+        try {
+            inner.close();
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (writePos > 0) {
+            int count = writePos;
+            writePos = 0;
+            inner.write(writeBuffer, 0, count);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A threadsafe pool of direct {@link ByteBuffer ByteBuffers}, bucketed by
+ * capacity.
+ *
+ * <p>Direct buffers are expensive to allocate and are only reclaimed when
+ * garbage-collected, so connections recycle them here rather than
+ * allocating their own.  Each bucket retains a bounded number of buffers;
+ * buffers released to a full bucket, or larger than {@link #MAX_POOLED_CAPACITY},
+ * are simply dropped.
+ */
+final class DirectBufferPool {
+    static final DirectBufferPool SHARED = new DirectBufferPool(32);
+
+    static final int MAX_POOLED_CAPACITY = 1024 * 1024;
+
+    private final int buffersPerCapacity;
+    private final ConcurrentMap<Integer, ArrayBlockingQueue<ByteBuffer>> buckets = new ConcurrentHashMap<>();
+
+    DirectBufferPool(int buffersPerCapacity) {
+        this.buffersPerCapacity = buffersPerCapacity;
+    }
+
+    /**
+     * Gets a cleared direct buffer with exactly the given capacity.
+     */
+    ByteBuffer acquire(int capacity) {
+        ArrayBlockingQueue<ByteBuffer> bucket = buckets.get(capacity);
+        ByteBuffer buffer = bucket != null ? bucket.poll() : null;
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool.  The caller must not use it afterwards.
+     */
+    void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || capacity > MAX_POOLED_CAPACITY) {
+            return;
+        }
+
+        ArrayBlockingQueue<ByteBuffer> bucket = buckets.get(capacity);
+        if (bucket == null) {
+            ArrayBlockingQueue<ByteBuffer> newBucket = new ArrayBlockingQueue<>(buffersPerCapacity);
+            bucket = buckets.putIfAbsent(capacity, newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+
+        bucket.offer(buffer);
+    }
+}
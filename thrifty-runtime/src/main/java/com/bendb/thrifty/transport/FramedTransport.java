@@ -15,87 +15,317 @@
  */
 package com.bendb.thrifty.transport;
 
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.net.ProtocolException;
 
 /**
  * A transport decorator that reads from and writes to the underlying transport
  * in length-prefixed frames.  Used when the server is using a non-blocking
  * implementation, which currently requires such framing.
+ *
+ * <p>Outgoing data is accumulated in a reusable buffer, each frame preceded
+ * by four bytes reserved for its header.  Each message gets a frame of its
+ * own: {@link #endMessage()} fills in the header of the current frame and
+ * starts the next, as non-blocking servers read one message per frame.  On
+ * {@link #flush()} the frames written so far are handed to the underlying
+ * transport in a single write.  Incoming frames are read in their entirety into a reusable
+ * buffer, which is exposed to protocols via {@link #readBuffer()}.
+ *
+ * <p>Instances of this class are <em>not</em> threadsafe.
  */
 public class FramedTransport extends Transport {
+    /**
+     * The default limit on the size of frames that will be read, matching
+     * that of the Apache Thrift servers.
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16384000;
+
+    private static final int HEADER_SIZE = 4;
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    /**
+     * Buffers that grow beyond this size to hold an unusually large frame are
+     * discarded once that frame is done with, rather than being retained.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Extra room made by {@link #expectWrite(int)}, as protocols reserve
+     * enough for the largest possible encoding of a value (e.g. a ten-byte
+     * varint) before writing it.
+     */
+    private static final int EXPECTED_WRITE_SLACK = 16;
+
     private final Transport inner;
+    private final int maxFrameSize;
 
     // Read state
-    private int remainingBytes;
+    private byte[] readBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private int readPos;
+    private int readLimit;
 
-    // Write state
-    private UnsafeByteArrayOutputStream pendingWrite;
+    // Write state.  Completed frames lie before frameStart; the current
+    // frame's header slot is the HEADER_SIZE bytes starting there.
+    private byte[] writeBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private int frameStart = 0;
+    private int writePos = HEADER_SIZE;
 
     public FramedTransport(Transport inner) {
+        this(inner, DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * @param inner the transport to which frames are written, and from which
+     *              they are read.
+     * @param maxFrameSize the size, in bytes, of the largest frame that will
+     *                     be accepted when reading.
+     */
+    public FramedTransport(Transport inner, int maxFrameSize) {
+        if (inner == null) {
+            throw new NullPointerException("inner");
+        }
+
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("maxFrameSize must be positive");
+        }
+
         this.inner = inner;
+        this.maxFrameSize = maxFrameSize;
     }
 
     @Override
     public void close() throws IOException {
+        readPos = 0;
+        readLimit = 0;
+        frameStart = 0;
+        writePos = HEADER_SIZE;
         inner.close();
-        pendingWrite = null;
     }
 
     @Override
     public int read(byte[] buffer, int offset, int count) throws IOException {
-        while (remainingBytes <= 0) {
-            readHeader();
+        if (readPos == readLimit && !readFrame()) {
+            return -1;
         }
 
-        int toRead = Math.min(count, remainingBytes);
-        return inner.read(buffer, offset, toRead);
+        int toCopy = Math.min(count, readLimit - readPos);
+        System.arraycopy(readBuffer, readPos, buffer, offset, toCopy);
+        readPos += toCopy;
+        return toCopy;
+    }
+
+    @Override
+    public byte[] readBuffer() {
+        return readBuffer;
     }
 
-    private void readHeader() throws IOException {
-        byte[] headerBytes = new byte[4];
-        inner.read(headerBytes, 0, headerBytes.length);
+    @Override
+    public int readBufferPosition() {
+        return readPos;
+    }
+
+    @Override
+    public int readBufferRemaining() {
+        return readLimit - readPos;
+    }
+
+    @Override
+    public void consumeReadBuffer(int count) {
+        if (count < 0 || count > readLimit - readPos) {
+            throw new IllegalArgumentException("Cannot consume " + count + " bytes");
+        }
+        readPos += count;
+    }
+
+    @Override
+    public void skip(long count) throws IOException {
+        if (count < 0) {
+            throw new IllegalArgumentException("count < 0: " + count);
+        }
+
+        while (count > 0) {
+            if (readPos == readLimit && !readFrame()) {
+                throw new EOFException();
+            }
+
+            int skipped = (int) Math.min(count, readLimit - readPos);
+            readPos += skipped;
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Reads the next non-empty frame into the read buffer.
+     *
+     * @return false if the underlying transport was exhausted before a frame
+     *         header could be read.
+     */
+    private boolean readFrame() throws IOException {
+        int size;
+        do {
+            if (readBuffer.length > MAX_RETAINED_BUFFER_SIZE) {
+                readBuffer = new byte[INITIAL_BUFFER_SIZE];
+            }
+
+            readPos = 0;
+            readLimit = 0;
 
-        remainingBytes = ((headerBytes[0] & 0xFF) << 24)
-                       | ((headerBytes[1] & 0xFF) << 16)
-                       | ((headerBytes[2] & 0xFF) <<  8)
-                       | ((headerBytes[3] & 0xFF));
+            if (!readFully(readBuffer, HEADER_SIZE, true)) {
+                return false;
+            }
+
+            size = ((readBuffer[0] & 0xFF) << 24)
+                 | ((readBuffer[1] & 0xFF) << 16)
+                 | ((readBuffer[2] & 0xFF) <<  8)
+                 |  (readBuffer[3] & 0xFF);
+
+            if (size < 0) {
+                throw new ProtocolException("Negative frame size: " + size);
+            }
+
+            if (size > maxFrameSize) {
+                throw new ProtocolException(
+                        "Frame size " + size + " exceeds the maximum of " + maxFrameSize);
+            }
+        } while (size == 0);
+
+        if (size > readBuffer.length) {
+            readBuffer = new byte[size];
+        }
+
+        readFully(readBuffer, size, false);
+        readLimit = size;
+        return true;
+    }
+
+    /**
+     * Reads exactly {@code count} bytes into the start of {@code buffer}.
+     *
+     * @return false if the underlying transport was exhausted before any
+     *         bytes were read, and {@code eofAllowed} is true.
+     * @throws EOFException if the transport was exhausted in the middle of the
+     *                      read, or at its start when {@code eofAllowed} is false.
+     */
+    private boolean readFully(byte[] buffer, int count, boolean eofAllowed) throws IOException {
+        int offset = 0;
+        while (offset < count) {
+            int read = inner.read(buffer, offset, count - offset);
+            if (read <= 0) {
+                if (offset == 0 && eofAllowed) {
+                    return false;
+                }
+                throw new EOFException("Expected " + count + " bytes, got " + offset);
+            }
+            offset += read;
+        }
+        return true;
     }
 
     @Override
     public void write(byte[] buffer, int offset, int count) throws IOException {
-        if (pendingWrite == null) {
-            pendingWrite = new UnsafeByteArrayOutputStream(Math.max(count, 32));
+        ensureWriteCapacity(count);
+        System.arraycopy(buffer, offset, writeBuffer, writePos, count);
+        writePos += count;
+    }
+
+    @Override
+    public int reserveWrite(int count) throws IOException {
+        ensureWriteCapacity(count);
+        return writePos;
+    }
+
+    @Override
+    public byte[] writeBuffer() {
+        return writeBuffer;
+    }
+
+    @Override
+    public void commitWrite(int count) {
+        if (count < 0 || count > writeBuffer.length - writePos) {
+            throw new IllegalArgumentException("Cannot commit " + count + " bytes");
         }
+        writePos += count;
+    }
 
-        pendingWrite.write(buffer, offset, count);
+    /**
+     * Makes room in the frame being written for {@code count} more bytes.
+     *
+     * <p>Callers that know the encoded size of a message before writing it,
+     * e.g. from {@link com.bendb.thrifty.SizedAdapter#sizeOf}, can use this so
+     * that the frame buffer grows once, rather than repeatedly as the message
+     * is written.
+     *
+     * @param count the number of bytes about to be written.
+     */
+    @Override
+    public void expectWrite(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count < 0: " + count);
+        }
+        ensureWriteCapacity(count + EXPECTED_WRITE_SLACK);
     }
 
     @Override
-    public void flush() throws IOException {
-        int size = pendingWrite == null ? 0 : pendingWrite.size();
+    public boolean usesWriteHints() {
+        return true;
+    }
 
-        byte[] headerBytes = new byte[4];
-        headerBytes[0] = (byte) ((size >> 24) & 0xFF);
-        headerBytes[1] = (byte) ((size >> 16) & 0xFF);
-        headerBytes[2] = (byte) ((size >>  8) & 0xFF);
-        headerBytes[3] = (byte)  (size        & 0xFF);
+    private void ensureWriteCapacity(int count) {
+        int required = writePos + count;
+        if (required < 0) {
+            throw new IllegalStateException("Frame too large");
+        }
 
-        inner.write(headerBytes);
+        if (required > writeBuffer.length) {
+            int newSize = Math.max(required, writeBuffer.length << 1);
+            if (newSize < 0) {
+                newSize = required;
+            }
 
-        if (size > 0) {
-            inner.write(pendingWrite.getBuffer(), 0, size);
-            pendingWrite.reset();
+            byte[] newBuffer = new byte[newSize];
+            System.arraycopy(writeBuffer, 0, newBuffer, 0, writePos);
+            writeBuffer = newBuffer;
         }
     }
 
-    private static class UnsafeByteArrayOutputStream extends ByteArrayOutputStream {
-        public UnsafeByteArrayOutputStream(int count) {
-            super(count);
+    /**
+     * Ends the current frame, if anything has been written to it.
+     */
+    @Override
+    public void endMessage() {
+        int size = writePos - frameStart - HEADER_SIZE;
+        if (size == 0) {
+            return;
         }
 
-        public byte[] getBuffer() {
-            return buf;
+        writeBuffer[frameStart]     = (byte) ((size >> 24) & 0xFF);
+        writeBuffer[frameStart + 1] = (byte) ((size >> 16) & 0xFF);
+        writeBuffer[frameStart + 2] = (byte) ((size >>  8) & 0xFF);
+        writeBuffer[frameStart + 3] = (byte)  (size        & 0xFF);
+
+        ensureWriteCapacity(HEADER_SIZE);
+        frameStart = writePos;
+        writePos += HEADER_SIZE;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        endMessage();
+
+        if (frameStart > 0) {
+            // Reset before writing, so that a failed write does not leave
+            // partial frames behind to be prepended to the next ones.
+            int length = frameStart;
+            frameStart = 0;
+            writePos = HEADER_SIZE;
+            inner.write(writeBuffer, 0, length);
+
+            if (writeBuffer.length > MAX_RETAINED_BUFFER_SIZE) {
+                writeBuffer = new byte[INITIAL_BUFFER_SIZE];
+            }
         }
+
+        inner.flush();
     }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.transport;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+
+import java.io.IOException;
+
+/**
+ * A transport that reads from an okio {@link BufferedSource} and writes to
+ * a {@link BufferedSink}.
+ *
+ * <p>Either end may be omitted, in which case the corresponding operations
+ * will fail with an {@link IllegalStateException}.  Protocols designed for
+ * okio, such as {@link com.bendb.thrifty.protocol.OkioBinaryProtocol}, use
+ * {@link #source()} and {@link #sink()} directly rather than going through
+ * {@link #read(byte[], int, int)} and {@link #write(byte[], int, int)}.
+ */
+public class OkioTransport extends Transport {
+    private final BufferedSource source;
+    private final BufferedSink sink;
+
+    public OkioTransport(BufferedSource source, BufferedSink sink) {
+        if (source == null && sink == null) {
+            throw new NullPointerException("At least one of source or sink must be non-null");
+        }
+        this.source = source;
+        this.sink = sink;
+    }
+
+    public BufferedSource source() {
+        if (source == null) {
+            throw new IllegalStateException("This transport has no source");
+        }
+        return source;
+    }
+
+    public BufferedSink sink() {
+        if (sink == null) {
+            throw new IllegalStateException("This transport has no sink");
+        }
+        return sink;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        return source().read(buffer, offset, count);
+    }
+
+    @Override
+    public void skip(long count) throws IOException {
+        source().skip(count);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        sink().write(buffer, offset, count);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (sink != null) {
+            sink.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (source != null) {
+                source.close();
+            }
+        } finally {
+            if (sink != null) {
+                sink.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,634 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.transport;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A transport over a {@link SocketChannel}, buffering reads and writes in
+ * pooled direct {@link ByteBuffer ByteBuffers} so that data is copied into
+ * native memory only once on its way to or from the socket.
+ *
+ * <p>When built with {@link Builder#framed(boolean)}, this transport also
+ * performs the length-prefix framing of {@link FramedTransport} itself:
+ * each frame's header and body are sent with a single gathering write, and
+ * a frame's header is read together with as much of its body as is
+ * available with a single scattering read.
+ *
+ * <p>If a read timeout is configured, the channel is put in non-blocking
+ * mode and waits are done with a {@link Selector}; otherwise, the channel
+ * blocks.
+ *
+ * <p>Instances of this class are <em>not</em> threadsafe, except that one
+ * thread may read while another writes, and any thread may close the
+ * transport.  Its buffers are returned to the pool only once no read or
+ * write is in progress.
+ */
+public class SocketChannelTransport extends Transport {
+    public static final int DEFAULT_BUFFER_SIZE = 32 * 1024;
+
+    private static final int HEADER_SIZE = 4;
+
+    private final String host;
+    private final int port;
+    private final int readTimeout;
+    private final int connectTimeout;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final boolean tcpNoDelay;
+    private final int bufferSize;
+    private final boolean framed;
+    private final int maxFrameSize;
+
+    private final DirectBufferPool pool = DirectBufferPool.SHARED;
+
+    /**
+     * The number of reads and writes in progress, plus one while connected.
+     * Whoever brings this to zero returns the buffers to the pool, so that a
+     * close cannot hand them to another transport while still in use here.
+     */
+    private final AtomicInteger bufferUsers = new AtomicInteger();
+
+    private SocketChannel channel;
+    private Selector selector;
+    private SelectionKey selectionKey;
+
+    // Read state.  The read buffer is kept ready for reading; that is,
+    // its unread bytes lie between its position and its limit.
+    private ByteBuffer readBuffer;
+    private ByteBuffer readHeader;
+    private final ByteBuffer[] readVector = new ByteBuffer[2];
+
+    // The number of bytes of the current frame yet to be consumed, some
+    // of which may already be in the read buffer.
+    private int frameRemaining;
+
+    // Write state.  The write buffer is kept ready for writing; that is,
+    // pending bytes lie between zero and its position.
+    private ByteBuffer writeBuffer;
+    private ByteBuffer writeHeader;
+    private final ByteBuffer[] writeVector = new ByteBuffer[2];
+
+    public static class Builder {
+        private final String host;
+        private final int port;
+        private int readTimeout;
+        private int connectTimeout;
+        private int sendBufferSize;
+        private int receiveBufferSize;
+        private boolean tcpNoDelay = true;
+        private int bufferSize = DEFAULT_BUFFER_SIZE;
+        private boolean framed;
+        private int maxFrameSize = FramedTransport.DEFAULT_MAX_FRAME_SIZE;
+
+        public Builder(String host, int port) {
+            if (host == null || host.length() == 0) {
+                throw new NullPointerException("host");
+            }
+
+            if (port < 0 || port > 0xFFFF) {
+                throw new IllegalStateException("Invalid port number: " + port);
+            }
+
+            this.host = host;
+            this.port = port;
+        }
+
+        public Builder readTimeout(int readTimeout) {
+            if (readTimeout < 0) {
+                throw new IllegalArgumentException("readTimeout cannot be negative");
+            }
+            this.readTimeout = readTimeout;
+            return this;
+        }
+
+        public Builder connectTimeout(int connectTimeout) {
+            if (connectTimeout < 0) {
+                throw new IllegalArgumentException("connectTimeout cannot be negative");
+            }
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        /**
+         * Sets the socket's send buffer size ({@code SO_SNDBUF}).  By default,
+         * the operating system's default is used.
+         */
+        public Builder sendBufferSize(int sendBufferSize) {
+            if (sendBufferSize <= 0) {
+                throw new IllegalArgumentException("sendBufferSize must be positive");
+            }
+            this.sendBufferSize = sendBufferSize;
+            return this;
+        }
+
+        /**
+         * Sets the socket's receive buffer size ({@code SO_RCVBUF}).  By default,
+         * the operating system's default is used.
+         */
+        public Builder receiveBufferSize(int receiveBufferSize) {
+            if (receiveBufferSize <= 0) {
+                throw new IllegalArgumentException("receiveBufferSize must be positive");
+            }
+            this.receiveBufferSize = receiveBufferSize;
+            return this;
+        }
+
+        /**
+         * Sets whether Nagle's algorithm is disabled ({@code TCP_NODELAY}).
+         * Defaults to true.
+         */
+        public Builder tcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        /**
+         * Sets the size of the direct buffers used for reading and writing.
+         * Defaults to {@link #DEFAULT_BUFFER_SIZE}.
+         */
+        public Builder bufferSize(int bufferSize) {
+            if (bufferSize < 16) {
+                throw new IllegalArgumentException("bufferSize must be at least 16 bytes");
+            }
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        /**
+         * Sets whether data is read and written in length-prefixed frames, as
+         * required by non-blocking servers.  Defaults to false.
+         */
+        public Builder framed(boolean framed) {
+            this.framed = framed;
+            return this;
+        }
+
+        /**
+         * Sets the size of the largest frame that will be accepted when
+         * reading.  Only meaningful for framed transports.
+         */
+        public Builder maxFrameSize(int maxFrameSize) {
+            if (maxFrameSize <= 0) {
+                throw new IllegalArgumentException("maxFrameSize must be positive");
+            }
+            this.maxFrameSize = maxFrameSize;
+            return this;
+        }
+
+        public SocketChannelTransport build() {
+            return new SocketChannelTransport(this);
+        }
+    }
+
+    SocketChannelTransport(Builder builder) {
+        this.host = builder.host;
+        this.port = builder.port;
+        this.readTimeout = builder.readTimeout;
+        this.connectTimeout = builder.connectTimeout;
+        this.sendBufferSize = builder.sendBufferSize;
+        this.receiveBufferSize = builder.receiveBufferSize;
+        this.tcpNoDelay = builder.tcpNoDelay;
+        this.bufferSize = builder.bufferSize;
+        this.framed = builder.framed;
+        this.maxFrameSize = builder.maxFrameSize;
+    }
+
+    public boolean isConnected() {
+        SocketChannel c = channel;
+        return c != null && c.isConnected();
+    }
+
+    public void connect() throws IOException {
+        if (channel != null) {
+            throw new IllegalStateException("Already connected");
+        }
+
+        SocketChannel channel = SocketChannel.open();
+        Selector selector = null;
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            if (sendBufferSize > 0) {
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+            }
+            if (receiveBufferSize > 0) {
+                // Must precede connecting, for large windows to be negotiated.
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            }
+
+            channel.socket().connect(new InetSocketAddress(host, port), connectTimeout);
+
+            if (readTimeout > 0) {
+                // Blocking channels ignore SO_TIMEOUT, so timeouts need a selector.
+                channel.configureBlocking(false);
+                selector = Selector.open();
+                selectionKey = channel.register(selector, 0);
+            }
+        } catch (IOException e) {
+            closeQuietly(selector);
+            closeQuietly(channel);
+            throw e;
+        }
+
+        this.channel = channel;
+        this.selector = selector;
+
+        readBuffer = pool.acquire(bufferSize);
+        readBuffer.flip();
+        writeBuffer = pool.acquire(bufferSize);
+
+        if (framed) {
+            readHeader = pool.acquire(HEADER_SIZE);
+            writeHeader = pool.acquire(HEADER_SIZE);
+        }
+
+        bufferUsers.set(1);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        beginIo();
+        try {
+            if (!framed) {
+                if (!readBuffer.hasRemaining() && !fill(null)) {
+                    return -1;
+                }
+
+                int toCopy = Math.min(count, readBuffer.remaining());
+                readBuffer.get(buffer, offset, toCopy);
+                return toCopy;
+            }
+
+            if (frameRemaining == 0 && !readFrameHeader()) {
+                return -1;
+            }
+
+            if (!readBuffer.hasRemaining() && !fill(null)) {
+                throw new EOFException("Unexpected end of stream with " + frameRemaining + " frame bytes remaining");
+            }
+
+            int toCopy = Math.min(count, Math.min(frameRemaining, readBuffer.remaining()));
+            readBuffer.get(buffer, offset, toCopy);
+            frameRemaining -= toCopy;
+            return toCopy;
+        } finally {
+            endIo();
+        }
+    }
+
+    @Override
+    public void skip(long count) throws IOException {
+        if (count < 0) {
+            throw new IllegalArgumentException("count < 0: " + count);
+        }
+        beginIo();
+        try {
+            while (count > 0) {
+                if (framed && frameRemaining == 0 && !readFrameHeader()) {
+                    throw new EOFException();
+                }
+
+                if (!readBuffer.hasRemaining() && !fill(null)) {
+                    throw new EOFException();
+                }
+
+                int available = framed
+                        ? Math.min(frameRemaining, readBuffer.remaining())
+                        : readBuffer.remaining();
+                int toSkip = (int) Math.min(count, available);
+                readBuffer.position(readBuffer.position() + toSkip);
+                if (framed) {
+                    frameRemaining -= toSkip;
+                }
+                count -= toSkip;
+            }
+        } finally {
+            endIo();
+        }
+    }
+
+    /**
+     * Reads the header of the next non-empty frame, along with as much of the
+     * frame body as the socket has available.
+     *
+     * @return false if the stream ended cleanly before the next frame.
+     */
+    private boolean readFrameHeader() throws IOException {
+        int size;
+        do {
+            readHeader.clear();
+
+            // Bytes following the previous frame may already be buffered.
+            while (readHeader.hasRemaining() && readBuffer.hasRemaining()) {
+                readHeader.put(readBuffer.get());
+            }
+
+            while (readHeader.hasRemaining()) {
+                if (!fill(readHeader)) {
+                    if (readHeader.position() == 0) {
+                        return false;
+                    }
+                    throw new EOFException("Unexpected end of stream in frame header");
+                }
+            }
+
+            size = readHeader.getInt(0);
+            if (size < 0) {
+                throw new ProtocolException("Negative frame size: " + size);
+            }
+
+            if (size > maxFrameSize) {
+                throw new ProtocolException(
+                        "Frame size " + size + " exceeds the maximum of " + maxFrameSize);
+            }
+        } while (size == 0);
+
+        frameRemaining = size;
+        return true;
+    }
+
+    /**
+     * Refills the (fully-consumed) read buffer from the socket, first filling
+     * {@code header} if it is given.
+     *
+     * @return false if the end of the stream was reached.
+     */
+    private boolean fill(ByteBuffer header) throws IOException {
+        readBuffer.clear();
+
+        long read;
+        if (header != null) {
+            readVector[0] = header;
+            readVector[1] = readBuffer;
+            read = readChannel(0, 2);
+        } else {
+            readVector[1] = readBuffer;
+            read = readChannel(1, 1);
+        }
+
+        readBuffer.flip();
+        return read > 0;
+    }
+
+    private long readChannel(int offset, int length) throws IOException {
+        while (true) {
+            long read = channel().read(readVector, offset, length);
+            if (read != 0) {
+                return read;
+            }
+            await(SelectionKey.OP_READ, readTimeout);
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        beginIo();
+        try {
+            if (framed) {
+                // A frame must be complete before its header can be written,
+                // so the buffer grows to hold it.
+                if (count > writeBuffer.remaining()) {
+                    growWriteBuffer(writeBuffer.position() + count);
+                }
+                writeBuffer.put(buffer, offset, count);
+                return;
+            }
+
+            while (count > 0) {
+                if (!writeBuffer.hasRemaining()) {
+                    drainWriteBuffer();
+                }
+
+                int toCopy = Math.min(count, writeBuffer.remaining());
+                writeBuffer.put(buffer, offset, toCopy);
+                offset += toCopy;
+                count -= toCopy;
+            }
+        } finally {
+            endIo();
+        }
+    }
+
+    private void growWriteBuffer(int required) {
+        if (required < 0) {
+            throw new IllegalStateException("Frame too large");
+        }
+
+        int capacity = Integer.highestOneBit(required - 1) << 1;
+        if (capacity <= 0) {
+            capacity = required;
+        }
+
+        ByteBuffer newBuffer = pool.acquire(capacity);
+        writeBuffer.flip();
+        newBuffer.put(writeBuffer);
+        pool.release(writeBuffer);
+        writeBuffer = newBuffer;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        beginIo();
+        try {
+            if (!framed) {
+                drainWriteBuffer();
+                return;
+            }
+
+            int size = writeBuffer.position();
+            if (size == 0) {
+                return;
+            }
+
+            writeHeader.clear();
+            writeHeader.putInt(size);
+            writeHeader.flip();
+            writeBuffer.flip();
+
+            writeVector[0] = writeHeader;
+            writeVector[1] = writeBuffer;
+            try {
+                writeChannel(0, 2);
+            } finally {
+                writeBuffer.clear();
+            }
+
+            if (writeBuffer.capacity() != bufferSize) {
+                pool.release(writeBuffer);
+                writeBuffer = pool.acquire(bufferSize);
+            }
+        } finally {
+            endIo();
+        }
+    }
+
+    private void drainWriteBuffer() throws IOException {
+        if (writeBuffer.position() == 0) {
+            return;
+        }
+
+        writeBuffer.flip();
+        writeVector[1] = writeBuffer;
+        try {
+            writeChannel(1, 1);
+        } finally {
+            writeBuffer.clear();
+        }
+    }
+
+    private void writeChannel(int offset, int length) throws IOException {
+        // Gathering writes consume buffers in order, so all are written once
+        // the last one is.
+        ByteBuffer last = writeVector[offset + length - 1];
+        while (last.hasRemaining()) {
+            long written = channel().write(writeVector, offset, length);
+            if (written == 0) {
+                await(SelectionKey.OP_WRITE, 0);
+            }
+        }
+    }
+
+    /**
+     * Waits until the channel is ready for the given operation.  Only called
+     * in non-blocking mode, when the channel is not ready.
+     *
+     * @param timeout the maximum time to wait, in milliseconds, or zero to
+     *                wait indefinitely.
+     */
+    private void await(int op, int timeout) throws IOException {
+        if (readTimeout == 0) {
+            // Blocking channels do not return until they have made progress.
+            return;
+        }
+
+        // The transport may be closed concurrently, from another thread.
+        Selector selector = this.selector;
+        SelectionKey selectionKey = this.selectionKey;
+        if (selector == null || selectionKey == null) {
+            throw new ClosedChannelException();
+        }
+
+        try {
+            selectionKey.interestOps(op);
+            try {
+                int ready = selector.select(timeout);
+                selector.selectedKeys().clear();
+                if (ready == 0 && timeout > 0) {
+                    throw new SocketTimeoutException("Timed out after " + timeout + "ms");
+                }
+            } finally {
+                if (selectionKey.isValid()) {
+                    selectionKey.interestOps(0);
+                }
+            }
+        } catch (CancelledKeyException | ClosedSelectorException e) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * Gets the channel, which may be closed concurrently with any read or
+     * write.
+     */
+    private SocketChannel channel() throws IOException {
+        SocketChannel channel = this.channel;
+        if (channel == null) {
+            throw new ClosedChannelException();
+        }
+        return channel;
+    }
+
+    /**
+     * Marks a read or write as in progress, keeping the buffers out of the
+     * pool until the matching {@link #endIo()}.
+     */
+    private void beginIo() throws IOException {
+        while (true) {
+            int users = bufferUsers.get();
+            if (users == 0) {
+                throw new ClosedChannelException();
+            }
+            if (bufferUsers.compareAndSet(users, users + 1)) {
+                return;
+            }
+        }
+    }
+
+    private void endIo() {
+        if (bufferUsers.decrementAndGet() == 0) {
+            releaseBuffers();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        SocketChannel channel = this.channel;
+        Selector selector = this.selector;
+
+        this.channel = null;
+        this.selector = null;
+        this.selectionKey = null;
+        this.frameRemaining = 0;
+
+        closeQuietly(selector);
+        closeQuietly(channel);
+
+        if (channel != null) {
+            // Closing the channel interrupts any read or write in progress;
+            // the last of them to finish releases the buffers.
+            endIo();
+        }
+    }
+
+    private void releaseBuffers() {
+        pool.release(readBuffer);
+        pool.release(writeBuffer);
+        if (framed) {
+            pool.release(readHeader);
+            pool.release(writeHeader);
+        }
+
+        readBuffer = null;
+        writeBuffer = null;
+        readHeader = null;
+        writeHeader = null;
+        readVector[0] = readVector[1] = null;
+        writeVector[0] = writeVector[1] = null;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) { }
+        }
+    }
+}
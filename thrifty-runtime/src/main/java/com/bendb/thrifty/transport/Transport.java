@@ -16,9 +16,18 @@
 package com.bendb.thrifty.transport;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 
 public abstract class Transport implements Closeable {
+    private static final int SKIP_BUFFER_SIZE = 4096;
+
+    /**
+     * Receives skipped bytes in the default {@link #skip(long)}, allocated on
+     * first use and kept thereafter.
+     */
+    private byte[] skipBuffer;
+
     public abstract int read(byte[] buffer, int offset, int count) throws IOException;
 
     public void write(byte[] data) throws IOException {
@@ -28,4 +37,169 @@ public abstract class Transport implements Closeable {
     public abstract void write(byte[] buffer, int offset, int count) throws IOException;
 
     public abstract void flush() throws IOException;
+
+    /**
+     * Marks the end of a message, called by protocols from
+     * {@link com.bendb.thrifty.protocol.Protocol#writeMessageEnd()}.
+     *
+     * <p>Transports that frame their output end the current frame here, so
+     * that each message has a frame of its own however many messages are
+     * written before a {@link #flush()}; non-blocking servers read exactly
+     * one message from each frame.  The default does nothing.
+     */
+    public void endMessage() throws IOException {
+    }
+
+    /**
+     * Hints that {@code count} bytes are about to be written, so that a
+     * transport gathering its output in a buffer can grow it once, rather
+     * than repeatedly as the bytes are written.  The default ignores it.
+     *
+     * @param count the number of bytes about to be written.
+     */
+    public void expectWrite(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count < 0: " + count);
+        }
+    }
+
+    /**
+     * Gets whether {@link #expectWrite(int)} is of any use to this
+     * transport.  If not, writers need not work out the sizes of messages
+     * to give it; this is the default.
+     */
+    public boolean usesWriteHints() {
+        return false;
+    }
+
+    /**
+     * Reads and discards exactly {@code count} bytes.
+     *
+     * <p>The default implementation reads into a scratch array, allocated
+     * once per transport; transports that can advance more cheaply should
+     * override it.
+     *
+     * @param count the number of bytes to discard.
+     * @throws EOFException if the transport is exhausted before {@code count}
+     *                      bytes have been skipped.
+     */
+    public void skip(long count) throws IOException {
+        if (count < 0) {
+            throw new IllegalArgumentException("count < 0: " + count);
+        }
+
+        byte[] scratch = skipBuffer;
+        if (scratch == null && count > 0) {
+            scratch = skipBuffer = new byte[SKIP_BUFFER_SIZE];
+        }
+
+        while (count > 0) {
+            int read = read(scratch, 0, (int) Math.min(count, scratch.length));
+            if (read == -1) {
+                throw new EOFException();
+            }
+            count -= read;
+        }
+    }
+
+    /**
+     * Reserves a region of at least {@code count} contiguous bytes in this
+     * transport's internal write buffer, into which a caller may encode data
+     * directly instead of staging it in a scratch array and calling
+     * {@link #write(byte[], int, int)}.
+     *
+     * <p>On success, the caller writes its data into {@link #writeBuffer()},
+     * beginning at the returned offset, and then calls
+     * {@link #commitWrite(int)} with the number of bytes actually written.
+     * No other method may be invoked on this transport in between.
+     *
+     * <p>Transports that do not buffer writes return -1, which is the default.
+     *
+     * @param count the number of bytes required
+     * @return the offset into {@link #writeBuffer()} at which writing may
+     *         begin, or -1 if no such region can be provided.
+     * @throws IOException if making room requires writing buffered data, and
+     *                     that write fails.
+     */
+    public int reserveWrite(int count) throws IOException {
+        return -1;
+    }
+
+    /**
+     * Gets the array backing the region reserved by the most recent successful
+     * call to {@link #reserveWrite(int)}.
+     *
+     * @return the transport's internal write buffer.
+     * @throws UnsupportedOperationException if this transport does not support
+     *                                       direct writes.
+     */
+    public byte[] writeBuffer() {
+        throw new UnsupportedOperationException("Direct writes are not supported by " + getClass().getName());
+    }
+
+    /**
+     * Marks {@code count} bytes of the region reserved by the most recent call to
+     * {@link #reserveWrite(int)} as written.
+     *
+     * @param count the number of bytes written, which may be less than the
+     *              number reserved.
+     * @throws UnsupportedOperationException if this transport does not support
+     *                                       direct writes.
+     */
+    public void commitWrite(int count) {
+        throw new UnsupportedOperationException("Direct writes are not supported by " + getClass().getName());
+    }
+
+    /**
+     * Gets the array backing this transport's internal read buffer, if any.
+     *
+     * <p>Together with {@link #readBufferPosition()},
+     * {@link #readBufferRemaining()} and {@link #consumeReadBuffer(int)},
+     * this allows protocols to decode data in place, without first copying it
+     * out via {@link #read(byte[], int, int)}.  Callers must only access this
+     * array when {@link #readBufferRemaining()} reports enough available data.
+     *
+     * @return the transport's internal read buffer.
+     * @throws UnsupportedOperationException if this transport does not buffer
+     *                                       reads.
+     */
+    public byte[] readBuffer() {
+        throw new UnsupportedOperationException("Direct reads are not supported by " + getClass().getName());
+    }
+
+    /**
+     * Gets the offset into {@link #readBuffer()} of the next unread byte.
+     *
+     * @return the position of the next byte to be read.
+     * @throws UnsupportedOperationException if this transport does not buffer
+     *                                       reads.
+     */
+    public int readBufferPosition() {
+        throw new UnsupportedOperationException("Direct reads are not supported by " + getClass().getName());
+    }
+
+    /**
+     * Gets the number of bytes that can be read directly from
+     * {@link #readBuffer()}, starting at {@link #readBufferPosition()}.
+     *
+     * <p>Transports that do not buffer reads always return zero, which is the
+     * default.
+     *
+     * @return the number of buffered, unread bytes.
+     */
+    public int readBufferRemaining() {
+        return 0;
+    }
+
+    /**
+     * Marks {@code count} bytes of the read buffer as having been read.
+     *
+     * @param count the number of bytes consumed; must not exceed
+     *              {@link #readBufferRemaining()}.
+     * @throws UnsupportedOperationException if this transport does not buffer
+     *                                       reads.
+     */
+    public void consumeReadBuffer(int count) {
+        throw new UnsupportedOperationException("Direct reads are not supported by " + getClass().getName());
+    }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.util;
+
+import com.bendb.thrifty.protocol.Protocol;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An immutable list of {@code long} values, backed by a primitive array.
+ *
+ * <p>Generated structs use this in place of {@code List<Long>} when
+ * primitive collections are enabled, avoiding a boxed object per element.
+ * Values are read and written with {@link Protocol#readI64Array} and
+ * {@link Protocol#writeI64Array}.
+ */
+public final class LongList {
+    private static final LongList EMPTY = new LongList(new long[0]);
+
+    private final long[] values;
+
+    private LongList(long[] values) {
+        this.values = values;
+    }
+
+    /**
+     * Creates a list holding a copy of the given values.
+     */
+    public static LongList of(long... values) {
+        if (values.length == 0) {
+            return EMPTY;
+        }
+        return new LongList(values.clone());
+    }
+
+    /**
+     * Reads {@code size} elements of a list whose header has already been
+     * read from the given protocol.
+     */
+    public static LongList read(Protocol protocol, int size) throws IOException {
+        if (size == 0) {
+            return EMPTY;
+        }
+
+        long[] values = new long[size];
+        protocol.readI64Array(values, 0, size);
+        return new LongList(values);
+    }
+
+    /**
+     * Writes the elements of this list to the given protocol; the caller is
+     * responsible for writing the list header.
+     */
+    public void write(Protocol protocol) throws IOException {
+        protocol.writeI64Array(values, 0, values.length);
+    }
+
+    /**
+     * Gets the number of bytes that {@link #write(Protocol)} would produce.
+     */
+    public int sizeOf(Protocol protocol) {
+        return protocol.sizeOfI64Array(values, 0, values.length);
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public boolean isEmpty() {
+        return values.length == 0;
+    }
+
+    public long get(int index) {
+        return values[index];
+    }
+
+    /**
+     * Returns a copy of the elements of this list.
+     */
+    public long[] toArray() {
+        return values.clone();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof LongList)) return false;
+        return Arrays.equals(values, ((LongList) other).values);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(values);
+    }
+}
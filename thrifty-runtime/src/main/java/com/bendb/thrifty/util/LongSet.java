@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.util;
+
+import com.bendb.thrifty.protocol.Protocol;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An immutable set of {@code long} values, backed by a sorted primitive
+ * array.
+ *
+ * <p>Generated structs use this in place of {@code Set<Long>} when
+ * primitive collections are enabled, avoiding a boxed object per element.
+ * Lookups are by binary search.  Values are read and written with
+ * {@link Protocol#readI64Array} and {@link Protocol#writeI64Array}, in
+ * ascending order.
+ */
+public final class LongSet {
+    private static final LongSet EMPTY = new LongSet(new long[0]);
+
+    private final long[] values;
+
+    private LongSet(long[] values) {
+        this.values = values;
+    }
+
+    /**
+     * Creates a set holding the given values; duplicates are discarded.
+     */
+    public static LongSet of(long... values) {
+        return sortedUnique(values.clone());
+    }
+
+    /**
+     * Reads {@code size} elements of a set whose header has already been
+     * read from the given protocol.
+     */
+    public static LongSet read(Protocol protocol, int size) throws IOException {
+        long[] values = new long[size];
+        protocol.readI64Array(values, 0, size);
+        return sortedUnique(values);
+    }
+
+    private static LongSet sortedUnique(long[] values) {
+        if (values.length == 0) {
+            return EMPTY;
+        }
+
+        Arrays.sort(values);
+
+        int size = 1;
+        for (int i = 1; i < values.length; ++i) {
+            if (values[i] != values[size - 1]) {
+                values[size++] = values[i];
+            }
+        }
+
+        if (size < values.length) {
+            values = Arrays.copyOf(values, size);
+        }
+        return new LongSet(values);
+    }
+
+    /**
+     * Writes the elements of this set to the given protocol; the caller is
+     * responsible for writing the set header.
+     */
+    public void write(Protocol protocol) throws IOException {
+        protocol.writeI64Array(values, 0, values.length);
+    }
+
+    /**
+     * Gets the number of bytes that {@link #write(Protocol)} would produce.
+     */
+    public int sizeOf(Protocol protocol) {
+        return protocol.sizeOfI64Array(values, 0, values.length);
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public boolean isEmpty() {
+        return values.length == 0;
+    }
+
+    public boolean contains(long value) {
+        return Arrays.binarySearch(values, value) >= 0;
+    }
+
+    /**
+     * Returns a copy of the elements of this set, in ascending order.
+     */
+    public long[] toArray() {
+        return values.clone();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof LongSet)) return false;
+        return Arrays.equals(values, ((LongSet) other).values);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(values);
+    }
+}
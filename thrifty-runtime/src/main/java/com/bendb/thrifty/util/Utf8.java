@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.util;
+
+import java.nio.charset.Charset;
+
+/**
+ * Utilities for working with UTF-8 encoded strings.
+ *
+ * <p>Encoding happens in two passes - {@link #size(String)} followed by
+ * {@link #encode(String, byte[], int)} - so that callers can write a length
+ * prefix and then encode directly into their output buffer, with no
+ * intermediate byte array.
+ */
+public final class Utf8 {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private Utf8() {
+        // no instances
+    }
+
+    /**
+     * Computes the number of bytes needed to encode the given string as
+     * UTF-8, without actually encoding it.
+     *
+     * <p>Unpaired surrogates are counted as a single byte, matching their
+     * replacement with {@code '?'} by okio's {@code writeUtf8}.
+     *
+     * @param str the string to measure.
+     * @return the UTF-8 encoded length of {@code str}, in bytes.
+     */
+    public static int size(String str) {
+        int length = str.length();
+
+        // Fast path: leading ASCII characters are one byte each.
+        int i = 0;
+        while (i < length && str.charAt(i) < 0x80) {
+            ++i;
+        }
+
+        int size = i;
+        for (; i < length; ++i) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                size += 1;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (c < 0xD800 || c > 0xDFFF) {
+                size += 3;
+            } else {
+                char low = i + 1 < length ? str.charAt(i + 1) : 0;
+                if (c > 0xDBFF || low < 0xDC00 || low > 0xDFFF) {
+                    size += 1;
+                } else {
+                    size += 4;
+                    i++;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Encodes the given string as UTF-8 into {@code out}, starting at
+     * {@code pos}.  There must be at least {@link #size(String)} bytes
+     * available.
+     *
+     * <p>Unpaired surrogates are encoded as {@code '?'}.
+     *
+     * @param str the string to encode.
+     * @param out the buffer to which encoded bytes are written.
+     * @param pos the offset at which to begin writing.
+     * @return the offset just past the last byte written.
+     */
+    public static int encode(String str, byte[] out, int pos) {
+        int length = str.length();
+
+        // Fast path: copy ASCII characters until we hit something else.
+        int i = 0;
+        while (i < length) {
+            char c = str.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            out[pos++] = (byte) c;
+            ++i;
+        }
+
+        for (; i < length; ++i) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                out[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xC0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (c < 0xD800 || c > 0xDFFF) {
+                out[pos++] = (byte) (0xE0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                char low = i + 1 < length ? str.charAt(i + 1) : 0;
+                if (c > 0xDBFF || low < 0xDC00 || low > 0xDFFF) {
+                    out[pos++] = '?';
+                } else {
+                    int codePoint = Character.toCodePoint(c, low);
+                    out[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                    out[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    out[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    out[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+                    i++;
+                }
+            }
+        }
+
+        return pos;
+    }
+
+    /**
+     * Decodes {@code count} bytes of UTF-8 from {@code in}, starting at
+     * {@code pos}.
+     *
+     * @param in the buffer holding encoded bytes.
+     * @param pos the offset of the first encoded byte.
+     * @param count the number of bytes to decode.
+     * @return the decoded string.
+     */
+    public static String decode(byte[] in, int pos, int count) {
+        if (count == 0) {
+            return "";
+        }
+        return new String(in, pos, count, UTF_8);
+    }
+}
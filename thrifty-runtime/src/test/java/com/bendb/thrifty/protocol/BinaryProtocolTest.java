@@ -226,4 +226,26 @@ public class BinaryProtocolTest {
             protocol.readFieldEnd();
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void readHeaders() throws Exception {
+        Buffer buffer = new Buffer();
+        buffer.writeByte(TType.SET);
+        buffer.writeShort(-2);
+        buffer.writeByte(TType.STRUCT);
+        buffer.writeInt(70000);
+        buffer.writeByte(TType.STOP);
+
+        BinaryProtocol proto = new BinaryProtocol(new BufferTransport(buffer));
+
+        int field = proto.readFieldHeader();
+        assertThat(Headers.fieldType(field), is(TType.SET));
+        assertThat(Headers.fieldId(field), is((short) -2));
+
+        long set = proto.readSetHeader();
+        assertThat(Headers.elementType(set), is(TType.STRUCT));
+        assertThat(Headers.size(set), is(70000));
+
+        assertThat(proto.readFieldHeader(), is(Headers.FIELD_STOP));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.protocol;
+
+import com.bendb.thrifty.transport.BufferTransport;
+import com.bendb.thrifty.transport.BufferedTransport;
+import com.bendb.thrifty.transport.Transport;
+import okio.Buffer;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class BulkArrayTest {
+    private static final int COUNT = 1000;
+
+    private final int[] ints = new int[COUNT];
+    private final long[] longs = new long[COUNT];
+    private final double[] doubles = new double[COUNT];
+
+    public BulkArrayTest() {
+        Random random = new Random(42);
+        for (int i = 0; i < COUNT; ++i) {
+            ints[i] = random.nextInt() >> random.nextInt(32);
+            longs[i] = random.nextLong() >> random.nextInt(64);
+            doubles[i] = random.nextDouble() * longs[i];
+        }
+        ints[0] = Integer.MIN_VALUE;
+        ints[1] = Integer.MAX_VALUE;
+        longs[0] = Long.MIN_VALUE;
+        longs[1] = Long.MAX_VALUE;
+        doubles[0] = Double.NaN;
+        doubles[1] = Double.NEGATIVE_INFINITY;
+    }
+
+    @Test
+    public void binaryOverUnbufferedTransport() throws Exception {
+        check(true, 0);
+    }
+
+    @Test
+    public void binaryOverSmallBuffers() throws Exception {
+        check(true, 16);
+    }
+
+    @Test
+    public void binaryOverLargeBuffers() throws Exception {
+        check(true, 4096);
+    }
+
+    @Test
+    public void compactOverUnbufferedTransport() throws Exception {
+        check(false, 0);
+    }
+
+    @Test
+    public void compactOverSmallBuffers() throws Exception {
+        check(false, 16);
+    }
+
+    @Test
+    public void compactOverLargeBuffers() throws Exception {
+        check(false, 4096);
+    }
+
+    private void check(boolean binary, int bufferSize) throws Exception {
+        // Element-by-element output is the reference encoding
+        Buffer expected = new Buffer();
+        Protocol reference = protocol(binary, new BufferTransport(expected));
+        for (int i : ints) reference.writeI32(i);
+        for (long l : longs) reference.writeI64(l);
+        for (double d : doubles) reference.writeDouble(d);
+
+        Buffer actual = new Buffer();
+        Protocol writer = protocol(binary, transport(actual, bufferSize));
+        writer.writeI32Array(ints, 0, 10);
+        writer.writeI32Array(ints, 10, COUNT - 10);
+        writer.writeI64Array(longs, 0, COUNT);
+        writer.writeDoubleArray(doubles, 0, COUNT);
+        writer.flush();
+
+        assertThat(actual.snapshot(), equalTo(expected.snapshot()));
+
+        int[] readInts = new int[COUNT + 1];
+        long[] readLongs = new long[COUNT];
+        double[] readDoubles = new double[COUNT];
+
+        Protocol reader = protocol(binary, transport(actual, bufferSize));
+        reader.readI32Array(readInts, 1, COUNT);
+        reader.readI64Array(readLongs, 0, COUNT);
+        reader.readDoubleArray(readDoubles, 0, COUNT);
+
+        int[] expectedInts = new int[COUNT + 1];
+        System.arraycopy(ints, 0, expectedInts, 1, COUNT);
+        assertThat(readInts, equalTo(expectedInts));
+        assertThat(readLongs, equalTo(longs));
+        assertThat(readDoubles, equalTo(doubles));
+    }
+
+    private static Transport transport(Buffer buffer, int bufferSize) {
+        Transport transport = new BufferTransport(buffer);
+        return bufferSize > 0 ? new BufferedTransport(transport, bufferSize) : transport;
+    }
+
+    private static Protocol protocol(boolean binary, Transport transport) {
+        return binary ? new BinaryProtocol(transport) : new CompactProtocol(transport);
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.bendb.thrifty.protocol;
 
+import com.bendb.thrifty.TType;
 import com.bendb.thrifty.transport.BufferTransport;
 import okio.Buffer;
 import org.junit.Test;
@@ -91,4 +92,62 @@ public class CompactProtocolTest {
 
         assertThat(read, equalTo(xtruct));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void headersMatchMetadata() throws Exception {
+        Buffer buffer = new Buffer();
+        CompactProtocol writer = new CompactProtocol(new BufferTransport(buffer));
+        writer.writeStructBegin("s");
+        writer.writeFieldBegin("a", 3, TType.LIST);
+        writer.writeListBegin(TType.I64, 20);
+        writer.writeFieldBegin("b", 300, TType.MAP);
+        writer.writeMapBegin(TType.STRING, TType.DOUBLE, 2);
+        writer.writeFieldStop();
+
+        CompactProtocol reader = new CompactProtocol(new BufferTransport(buffer));
+        reader.readStructBegin();
+
+        int field = reader.readFieldHeader();
+        assertEquals(TType.LIST, Headers.fieldType(field));
+        assertEquals(3, Headers.fieldId(field));
+
+        long list = reader.readListHeader();
+        assertEquals(TType.I64, Headers.elementType(list));
+        assertEquals(20, Headers.size(list));
+
+        field = reader.readFieldHeader();
+        assertEquals(TType.MAP, Headers.fieldType(field));
+        assertEquals(300, Headers.fieldId(field));
+
+        long map = reader.readMapHeader();
+        assertEquals(TType.STRING, Headers.keyType(map));
+        assertEquals(TType.DOUBLE, Headers.valueType(map));
+        assertEquals(2, Headers.size(map));
+
+        assertEquals(Headers.FIELD_STOP, reader.readFieldHeader());
+    }
+
+    @Test
+    public void boolFieldsCarryTheirValueInTheHeader() throws Exception {
+        Buffer buffer = new Buffer();
+        CompactProtocol writer = new CompactProtocol(new BufferTransport(buffer));
+        writer.writeStructBegin("s");
+        writer.writeFieldBegin("a", 1, TType.BOOL);   // a short-form header, with a delta
+        writer.writeBool(true);
+        writer.writeFieldBegin("b", 2, TType.BOOL);
+        writer.writeBool(false);
+        writer.writeFieldBegin("c", 300, TType.BOOL); // a long-form header
+        writer.writeBool(true);
+        writer.writeFieldStop();
+
+        CompactProtocol reader = new CompactProtocol(new BufferTransport(buffer));
+        reader.readStructBegin();
+
+        assertEquals(TType.BOOL, Headers.fieldType(reader.readFieldHeader()));
+        assertEquals(true, reader.readBool());
+        assertEquals(TType.BOOL, reader.readFieldBegin().typeId);
+        assertEquals(false, reader.readBool());
+        assertEquals(300, Headers.fieldId(reader.readFieldHeader()));
+        assertEquals(true, reader.readBool());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.protocol;
+
+import com.bendb.thrifty.transport.BufferTransport;
+import com.bendb.thrifty.transport.Transport;
+import okio.Buffer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * A service client reads replies on one thread while writing calls on
+ * another, through the same protocol.  Protocols must keep the two sides
+ * apart, including the scratch space used with transports that do not
+ * expose their buffers.
+ */
+public class ConcurrentReadWriteTest {
+    private static final int COUNT = 5000;
+
+    @Test
+    public void binaryStrings() throws Exception {
+        check(new ProtocolFactory() {
+            @Override
+            public Protocol create(Transport transport) {
+                return new BinaryProtocol(transport);
+            }
+        });
+    }
+
+    @Test
+    public void compactStrings() throws Exception {
+        check(new ProtocolFactory() {
+            @Override
+            public Protocol create(Transport transport) {
+                return new CompactProtocol(transport);
+            }
+        });
+    }
+
+    private void check(ProtocolFactory factory) throws Exception {
+        final List<String> strings = new ArrayList<>(COUNT);
+        for (int i = 0; i < COUNT; ++i) {
+            StringBuilder sb = new StringBuilder();
+            // Lengths vary, so that the scratch arrays are regrown
+            for (int j = 0; j < i % 300; ++j) {
+                sb.append((char) ('a' + (i + j) % 26));
+            }
+            strings.add(sb.append('é').append(i).toString());
+        }
+
+        Buffer input = new Buffer();
+        Protocol encoder = factory.create(new BufferTransport(input));
+        for (String s : strings) {
+            encoder.writeString(s);
+        }
+
+        final Buffer output = new Buffer();
+        final Protocol protocol = factory.create(new UnbufferedTransport(input, output));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Integer> reads = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int mismatches = 0;
+                    for (String expected : strings) {
+                        if (!expected.equals(protocol.readString())) {
+                            mismatches++;
+                        }
+                    }
+                    return mismatches;
+                }
+            });
+
+            Future<?> writes = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (String s : strings) {
+                        protocol.writeString(s);
+                    }
+                    return null;
+                }
+            });
+
+            assertThat(reads.get(30, TimeUnit.SECONDS), is(0));
+            writes.get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Protocol decoder = factory.create(new BufferTransport(output));
+        for (String expected : strings) {
+            assertThat(decoder.readString(), is(expected));
+        }
+    }
+
+    interface ProtocolFactory {
+        Protocol create(Transport transport);
+    }
+
+    /**
+     * Reads from one buffer and writes to another, through the plain
+     * read and write methods only.
+     */
+    private static final class UnbufferedTransport extends Transport {
+        private final Buffer source;
+        private final Buffer sink;
+
+        UnbufferedTransport(Buffer source, Buffer sink) {
+            this.source = source;
+            this.sink = sink;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            return source.read(buffer, offset, count);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            sink.write(buffer, offset, count);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
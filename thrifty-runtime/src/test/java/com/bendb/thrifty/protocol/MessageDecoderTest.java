@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.protocol;
+
+import com.bendb.thrifty.TType;
+import com.bendb.thrifty.service.TMessageType;
+import com.bendb.thrifty.transport.BufferTransport;
+import okio.Buffer;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class MessageDecoderTest {
+    private final Xtruct xtruct = new Xtruct.Builder()
+            .string_thing("decoded")
+            .byte_thing((byte) 1)
+            .i32_thing(-1000)
+            .i64_thing(1L << 50)
+            .double_thing(2.5)
+            .build();
+
+    @Test
+    public void binaryByteAtATime() throws Exception {
+        Buffer buffer = new Buffer();
+        writeMessage(new BinaryProtocol(new BufferTransport(buffer)), 7);
+        checkByteAtATime(MessageDecoder.binary(), buffer.readByteArray(), 7);
+    }
+
+    @Test
+    public void compactByteAtATime() throws Exception {
+        Buffer buffer = new Buffer();
+        writeMessage(new CompactProtocol(new BufferTransport(buffer)), 300);
+        checkByteAtATime(MessageDecoder.compact(), buffer.readByteArray(), 300);
+    }
+
+    @Test
+    public void strictBinaryHeader() throws Exception {
+        Buffer buffer = new Buffer();
+        buffer.writeInt(0x80010000 | TMessageType.REPLY);
+        buffer.writeInt(3);
+        buffer.writeUtf8("foo");
+        buffer.writeInt(42);
+        buffer.writeByte(TType.STOP);
+
+        MessageDecoder decoder = MessageDecoder.binary();
+        byte[] bytes = buffer.readByteArray();
+        decoder.feed(bytes, 0, bytes.length - 1);
+        assertThat(decoder.nextMessage(), is(nullValue()));
+
+        decoder.feed(bytes, bytes.length - 1, 1);
+        MessageMetadata metadata = decoder.nextMessage();
+        assertThat(metadata.name, is("foo"));
+        assertThat(metadata.seqId, is(42));
+    }
+
+    @Test
+    public void severalMessagesInOneChunk() throws Exception {
+        Buffer buffer = new Buffer();
+        Protocol writer = new CompactProtocol(new BufferTransport(buffer));
+        writeMessage(writer, 1);
+        writeMessage(writer, 2);
+        writeMessage(writer, 3);
+
+        // Plus the start of a fourth
+        Buffer partial = new Buffer();
+        writeMessage(new CompactProtocol(new BufferTransport(partial)), 4);
+        buffer.write(partial, 10);
+
+        MessageDecoder decoder = MessageDecoder.compact();
+        byte[] chunk = buffer.readByteArray();
+        decoder.feed(chunk, 0, chunk.length);
+
+        for (int i = 1; i <= 3; ++i) {
+            MessageMetadata metadata = decoder.nextMessage();
+            assertThat(metadata.seqId, is(i));
+
+            // Only the first message is read; the rest are discarded unread
+            if (i == 1) {
+                readBody(decoder.protocol());
+            }
+        }
+
+        assertThat(decoder.nextMessage(), is(nullValue()));
+        assertThat(decoder.bufferedBytes(), is(10));
+
+        byte[] rest = partial.readByteArray();
+        decoder.feed(rest, 0, rest.length);
+        assertThat(decoder.nextMessage().seqId, is(4));
+        readBody(decoder.protocol());
+    }
+
+    @Test
+    public void readingPastTheMessageFails() throws Exception {
+        Buffer buffer = new Buffer();
+        Protocol writer = new BinaryProtocol(new BufferTransport(buffer));
+        writeMessage(writer, 1);
+        writeMessage(writer, 2);
+
+        MessageDecoder decoder = MessageDecoder.binary();
+        byte[] bytes = buffer.readByteArray();
+        decoder.feed(bytes, 0, bytes.length);
+
+        assertThat(decoder.nextMessage(), is(notNullValue()));
+        readBody(decoder.protocol());
+
+        try {
+            decoder.protocol().readByte();
+            fail("Expected an EOFException");
+        } catch (EOFException expected) {
+        }
+
+        assertThat(decoder.nextMessage().seqId, is(2));
+    }
+
+    @Test
+    public void malformedInputIsRejectedEarly() throws Exception {
+        MessageDecoder decoder = MessageDecoder.compact();
+        decoder.feed(new byte[] { 0x12, 0x34 }, 0, 2);
+
+        try {
+            decoder.nextMessage();
+            fail("Expected a ProtocolException");
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    @Test
+    public void messagesUpToTheMaximumSizeAreAccepted() throws Exception {
+        Buffer buffer = new Buffer();
+        writeMessage(new CompactProtocol(new BufferTransport(buffer)), 5);
+        byte[] bytes = buffer.readByteArray();
+
+        MessageDecoder decoder = MessageDecoder.compact(bytes.length);
+        decoder.feed(bytes, 0, bytes.length);
+        assertThat(decoder.nextMessage().seqId, is(5));
+
+        decoder = MessageDecoder.compact(bytes.length - 1);
+        decoder.feed(bytes, 0, bytes.length);
+        try {
+            decoder.nextMessage();
+            fail("Expected a ProtocolException");
+        } catch (ProtocolException e) {
+            assertThat(e.getMessage(), is("Message size " + bytes.length
+                    + " exceeds the maximum of " + (bytes.length - 1)));
+        }
+    }
+
+    @Test
+    public void oversizedMessagesAreRejectedAsTheyArrive() throws Exception {
+        Buffer buffer = new Buffer();
+        writeMessage(new BinaryProtocol(new BufferTransport(buffer)), 5);
+        byte[] bytes = buffer.readByteArray();
+
+        MessageDecoder decoder = MessageDecoder.binary(64);
+        for (int i = 0; i < 64; ++i) {
+            decoder.feed(bytes, i, 1);
+            assertThat(decoder.nextMessage(), is(nullValue()));
+        }
+
+        decoder.feed(bytes, 64, 1);
+        try {
+            decoder.nextMessage();
+            fail("Expected a ProtocolException");
+        } catch (ProtocolException e) {
+            assertThat(e.getMessage(), is("Message size of at least 65 exceeds the maximum of 64"));
+        }
+    }
+
+    @Test
+    public void oversizedLengthsAreRejectedBeforeTheyArrive() throws Exception {
+        Buffer buffer = new Buffer();
+        buffer.writeInt(0x80010000 | TMessageType.REPLY);
+        buffer.writeInt(1000);
+        buffer.writeUtf8("foo");
+
+        MessageDecoder decoder = MessageDecoder.binary(64);
+        byte[] bytes = buffer.readByteArray();
+        decoder.feed(bytes, 0, bytes.length);
+
+        try {
+            decoder.nextMessage();
+            fail("Expected a ProtocolException");
+        } catch (ProtocolException e) {
+            assertThat(e.getMessage(), is("Length 1000 exceeds the maximum message size of 64"));
+        }
+    }
+
+    @Test
+    public void oversizedContainersAreRejectedBeforeTheyArrive() throws Exception {
+        Buffer buffer = new Buffer();
+        Protocol writer = new CompactProtocol(new BufferTransport(buffer));
+        writer.writeMessageBegin("method", TMessageType.REPLY, 1);
+        writer.writeStructBegin("result");
+        writer.writeFieldBegin("success", 0, TType.LIST);
+        writer.writeListBegin(TType.I32, 100000);
+
+        MessageDecoder decoder = MessageDecoder.compact(1024);
+        byte[] bytes = buffer.readByteArray();
+        decoder.feed(bytes, 0, bytes.length);
+
+        try {
+            decoder.nextMessage();
+            fail("Expected a ProtocolException");
+        } catch (ProtocolException e) {
+            assertThat(e.getMessage(), is("Container size 100000 exceeds the maximum message size of 1024"));
+        }
+    }
+
+    private void checkByteAtATime(MessageDecoder decoder, byte[] bytes, int seqId) throws Exception {
+        for (int i = 0; i < bytes.length - 1; ++i) {
+            decoder.feed(bytes, i, 1);
+            assertThat(decoder.nextMessage(), is(nullValue()));
+        }
+
+        decoder.feed(bytes, bytes.length - 1, 1);
+        MessageMetadata metadata = decoder.nextMessage();
+        assertThat(metadata.name, is("method"));
+        assertThat(metadata.type, is(TMessageType.REPLY));
+        assertThat(metadata.seqId, is(seqId));
+
+        readBody(decoder.protocol());
+        decoder.protocol().readMessageEnd();
+
+        assertThat(decoder.nextMessage(), is(nullValue()));
+        assertThat(decoder.bufferedBytes(), is(0));
+    }
+
+    /**
+     * Writes a message exercising every kind of value, including booleans
+     * packed into compact field headers and field IDs that cannot be
+     * delta-encoded.
+     */
+    private void writeMessage(Protocol protocol, int seqId) throws IOException {
+        protocol.writeMessageBegin("method", TMessageType.REPLY, seqId);
+        protocol.writeStructBegin("result");
+
+        protocol.writeFieldBegin("success", 0, TType.STRUCT);
+        Xtruct.ADAPTER.write(protocol, xtruct);
+        protocol.writeFieldEnd();
+
+        protocol.writeFieldBegin("flag", 1, TType.BOOL);
+        protocol.writeBool(false);
+        protocol.writeFieldEnd();
+
+        protocol.writeFieldBegin("nested", 500, TType.LIST);
+        protocol.writeListBegin(TType.MAP, 20);
+        for (int i = 0; i < 20; ++i) {
+            protocol.writeMapBegin(TType.STRING, TType.SET, i % 2);
+            if (i % 2 == 1) {
+                protocol.writeString("key" + i);
+                protocol.writeSetBegin(TType.BOOL, 3);
+                protocol.writeBool(true);
+                protocol.writeBool(false);
+                protocol.writeBool(true);
+                protocol.writeSetEnd();
+            }
+            protocol.writeMapEnd();
+        }
+        protocol.writeListEnd();
+        protocol.writeFieldEnd();
+
+        protocol.writeFieldBegin("numbers", 2, TType.LIST);
+        protocol.writeListBegin(TType.I64, 3);
+        protocol.writeI64(-1L);
+        protocol.writeI64(Long.MAX_VALUE);
+        protocol.writeI64(0L);
+        protocol.writeListEnd();
+        protocol.writeFieldEnd();
+
+        protocol.writeFieldStop();
+        protocol.writeStructEnd();
+        protocol.writeMessageEnd();
+        protocol.flush();
+    }
+
+    private void readBody(Protocol protocol) throws IOException {
+        protocol.readStructBegin();
+
+        FieldMetadata field = protocol.readFieldBegin();
+        assertThat(field.fieldId, is((short) 0));
+        assertThat(Xtruct.ADAPTER.read(protocol), is(xtruct));
+        protocol.readFieldEnd();
+
+        while (true) {
+            field = protocol.readFieldBegin();
+            if (field.typeId == TType.STOP) {
+                break;
+            }
+            protocol.skip(field.typeId);
+            protocol.readFieldEnd();
+        }
+
+        protocol.readStructEnd();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.protocol;
+
+import com.bendb.thrifty.transport.BufferTransport;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class OkioProtocolTest {
+    private final Xtruct xtruct = new Xtruct.Builder()
+            .string_thing("okio \u00e9\u4e2d\ud83d\ude00")
+            .byte_thing((byte) -3)
+            .i32_thing(Integer.MIN_VALUE)
+            .i64_thing(Long.MAX_VALUE)
+            .double_thing(-0.5)
+            .build();
+
+    @Test
+    public void binaryOutputMatchesBinaryProtocol() throws Exception {
+        Buffer expected = new Buffer();
+        Xtruct.ADAPTER.write(new BinaryProtocol(new BufferTransport(expected)), xtruct);
+
+        Buffer actual = new Buffer();
+        Xtruct.ADAPTER.write(new OkioBinaryProtocol(null, actual), xtruct);
+
+        assertThat(actual.readByteString(), equalTo(expected.readByteString()));
+    }
+
+    @Test
+    public void compactOutputMatchesCompactProtocol() throws Exception {
+        Buffer expected = new Buffer();
+        Xtruct.ADAPTER.write(new CompactProtocol(new BufferTransport(expected)), xtruct);
+
+        Buffer actual = new Buffer();
+        Xtruct.ADAPTER.write(new OkioCompactProtocol(null, actual), xtruct);
+
+        assertThat(actual.readByteString(), equalTo(expected.readByteString()));
+    }
+
+    @Test
+    public void binaryRoundTrip() throws Exception {
+        Buffer buffer = new Buffer();
+        Protocol protocol = new OkioBinaryProtocol(buffer, buffer);
+        Xtruct.ADAPTER.write(protocol, xtruct);
+
+        assertThat(Xtruct.ADAPTER.read(protocol), equalTo(xtruct));
+        assertThat(buffer.size(), is(0L));
+    }
+
+    @Test
+    public void compactRoundTrip() throws Exception {
+        Buffer buffer = new Buffer();
+        Protocol protocol = new OkioCompactProtocol(buffer, buffer);
+        Xtruct.ADAPTER.write(protocol, xtruct);
+
+        assertThat(Xtruct.ADAPTER.read(protocol), equalTo(xtruct));
+        assertThat(buffer.size(), is(0L));
+    }
+
+    @Test
+    public void binaryValues() throws Exception {
+        Buffer buffer = new Buffer();
+        Protocol protocol = new OkioBinaryProtocol(buffer, buffer);
+        protocol.writeBinary(ByteString.encodeUtf8("abcd"));
+        protocol.writeString("");
+
+        assertThat(protocol.readBinary(), equalTo(ByteString.encodeUtf8("abcd")));
+        assertThat(protocol.readString(), is(""));
+    }
+
+    @Test
+    public void unpairedSurrogatesAreReplaced() throws Exception {
+        Buffer buffer = new Buffer();
+        Protocol protocol = new OkioCompactProtocol(buffer, buffer);
+        protocol.writeString("a\ud800b");
+
+        assertThat(protocol.readString(), is("a?b"));
+    }
+}
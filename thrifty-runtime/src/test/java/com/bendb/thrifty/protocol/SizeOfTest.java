@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.protocol;
+
+import com.bendb.thrifty.TType;
+import com.bendb.thrifty.transport.BufferTransport;
+import com.bendb.thrifty.util.IntList;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class SizeOfTest {
+    private static final int[] INTS = {
+            0, 1, -1, 63, -64, 64, 8191, 8192, 1 << 20, -(1 << 27),
+            Integer.MAX_VALUE, Integer.MIN_VALUE
+    };
+
+    private static final long[] LONGS = {
+            0L, -1L, 1L << 35, -(1L << 48), 1L << 62, Long.MAX_VALUE, Long.MIN_VALUE
+    };
+
+    private final Buffer buffer = new Buffer();
+
+    @Test
+    public void binary() throws Exception {
+        checkAll(new BinaryProtocol(new BufferTransport(buffer)));
+    }
+
+    @Test
+    public void compact() throws Exception {
+        checkAll(new CompactProtocol(new BufferTransport(buffer)));
+    }
+
+    @Test
+    public void xtruct() throws Exception {
+        Xtruct xtruct = new Xtruct.Builder()
+                .string_thing("size \u00e9\u20ac")
+                .i32_thing(-300)
+                .i64_thing(1L << 40)
+                .double_thing(0.5)
+                .build();
+
+        Protocol binary = new BinaryProtocol(new BufferTransport(buffer));
+        Xtruct.ADAPTER.write(binary, xtruct);
+        assertThat((long) Xtruct.ADAPTER.sizeOf(binary, xtruct), is(buffer.size()));
+
+        buffer.clear();
+        Protocol compact = new CompactProtocol(new BufferTransport(buffer));
+        Xtruct.ADAPTER.write(compact, xtruct);
+        assertThat((long) Xtruct.ADAPTER.sizeOf(compact, xtruct), is(buffer.size()));
+    }
+
+    private void checkAll(Protocol protocol) throws IOException {
+        writeMessageBegin(protocol);
+
+        protocol.writeStructBegin("Outer");
+        int size = protocol.sizeOfStructBegin("Outer");
+        size += fieldBegin(protocol, 1, TType.I32);
+        for (int i : INTS) {
+            protocol.writeI32(i);
+            size += protocol.sizeOfI32(i);
+            protocol.writeI16((short) i);
+            size += protocol.sizeOfI16((short) i);
+        }
+        size += fieldBegin(protocol, 20, TType.BOOL);
+        protocol.writeBool(true);
+        size += protocol.sizeOfBool(true);
+        size += fieldBegin(protocol, 21, TType.BOOL);
+        protocol.writeBool(false);
+        size += protocol.sizeOfBool(false);
+
+        // A nested struct restarts field-id deltas, and restores them after
+        size += fieldBegin(protocol, 2, TType.STRUCT);
+        protocol.writeStructBegin("Inner");
+        size += protocol.sizeOfStructBegin("Inner");
+        size += fieldBegin(protocol, 300, TType.I64);
+        for (long l : LONGS) {
+            protocol.writeI64(l);
+            size += protocol.sizeOfI64(l);
+        }
+        protocol.writeFieldStop();
+        size += protocol.sizeOfFieldStop();
+        protocol.writeStructEnd();
+        size += protocol.sizeOfStructEnd();
+        size += fieldBegin(protocol, 3, TType.STRING);
+
+        String[] strings = { "", "ascii", "\u00e9\u20ac\ud83d\ude00", new String(new char[200]) };
+        for (String s : strings) {
+            protocol.writeString(s);
+            size += protocol.sizeOfString(s);
+        }
+        ByteString bytes = ByteString.of(new byte[300]);
+        protocol.writeBinary(bytes);
+        size += protocol.sizeOfBinary(bytes);
+
+        for (int count : new int[] { 0, 14, 15, 200 }) {
+            protocol.writeListBegin(TType.BOOL, count);
+            size += protocol.sizeOfListBegin(TType.BOOL, count);
+            for (int i = 0; i < count; ++i) {
+                // Booleans in containers are not packed into a field header
+                protocol.writeBool(true);
+                size += protocol.sizeOfBool(true);
+            }
+            protocol.writeSetBegin(TType.BYTE, count);
+            size += protocol.sizeOfSetBegin(TType.BYTE, count);
+            protocol.writeMapBegin(TType.STRING, TType.DOUBLE, count);
+            size += protocol.sizeOfMapBegin(TType.STRING, TType.DOUBLE, count);
+        }
+
+        protocol.writeI32Array(INTS, 0, INTS.length);
+        size += protocol.sizeOfI32Array(INTS, 0, INTS.length);
+        protocol.writeI64Array(LONGS, 0, LONGS.length);
+        size += protocol.sizeOfI64Array(LONGS, 0, LONGS.length);
+        double[] doubles = { 1.0, Double.NaN };
+        protocol.writeDoubleArray(doubles, 0, 2);
+        size += protocol.sizeOfDoubleArray(doubles, 0, 2);
+        protocol.writeDouble(-2.5);
+        size += protocol.sizeOfDouble(-2.5);
+        protocol.writeByte((byte) 7);
+        size += protocol.sizeOfByte((byte) 7);
+
+        IntList list = IntList.of(INTS);
+        list.write(protocol);
+        size += list.sizeOf(protocol);
+
+        // Field ids that cannot be delta-encoded
+        size += fieldBegin(protocol, 1, TType.DOUBLE);
+        protocol.writeDouble(1.0);
+        size += protocol.sizeOfDouble(1.0);
+        size += fieldBegin(protocol, -5, TType.BYTE);
+        protocol.writeByte((byte) 1);
+        size += protocol.sizeOfByte((byte) 1);
+
+        protocol.writeFieldStop();
+        size += protocol.sizeOfFieldStop();
+        protocol.writeStructEnd();
+        size += protocol.sizeOfStructEnd();
+
+        assertThat((long) size, is(buffer.size()));
+        buffer.clear();
+    }
+
+    private static int fieldBegin(Protocol protocol, int id, byte type) throws IOException {
+        protocol.writeFieldBegin("f" + id, id, type);
+        return protocol.sizeOfFieldBegin("f" + id, id, type);
+    }
+
+    private void writeMessageBegin(Protocol protocol) throws IOException {
+        protocol.writeMessageBegin("method", (byte) 1, 123456);
+        int size = protocol.sizeOfMessageBegin("method", (byte) 1, 123456);
+        assertThat((long) size, is(buffer.size()));
+        buffer.clear();
+    }
+}
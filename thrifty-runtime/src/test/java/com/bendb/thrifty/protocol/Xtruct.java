@@ -1,6 +1,6 @@
 package com.bendb.thrifty.protocol;
 
-import com.bendb.thrifty.Adapter;
+import com.bendb.thrifty.SizedAdapter;
 import com.bendb.thrifty.StructBuilder;
 import com.bendb.thrifty.TType;
 import com.bendb.thrifty.ThriftField;
@@ -9,7 +9,7 @@ import com.bendb.thrifty.util.ProtocolUtil;
 import java.io.IOException;
 
 public final class Xtruct {
-    public static final Adapter<Xtruct, Builder> ADAPTER = new XtructAdapter();
+    public static final SizedAdapter<Xtruct, Builder> ADAPTER = new XtructAdapter();
 
     @ThriftField(
             fieldId = 1,
@@ -162,7 +162,7 @@ public final class Xtruct {
         }
     }
 
-    private static final class XtructAdapter implements Adapter<Xtruct, Builder> {
+    private static final class XtructAdapter implements SizedAdapter<Xtruct, Builder> {
         @Override
         public void write(Protocol protocol, Xtruct struct) throws IOException {
             protocol.writeStructBegin("Xtruct");
@@ -199,58 +199,59 @@ public final class Xtruct {
         public Xtruct read(Protocol protocol, Builder builder) throws IOException {
             protocol.readStructBegin();
             while (true) {
-                FieldMetadata field = protocol.readFieldBegin();
-                if (field.typeId == TType.STOP) {
+                int field = protocol.readFieldHeader();
+                byte fieldType = Headers.fieldType(field);
+                if (fieldType == TType.STOP) {
                     break;
                 }
-                switch (field.fieldId) {
+                switch (Headers.fieldId(field)) {
                     case 1: {
-                        if (field.typeId == TType.STRING) {
+                        if (fieldType == TType.STRING) {
                             String value = protocol.readString();
                             builder.string_thing(value);
                         } else {
-                            ProtocolUtil.skip(protocol, field.typeId);
+                            ProtocolUtil.skip(protocol, fieldType);
                         }
                     }
                     break;
                     case 4: {
-                        if (field.typeId == TType.BYTE) {
+                        if (fieldType == TType.BYTE) {
                             byte value = protocol.readByte();
                             builder.byte_thing(value);
                         } else {
-                            ProtocolUtil.skip(protocol, field.typeId);
+                            ProtocolUtil.skip(protocol, fieldType);
                         }
                     }
                     break;
                     case 9: {
-                        if (field.typeId == TType.I32) {
+                        if (fieldType == TType.I32) {
                             int value = protocol.readI32();
                             builder.i32_thing(value);
                         } else {
-                            ProtocolUtil.skip(protocol, field.typeId);
+                            ProtocolUtil.skip(protocol, fieldType);
                         }
                     }
                     break;
                     case 11: {
-                        if (field.typeId == TType.I64) {
+                        if (fieldType == TType.I64) {
                             long value = protocol.readI64();
                             builder.i64_thing(value);
                         } else {
-                            ProtocolUtil.skip(protocol, field.typeId);
+                            ProtocolUtil.skip(protocol, fieldType);
                         }
                     }
                     break;
                     case 13: {
-                        if (field.typeId == TType.DOUBLE) {
+                        if (fieldType == TType.DOUBLE) {
                             double value = protocol.readDouble();
                             builder.double_thing(value);
                         } else {
-                            ProtocolUtil.skip(protocol, field.typeId);
+                            ProtocolUtil.skip(protocol, fieldType);
                         }
                     }
                     break;
                     default: {
-                        ProtocolUtil.skip(protocol, field.typeId);
+                        ProtocolUtil.skip(protocol, fieldType);
                     }
                     break;
                 }
@@ -263,6 +264,37 @@ public final class Xtruct {
         public Xtruct read(Protocol protocol) throws IOException {
             return read(protocol, new Builder());
         }
+
+        @Override
+        public int sizeOf(Protocol protocol, Xtruct struct) {
+            int size = protocol.sizeOfStructBegin("Xtruct");
+            try {
+                if (struct.string_thing != null) {
+                    size += protocol.sizeOfFieldBegin("string_thing", 1, TType.STRING);
+                    size += protocol.sizeOfString(struct.string_thing);
+                }
+                if (struct.byte_thing != null) {
+                    size += protocol.sizeOfFieldBegin("byte_thing", 4, TType.BYTE);
+                    size += protocol.sizeOfByte(struct.byte_thing);
+                }
+                if (struct.i32_thing != null) {
+                    size += protocol.sizeOfFieldBegin("i32_thing", 9, TType.I32);
+                    size += protocol.sizeOfI32(struct.i32_thing);
+                }
+                if (struct.i64_thing != null) {
+                    size += protocol.sizeOfFieldBegin("i64_thing", 11, TType.I64);
+                    size += protocol.sizeOfI64(struct.i64_thing);
+                }
+                if (struct.double_thing != null) {
+                    size += protocol.sizeOfFieldBegin("double_thing", 13, TType.DOUBLE);
+                    size += protocol.sizeOfDouble(struct.double_thing);
+                }
+                size += protocol.sizeOfFieldStop();
+            } finally {
+                size += protocol.sizeOfStructEnd();
+            }
+            return size;
+        }
     }
 }
 
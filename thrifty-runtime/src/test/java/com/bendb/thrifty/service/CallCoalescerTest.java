@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import com.bendb.thrifty.TType;
+import com.bendb.thrifty.protocol.MessageMetadata;
+import com.bendb.thrifty.protocol.Protocol;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class CallCoalescerTest {
+    private final CallCoalescer coalescer = new CallCoalescer();
+
+    @Test
+    public void identicalCallsAreMerged() {
+        GetCall first = new GetCall("get", 42);
+        assertThat(coalescer.join(first), is(false));
+        assertThat(first.coalesced, is(notNullValue()));
+
+        assertThat(coalescer.join(new GetCall("get", 42)), is(true));
+        assertThat(coalescer.join(new GetCall("get", 42)), is(true));
+
+        assertThat(coalescer.coalescedCalls(), is(2L));
+        assertThat(coalescer.inFlightCalls(), is(1));
+
+        List<ServiceMethodCallback<?>> followers = first.coalesced.complete();
+        assertThat(followers.size(), is(2));
+        assertThat(coalescer.inFlightCalls(), is(0));
+    }
+
+    @Test
+    public void callsDifferingInArgumentsOrMethodAreNotMerged() {
+        assertThat(coalescer.join(new GetCall("get", 1)), is(false));
+        assertThat(coalescer.join(new GetCall("get", 2)), is(false));
+        assertThat(coalescer.join(new GetCall("peek", 1)), is(false));
+
+        assertThat(coalescer.coalescedCalls(), is(0L));
+        assertThat(coalescer.inFlightCalls(), is(3));
+    }
+
+    @Test
+    public void callsAfterCompletionAreSentAfresh() {
+        GetCall first = new GetCall("get", 42);
+        assertThat(coalescer.join(first), is(false));
+        assertThat(first.coalesced.complete(), is(nullValue()));
+
+        GetCall second = new GetCall("get", 42);
+        assertThat(coalescer.join(second), is(false));
+        assertThat(second.coalesced, is(notNullValue()));
+
+        // A late follower cannot join a completed group.
+        assertThat(first.coalesced.add(new NoopCallback()), is(false));
+    }
+
+    @Test
+    public void callsThatCannotBeEncodedAreSent() {
+        MethodCall<Integer> call = new GetCall("get", 1) {
+            @Override
+            protected void send(Protocol protocol) {
+                throw new IllegalStateException("nope");
+            }
+        };
+
+        assertThat(coalescer.join(call), is(false));
+        assertThat(call.coalesced, is(nullValue()));
+    }
+
+    private static class GetCall extends MethodCall<Integer> {
+        private final int key;
+
+        GetCall(String name, int key) {
+            super(name, TMessageType.CALL, new NoopCallback());
+            this.key = key;
+        }
+
+        @Override
+        protected void send(Protocol protocol) throws IOException {
+            protocol.writeStructBegin("args");
+            protocol.writeFieldBegin("key", 1, TType.I32);
+            protocol.writeI32(key);
+            protocol.writeFieldEnd();
+            protocol.writeFieldStop();
+            protocol.writeStructEnd();
+        }
+
+        @Override
+        protected Integer receive(Protocol protocol, MessageMetadata metadata) {
+            return null;
+        }
+
+        @Override
+        protected boolean isIdempotent() {
+            return true;
+        }
+    }
+
+    private static class NoopCallback implements ServiceMethodCallback<Integer> {
+        @Override
+        public void onSuccess(Integer result) {
+        }
+
+        @Override
+        public void onError(Throwable error) {
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import com.bendb.thrifty.protocol.MessageMetadata;
+import com.bendb.thrifty.protocol.Protocol;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class CallQueueingTest {
+    @Test
+    public void pendingCallsMatchesHashMap() {
+        PendingCalls calls = new PendingCalls();
+        Map<Integer, MethodCall<?>> expected = new HashMap<>();
+        List<Integer> live = new ArrayList<>();
+        Random random = new Random(42);
+
+        int nextId = Integer.MAX_VALUE - 5000; // wraps around to negative IDs
+        for (int i = 0; i < 20000; ++i) {
+            if (live.isEmpty() || random.nextInt(3) != 0) {
+                int id = nextId++;
+                MethodCall<?> call = new NoopCall();
+                calls.put(id, call);
+                expected.put(id, call);
+                live.add(id);
+            } else {
+                // Replies arrive in any order.
+                int id = live.remove(random.nextInt(live.size()));
+                assertThat(calls.remove(id), sameInstance((Object) expected.remove(id)));
+            }
+            assertThat(calls.size(), is(expected.size()));
+        }
+
+        assertThat(calls.remove(nextId), is(nullValue()));
+        for (int id : live) {
+            assertThat(calls.remove(id), sameInstance((Object) expected.get(id)));
+            assertThat(calls.remove(id), is(nullValue()));
+        }
+        assertThat(calls.size(), is(0));
+    }
+
+    @Test
+    public void pendingCallsRejectsReusedIds() {
+        PendingCalls calls = new PendingCalls();
+        calls.put(7, new NoopCall());
+        try {
+            calls.put(7, new NoopCall());
+            fail("Expected a reused sequence ID to be rejected");
+        } catch (IllegalStateException expected) {
+            // good
+        }
+    }
+
+    @Test
+    public void queuePreservesEachProducersOrder() throws Exception {
+        final MpscQueue<int[]> queue = new MpscQueue<>();
+        final int producers = 8;
+        final int perProducer = 20000;
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; ++p) {
+            final int producer = p;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; ++i) {
+                        queue.offer(new int[] { producer, i });
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+
+        int[] nextExpected = new int[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            int[] element = queue.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            assertThat(element[1], equalTo(nextExpected[element[0]]));
+            nextExpected[element[0]]++;
+            received++;
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(queue.isEmpty(), is(true));
+        assertThat(queue.poll(), is(nullValue()));
+    }
+
+    private static class NoopCall extends MethodCall<Void> {
+        NoopCall() {
+            super("noop", TMessageType.ONEWAY, null);
+        }
+
+        @Override
+        protected void send(Protocol protocol) {
+        }
+
+        @Override
+        protected Void receive(Protocol protocol, MessageMetadata metadata) {
+            return null;
+        }
+    }
+}
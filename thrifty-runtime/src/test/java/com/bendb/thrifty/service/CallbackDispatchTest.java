@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import com.bendb.thrifty.protocol.MessageMetadata;
+import com.bendb.thrifty.protocol.Protocol;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CallbackDispatchTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void teardown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void inlineRunsOnTheDispatchingThread() {
+        final Thread[] ranOn = new Thread[1];
+        CallbackDispatch.inline().dispatch(new NamedCall("a"), new Runnable() {
+            @Override
+            public void run() {
+                ranOn[0] = Thread.currentThread();
+            }
+        });
+        assertThat(ranOn[0], is(Thread.currentThread()));
+    }
+
+    @Test
+    public void orderedKeepsOrderWithinKeys() throws Exception {
+        final int keys = 8;
+        final int perKey = 2000;
+
+        CallbackDispatch dispatch = CallbackDispatch.ordered(executor, new CallbackDispatch.KeySelector() {
+            @Override
+            public Object keyFor(String methodName, ServiceMethodCallback<?> callback) {
+                return methodName;
+            }
+        });
+
+        final List<List<Integer>> seen = new ArrayList<>();
+        for (int k = 0; k < keys; ++k) {
+            seen.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+
+        final CountDownLatch done = new CountDownLatch(keys * perKey);
+
+        for (int i = 0; i < perKey; ++i) {
+            for (int k = 0; k < keys; ++k) {
+                final int key = k;
+                final int value = i;
+                dispatch.dispatch(new NamedCall("m" + k), new Runnable() {
+                    @Override
+                    public void run() {
+                        seen.get(key).add(value);
+                        done.countDown();
+                    }
+                });
+            }
+        }
+
+        assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+        for (List<Integer> values : seen) {
+            assertThat(values.size(), is(perKey));
+            for (int i = 0; i < perKey; ++i) {
+                assertThat(values.get(i), equalTo(i));
+            }
+        }
+    }
+
+    private static class NamedCall extends MethodCall<Void> {
+        NamedCall(String name) {
+            super(name, TMessageType.ONEWAY, null);
+        }
+
+        @Override
+        protected void send(Protocol protocol) {
+        }
+
+        @Override
+        protected Void receive(Protocol protocol, MessageMetadata metadata) {
+            return null;
+        }
+    }
+}
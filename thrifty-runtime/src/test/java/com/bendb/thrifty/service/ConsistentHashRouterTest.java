@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConsistentHashRouterTest {
+    interface KeyValue {
+        void get(String key, ServiceMethodCallback<String> callback);
+
+        void size(ServiceMethodCallback<Integer> callback);
+    }
+
+    /**
+     * Answers every get with its own name.
+     */
+    static class Node implements KeyValue {
+        final String name;
+
+        Node(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void get(String key, ServiceMethodCallback<String> callback) {
+            callback.onSuccess(name);
+        }
+
+        @Override
+        public void size(ServiceMethodCallback<Integer> callback) {
+            callback.onSuccess(0);
+        }
+    }
+
+    private ConsistentHashRouter<KeyValue> router;
+
+    @Before
+    public void setup() {
+        router = new ConsistentHashRouter.Builder<>(KeyValue.class)
+                .route("get", new ConsistentHashRouter.KeyExtractor() {
+                    @Override
+                    public Object keyFor(Object[] args) {
+                        return args[0];
+                    }
+                })
+                .build();
+
+        for (int i = 0; i < 4; ++i) {
+            router.addNode("node-" + i, new Node("node-" + i));
+        }
+    }
+
+    @Test
+    public void callsGoToTheKeysNode() {
+        for (int i = 0; i < 100; ++i) {
+            String key = "key-" + i;
+            final String[] answeredBy = new String[1];
+            router.service().get(key, new ServiceMethodCallback<String>() {
+                @Override
+                public void onSuccess(String result) {
+                    answeredBy[0] = result;
+                }
+
+                @Override
+                public void onError(Throwable error) {
+                    throw new AssertionError(error);
+                }
+            });
+
+            assertThat(answeredBy[0], is(((Node) router.nodeFor(key)).name));
+        }
+    }
+
+    @Test
+    public void keysAreSpreadEvenly() {
+        Map<String, Integer> counts = assignments(10000, new HashMap<String, String>());
+        for (int count : counts.values()) {
+            // A perfect split would be 2500 apiece.
+            assertTrue("Uneven split: " + counts, count > 1800 && count < 3200);
+        }
+    }
+
+    @Test
+    public void addingANodeOnlyMovesKeysToIt() {
+        Map<String, String> before = new HashMap<>();
+        assignments(10000, before);
+
+        router.addNode("node-4", new Node("node-4"));
+
+        Map<String, String> after = new HashMap<>();
+        assignments(10000, after);
+
+        int moved = 0;
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            String owner = after.get(entry.getKey());
+            if (!owner.equals(entry.getValue())) {
+                assertThat(owner, is("node-4"));
+                moved++;
+            }
+        }
+
+        // About a fifth of the keys should move.
+        assertTrue("Moved " + moved, moved > 1200 && moved < 2800);
+    }
+
+    @Test
+    public void removingANodeOnlyMovesItsKeys() {
+        Map<String, String> before = new HashMap<>();
+        assignments(10000, before);
+
+        Node removed = (Node) router.removeNode("node-2");
+        assertThat(removed.name, is("node-2"));
+
+        Map<String, String> after = new HashMap<>();
+        assignments(10000, after);
+
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            if (!entry.getValue().equals("node-2")) {
+                assertThat(after.get(entry.getKey()), is(entry.getValue()));
+            }
+        }
+    }
+
+    @Test
+    public void routersAgreeGivenTheSameNames() {
+        ConsistentHashRouter<KeyValue> other = new ConsistentHashRouter.Builder<>(KeyValue.class).build();
+        for (int i = 3; i >= 0; --i) {
+            other.addNode("node-" + i, new Node("node-" + i));
+        }
+
+        for (int i = 0; i < 1000; ++i) {
+            String key = "key-" + i;
+            assertThat(((Node) other.nodeFor(key)).name, is(((Node) router.nodeFor(key)).name));
+        }
+    }
+
+    @Test
+    public void replacingANodesClientKeepsItsKeys() {
+        Map<String, String> before = new HashMap<>();
+        assignments(1000, before);
+
+        Node replacement = new Node("node-1");
+        Node previous = (Node) router.addNode("node-1", replacement);
+        assertThat(previous.name, is("node-1"));
+
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            boolean ownedByReplaced = entry.getValue().equals("node-1");
+            assertThat(router.nodeFor(entry.getKey()) == replacement, is(ownedByReplaced));
+        }
+    }
+
+    @Test
+    public void methodsWithoutExtractorsAreRejected() {
+        try {
+            router.service().size(null);
+            fail("Expected an unrouted method to be rejected");
+        } catch (UnsupportedOperationException expected) {
+            // good
+        }
+    }
+
+    @Test
+    public void objectMethodsAreNotRouted() {
+        KeyValue service = router.service();
+        assertThat(service.equals(service), is(true));
+        assertThat(service.hashCode(), is(System.identityHashCode(service)));
+        assertThat(router.service(), sameInstance(service));
+    }
+
+    private Map<String, Integer> assignments(int keyCount, Map<String, String> owners) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < keyCount; ++i) {
+            String key = "key-" + i;
+            String owner = ((Node) router.nodeFor(key)).name;
+            owners.put(key, owner);
+
+            Integer count = counts.get(owner);
+            counts.put(owner, count == null ? 1 : count + 1);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class EventLoopTest {
+    @Test
+    public void unstartedLoopsCloseTheirSelectors() throws Exception {
+        EventLoop loop = new EventLoop("unstarted");
+        loop.closeUnstarted();
+
+        assertThat(loop.selector().isOpen(), is(false));
+    }
+
+    @Test
+    public void startedLoopsCloseTheirSelectorsOnShutdown() throws Exception {
+        EventLoop loop = new EventLoop("started");
+        loop.start();
+        loop.shutdown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (loop.selector().isOpen() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertThat(loop.selector().isOpen(), is(false));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class FlushPolicyTest {
+    private final FlushPolicy.Batch batch = new FlushPolicy.Batch();
+
+    @Test
+    public void immediateFlushesEveryCall() {
+        FlushPolicy policy = FlushPolicy.immediate();
+        batch.recordWrite(10, 0);
+
+        assertThat(policy.shouldFlush(batch), is(true));
+        assertThat(policy.lingerNanos(batch), is(0L));
+    }
+
+    @Test
+    public void whenIdleNeverLingers() {
+        FlushPolicy policy = FlushPolicy.whenIdle();
+        batch.recordWrite(10, 0);
+
+        assertThat(policy.shouldFlush(batch), is(false));
+        assertThat(policy.lingerNanos(batch), is(0L));
+    }
+
+    @Test
+    public void callsFlushesOnceEnoughAreWaiting() {
+        FlushPolicy policy = FlushPolicy.calls(3, 5, TimeUnit.MILLISECONDS);
+
+        batch.recordWrite(10, 0);
+        batch.recordWrite(10, 1);
+        assertThat(policy.shouldFlush(batch), is(false));
+        assertThat(policy.lingerNanos(batch), is(TimeUnit.MILLISECONDS.toNanos(5)));
+
+        batch.recordWrite(10, 2);
+        assertThat(policy.shouldFlush(batch), is(true));
+
+        batch.flushed();
+        batch.recordWrite(10, 3);
+        assertThat(policy.shouldFlush(batch), is(false));
+    }
+
+    @Test
+    public void bytesFlushesOnceEnoughAreWaiting() {
+        FlushPolicy policy = FlushPolicy.bytes(100, 5, TimeUnit.MILLISECONDS);
+        assertThat(policy.needsSizes(), is(true));
+
+        batch.recordWrite(60, 0);
+        assertThat(policy.shouldFlush(batch), is(false));
+
+        batch.recordWrite(40, 1);
+        assertThat(policy.shouldFlush(batch), is(true));
+    }
+
+    @Test
+    public void firstWriteIsTrackedPerBatch() {
+        batch.recordWrite(1, 100);
+        batch.recordWrite(1, 200);
+        assertThat(batch.firstWriteNanos, is(100L));
+
+        batch.flushed();
+        assertThat(batch.isEmpty(), is(true));
+
+        batch.recordWrite(1, 300);
+        assertThat(batch.firstWriteNanos, is(300L));
+    }
+
+    @Test
+    public void adaptiveDoesNotLingerForSparseCalls() {
+        FlushPolicy policy = FlushPolicy.adaptive(1, TimeUnit.MILLISECONDS);
+
+        batch.recordWrite(1, 0);
+        assertThat(policy.lingerNanos(batch), is(0L));
+
+        batch.flushed();
+        batch.recordWrite(1, TimeUnit.MILLISECONDS.toNanos(10));
+        assertThat(policy.lingerNanos(batch), is(0L));
+    }
+
+    @Test
+    public void adaptiveLingersForTwiceTheGapBetweenDenseCalls() {
+        FlushPolicy policy = FlushPolicy.adaptive(1, TimeUnit.MILLISECONDS);
+
+        long now = 0;
+        for (int i = 0; i < 32; ++i) {
+            batch.recordWrite(1, now);
+            now += 100000; // 100us
+        }
+
+        assertThat(batch.averageGapNanos, is(100000L));
+        assertThat(policy.lingerNanos(batch), is(200000L));
+    }
+
+    @Test
+    public void adaptiveLingerIsCapped() {
+        FlushPolicy policy = FlushPolicy.adaptive(1, TimeUnit.MILLISECONDS);
+
+        batch.recordWrite(1, 0);
+        batch.recordWrite(1, 900000);
+
+        assertThat(policy.lingerNanos(batch), is(TimeUnit.MILLISECONDS.toNanos(1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeDelaysAreRejected() {
+        FlushPolicy.window(-1, TimeUnit.MILLISECONDS);
+    }
+}
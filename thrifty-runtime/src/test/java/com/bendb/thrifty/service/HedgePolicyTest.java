@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class HedgePolicyTest {
+    private final HedgePolicy policy = new HedgePolicy.Builder()
+            .percentile(90)
+            .minDelay(5, TimeUnit.MILLISECONDS)
+            .maxDelay(500, TimeUnit.MILLISECONDS)
+            .build();
+
+    @Test
+    public void usesMaxDelayUntilWarm() {
+        assertThat(policy.delayNanos("foo"), is(millis(500)));
+
+        for (int i = 0; i < 10; ++i) {
+            policy.record("foo", millis(1));
+        }
+        assertThat(policy.delayNanos("foo"), is(millis(500)));
+    }
+
+    @Test
+    public void delayIsThePercentileOfRecentLatencies() {
+        for (int i = 1; i <= 1000; ++i) {
+            policy.record("foo", millis(i % 100 + 1));
+        }
+
+        assertThat(policy.delayNanos("foo"), is(millis(90)));
+    }
+
+    @Test
+    public void delayIsClamped() {
+        for (int i = 0; i < 1000; ++i) {
+            policy.record("fast", TimeUnit.MICROSECONDS.toNanos(100));
+            policy.record("slow", TimeUnit.SECONDS.toNanos(10));
+        }
+
+        assertThat(policy.delayNanos("fast"), is(millis(5)));
+        assertThat(policy.delayNanos("slow"), is(millis(500)));
+    }
+
+    @Test
+    public void methodsAreTrackedSeparately() {
+        for (int i = 0; i < 1000; ++i) {
+            policy.record("foo", millis(50));
+        }
+
+        assertThat(policy.delayNanos("foo"), is(millis(50)));
+        assertThat(policy.delayNanos("bar"), is(millis(500)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void percentileMustBeInRange() {
+        new HedgePolicy.Builder().percentile(100);
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
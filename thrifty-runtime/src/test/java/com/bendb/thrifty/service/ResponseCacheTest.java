@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import com.bendb.thrifty.TType;
+import com.bendb.thrifty.protocol.MessageMetadata;
+import com.bendb.thrifty.protocol.Protocol;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ResponseCacheTest {
+    @Test
+    public void storedResultsAreHits() {
+        ResponseCache<String> cache = new ResponseCache<>(10, 1, TimeUnit.MINUTES);
+
+        assertThat(cache.get(key("get", 1)), is(nullValue()));
+        cache.put(key("get", 1), "one");
+
+        assertThat(cache.get(key("get", 1)), is("one"));
+        assertThat(cache.get(key("get", 1)), is("one"));
+
+        assertThat(cache.hitCount(), is(2L));
+        assertThat(cache.missCount(), is(1L));
+        assertThat(cache.size(), is(1));
+    }
+
+    @Test
+    public void keysDifferByMethodAndArguments() {
+        ResponseCache<String> cache = new ResponseCache<>(10, 1, TimeUnit.MINUTES);
+        cache.put(key("get", 1), "one");
+
+        assertThat(cache.get(key("get", 2)), is(nullValue()));
+        assertThat(cache.get(key("peek", 1)), is(nullValue()));
+        assertThat(cache.missCount(), is(2L));
+    }
+
+    @Test
+    public void expiredResultsAreMisses() throws Exception {
+        ResponseCache<String> cache = new ResponseCache<>(10, 1, TimeUnit.MILLISECONDS);
+        cache.put(key("get", 1), "one");
+
+        Thread.sleep(10);
+
+        assertThat(cache.get(key("get", 1)), is(nullValue()));
+        assertThat(cache.size(), is(0));
+    }
+
+    @Test
+    public void leastRecentlyUsedResultIsEvicted() {
+        ResponseCache<String> cache = new ResponseCache<>(2, 1, TimeUnit.MINUTES);
+        cache.put(key("get", 1), "one");
+        cache.put(key("get", 2), "two");
+
+        // Using the first makes the second the eldest.
+        assertThat(cache.get(key("get", 1)), is("one"));
+        cache.put(key("get", 3), "three");
+
+        assertThat(cache.get(key("get", 2)), is(nullValue()));
+        assertThat(cache.get(key("get", 1)), is("one"));
+        assertThat(cache.get(key("get", 3)), is("three"));
+    }
+
+    @Test
+    public void segmentedCacheNeverExceedsItsBound() {
+        ResponseCache<Integer> cache = new ResponseCache<>(1000, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 5000; ++i) {
+            cache.put(key("get", i), i);
+        }
+
+        assertTrue(cache.size() <= 1000);
+        assertThat(cache.get(key("get", 4999)), is(4999));
+    }
+
+    @Test
+    public void invalidateAllDiscardsResults() {
+        ResponseCache<String> cache = new ResponseCache<>(10, 1, TimeUnit.MINUTES);
+        cache.put(key("get", 1), "one");
+        cache.invalidateAll();
+
+        assertThat(cache.size(), is(0));
+        assertThat(cache.get(key("get", 1)), is(nullValue()));
+    }
+
+    @Test
+    public void callsAreEncodedForTheirKeyOnce() {
+        // A call both cached and coalesced asks for its key twice.
+        GetCall call = new GetCall("get", 1);
+        CallKey key = call.key();
+
+        assertThat(call.key(), is(sameInstance(key)));
+        assertThat(call.key(), is(key("get", 1)));
+        assertThat(call.sends, is(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxEntriesMustBePositive() {
+        new ResponseCache<String>(0, 1, TimeUnit.MINUTES);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ttlMustBePositive() {
+        new ResponseCache<String>(10, 0, TimeUnit.MINUTES);
+    }
+
+    private static CallKey key(String method, int arg) {
+        return CallKey.of(new GetCall(method, arg));
+    }
+
+    private static class GetCall extends MethodCall<String> {
+        private final int key;
+        int sends;
+
+        GetCall(String name, int key) {
+            super(name, TMessageType.CALL, null);
+            this.key = key;
+        }
+
+        @Override
+        protected void send(Protocol protocol) throws IOException {
+            sends++;
+            protocol.writeStructBegin("args");
+            protocol.writeFieldBegin("key", 1, TType.I32);
+            protocol.writeI32(key);
+            protocol.writeFieldEnd();
+            protocol.writeFieldStop();
+            protocol.writeStructEnd();
+        }
+
+        @Override
+        protected String receive(Protocol protocol, MessageMetadata metadata) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.service;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+    // A small wheel, so that delays span several rotations.
+    private final TimerWheel timer = new TimerWheel("test-timer", 1, TimeUnit.MILLISECONDS, 8);
+
+    @After
+    public void teardown() {
+        timer.stop();
+    }
+
+    @Test
+    public void expiresNoSoonerThanScheduled() throws Exception {
+        final long[] delays = { 0, 1, 5, 7, 8, 9, 20, 50 };
+        final CountDownLatch latch = new CountDownLatch(delays.length);
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+        for (final long delay : delays) {
+            final long scheduledAt = System.nanoTime();
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduledAt);
+                    if (elapsed < delay) {
+                        failures.add("delay " + delay + " expired after " + elapsed + " ms");
+                    }
+                    latch.countDown();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertThat(failures.toString(), failures.isEmpty(), is(true));
+    }
+
+    @Test
+    public void cancelledTasksNeverRun() throws Exception {
+        final AtomicInteger ran = new AtomicInteger(0);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+            }
+        };
+
+        List<TimerWheel.Timeout> timeouts = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            timeouts.add(timer.schedule(task, 200 + (i % 20), TimeUnit.MILLISECONDS));
+        }
+
+        for (int i = 0; i < timeouts.size(); i += 2) {
+            assertThat(timeouts.get(i).cancel(), is(true));
+            assertThat(timeouts.get(i).cancel(), is(false));
+        }
+
+        final CountDownLatch last = new CountDownLatch(1);
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                last.countDown();
+            }
+        }, 250, TimeUnit.MILLISECONDS);
+
+        assertTrue(last.await(5, TimeUnit.SECONDS));
+        assertThat(ran.get(), is(500));
+        for (int i = 1; i < timeouts.size(); i += 2) {
+            assertThat(timeouts.get(i).isExpired(), is(true));
+            assertThat(timeouts.get(i).cancel(), is(false));
+        }
+    }
+
+    @Test
+    public void aThrowingTaskDoesNotStopTheTimer() throws Exception {
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new RuntimeException("boom");
+            }
+        }, 1, TimeUnit.MILLISECONDS);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 5, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+}
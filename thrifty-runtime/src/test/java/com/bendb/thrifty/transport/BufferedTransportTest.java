@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.transport;
+
+import com.bendb.thrifty.protocol.BinaryProtocol;
+import com.bendb.thrifty.protocol.CompactProtocol;
+import com.bendb.thrifty.protocol.Protocol;
+import com.bendb.thrifty.protocol.Xtruct;
+import okio.Buffer;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class BufferedTransportTest {
+    private final Xtruct xtruct = new Xtruct.Builder()
+            .string_thing("buffered")
+            .byte_thing((byte) 7)
+            .i32_thing(-12345)
+            .i64_thing(0x1234567890L)
+            .double_thing(Math.E)
+            .build();
+
+    @Test
+    public void writesAreDeferredUntilFlush() throws Exception {
+        Buffer buffer = new Buffer();
+        BufferedTransport transport = new BufferedTransport(new BufferTransport(buffer));
+
+        transport.write("abcde".getBytes("UTF-8"));
+        assertThat(buffer.size(), is(0L));
+
+        transport.flush();
+        assertThat(buffer.readUtf8(), is("abcde"));
+    }
+
+    @Test
+    public void closeWritesBufferedBytes() throws Exception {
+        Buffer buffer = new Buffer();
+        BufferedTransport transport = new BufferedTransport(new BufferTransport(buffer));
+
+        transport.write("abcde".getBytes("UTF-8"));
+        transport.close();
+
+        assertThat(buffer.readUtf8(), is("abcde"));
+    }
+
+    @Test
+    public void closeClosesInnerTransportWhenFlushFails() throws Exception {
+        final boolean[] closed = new boolean[1];
+        BufferedTransport transport = new BufferedTransport(new BufferTransport() {
+            @Override
+            public void write(byte[] data, int offset, int count) throws IOException {
+                throw new IOException("boom");
+            }
+
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+            }
+        });
+
+        transport.write(new byte[] { 1, 2, 3 });
+        try {
+            transport.close();
+            fail("Expected the flush error");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("boom"));
+        }
+        assertThat(closed[0], is(true));
+    }
+
+    @Test
+    public void writesLargerThanTheBufferPassThrough() throws Exception {
+        Buffer buffer = new Buffer();
+        BufferedTransport transport = new BufferedTransport(new BufferTransport(buffer), 16);
+
+        transport.write(new byte[] { 1, 2, 3 });
+        transport.write(new byte[32]);
+
+        // The pending bytes must have been written before the large write
+        assertThat(buffer.size(), is(35L));
+        assertThat(buffer.readByte(), is((byte) 1));
+    }
+
+    @Test
+    public void fullBufferIsWrittenToMakeRoomForReservation() throws Exception {
+        Buffer buffer = new Buffer();
+        BufferedTransport transport = new BufferedTransport(new BufferTransport(buffer), 16);
+
+        transport.write(new byte[14]);
+
+        int pos = transport.reserveWrite(4);
+        assertThat(pos, is(0));
+        assertThat(buffer.size(), is(14L));
+
+        transport.writeBuffer()[pos] = 42;
+        transport.commitWrite(1);
+        transport.flush();
+
+        assertThat(buffer.size(), is(15L));
+        buffer.skip(14);
+        assertThat(buffer.readByte(), is((byte) 42));
+    }
+
+    @Test
+    public void reservationsLargerThanTheBufferAreRefused() throws Exception {
+        BufferedTransport transport = new BufferedTransport(new BufferTransport(), 16);
+        assertThat(transport.reserveWrite(17), is(-1));
+    }
+
+    @Test
+    public void binaryProtocolOutputIsUnchanged() throws Exception {
+        Buffer expected = new Buffer();
+        Xtruct.ADAPTER.write(new BinaryProtocol(new BufferTransport(expected)), xtruct);
+
+        Buffer actual = new Buffer();
+        BufferedTransport transport = new BufferedTransport(new BufferTransport(actual), 16);
+        Protocol protocol = new BinaryProtocol(transport);
+        Xtruct.ADAPTER.write(protocol, xtruct);
+        protocol.flush();
+
+        assertThat(actual.readByteString(), equalTo(expected.readByteString()));
+    }
+
+    @Test
+    public void compactProtocolOutputIsUnchanged() throws Exception {
+        Buffer expected = new Buffer();
+        Xtruct.ADAPTER.write(new CompactProtocol(new BufferTransport(expected)), xtruct);
+
+        Buffer actual = new Buffer();
+        BufferedTransport transport = new BufferedTransport(new BufferTransport(actual), 16);
+        Protocol protocol = new CompactProtocol(transport);
+        Xtruct.ADAPTER.write(protocol, xtruct);
+        protocol.flush();
+
+        assertThat(actual.readByteString(), equalTo(expected.readByteString()));
+    }
+
+    @Test
+    public void readsAreServedFromTheBuffer() throws Exception {
+        Buffer buffer = new Buffer();
+        buffer.writeUtf8("abcdef");
+        BufferedTransport transport = new BufferedTransport(new BufferTransport(buffer), 16);
+
+        byte[] bytes = new byte[2];
+        assertThat(transport.read(bytes, 0, 2), is(2));
+        assertThat(new String(bytes, "UTF-8"), is("ab"));
+
+        // The whole input was pulled in by the first read
+        assertThat(buffer.size(), is(0L));
+        assertThat(transport.readBufferRemaining(), is(4));
+
+        transport.consumeReadBuffer(3);
+        assertThat(transport.read(bytes, 0, 2), is(1));
+        assertThat(bytes[0], is((byte) 'f'));
+        assertThat(transport.read(bytes, 0, 2), is(-1));
+    }
+
+    @Test
+    public void binaryProtocolRoundTrip() throws Exception {
+        Buffer buffer = new Buffer();
+        Xtruct.ADAPTER.write(new BinaryProtocol(new BufferTransport(buffer)), xtruct);
+        Xtruct.ADAPTER.write(new BinaryProtocol(new BufferTransport(buffer)), xtruct);
+
+        // A tiny buffer forces values to straddle refills
+        Protocol protocol = new BinaryProtocol(new BufferedTransport(new BufferTransport(buffer), 16));
+        assertThat(Xtruct.ADAPTER.read(protocol), equalTo(xtruct));
+        assertThat(Xtruct.ADAPTER.read(protocol), equalTo(xtruct));
+    }
+
+    @Test
+    public void compactProtocolRoundTrip() throws Exception {
+        Buffer buffer = new Buffer();
+        Xtruct.ADAPTER.write(new CompactProtocol(new BufferTransport(buffer)), xtruct);
+        Xtruct.ADAPTER.write(new CompactProtocol(new BufferTransport(buffer)), xtruct);
+
+        Protocol protocol = new CompactProtocol(new BufferedTransport(new BufferTransport(buffer), 16));
+        assertThat(Xtruct.ADAPTER.read(protocol), equalTo(xtruct));
+        assertThat(Xtruct.ADAPTER.read(protocol), equalTo(xtruct));
+    }
+}
@@ -15,10 +15,18 @@
  */
 package com.bendb.thrifty.transport;
 
+import com.bendb.thrifty.protocol.BinaryProtocol;
+import com.bendb.thrifty.protocol.CompactProtocol;
+import com.bendb.thrifty.protocol.MessageMetadata;
+import com.bendb.thrifty.protocol.Protocol;
+import com.bendb.thrifty.protocol.Xtruct;
+import com.bendb.thrifty.service.TMessageType;
 import com.google.common.base.Charsets;
 import okio.Buffer;
 import org.junit.Test;
 
+import java.io.EOFException;
+import java.io.IOException;
 import java.net.ProtocolException;
 
 import static org.hamcrest.CoreMatchers.*;
@@ -69,4 +77,188 @@ public class FramedTransportTest {
         assertThat(target.readInt(), is(37));
         assertThat(target.readUtf8(), is("this text contains thirty-seven bytes"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void eachFrameIsASingleWrite() throws Exception {
+        final Buffer buffer = new Buffer();
+        final int[] writes = new int[1];
+        FramedTransport transport = new FramedTransport(new BufferTransport(buffer) {
+            @Override
+            public void write(byte[] data, int offset, int count) throws IOException {
+                writes[0]++;
+                super.write(data, offset, count);
+            }
+        });
+
+        transport.write(new byte[3000]);
+        int pos = transport.reserveWrite(2);
+        transport.writeBuffer()[pos] = 42;
+        transport.commitWrite(1);
+        transport.flush();
+
+        assertThat(writes[0], is(1));
+        assertThat(buffer.readInt(), is(3001));
+        buffer.skip(3000);
+        assertThat(buffer.readByte(), is((byte) 42));
+
+        // Nothing pending, so nothing written
+        transport.flush();
+        assertThat(writes[0], is(1));
+    }
+
+    @Test
+    public void framesAreReadWholeAcrossShortReads() throws Exception {
+        final Buffer buffer = new Buffer();
+        buffer.writeInt(0); // empty frames are skipped
+        buffer.writeInt(3);
+        buffer.writeUtf8("abc");
+        buffer.writeInt(2);
+        buffer.writeUtf8("de");
+
+        // Serve at most one byte per read
+        FramedTransport transport = new FramedTransport(new Transport() {
+            @Override
+            public int read(byte[] data, int offset, int count) throws IOException {
+                return buffer.read(data, offset, Math.min(count, 1));
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int count) {
+                throw new AssertionError();
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+
+        byte[] bytes = new byte[10];
+        assertThat(transport.read(bytes, 0, 10), is(3));
+        assertThat(transport.readBufferRemaining(), is(0));
+        assertThat(transport.read(bytes, 3, 10), is(2));
+        assertThat(new String(bytes, 0, 5, "UTF-8"), is("abcde"));
+        assertThat(transport.read(bytes, 0, 10), is(-1));
+    }
+
+    @Test
+    public void truncatedFrameThrows() throws Exception {
+        Buffer buffer = new Buffer();
+        buffer.writeInt(10);
+        buffer.writeUtf8("short");
+
+        FramedTransport transport = new FramedTransport(new BufferTransport(buffer));
+        try {
+            transport.read(new byte[10], 0, 10);
+            fail("Expected an EOFException");
+        } catch (EOFException expected) {
+        }
+    }
+
+    @Test
+    public void oversizedFramesAreRejected() throws Exception {
+        Buffer buffer = new Buffer();
+        buffer.writeInt(1025);
+        buffer.write(new byte[1025]);
+
+        FramedTransport transport = new FramedTransport(new BufferTransport(buffer), 1024);
+        try {
+            transport.read(new byte[10], 0, 10);
+            fail("Expected a ProtocolException");
+        } catch (ProtocolException e) {
+            assertThat(e.getMessage(), containsString("exceeds the maximum of 1024"));
+        }
+    }
+
+    @Test
+    public void eachMessageHasAFrameOfItsOwn() throws Exception {
+        final Buffer buffer = new Buffer();
+        final int[] writes = new int[1];
+        FramedTransport transport = new FramedTransport(new BufferTransport(buffer) {
+            @Override
+            public void write(byte[] data, int offset, int count) throws IOException {
+                writes[0]++;
+                super.write(data, offset, count);
+            }
+        });
+
+        Protocol out = new BinaryProtocol(transport);
+        for (int i = 1; i <= 3; ++i) {
+            out.writeMessageBegin("call", TMessageType.CALL, i);
+            Xtruct.ADAPTER.write(out, new Xtruct.Builder().i32_thing(i).build());
+            out.writeMessageEnd();
+        }
+
+        // Ending an empty frame does not send it
+        transport.endMessage();
+        out.flush();
+
+        // Still a single write, of three frames
+        assertThat(writes[0], is(1));
+        for (int i = 1; i <= 3; ++i) {
+            Buffer frame = new Buffer();
+            frame.write(buffer, buffer.readInt());
+
+            Protocol in = new BinaryProtocol(new BufferTransport(frame));
+            MessageMetadata metadata = in.readMessageBegin();
+            assertThat(metadata.seqId, is(i));
+            assertThat(Xtruct.ADAPTER.read(in).i32_thing, is(i));
+            in.readMessageEnd();
+            assertThat(frame.size(), is(0L));
+        }
+        assertThat(buffer.size(), is(0L));
+    }
+
+    @Test
+    public void protocolRoundTrip() throws Exception {
+        Xtruct xtruct = new Xtruct.Builder()
+                .string_thing("framed")
+                .i32_thing(99)
+                .i64_thing(-5L)
+                .build();
+
+        Buffer buffer = new Buffer();
+        Protocol out = new CompactProtocol(new FramedTransport(new BufferTransport(buffer)));
+        Xtruct.ADAPTER.write(out, xtruct);
+        out.flush();
+        Xtruct.ADAPTER.write(out, xtruct);
+        out.flush();
+
+        Protocol in = new CompactProtocol(new FramedTransport(new BufferTransport(buffer)));
+        assertThat(Xtruct.ADAPTER.read(in), equalTo(xtruct));
+        assertThat(Xtruct.ADAPTER.read(in), equalTo(xtruct));
+        assertThat(buffer.size(), is(0L));
+    }
+
+    @Test
+    public void expectedWritesGrowTheFrameOnce() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            text.append("framed ");
+        }
+        Xtruct xtruct = new Xtruct.Builder()
+                .string_thing(text.toString())
+                .i32_thing(99)
+                .build();
+
+        Buffer buffer = new Buffer();
+        FramedTransport transport = new FramedTransport(new BufferTransport(buffer));
+        Protocol out = new CompactProtocol(transport);
+
+        int size = Xtruct.ADAPTER.sizeOf(out, xtruct);
+        transport.expectWrite(size);
+
+        byte[] frame = transport.writeBuffer();
+        assertThat(frame.length >= size + 4, is(true));
+
+        Xtruct.ADAPTER.write(out, xtruct);
+        assertThat(transport.writeBuffer(), sameInstance(frame));
+
+        out.flush();
+        assertThat(buffer.readInt(), is(size));
+        assertThat(buffer.size(), is((long) size));
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.transport;
+
+import com.google.common.base.Charsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class SocketChannelTransportTest {
+    private ServerSocket serverSocket;
+    private Socket peer;
+    private SocketChannelTransport transport;
+
+    @Before
+    public void setup() throws Exception {
+        serverSocket = new ServerSocket(0);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        if (transport != null) {
+            transport.close();
+        }
+        if (peer != null) {
+            peer.close();
+        }
+        serverSocket.close();
+    }
+
+    @Test
+    public void unframedRoundTrip() throws Exception {
+        connect(new SocketChannelTransport.Builder("localhost", serverSocket.getLocalPort())
+                .bufferSize(16));
+
+        // Larger than the buffer, so that it is drained mid-write
+        byte[] data = "the quick brown fox jumps over the lazy dog".getBytes(Charsets.UTF_8);
+        transport.write(data);
+        transport.flush();
+
+        DataInputStream in = new DataInputStream(peer.getInputStream());
+        byte[] received = new byte[data.length];
+        in.readFully(received);
+        assertThat(received, is(data));
+
+        peer.getOutputStream().write(data);
+        byte[] read = new byte[data.length];
+        int offset = 0;
+        while (offset < read.length) {
+            offset += transport.read(read, offset, read.length - offset);
+        }
+        assertThat(read, is(data));
+    }
+
+    @Test
+    public void framedWritesHeaderThenBody() throws Exception {
+        connect(new SocketChannelTransport.Builder("localhost", serverSocket.getLocalPort())
+                .bufferSize(16)
+                .framed(true));
+
+        transport.write("abcde".getBytes(Charsets.UTF_8));
+        transport.flush();
+
+        // An empty frame is not written at all
+        transport.flush();
+
+        byte[] large = new byte[100];
+        transport.write(large);
+        transport.flush();
+
+        DataInputStream in = new DataInputStream(peer.getInputStream());
+        assertThat(in.readInt(), is(5));
+        byte[] body = new byte[5];
+        in.readFully(body);
+        assertThat(new String(body, Charsets.UTF_8), is("abcde"));
+
+        assertThat(in.readInt(), is(100));
+        in.readFully(large);
+    }
+
+    @Test
+    public void framedReadsFramesSharingAPacket() throws Exception {
+        connect(new SocketChannelTransport.Builder("localhost", serverSocket.getLocalPort())
+                .framed(true));
+
+        OutputStream out = peer.getOutputStream();
+        out.write(new byte[] {
+                0, 0, 0, 3, 'a', 'b', 'c',
+                0, 0, 0, 0,                 // empty frames are skipped
+                0, 0, 0, 2, 'd', 'e',
+                0, 0                        // the start of a header...
+        });
+        out.flush();
+
+        byte[] buffer = new byte[10];
+        assertThat(transport.read(buffer, 0, 10), is(3));
+        assertThat(new String(buffer, 0, 3, Charsets.UTF_8), is("abc"));
+        assertThat(transport.read(buffer, 0, 10), is(2));
+        assertThat(new String(buffer, 0, 2, Charsets.UTF_8), is("de"));
+
+        out.write(new byte[] { 0, 1, 'f' }); // ...and its end
+        out.flush();
+
+        assertThat(transport.read(buffer, 0, 10), is(1));
+        assertThat(buffer[0], is((byte) 'f'));
+
+        peer.shutdownOutput();
+        assertThat(transport.read(buffer, 0, 10), is(-1));
+    }
+
+    @Test
+    public void skipAdvancesAcrossBufferRefills() throws Exception {
+        connect(new SocketChannelTransport.Builder("localhost", serverSocket.getLocalPort())
+                .bufferSize(16));
+
+        byte[] data = "the quick brown fox jumps over the lazy dog".getBytes(Charsets.UTF_8);
+        peer.getOutputStream().write(data);
+
+        transport.skip(40);
+
+        byte[] buffer = new byte[3];
+        int offset = 0;
+        while (offset < buffer.length) {
+            offset += transport.read(buffer, offset, buffer.length - offset);
+        }
+        assertThat(new String(buffer, Charsets.UTF_8), is("dog"));
+    }
+
+    @Test
+    public void framedSkipStopsAtFrameBoundaries() throws Exception {
+        connect(new SocketChannelTransport.Builder("localhost", serverSocket.getLocalPort())
+                .framed(true));
+
+        OutputStream out = peer.getOutputStream();
+        out.write(new byte[] {
+                0, 0, 0, 3, 'a', 'b', 'c',
+                0, 0, 0, 2, 'd', 'e',
+        });
+        out.flush();
+
+        // Skipping spans frames, as reading does
+        transport.skip(4);
+
+        byte[] buffer = new byte[10];
+        assertThat(transport.read(buffer, 0, 10), is(1));
+        assertThat(buffer[0], is((byte) 'e'));
+
+        peer.shutdownOutput();
+        try {
+            transport.skip(1);
+            fail("Expected an EOFException");
+        } catch (EOFException expected) {
+        }
+    }
+
+    @Test
+    public void framedRejectsOversizedFrames() throws Exception {
+        connect(new SocketChannelTransport.Builder("localhost", serverSocket.getLocalPort())
+                .framed(true)
+                .maxFrameSize(10));
+
+        peer.getOutputStream().write(new byte[] { 0, 0, 0, 11 });
+
+        try {
+            transport.read(new byte[16], 0, 16);
+            fail("Expected a ProtocolException");
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    @Test
+    public void readTimesOut() throws Exception {
+        connect(new SocketChannelTransport.Builder("localhost", serverSocket.getLocalPort())
+                .readTimeout(50));
+
+        try {
+            transport.read(new byte[16], 0, 16);
+            fail("Expected a SocketTimeoutException");
+        } catch (SocketTimeoutException expected) {
+        }
+    }
+
+    @Test
+    public void closeDuringBlockedReadReleasesBuffersOnce() throws Exception {
+        // An unusual size, so that no other test shares the pool bucket
+        final int bufferSize = 1237;
+        connect(new SocketChannelTransport.Builder("localhost", serverSocket.getLocalPort())
+                .bufferSize(bufferSize));
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    transport.read(new byte[16], 0, 16);
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        reader.start();
+
+        while (!isBlockedInRead(reader)) {
+            Thread.sleep(1);
+        }
+
+        transport.close();
+        reader.join(5000);
+
+        assertThat(reader.isAlive(), is(false));
+        assertThat(failure.get(), instanceOf(ClosedChannelException.class));
+
+        try {
+            transport.read(new byte[16], 0, 16);
+            fail("Expected a ClosedChannelException");
+        } catch (ClosedChannelException expected) {
+        }
+
+        // The read and write buffers were each returned to the pool just
+        // once, so no buffer can be handed out twice.
+        Set<ByteBuffer> acquired = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+        for (int i = 0; i < 4; ++i) {
+            acquired.add(DirectBufferPool.SHARED.acquire(bufferSize));
+        }
+        assertThat(acquired.size(), is(4));
+    }
+
+    private static boolean isBlockedInRead(Thread thread) {
+        for (StackTraceElement frame : thread.getStackTrace()) {
+            if (frame.getMethodName().equals("readChannel")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void connect(SocketChannelTransport.Builder builder) throws Exception {
+        transport = builder
+                .sendBufferSize(8192)
+                .receiveBufferSize(8192)
+                .build();
+        transport.connect();
+        peer = serverSocket.accept();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.util;
+
+import com.bendb.thrifty.TType;
+import com.bendb.thrifty.protocol.CompactProtocol;
+import com.bendb.thrifty.protocol.Headers;
+import com.bendb.thrifty.protocol.Protocol;
+import com.bendb.thrifty.transport.BufferTransport;
+import okio.Buffer;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PrimitiveCollectionsTest {
+    private final Buffer buffer = new Buffer();
+    private final Protocol protocol = new CompactProtocol(new BufferTransport(buffer));
+
+    @Test
+    public void intListMatchesBoxedEncoding() throws Exception {
+        IntList list = IntList.of(3, -1, Integer.MAX_VALUE, 3);
+
+        protocol.writeListBegin(TType.I32, list.size());
+        list.write(protocol);
+        protocol.writeListEnd();
+
+        Buffer expected = new Buffer();
+        Protocol boxed = new CompactProtocol(new BufferTransport(expected));
+        boxed.writeListBegin(TType.I32, 4);
+        for (int value : new int[] { 3, -1, Integer.MAX_VALUE, 3 }) {
+            boxed.writeI32(value);
+        }
+        boxed.writeListEnd();
+
+        assertThat(buffer.snapshot(), equalTo(expected.snapshot()));
+
+        int size = Headers.size(protocol.readListHeader());
+        assertThat(IntList.read(protocol, size), equalTo(list));
+    }
+
+    @Test
+    public void longAndDoubleListsRoundTrip() throws Exception {
+        LongList longs = LongList.of(Long.MIN_VALUE, 0, 42);
+        DoubleList doubles = DoubleList.of(Math.PI, Double.NaN, -0.0);
+
+        longs.write(protocol);
+        doubles.write(protocol);
+
+        assertThat(LongList.read(protocol, 3), equalTo(longs));
+        assertThat(DoubleList.read(protocol, 3), equalTo(doubles));
+        assertThat(doubles.get(0), is(Math.PI));
+    }
+
+    @Test
+    public void listsDoNotShareArrays() {
+        int[] values = { 1, 2, 3 };
+        IntList list = IntList.of(values);
+        values[0] = 100;
+        list.toArray()[1] = 200;
+
+        assertThat(list, equalTo(IntList.of(1, 2, 3)));
+    }
+
+    @Test
+    public void setsAreSortedAndUnique() throws Exception {
+        IntSet set = IntSet.of(5, 1, 5, -3, 1);
+
+        assertThat(set.size(), is(3));
+        assertThat(set.toString(), is("[-3, 1, 5]"));
+        assertThat(set.contains(5), is(true));
+        assertThat(set.contains(2), is(false));
+
+        // Duplicates on the wire are tolerated, as they are by HashSet
+        protocol.writeI64(9);
+        protocol.writeI64(2);
+        protocol.writeI64(9);
+
+        LongSet longs = LongSet.read(protocol, 3);
+        assertThat(longs, equalTo(LongSet.of(2, 9)));
+    }
+
+    @Test
+    public void emptyCollections() throws Exception {
+        assertThat(IntList.read(protocol, 0).isEmpty(), is(true));
+        assertThat(LongSet.read(protocol, 0).isEmpty(), is(true));
+        assertThat(DoubleList.of().size(), is(0));
+    }
+}
@@ -17,6 +17,7 @@ package com.bendb.thrifty.util;
 
 import com.bendb.thrifty.TType;
 import com.bendb.thrifty.protocol.BinaryProtocol;
+import com.bendb.thrifty.protocol.CompactProtocol;
 import com.bendb.thrifty.protocol.Protocol;
 import com.bendb.thrifty.protocol.Xtruct;
 import com.bendb.thrifty.transport.BufferTransport;
@@ -38,6 +39,9 @@ import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
@@ -182,51 +186,105 @@ public class ProtocolUtilTest {
     }
 
     @Test
-    public void skipsBools() throws Exception {
-        ProtocolUtil.skip(mockProtocol, TType.BOOL);
-        verify(mockProtocol).readBool();
+    public void delegatesToProtocol() throws Exception {
+        ProtocolUtil.skip(mockProtocol, TType.I32);
+        verify(mockProtocol).skip(TType.I32);
         verifyNoMoreInteractions(mockProtocol);
     }
 
     @Test
-    public void skipsBytes() throws Exception {
-        ProtocolUtil.skip(mockProtocol, TType.BYTE);
-        verify(mockProtocol).readByte();
-        verifyNoMoreInteractions(mockProtocol);
-    }
+    public void skipsScalars() throws Exception {
+        protocol.writeBool(true);
+        protocol.writeByte((byte) 1);
+        protocol.writeI16((short) 2);
+        protocol.writeI32(3);
+        protocol.writeI64(4L);
+        protocol.writeDouble(5.0);
+        protocol.writeI32(6); // enum
+
+        ProtocolUtil.skip(protocol, TType.BOOL);
+        ProtocolUtil.skip(protocol, TType.BYTE);
+        ProtocolUtil.skip(protocol, TType.I16);
+        ProtocolUtil.skip(protocol, TType.I32);
+        ProtocolUtil.skip(protocol, TType.I64);
+        ProtocolUtil.skip(protocol, TType.DOUBLE);
+        ProtocolUtil.skip(protocol, TType.ENUM);
 
-    @Test
-    public void skipsShorts() throws Exception {
-        ProtocolUtil.skip(mockProtocol, TType.I16);
-        verify(mockProtocol).readI16();
-        verifyNoMoreInteractions(mockProtocol);
+        assertThat(buffer.size(), is(0L));
     }
 
     @Test
-    public void skipsInts() throws Exception {
-        ProtocolUtil.skip(mockProtocol, TType.I32);
-        verify(mockProtocol).readI32();
-        verifyNoMoreInteractions(mockProtocol);
+    public void skipsStringsWithoutDecodingThem() throws Exception {
+        protocol.writeString("not decoded");
+        protocol.writeI32(42);
+
+        Protocol spy = spy(protocol);
+        ProtocolUtil.skip(spy, TType.STRING);
+
+        verify(spy, never()).readString();
+        verify(spy, never()).readBinary();
+        assertThat(protocol.readI32(), is(42));
     }
 
     @Test
-    public void skipsLongs() throws Exception {
-        ProtocolUtil.skip(mockProtocol, TType.I64);
-        verify(mockProtocol).readI64();
-        verifyNoMoreInteractions(mockProtocol);
+    public void skipsCompactStructsWithBooleanFields() throws Exception {
+        CompactProtocol compact = new CompactProtocol(new BufferTransport(buffer));
+        compact.writeStructBegin("Outer");
+        compact.writeFieldBegin("flag", 1, TType.BOOL);
+        compact.writeBool(true);
+        compact.writeFieldEnd();
+        compact.writeFieldBegin("list", 2, TType.LIST);
+        compact.writeListBegin(TType.BOOL, 3);
+        compact.writeBool(true);
+        compact.writeBool(false);
+        compact.writeBool(true);
+        compact.writeListEnd();
+        compact.writeFieldEnd();
+        compact.writeFieldBegin("map", 3, TType.MAP);
+        compact.writeMapBegin(TType.STRING, TType.I64, 2);
+        compact.writeString("one");
+        compact.writeI64(1L);
+        compact.writeString("two");
+        compact.writeI64(-2L);
+        compact.writeMapEnd();
+        compact.writeFieldEnd();
+        compact.writeFieldStop();
+        compact.writeStructEnd();
+        compact.writeI32(42);
+
+        ProtocolUtil.skip(compact, TType.STRUCT);
+
+        assertThat(compact.readI32(), is(42));
+        assertThat(buffer.size(), is(0L));
     }
 
     @Test
-    public void skipsDoubles() throws Exception {
-        ProtocolUtil.skip(mockProtocol, TType.DOUBLE);
-        verify(mockProtocol).readDouble();
-        verifyNoMoreInteractions(mockProtocol);
+    public void skipsDeeplyNestedValuesWithoutRecursion() throws Exception {
+        int depth = 100000;
+        for (int i = 0; i < depth; ++i) {
+            protocol.writeListBegin(TType.LIST, 1);
+        }
+        protocol.writeListBegin(TType.STRING, 0);
+
+        ProtocolUtil.skip(protocol, TType.LIST);
+
+        assertThat(buffer.size(), is(0L));
     }
 
     @Test
-    public void skipsStrings() throws Exception {
-        ProtocolUtil.skip(mockProtocol, TType.STRING);
-        verify(mockProtocol).readString();
-        verifyNoMoreInteractions(mockProtocol);
+    public void skipsFixedWidthContainersInOneJump() throws Exception {
+        protocol.writeMapBegin(TType.I32, TType.DOUBLE, 1000);
+        for (int i = 0; i < 1000; ++i) {
+            protocol.writeI32(i);
+            protocol.writeDouble(i);
+        }
+        protocol.writeI32(42);
+
+        Protocol spy = spy(protocol);
+        ProtocolUtil.skip(spy, TType.MAP);
+
+        verify(spy, times(1)).readI32(); // the map size
+        verify(spy, never()).readDouble();
+        assertThat(protocol.readI32(), is(42));
     }
-}
\ No newline at end of file
+}
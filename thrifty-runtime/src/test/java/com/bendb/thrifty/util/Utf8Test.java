@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015-2016 Benjamin Bader
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bendb.thrifty.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class Utf8Test {
+    private static final String[] STRINGS = {
+            "",
+            "plain ascii",
+            "caf\u00e9",
+            "\u4e2d\u6587 and ascii",
+            "\ud83d\ude00 emoji",
+            "\u0000\u007f\u0080\u07ff\u0800\uffff",
+    };
+
+    @Test
+    public void sizeMatchesJdk() throws Exception {
+        for (String str : STRINGS) {
+            assertThat(str, Utf8.size(str), is(str.getBytes("UTF-8").length));
+        }
+    }
+
+    @Test
+    public void encodeMatchesJdk() throws Exception {
+        for (String str : STRINGS) {
+            byte[] out = new byte[Utf8.size(str) + 2];
+            int end = Utf8.encode(str, out, 1);
+
+            assertThat(end, is(out.length - 1));
+            assertThat(Arrays.copyOfRange(out, 1, end), equalTo(str.getBytes("UTF-8")));
+        }
+    }
+
+    @Test
+    public void decodeRoundTrips() throws Exception {
+        for (String str : STRINGS) {
+            byte[] bytes = ("xx" + str).getBytes("UTF-8");
+            assertThat(Utf8.decode(bytes, 2, bytes.length - 2), is(str));
+        }
+    }
+
+    @Test
+    public void unpairedSurrogatesEncodeAsQuestionMarks() throws Exception {
+        String str = "a\udc00b\ud800";
+        byte[] out = new byte[Utf8.size(str)];
+        Utf8.encode(str, out, 0);
+
+        assertThat(new String(out, "UTF-8"), is("a?b?"));
+    }
+}
@@ -125,7 +125,7 @@ service ThriftTest
    * @param string thing - the string to print
    * @return string - returns the string 'thing'
    */
-  string       testString(1: string thing),
+  string       testString(1: string thing) (idempotent),
 
   /**
    * Prints 'testBool("%s")' where '%s' with thing as 'true' or 'false'
@@ -147,7 +147,7 @@ service ThriftTest
    * @param i32 thing - the i32 to print
    * @return i32 - returns the i32 'thing'
    */
-  i32          testI32(1: i32 thing),
+  i32          testI32(1: i32 thing) (idempotent),
 
   /**
    * Prints 'testI64("%d")' with thing as '%d'
@@ -161,7 +161,7 @@ service ThriftTest
    * @param double thing - the double to print
    * @return double - returns the double 'thing'
    */
-  double       testDouble(1: double thing),
+  double       testDouble(1: double thing) (cache.ttl = "1s", cache.max_entries = "2"),
 
   /**
    * Prints 'testBinary("%s")' where '%s' is a hex-formatted string of thing's data